@@ -120,6 +120,19 @@ public class FileInformationFactory {
         };
         encoders.put(FileDispositionInformation.class, dispositionCodec);
 
+        FileInformation.Encoder<FileEndOfFileInformation> endOfFileCodec = new FileInformation.Encoder<FileEndOfFileInformation>() {
+            @Override
+            public FileInformationClass getInformationClass() {
+                return FileInformationClass.FileEndOfFileInformation;
+            }
+
+            @Override
+            public void write(FileEndOfFileInformation info, Buffer outputBuffer) {
+                writeFileEndOfFileInformation(info, outputBuffer);
+            }
+        };
+        encoders.put(FileEndOfFileInformation.class, endOfFileCodec);
+
         decoders.put(FileEaInformation.class, new FileInformation.Decoder<FileEaInformation>() {
             @Override
             public FileInformationClass getInformationClass() {
@@ -442,6 +455,10 @@ public class FileInformationFactory {
         buffer.putBoolean(information.isDeleteOnClose());
     }
 
+    private static void writeFileEndOfFileInformation(FileEndOfFileInformation information, Buffer<?> buffer) {
+        buffer.putLong(information.getEndOfFile());
+    }
+
     private static FileStandardInformation parseFileStandardInformation(Buffer<?> buffer) throws Buffer.BufferException {
         long allocationSize = buffer.readLong();
         long endOfFile = buffer.readUInt64();
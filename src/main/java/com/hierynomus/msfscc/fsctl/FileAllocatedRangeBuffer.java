@@ -0,0 +1,60 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msfscc.fsctl;
+
+import com.hierynomus.protocol.commons.buffer.Buffer;
+
+/**
+ * [MS-FSCC] 2.3.31 FSCTL_QUERY_ALLOCATED_RANGES Request and 2.3.32 FSCTL_QUERY_ALLOCATED_RANGES Reply
+ * <p/>
+ * A FILE_ALLOCATED_RANGE_BUFFER, the request contains the range to query, the reply contains one for every allocated
+ * range in it.
+ */
+public class FileAllocatedRangeBuffer {
+    public static final int STRUCTURE_SIZE = 16;
+
+    private long fileOffset;
+    private long length;
+
+    public FileAllocatedRangeBuffer(long fileOffset, long length) {
+        this.fileOffset = fileOffset;
+        this.length = length;
+    }
+
+    public long getFileOffset() {
+        return fileOffset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void write(Buffer buffer) {
+        buffer.putLong(fileOffset); // FileOffset (8 bytes)
+        buffer.putLong(length); // Length (8 bytes)
+    }
+
+    public static FileAllocatedRangeBuffer read(Buffer buffer) throws Buffer.BufferException {
+        long fileOffset = buffer.readLong(); // FileOffset (8 bytes)
+        long length = buffer.readLong(); // Length (8 bytes)
+        return new FileAllocatedRangeBuffer(fileOffset, length);
+    }
+
+    @Override
+    public String toString() {
+        return "FileAllocatedRangeBuffer{fileOffset=" + fileOffset + ", length=" + length + "}";
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msfscc.fsctl;
+
+import com.hierynomus.protocol.commons.buffer.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * [MS-SMB2] 2.2.31.1 SRV_COPYCHUNK_COPY
+ */
+public class SrvCopyChunkCopyRequest {
+    private final byte[] sourceKey;
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    public SrvCopyChunkCopyRequest(byte[] sourceKey) {
+        this.sourceKey = sourceKey;
+    }
+
+    public void addChunk(long sourceOffset, long targetOffset, int length) {
+        chunks.add(new Chunk(sourceOffset, targetOffset, length));
+    }
+
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    public void write(Buffer buffer) {
+        buffer.putRawBytes(sourceKey); // SourceKey (24 bytes)
+        buffer.putUInt32(chunks.size()); // ChunkCount (4 bytes)
+        buffer.putUInt32(0); // Reserved (4 bytes)
+        for (Chunk chunk : chunks) {
+            // [MS-SMB2] 2.2.31.1.1 SRV_COPYCHUNK
+            buffer.putUInt64(chunk.sourceOffset); // SourceOffset (8 bytes)
+            buffer.putUInt64(chunk.targetOffset); // TargetOffset (8 bytes)
+            buffer.putUInt32(chunk.length); // Length (4 bytes)
+            buffer.putUInt32(0); // Reserved (4 bytes)
+        }
+    }
+
+    public static class Chunk {
+        private final long sourceOffset;
+        private final long targetOffset;
+        private final int length;
+
+        public Chunk(long sourceOffset, long targetOffset, int length) {
+            this.sourceOffset = sourceOffset;
+            this.targetOffset = targetOffset;
+            this.length = length;
+        }
+
+        public long getSourceOffset() {
+            return sourceOffset;
+        }
+
+        public long getTargetOffset() {
+            return targetOffset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msfscc.fsctl;
+
+import com.hierynomus.protocol.commons.buffer.Buffer;
+
+/**
+ * [MS-SMB2] 2.2.32.1 SRV_COPYCHUNK_RESPONSE
+ * <p/>
+ * If the server failed the copy with STATUS_INVALID_PARAMETER, the fields contain the limits of the server instead:
+ * the maximum number of chunks, the maximum chunk size and the maximum total number of bytes of a single request.
+ */
+public class SrvCopyChunkResponse {
+    public static final int STRUCTURE_SIZE = 12;
+
+    private long chunksWritten;
+    private long chunkBytesWritten;
+    private long totalBytesWritten;
+
+    public long getChunksWritten() {
+        return chunksWritten;
+    }
+
+    public long getChunkBytesWritten() {
+        return chunkBytesWritten;
+    }
+
+    public long getTotalBytesWritten() {
+        return totalBytesWritten;
+    }
+
+    public void read(Buffer buffer) throws Buffer.BufferException {
+        chunksWritten = buffer.readUInt32(); // ChunksWritten (4 bytes)
+        chunkBytesWritten = buffer.readUInt32(); // ChunkBytesWritten (4 bytes)
+        totalBytesWritten = buffer.readUInt32(); // TotalBytesWritten (4 bytes)
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msfscc.fsctl;
+
+import com.hierynomus.protocol.commons.buffer.Buffer;
+
+/**
+ * [MS-SMB2] 2.2.32.3 SRV_REQUEST_RESUME_KEY Response
+ */
+public class SrvRequestResumeKeyResponse {
+    /**
+     * ResumeKey (24 bytes), ContextLength (4 bytes) and the Context of 4 bytes returned by Windows servers; a smaller
+     * MaxOutputResponse makes them fail the request with STATUS_INVALID_PARAMETER.
+     */
+    public static final int STRUCTURE_SIZE = 32;
+
+    private byte[] resumeKey;
+
+    public byte[] getResumeKey() {
+        return resumeKey;
+    }
+
+    public void read(Buffer buffer) throws Buffer.BufferException {
+        resumeKey = buffer.readRawBytes(24); // ResumeKey (24 bytes)
+        // ContextLength (4 bytes) and Context (variable), the client ignores the context.
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2;
+
+import com.hierynomus.protocol.commons.EnumWithValue;
+
+/**
+ * [MS-SMB2].pdf 2.2.3.1.2 SMB2_ENCRYPTION_CAPABILITIES - Ciphers
+ * <p/>
+ * SMB 3.0 and 3.0.2 always use AES-128-CCM, SMB 3.1.1 negotiates the cipher using the SMB2_ENCRYPTION_CAPABILITIES
+ * negotiate context.
+ */
+public enum SMB2EncryptionCipher implements EnumWithValue<SMB2EncryptionCipher> {
+    AES_128_CCM(0x0001L, "AES/CCM/NoPadding", 11),
+    AES_128_GCM(0x0002L, "AES/GCM/NoPadding", 12);
+
+    private long i;
+    private String algorithmName;
+    private int nonceLength;
+
+    SMB2EncryptionCipher(long i, String algorithmName, int nonceLength) {
+        this.i = i;
+        this.algorithmName = algorithmName;
+        this.nonceLength = nonceLength;
+    }
+
+    public long getValue() {
+        return i;
+    }
+
+    /**
+     * @return The name of the AEADBlockCipher to request from the SecurityProvider.
+     */
+    public String getAlgorithmName() {
+        return algorithmName;
+    }
+
+    /**
+     * @return The number of bytes of the 16 byte Nonce field of the TRANSFORM_HEADER that are used by the cipher.
+     */
+    public int getNonceLength() {
+        return nonceLength;
+    }
+}
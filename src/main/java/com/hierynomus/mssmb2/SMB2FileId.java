@@ -19,6 +19,8 @@ import com.hierynomus.protocol.commons.ByteArrayUtils;
 import com.hierynomus.protocol.commons.buffer.Buffer;
 import com.hierynomus.smbj.common.SMBBuffer;
 
+import java.util.Arrays;
+
 /**
  * [MS-SMB2].pdf 2.2.14.1 SMB2_FILEID
  */
@@ -42,6 +44,23 @@ public class SMB2FileId {
         return new SMB2FileId(buffer.readRawBytes(8), buffer.readRawBytes(8));
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        SMB2FileId fileId = (SMB2FileId) o;
+        return Arrays.equals(persistentHandle, fileId.persistentHandle) && Arrays.equals(volatileHandle, fileId.volatileHandle);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(persistentHandle) + Arrays.hashCode(volatileHandle);
+    }
+
     @Override
     public String toString() {
         return "SMB2FileId{" +
@@ -73,7 +73,6 @@ public class SMB2Header {
         if (dialect.isSmb3x()) {
             buffer.putRawBytes(new byte[]{0x0, 0x0}); // ChannelSequence (2 bytes)
             buffer.putReserved(2); // Reserved (2 bytes)
-            throw new UnsupportedOperationException("SMB 3.x not yet implemented");
         } else {
             buffer.putReserved4(); // Status (4 bytes) (reserved on request)
         }
@@ -166,7 +165,7 @@ public class SMB2Header {
         creditResponse = buffer.readUInt16(); // CreditRequest/CreditResponse (2 bytes)
         flags = buffer.readUInt32(); // Flags (4 bytes)
         nextCommandOffset = buffer.readUInt32(); // NextCommand (4 bytes)
-        messageId = buffer.readUInt64(); // MessageId (4 bytes)
+        messageId = buffer.readLong(); // MessageId (8 bytes) - 0xFFFFFFFFFFFFFFFF for an oplock break notification
         if (isSet(flags, SMB2MessageFlag.SMB2_FLAGS_ASYNC_COMMAND)) {
             asyncId = buffer.readUInt64();
         } else {
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2;
+
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.smbj.common.SMBBuffer;
+
+import java.util.Set;
+
+import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.toEnumSet;
+import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.toLong;
+
+/**
+ * [MS-SMB2].pdf 2.2.13.2.8 SMB2_CREATE_REQUEST_LEASE / 2.2.14.2.10 SMB2_CREATE_RESPONSE_LEASE
+ * <p/>
+ * The data of the "RqLs" create context, in the SMB 2.1 format which is also accepted by SMB 3.x servers.
+ */
+public class SMB2Lease {
+    public static final String CREATE_CONTEXT_NAME = "RqLs";
+    public static final int STRUCTURE_SIZE = 32;
+
+    private final byte[] leaseKey;
+    private final Set<SMB2LeaseState> leaseState;
+
+    public SMB2Lease(byte[] leaseKey, Set<SMB2LeaseState> leaseState) {
+        this.leaseKey = leaseKey;
+        this.leaseState = leaseState;
+    }
+
+    public byte[] getLeaseKey() {
+        return leaseKey;
+    }
+
+    public Set<SMB2LeaseState> getLeaseState() {
+        return leaseState;
+    }
+
+    public void write(SMBBuffer buffer) {
+        buffer.putRawBytes(leaseKey); // LeaseKey (16 bytes)
+        buffer.putUInt32(toLong(leaseState)); // LeaseState (4 bytes)
+        buffer.putReserved4(); // LeaseFlags (4 bytes)
+        buffer.putUInt64(0); // LeaseDuration (8 bytes)
+    }
+
+    public static SMB2Lease read(SMBBuffer buffer) throws Buffer.BufferException {
+        byte[] leaseKey = buffer.readRawBytes(16); // LeaseKey (16 bytes)
+        Set<SMB2LeaseState> leaseState = toEnumSet(buffer.readUInt32(), SMB2LeaseState.class); // LeaseState (4 bytes)
+        buffer.skip(4); // LeaseFlags (4 bytes)
+        buffer.skip(8); // LeaseDuration (8 bytes)
+        return new SMB2Lease(leaseKey, leaseState);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2;
+
+import com.hierynomus.protocol.commons.EnumWithValue;
+
+/**
+ * [MS-SMB2].pdf 2.2.3.1 SMB2 NEGOTIATE_CONTEXT Request Values - ContextType
+ */
+public enum SMB2NegotiateContextType implements EnumWithValue<SMB2NegotiateContextType> {
+    SMB2_PREAUTH_INTEGRITY_CAPABILITIES(0x0001L),
+    SMB2_ENCRYPTION_CAPABILITIES(0x0002L),
+    SMB2_COMPRESSION_CAPABILITIES(0x0003L),
+    SMB2_NETNAME_NEGOTIATE_CONTEXT_ID(0x0005L),
+    SMB2_TRANSPORT_CAPABILITIES(0x0006L),
+    SMB2_RDMA_TRANSFORM_CAPABILITIES(0x0007L),
+    SMB2_SIGNING_CAPABILITIES(0x0008L);
+
+    private long i;
+
+    SMB2NegotiateContextType(long i) {
+        this.i = i;
+    }
+
+    public long getValue() {
+        return i;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2;
+
+import com.hierynomus.protocol.commons.EnumWithValue;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import static com.hierynomus.mssmb2.SMB2LeaseState.*;
+
+/**
+ * [MS-SMB2].pdf 2.2.13 SMB2 CREATE Request - RequestedOplockLevel
+ */
+public enum SMB2OplockLevel implements EnumWithValue<SMB2OplockLevel> {
+    SMB2_OPLOCK_LEVEL_NONE(0x00L),
+    SMB2_OPLOCK_LEVEL_II(0x01L),
+    SMB2_OPLOCK_LEVEL_EXCLUSIVE(0x08L),
+    SMB2_OPLOCK_LEVEL_BATCH(0x09L),
+    SMB2_OPLOCK_LEVEL_LEASE(0xFFL);
+
+    private long value;
+
+    SMB2OplockLevel(long value) {
+        this.value = value;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * The caching an oplock of this level allows, expressed as lease states. A level II oplock allows read caching,
+     * an exclusive oplock read and write caching, and a batch oplock read, write and handle caching.
+     *
+     * @return the caching rights, which are empty for {@link #SMB2_OPLOCK_LEVEL_NONE} and
+     * {@link #SMB2_OPLOCK_LEVEL_LEASE}
+     */
+    public Set<SMB2LeaseState> getCachingRights() {
+        switch (this) {
+            case SMB2_OPLOCK_LEVEL_II:
+                return EnumSet.of(SMB2_LEASE_READ_CACHING);
+            case SMB2_OPLOCK_LEVEL_EXCLUSIVE:
+                return EnumSet.of(SMB2_LEASE_READ_CACHING, SMB2_LEASE_WRITE_CACHING);
+            case SMB2_OPLOCK_LEVEL_BATCH:
+                return EnumSet.of(SMB2_LEASE_READ_CACHING, SMB2_LEASE_WRITE_CACHING, SMB2_LEASE_HANDLE_CACHING);
+            default:
+                return EnumSet.noneOf(SMB2LeaseState.class);
+        }
+    }
+
+    /**
+     * The lowest oplock level that allows the requested caching, for servers that do not support leasing.
+     *
+     * @param cachingRights the requested caching rights
+     * @return the oplock level to request
+     */
+    public static SMB2OplockLevel forCachingRights(Set<SMB2LeaseState> cachingRights) {
+        if (cachingRights.contains(SMB2_LEASE_HANDLE_CACHING)) {
+            return SMB2_OPLOCK_LEVEL_BATCH;
+        } else if (cachingRights.contains(SMB2_LEASE_WRITE_CACHING)) {
+            return SMB2_OPLOCK_LEVEL_EXCLUSIVE;
+        } else if (cachingRights.contains(SMB2_LEASE_READ_CACHING)) {
+            return SMB2_OPLOCK_LEVEL_II;
+        }
+        return SMB2_OPLOCK_LEVEL_NONE;
+    }
+}
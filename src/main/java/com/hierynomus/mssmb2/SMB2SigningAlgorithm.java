@@ -0,0 +1,50 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2;
+
+import com.hierynomus.protocol.commons.EnumWithValue;
+
+/**
+ * [MS-SMB2].pdf 2.2.3.1.7 SMB2_SIGNING_CAPABILITIES - SigningAlgorithms
+ * <p/>
+ * SMB 2.x always signs using HMAC-SHA256, SMB 3.0 and 3.0.2 using AES-CMAC. SMB 3.1.1 uses AES-CMAC, unless another
+ * algorithm is negotiated using the SMB2_SIGNING_CAPABILITIES negotiate context.
+ */
+public enum SMB2SigningAlgorithm implements EnumWithValue<SMB2SigningAlgorithm> {
+    HMAC_SHA256(0x0000L),
+    AES_CMAC(0x0001L),
+    AES_GMAC(0x0002L);
+
+    private long i;
+
+    SMB2SigningAlgorithm(long i) {
+        this.i = i;
+    }
+
+    public long getValue() {
+        return i;
+    }
+
+    /**
+     * The default signing algorithm for the dialect, i.e. when no signing algorithm has been negotiated.
+     *
+     * @param dialect The negotiated dialect
+     * @return HMAC_SHA256 for SMB 2.x, AES_CMAC for SMB 3.x
+     */
+    public static SMB2SigningAlgorithm forDialect(SMB2Dialect dialect) {
+        return dialect != null && dialect.isSmb3x() ? AES_CMAC : HMAC_SHA256;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2;
+
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.smbj.common.SMBBuffer;
+
+import java.util.Arrays;
+
+/**
+ * [MS-SMB2].pdf 2.2.41 SMB2 TRANSFORM_HEADER
+ * <p/>
+ * Precedes an encrypted SMB2 message. The fields following the Signature (Nonce up to and including SessionId) are the
+ * additional authenticated data of the encryption, the Signature is the authentication tag.
+ */
+public class SMB2TransformHeader {
+    public static final byte[] PROTOCOL_ID = {(byte) 0xFD, 'S', 'M', 'B'};
+    public static final int STRUCTURE_SIZE = 52;
+    public static final int SIGNATURE_SIZE = 16;
+    public static final int NONCE_SIZE = 16;
+    public static final int AAD_OFFSET = 20;
+    public static final int AAD_SIZE = STRUCTURE_SIZE - AAD_OFFSET;
+    private static final int FLAG_ENCRYPTED = 0x0001;
+
+    private byte[] signature = new byte[SIGNATURE_SIZE];
+    private byte[] nonce = new byte[NONCE_SIZE];
+    private int originalMessageSize;
+    private int flags = FLAG_ENCRYPTED;
+    private long sessionId;
+
+    public SMB2TransformHeader() {
+    }
+
+    public SMB2TransformHeader(byte[] nonce, int originalMessageSize, long sessionId) {
+        this.nonce = Arrays.copyOf(nonce, NONCE_SIZE);
+        this.originalMessageSize = originalMessageSize;
+        this.sessionId = sessionId;
+    }
+
+    public void writeTo(SMBBuffer buffer) {
+        buffer.putRawBytes(PROTOCOL_ID); // ProtocolId (4 bytes)
+        buffer.putRawBytes(signature); // Signature (16 bytes)
+        buffer.putRawBytes(nonce); // Nonce (16 bytes)
+        buffer.putUInt32(originalMessageSize & 0xFFFFFFFFL); // OriginalMessageSize (4 bytes)
+        buffer.putReserved(2); // Reserved (2 bytes)
+        buffer.putUInt16(flags); // Flags/EncryptionAlgorithm (2 bytes)
+        buffer.putLong(sessionId); // SessionId (8 bytes)
+    }
+
+    public SMB2TransformHeader readFrom(Buffer<?> buffer) throws Buffer.BufferException {
+        buffer.skip(4); // ProtocolId (4 bytes) (already verified)
+        signature = buffer.readRawBytes(SIGNATURE_SIZE); // Signature (16 bytes)
+        nonce = buffer.readRawBytes(NONCE_SIZE); // Nonce (16 bytes)
+        originalMessageSize = buffer.readUInt32AsInt(); // OriginalMessageSize (4 bytes)
+        buffer.skip(2); // Reserved (2 bytes)
+        flags = buffer.readUInt16(); // Flags/EncryptionAlgorithm (2 bytes)
+        sessionId = buffer.readLong(); // SessionId (8 bytes)
+        return this;
+    }
+
+    public static boolean isTransformHeader(byte[] data, int offset) {
+        return data.length - offset >= PROTOCOL_ID.length
+            && data[offset] == PROTOCOL_ID[0] && data[offset + 1] == PROTOCOL_ID[1]
+            && data[offset + 2] == PROTOCOL_ID[2] && data[offset + 3] == PROTOCOL_ID[3];
+    }
+
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    public byte[] getNonce() {
+        return nonce;
+    }
+
+    public int getOriginalMessageSize() {
+        return originalMessageSize;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SMB2TransformHeader{originalMessageSize=%s, flags=%s, sessionId=%s}", originalMessageSize, flags, sessionId);
+    }
+}
@@ -20,6 +20,7 @@ import com.hierynomus.msfscc.FileAttributes;
 import com.hierynomus.mssmb2.*;
 import com.hierynomus.smbj.common.SMBBuffer;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Set;
 
 import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.ensureNotNull;
@@ -30,6 +31,7 @@ import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.toLong;
  * <p>
  */
 public class SMB2CreateRequest extends SMB2Packet {
+    private static final int LEASE_CONTEXT_SIZE = 24 + SMB2Lease.STRUCTURE_SIZE;
 
     private final Set<FileAttributes> fileAttributes;
     private final Set<SMB2ShareAccess> shareAccess;
@@ -38,6 +40,8 @@ public class SMB2CreateRequest extends SMB2Packet {
     private final String fileName; // Null to indicate the root of share
     private final Set<AccessMask> accessMask;
     private final SMB2ImpersonationLevel impersonationLevel;
+    private final SMB2OplockLevel requestedOplockLevel;
+    private final SMB2Lease requestedLease; // Null unless a lease is requested
 
     public SMB2CreateRequest(SMB2Dialect smbDialect,
                              long sessionId, long treeId,
@@ -46,7 +50,21 @@ public class SMB2CreateRequest extends SMB2Packet {
                              Set<FileAttributes> fileAttributes,
                              Set<SMB2ShareAccess> shareAccess, SMB2CreateDisposition createDisposition,
                              Set<SMB2CreateOptions> createOptions, String fileName) {
+        this(smbDialect, sessionId, treeId, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE, null, impersonationLevel, accessMask, fileAttributes, shareAccess, createDisposition, createOptions, fileName);
+    }
+
+    public SMB2CreateRequest(SMB2Dialect smbDialect,
+                             long sessionId, long treeId,
+                             SMB2OplockLevel requestedOplockLevel,
+                             SMB2Lease requestedLease,
+                             SMB2ImpersonationLevel impersonationLevel,
+                             Set<AccessMask> accessMask,
+                             Set<FileAttributes> fileAttributes,
+                             Set<SMB2ShareAccess> shareAccess, SMB2CreateDisposition createDisposition,
+                             Set<SMB2CreateOptions> createOptions, String fileName) {
         super(57, smbDialect, SMB2MessageCommandCode.SMB2_CREATE, sessionId, treeId);
+        this.requestedOplockLevel = ensureNotNull(requestedOplockLevel, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE);
+        this.requestedLease = requestedLease;
         this.impersonationLevel = ensureNotNull(impersonationLevel, SMB2ImpersonationLevel.Identification);
         this.accessMask = accessMask;
         this.fileAttributes = ensureNotNull(fileAttributes, FileAttributes.class);
@@ -60,7 +78,7 @@ public class SMB2CreateRequest extends SMB2Packet {
     protected void writeTo(SMBBuffer buffer) {
         buffer.putUInt16(structureSize); // StructureSize (2 bytes)
         buffer.putByte((byte) 0); // SecurityFlags (1 byte) - Reserved
-        buffer.putByte((byte) 0);  // RequestedOpLockLevel (1 byte) - None
+        buffer.putByte((byte) requestedOplockLevel.getValue()); // RequestedOplockLevel (1 byte)
         buffer.putUInt32(impersonationLevel.getValue()); // ImpersonationLevel (4 bytes) - Identification
         buffer.putReserved(8); // SmbCreateFlags (8 bytes)
         buffer.putReserved(8); // Reserved (8 bytes)
@@ -86,10 +104,34 @@ public class SMB2CreateRequest extends SMB2Packet {
         }
 
         // Create Contexts
-        buffer.putUInt32(0); // CreateContextsOffset (4 bytes)
-        buffer.putUInt32(0); // CreateContextsLength (4 bytes)
+        if (requestedLease == null) {
+            buffer.putUInt32(0); // CreateContextsOffset (4 bytes)
+            buffer.putUInt32(0); // CreateContextsLength (4 bytes)
+            buffer.putRawBytes(nameBytes);
+        } else {
+            // The create contexts are 8-byte aligned after the name
+            int createContextsOffset = (offset + nameBytes.length + 7) & ~7;
+            buffer.putUInt32(createContextsOffset); // CreateContextsOffset (4 bytes)
+            buffer.putUInt32(LEASE_CONTEXT_SIZE); // CreateContextsLength (4 bytes)
+            buffer.putRawBytes(nameBytes);
+            buffer.putReserved(createContextsOffset - offset - nameBytes.length);
+            putLeaseContext(buffer);
+        }
+    }
 
-        buffer.putRawBytes(nameBytes);
+    /**
+     * [MS-SMB2].pdf 2.2.13.2 SMB2_CREATE_CONTEXT Request Values
+     */
+    private void putLeaseContext(SMBBuffer buffer) {
+        buffer.putUInt32(0); // Next (4 bytes) - Last create context
+        buffer.putUInt16(16); // NameOffset (2 bytes)
+        buffer.putUInt16(SMB2Lease.CREATE_CONTEXT_NAME.length()); // NameLength (2 bytes)
+        buffer.putReserved2(); // Reserved (2 bytes)
+        buffer.putUInt16(24); // DataOffset (2 bytes)
+        buffer.putUInt32(SMB2Lease.STRUCTURE_SIZE); // DataLength (4 bytes)
+        buffer.putRawBytes(SMB2Lease.CREATE_CONTEXT_NAME.getBytes(StandardCharsets.US_ASCII)); // Buffer (variable) - Name
+        buffer.putReserved4(); // Padding to align the data on 8 bytes
+        requestedLease.write(buffer); // Buffer (variable) - Data
     }
 
     public String getFileName() {
@@ -19,10 +19,14 @@ import com.hierynomus.msdtyp.FileTime;
 import com.hierynomus.msdtyp.MsDataTypes;
 import com.hierynomus.msfscc.FileAttributes;
 import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2Lease;
+import com.hierynomus.mssmb2.SMB2OplockLevel;
 import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.protocol.commons.EnumWithValue;
 import com.hierynomus.protocol.commons.buffer.Buffer;
 import com.hierynomus.smbj.common.SMBBuffer;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Set;
 
 import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.toEnumSet;
@@ -36,8 +40,12 @@ public class SMB2CreateResponse extends SMB2Packet {
     private FileTime lastAccessTime;
     private FileTime lastWriteTime;
     private FileTime changeTime;
+    private long allocationSize;
+    private long endOfFile;
     private Set<FileAttributes> fileAttributes;
     private SMB2FileId fileId;
+    private SMB2OplockLevel oplockLevel;
+    private SMB2Lease lease;
 
     public SMB2CreateResponse() {
         super();
@@ -46,22 +54,49 @@ public class SMB2CreateResponse extends SMB2Packet {
     @Override
     protected void readMessage(SMBBuffer buffer) throws Buffer.BufferException {
         buffer.readUInt16(); // StructureSize (2 bytes)
-        buffer.readByte(); // OpLockLevel (1 byte) - Not used yet
+        oplockLevel = EnumWithValue.EnumUtils.valueOf(buffer.readByte() & 0xFF, SMB2OplockLevel.class, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE); // OplockLevel (1 byte)
         buffer.readByte(); // Flags (1 byte) - Only for 3.x else Reserved
         buffer.readUInt32(); // CreateAction (4 bytes) - Ignored for now
         creationTime = MsDataTypes.readFileTime(buffer); // CreationTime (8 bytes)
         lastAccessTime = MsDataTypes.readFileTime(buffer); // LastAccessTime (8 bytes)
         lastWriteTime = MsDataTypes.readFileTime(buffer); // LastWriteTime (8 bytes)
         changeTime = MsDataTypes.readFileTime(buffer); // ChangeTime (8 bytes)
-        buffer.readRawBytes(8); // AllocationSize (8 bytes) - Ignore
-        buffer.readRawBytes(8); // EndOfFile (8 bytes)
+        allocationSize = buffer.readLong(); // AllocationSize (8 bytes)
+        endOfFile = buffer.readLong(); // EndOfFile (8 bytes)
         fileAttributes = toEnumSet(buffer.readUInt32(), FileAttributes.class); // FileAttributes (4 bytes)
         buffer.skip(4); // Reserved2 (4 bytes)
         fileId = SMB2FileId.read(buffer); // FileId (16 bytes)
 
-        // Ignore create contexts and the buffer.
-        buffer.readUInt32();// CreateContextsOffset (4 bytes)
-        buffer.readUInt32();// CreateContextsLength (4 bytes)
+        int createContextsOffset = buffer.readUInt32AsInt(); // CreateContextsOffset (4 bytes)
+        int createContextsLength = buffer.readUInt32AsInt(); // CreateContextsLength (4 bytes)
+        if (createContextsLength > 0) {
+            readCreateContexts(buffer, getMessageStartPos() + createContextsOffset);
+        }
+    }
+
+    /**
+     * [MS-SMB2].pdf 2.2.14.2 SMB2_CREATE_CONTEXT Response Values, only the lease context is read.
+     */
+    private void readCreateContexts(SMBBuffer buffer, int contextPos) throws Buffer.BufferException {
+        while (true) {
+            buffer.rpos(contextPos);
+            int next = buffer.readUInt32AsInt(); // Next (4 bytes)
+            int nameOffset = buffer.readUInt16(); // NameOffset (2 bytes)
+            int nameLength = buffer.readUInt16(); // NameLength (2 bytes)
+            buffer.skip(2); // Reserved (2 bytes)
+            int dataOffset = buffer.readUInt16(); // DataOffset (2 bytes)
+            buffer.readUInt32AsInt(); // DataLength (4 bytes)
+            buffer.rpos(contextPos + nameOffset);
+            String name = new String(buffer.readRawBytes(nameLength), StandardCharsets.US_ASCII); // Buffer (variable) - Name
+            if (SMB2Lease.CREATE_CONTEXT_NAME.equals(name)) {
+                buffer.rpos(contextPos + dataOffset);
+                lease = SMB2Lease.read(buffer); // Buffer (variable) - Data
+            }
+            if (next == 0) {
+                break;
+            }
+            contextPos += next;
+        }
     }
 
     public FileTime getCreationTime() {
@@ -80,6 +115,14 @@ public class SMB2CreateResponse extends SMB2Packet {
         return changeTime;
     }
 
+    public long getAllocationSize() {
+        return allocationSize;
+    }
+
+    public long getEndOfFile() {
+        return endOfFile;
+    }
+
     public Set<FileAttributes> getFileAttributes() {
         return fileAttributes;
     }
@@ -87,4 +130,15 @@ public class SMB2CreateResponse extends SMB2Packet {
     public SMB2FileId getFileId() {
         return fileId;
     }
+
+    public SMB2OplockLevel getOplockLevel() {
+        return oplockLevel;
+    }
+
+    /**
+     * The lease granted by the server, or null if the oplock level is not {@link SMB2OplockLevel#SMB2_OPLOCK_LEVEL_LEASE}
+     */
+    public SMB2Lease getLease() {
+        return lease;
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages;
+
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB2TransformHeader;
+import com.hierynomus.smbj.common.SMBBuffer;
+
+/**
+ * [MS-SMB2].pdf 3.2.5.1.1 Decrypting the Message
+ * <p/>
+ * A received message which is encrypted, i.e. a TRANSFORM_HEADER followed by the encrypted SMB2 message. The SMB2
+ * header of this packet is not filled, the message needs to be decrypted and then read as a regular SMB2 message.
+ */
+public class SMB2EncryptedPacket extends SMB2Packet {
+    private final SMB2TransformHeader transformHeader;
+    private final byte[] data;
+    private final int transformHeaderStartPos;
+    private final int encryptedMessageStartPos;
+    private final int encryptedMessageEndPos;
+
+    SMB2EncryptedPacket(SMB2TransformHeader transformHeader, SMBBuffer buffer, int transformHeaderStartPos) {
+        this.transformHeader = transformHeader;
+        this.data = buffer.array();
+        this.transformHeaderStartPos = transformHeaderStartPos;
+        this.encryptedMessageStartPos = buffer.rpos();
+        this.encryptedMessageEndPos = buffer.wpos();
+    }
+
+    public SMB2TransformHeader getTransformHeader() {
+        return transformHeader;
+    }
+
+    /**
+     * @return The raw received data, containing the TRANSFORM_HEADER and the encrypted message.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getTransformHeaderStartPos() {
+        return transformHeaderStartPos;
+    }
+
+    public int getEncryptedMessageStartPos() {
+        return encryptedMessageStartPos;
+    }
+
+    public int getEncryptedMessageLength() {
+        return encryptedMessageEndPos - encryptedMessageStartPos;
+    }
+
+    @Override
+    public String toString() {
+        return "SMB2EncryptedPacket{" + transformHeader + "}";
+    }
+}
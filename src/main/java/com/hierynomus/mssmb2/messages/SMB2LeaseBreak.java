@@ -0,0 +1,107 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages;
+
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2LeaseState;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.smbj.common.SMBBuffer;
+
+import java.util.Set;
+
+import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.toEnumSet;
+import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.toLong;
+
+/**
+ * [MS-SMB2].pdf 2.2.23.2 Lease Break Notification / 2.2.24.2 Lease Break Acknowledgment / 2.2.25.2 Lease Break
+ * Response
+ */
+public class SMB2LeaseBreak extends SMB2Packet {
+    public static final int SMB2_NOTIFY_BREAK_LEASE_FLAG_ACK_REQUIRED = 0x01;
+
+    private int flags;
+    private byte[] leaseKey;
+    private Set<SMB2LeaseState> currentLeaseState;
+    private Set<SMB2LeaseState> leaseState;
+
+    public SMB2LeaseBreak() {
+        super();
+    }
+
+    public SMB2LeaseBreak(SMB2Dialect smbDialect, long sessionId, long treeId, byte[] leaseKey, Set<SMB2LeaseState> leaseState) {
+        super(36, smbDialect, SMB2MessageCommandCode.SMB2_OPLOCK_BREAK, sessionId, treeId);
+        this.leaseKey = leaseKey;
+        this.leaseState = leaseState;
+    }
+
+    @Override
+    protected void writeTo(SMBBuffer buffer) {
+        buffer.putUInt16(structureSize); // StructureSize (2 bytes)
+        buffer.putReserved2(); // Reserved (2 bytes)
+        buffer.putReserved4(); // Flags (4 bytes)
+        buffer.putRawBytes(leaseKey); // LeaseKey (16 bytes)
+        buffer.putUInt32(toLong(leaseState)); // LeaseState (4 bytes)
+        buffer.putUInt64(0); // LeaseDuration (8 bytes)
+    }
+
+    @Override
+    protected void readMessage(SMBBuffer buffer) throws Buffer.BufferException {
+        int structureSize = buffer.readUInt16(); // StructureSize (2 bytes)
+        if (structureSize == 44) {
+            buffer.skip(2); // NewEpoch (2 bytes)
+            flags = buffer.readUInt32AsInt(); // Flags (4 bytes)
+            leaseKey = buffer.readRawBytes(16); // LeaseKey (16 bytes)
+            currentLeaseState = toEnumSet(buffer.readUInt32(), SMB2LeaseState.class); // CurrentLeaseState (4 bytes)
+            leaseState = toEnumSet(buffer.readUInt32(), SMB2LeaseState.class); // NewLeaseState (4 bytes)
+            buffer.skip(4); // BreakReason (4 bytes)
+            buffer.skip(4); // AccessMaskHint (4 bytes)
+            buffer.skip(4); // ShareMaskHint (4 bytes)
+        } else {
+            buffer.skip(2); // Reserved (2 bytes)
+            flags = buffer.readUInt32AsInt(); // Flags (4 bytes)
+            leaseKey = buffer.readRawBytes(16); // LeaseKey (16 bytes)
+            leaseState = toEnumSet(buffer.readUInt32(), SMB2LeaseState.class); // LeaseState (4 bytes)
+            buffer.skip(8); // LeaseDuration (8 bytes)
+        }
+    }
+
+    /**
+     * Whether the server expects an acknowledgment of this break notification.
+     */
+    public boolean isAcknowledgmentRequired() {
+        return (flags & SMB2_NOTIFY_BREAK_LEASE_FLAG_ACK_REQUIRED) != 0;
+    }
+
+    public byte[] getLeaseKey() {
+        return leaseKey;
+    }
+
+    /**
+     * The lease state before the break, only set for a break notification.
+     */
+    public Set<SMB2LeaseState> getCurrentLeaseState() {
+        return currentLeaseState;
+    }
+
+    /**
+     * The new lease state of a break notification, or the acknowledged lease state.
+     */
+    public Set<SMB2LeaseState> getLeaseState() {
+        return leaseState;
+    }
+}
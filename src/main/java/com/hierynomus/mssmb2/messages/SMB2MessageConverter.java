@@ -15,8 +15,10 @@
  */
 package com.hierynomus.mssmb2.messages;
 
+import com.hierynomus.mssmb2.SMB2Header;
 import com.hierynomus.mssmb2.SMB2MessageCommandCode;
 import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB2TransformHeader;
 import com.hierynomus.protocol.commons.buffer.Buffer;
 import com.hierynomus.smbj.common.Check;
 import com.hierynomus.smbj.common.SMBBuffer;
@@ -27,6 +29,11 @@ import com.hierynomus.smbj.transport.PacketSerializer;
 public class SMB2MessageConverter implements PacketFactory<SMB2Packet>, PacketSerializer<SMB2Packet> {
 
     public SMB2Packet read(SMBBuffer buffer) throws Buffer.BufferException {
+        if (SMB2TransformHeader.isTransformHeader(buffer.array(), buffer.rpos())) {
+            int transformHeaderStartPos = buffer.rpos();
+            SMB2TransformHeader transformHeader = new SMB2TransformHeader().readFrom(buffer);
+            return new SMB2EncryptedPacket(transformHeader, buffer, transformHeaderStartPos);
+        }
         // Check we see a valid header start
         Check.ensureEquals(buffer.readRawBytes(4), new byte[]{(byte) 0xFE, 'S', 'M', 'B'}, "Could not find SMB2 Packet header");
         // Skip until Command
@@ -67,9 +74,17 @@ public class SMB2MessageConverter implements PacketFactory<SMB2Packet>, PacketSe
                 return new SMB2QueryInfoResponse().read(buffer);
             case SMB2_SET_INFO:
                 return new SMB2SetInfoResponse().read(buffer);
+            case SMB2_OPLOCK_BREAK:
+                // The oplock and lease break messages are told apart by their StructureSize
+                buffer.rpos(SMB2Header.STRUCTURE_SIZE);
+                int structureSize = buffer.readUInt16();
+                buffer.rpos(0);
+                if (structureSize == 24) {
+                    return new SMB2OplockBreak().read(buffer);
+                }
+                return new SMB2LeaseBreak().read(buffer);
             case SMB2_LOCK:
             case SMB2_CANCEL:
-            case SMB2_OPLOCK_BREAK:
             default:
                 throw new SMBRuntimeException("Unknown SMB2 Message Command type: " + command);
 
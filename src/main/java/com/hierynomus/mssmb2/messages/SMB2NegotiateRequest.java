@@ -17,21 +17,40 @@ package com.hierynomus.mssmb2.messages;
 
 import com.hierynomus.msdtyp.MsDataTypes;
 import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2EncryptionCipher;
+import com.hierynomus.mssmb2.SMB2GlobalCapability;
+import com.hierynomus.mssmb2.SMB2HashAlgorithm;
+import com.hierynomus.mssmb2.SMB2Header;
 import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMB2NegotiateContextType;
 import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
 import com.hierynomus.smbj.common.SMBBuffer;
 
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
+import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.toLong;
+
 /**
  * [MS-SMB2].pdf 2.2.3 SMB2 Negotiate
  */
 public class SMB2NegotiateRequest extends SMB2Packet {
+    private static final int PREAUTH_SALT_LENGTH = 32;
+    // The signing algorithms offered to an SMB 3.1.1 server, in order of preference.
+    private static final List<SMB2SigningAlgorithm> SIGNING_ALGORITHMS = Arrays.asList(SMB2SigningAlgorithm.AES_GMAC, SMB2SigningAlgorithm.AES_CMAC);
+    // The ciphers offered to an SMB 3.1.1 server, in order of preference.
+    private static final List<SMB2EncryptionCipher> ENCRYPTION_CIPHERS = Arrays.asList(SMB2EncryptionCipher.AES_128_GCM, SMB2EncryptionCipher.AES_128_CCM);
+    private static final int NEGOTIATE_CONTEXT_COUNT = 3;
 
     private Set<SMB2Dialect> dialects;
     private UUID clientGuid;
     private boolean clientSigningRequired;
+    private byte[] preauthSalt;
 
     /**
      * Request constructor.
@@ -40,10 +59,30 @@ public class SMB2NegotiateRequest extends SMB2Packet {
      * @param clientGuid
      */
     public SMB2NegotiateRequest(Set<SMB2Dialect> dialects, UUID clientGuid, boolean clientSigningRequired) {
+        this(dialects, clientGuid, clientSigningRequired, newSalt(dialects));
+    }
+
+    /**
+     * Request constructor.
+     *
+     * @param dialects
+     * @param clientGuid
+     * @param preauthSalt The salt to send in the SMB2_PREAUTH_INTEGRITY_CAPABILITIES context when negotiating SMB 3.1.1
+     */
+    public SMB2NegotiateRequest(Set<SMB2Dialect> dialects, UUID clientGuid, boolean clientSigningRequired, byte[] preauthSalt) {
         super(36, SMB2Dialect.UNKNOWN, SMB2MessageCommandCode.SMB2_NEGOTIATE, 0, 0);
         this.dialects = dialects;
         this.clientGuid = clientGuid;
         this.clientSigningRequired = clientSigningRequired;
+        this.preauthSalt = preauthSalt;
+    }
+
+    private static byte[] newSalt(Set<SMB2Dialect> dialects) {
+        byte[] salt = new byte[PREAUTH_SALT_LENGTH];
+        if (dialects.contains(SMB2Dialect.SMB_3_1_1)) {
+            new SecureRandom().nextBytes(salt);
+        }
+        return salt;
     }
 
     /**
@@ -53,19 +92,16 @@ public class SMB2NegotiateRequest extends SMB2Packet {
      */
     @Override
     protected void writeTo(SMBBuffer buffer) {
+        int messageStartPos = buffer.wpos() - SMB2Header.STRUCTURE_SIZE;
         buffer.putUInt16(structureSize); // StructureSize (2 bytes)
         buffer.putUInt16(dialects.size()); // DialectCount (2 bytes)
         buffer.putUInt16(securityMode()); // SecurityMode (2 bytes)
         buffer.putReserved(2); // Reserved (2 bytes)
-        putCapabilities(buffer); // Capabilities (2 bytes)
+        putCapabilities(buffer); // Capabilities (4 bytes)
         MsDataTypes.putGuid(clientGuid, buffer); // ClientGuid (16 bytes)
         putNegotiateStartTime(buffer); // (NegotiateContextOffset/NegotiateContextCount/Reserved2)/ClientStartTime (8 bytes)
         putDialects(buffer); // Dialects (x * 2 bytes)
-        int eightByteAlignment = (34 + dialects.size() * 2) % 8;
-        if (eightByteAlignment > 0) {
-            buffer.putReserved(8 - eightByteAlignment); // Padding (variable) Ensure that the next field is 8-byte aligned
-        }
-        putNegotiateContextList(); // NegotiateContextList (variable)
+        putNegotiateContextList(buffer, messageStartPos); // Padding (variable) + NegotiateContextList (variable)
     }
 
     private int securityMode() {
@@ -76,9 +112,69 @@ public class SMB2NegotiateRequest extends SMB2Packet {
         }
     }
 
-    private void putNegotiateContextList() {
+    /**
+     * The NegotiateContextList starts at the first 8-byte aligned offset (from the start of the SMB2 header) after the
+     * Dialects.
+     */
+    private int negotiateContextOffset() {
+        int endOfDialects = SMB2Header.STRUCTURE_SIZE + structureSize + dialects.size() * 2;
+        return (endOfDialects + 7) & ~7;
+    }
+
+    private void putNegotiateContextList(SMBBuffer buffer, int messageStartPos) {
         if (dialects.contains(SMB2Dialect.SMB_3_1_1)) {
-            throw new UnsupportedOperationException("SMB 3.x support is not yet implemented");
+            buffer.putReserved(negotiateContextOffset() - (buffer.wpos() - messageStartPos)); // Padding (variable)
+            putPreauthIntegrityCapabilities(buffer);
+            alignToEightBytes(buffer, messageStartPos);
+            putEncryptionCapabilities(buffer);
+            alignToEightBytes(buffer, messageStartPos);
+            putSigningCapabilities(buffer);
+        }
+    }
+
+    private void alignToEightBytes(SMBBuffer buffer, int messageStartPos) {
+        int misalignment = (buffer.wpos() - messageStartPos) % 8;
+        if (misalignment > 0) {
+            buffer.putReserved(8 - misalignment);
+        }
+    }
+
+    /**
+     * [MS-SMB2].pdf 2.2.3.1.1 SMB2_PREAUTH_INTEGRITY_CAPABILITIES
+     */
+    private void putPreauthIntegrityCapabilities(SMBBuffer buffer) {
+        buffer.putUInt16((int) SMB2NegotiateContextType.SMB2_PREAUTH_INTEGRITY_CAPABILITIES.getValue()); // ContextType (2 bytes)
+        buffer.putUInt16(4 + 2 + preauthSalt.length); // DataLength (2 bytes)
+        buffer.putReserved4(); // Reserved (4 bytes)
+        buffer.putUInt16(1); // HashAlgorithmCount (2 bytes)
+        buffer.putUInt16(preauthSalt.length); // SaltLength (2 bytes)
+        buffer.putUInt16((int) SMB2HashAlgorithm.SHA_512.getValue()); // HashAlgorithms (2 bytes)
+        buffer.putRawBytes(preauthSalt); // Salt (variable)
+    }
+
+    /**
+     * [MS-SMB2].pdf 2.2.3.1.2 SMB2_ENCRYPTION_CAPABILITIES
+     */
+    private void putEncryptionCapabilities(SMBBuffer buffer) {
+        buffer.putUInt16((int) SMB2NegotiateContextType.SMB2_ENCRYPTION_CAPABILITIES.getValue()); // ContextType (2 bytes)
+        buffer.putUInt16(2 + ENCRYPTION_CIPHERS.size() * 2); // DataLength (2 bytes)
+        buffer.putReserved4(); // Reserved (4 bytes)
+        buffer.putUInt16(ENCRYPTION_CIPHERS.size()); // CipherCount (2 bytes)
+        for (SMB2EncryptionCipher cipher : ENCRYPTION_CIPHERS) {
+            buffer.putUInt16((int) cipher.getValue()); // Ciphers (2 bytes each)
+        }
+    }
+
+    /**
+     * [MS-SMB2].pdf 2.2.3.1.7 SMB2_SIGNING_CAPABILITIES
+     */
+    private void putSigningCapabilities(SMBBuffer buffer) {
+        buffer.putUInt16((int) SMB2NegotiateContextType.SMB2_SIGNING_CAPABILITIES.getValue()); // ContextType (2 bytes)
+        buffer.putUInt16(2 + SIGNING_ALGORITHMS.size() * 2); // DataLength (2 bytes)
+        buffer.putReserved4(); // Reserved (4 bytes)
+        buffer.putUInt16(SIGNING_ALGORITHMS.size()); // SigningAlgorithmCount (2 bytes)
+        for (SMB2SigningAlgorithm signingAlgorithm : SIGNING_ALGORITHMS) {
+            buffer.putUInt16((int) signingAlgorithm.getValue()); // SigningAlgorithms (2 bytes each)
         }
     }
 
@@ -90,7 +186,9 @@ public class SMB2NegotiateRequest extends SMB2Packet {
 
     private void putNegotiateStartTime(SMBBuffer buffer) {
         if (dialects.contains(SMB2Dialect.SMB_3_1_1)) {
-            throw new UnsupportedOperationException("SMB 3.x support is not yet implemented");
+            buffer.putUInt32(negotiateContextOffset()); // NegotiateContextOffset (4 bytes)
+            buffer.putUInt16(NEGOTIATE_CONTEXT_COUNT); // NegotiateContextCount (2 bytes)
+            buffer.putReserved(2); // Reserved2 (2 bytes)
         } else {
             buffer.putReserved4();
             buffer.putReserved4();
@@ -99,9 +197,13 @@ public class SMB2NegotiateRequest extends SMB2Packet {
 
     private void putCapabilities(SMBBuffer buffer) {
         if (SMB2Dialect.supportsSmb3x(dialects)) {
-            throw new UnsupportedOperationException("SMB 3.x support is not yet implemented");
+            buffer.putUInt32(toLong(EnumSet.of(SMB2GlobalCapability.SMB2_GLOBAL_CAP_LEASING, SMB2GlobalCapability.SMB2_GLOBAL_CAP_LARGE_MTU, SMB2GlobalCapability.SMB2_GLOBAL_CAP_ENCRYPTION))); // Capabilities (4 bytes)
         } else {
             buffer.putReserved4();
         }
     }
+
+    public byte[] getPreauthSalt() {
+        return preauthSalt;
+    }
 }
@@ -18,7 +18,12 @@ package com.hierynomus.mssmb2.messages;
 import com.hierynomus.msdtyp.FileTime;
 import com.hierynomus.msdtyp.MsDataTypes;
 import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2EncryptionCipher;
+import com.hierynomus.mssmb2.SMB2HashAlgorithm;
+import com.hierynomus.mssmb2.SMB2NegotiateContextType;
 import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
+import com.hierynomus.protocol.commons.EnumWithValue;
 import com.hierynomus.protocol.commons.buffer.Buffer;
 import com.hierynomus.smbj.common.SMBBuffer;
 
@@ -39,6 +44,10 @@ public class SMB2NegotiateResponse extends SMB2Packet {
     private FileTime systemTime;
     private FileTime serverStartTime;
     private byte[] gssToken;
+    // SMB 3.1.1
+    private SMB2HashAlgorithm preauthIntegrityHashAlgorithm;
+    private SMB2SigningAlgorithm signingAlgorithm;
+    private SMB2EncryptionCipher encryptionCipher;
 
     /**
      * Response constructor
@@ -62,15 +71,81 @@ public class SMB2NegotiateResponse extends SMB2Packet {
         serverStartTime = MsDataTypes.readFileTime(buffer); // ServerStartDate (8 bytes)
         int securityBufferOffset = buffer.readUInt16(); // SecurityBufferOffset (2 bytes)
         int securityBufferLength = buffer.readUInt16(); // SecurityBufferLength (2 bytes)
-        int negotiateContextOffset = readNegotiateContextOffset(buffer); // NegotiateContextOffset/Reserved (2 bytes)
+        int negotiateContextOffset = readNegotiateContextOffset(buffer); // NegotiateContextOffset/Reserved2 (4 bytes)
         gssToken = readSecurityBuffer(buffer, securityBufferOffset, securityBufferLength);
         readNegotiateContextList(buffer, negotiateContextOffset, negotiateContextCount);
     }
 
-    private void readNegotiateContextList(SMBBuffer buffer, int negotiateContextOffset, @SuppressWarnings("unused") int negotiateContextCount) {
-        if (dialect == SMB2Dialect.SMB_3_1_1) {
-            buffer.rpos(negotiateContextOffset);
-            throw new UnsupportedOperationException("Cannot read NegotiateContextList yet");
+    /**
+     * [MS-SMB2].pdf 2.2.4.1 SMB2 NEGOTIATE_CONTEXT Response Values
+     */
+    private void readNegotiateContextList(SMBBuffer buffer, int negotiateContextOffset, int negotiateContextCount) throws Buffer.BufferException {
+        if (dialect != SMB2Dialect.SMB_3_1_1) {
+            return;
+        }
+        int messageStartPos = getMessageStartPos();
+        int contextPos = messageStartPos + negotiateContextOffset;
+        for (int i = 0; i < negotiateContextCount; i++) {
+            // Every negotiate context starts at an 8-byte aligned offset from the start of the SMB2 header.
+            contextPos = messageStartPos + ((contextPos - messageStartPos + 7) & ~7);
+            buffer.rpos(contextPos);
+            int contextType = buffer.readUInt16(); // ContextType (2 bytes)
+            int dataLength = buffer.readUInt16(); // DataLength (2 bytes)
+            buffer.skip(4); // Reserved (4 bytes)
+            int dataStartPos = buffer.rpos();
+            SMB2NegotiateContextType type = EnumWithValue.EnumUtils.valueOf(contextType, SMB2NegotiateContextType.class, null);
+            if (type == SMB2NegotiateContextType.SMB2_PREAUTH_INTEGRITY_CAPABILITIES) {
+                readPreauthIntegrityCapabilities(buffer);
+            } else if (type == SMB2NegotiateContextType.SMB2_ENCRYPTION_CAPABILITIES) {
+                readEncryptionCapabilities(buffer);
+            } else if (type == SMB2NegotiateContextType.SMB2_SIGNING_CAPABILITIES) {
+                readSigningCapabilities(buffer);
+            }
+            // Other (or unknown) negotiate contexts are ignored.
+            contextPos = dataStartPos + dataLength;
+        }
+    }
+
+    /**
+     * [MS-SMB2].pdf 2.2.3.1.1 SMB2_PREAUTH_INTEGRITY_CAPABILITIES
+     */
+    private void readPreauthIntegrityCapabilities(SMBBuffer buffer) throws Buffer.BufferException {
+        int hashAlgorithmCount = buffer.readUInt16(); // HashAlgorithmCount (2 bytes)
+        int saltLength = buffer.readUInt16(); // SaltLength (2 bytes)
+        for (int i = 0; i < hashAlgorithmCount; i++) {
+            SMB2HashAlgorithm hashAlgorithm = EnumWithValue.EnumUtils.valueOf(buffer.readUInt16(), SMB2HashAlgorithm.class, null); // HashAlgorithms (2 bytes each)
+            if (hashAlgorithm != null) {
+                preauthIntegrityHashAlgorithm = hashAlgorithm;
+            }
+        }
+        buffer.skip(saltLength); // Salt (variable)
+    }
+
+    /**
+     * [MS-SMB2].pdf 2.2.3.1.2 SMB2_ENCRYPTION_CAPABILITIES
+     * <p/>
+     * The server selects a single cipher, or 0 if it has no cipher in common with the client.
+     */
+    private void readEncryptionCapabilities(SMBBuffer buffer) throws Buffer.BufferException {
+        int cipherCount = buffer.readUInt16(); // CipherCount (2 bytes)
+        for (int i = 0; i < cipherCount; i++) {
+            SMB2EncryptionCipher cipher = EnumWithValue.EnumUtils.valueOf(buffer.readUInt16(), SMB2EncryptionCipher.class, null); // Ciphers (2 bytes each)
+            if (cipher != null && encryptionCipher == null) {
+                encryptionCipher = cipher;
+            }
+        }
+    }
+
+    /**
+     * [MS-SMB2].pdf 2.2.3.1.7 SMB2_SIGNING_CAPABILITIES
+     */
+    private void readSigningCapabilities(SMBBuffer buffer) throws Buffer.BufferException {
+        int signingAlgorithmCount = buffer.readUInt16(); // SigningAlgorithmCount (2 bytes)
+        for (int i = 0; i < signingAlgorithmCount; i++) {
+            SMB2SigningAlgorithm algorithm = EnumWithValue.EnumUtils.valueOf(buffer.readUInt16(), SMB2SigningAlgorithm.class, null); // SigningAlgorithms (2 bytes each)
+            if (algorithm != null && signingAlgorithm == null) {
+                signingAlgorithm = algorithm;
+            }
         }
     }
 
@@ -86,9 +161,9 @@ public class SMB2NegotiateResponse extends SMB2Packet {
 
     private int readNegotiateContextOffset(SMBBuffer buffer) throws Buffer.BufferException {
         if (dialect == SMB2Dialect.SMB_3_1_1) {
-            return buffer.readUInt16();
+            return buffer.readUInt32AsInt();
         } else {
-            buffer.skip(2);
+            buffer.skip(4);
             return 0;
         }
     }
@@ -133,4 +208,25 @@ public class SMB2NegotiateResponse extends SMB2Packet {
     public int getMaxWriteSize() {
         return maxWriteSize;
     }
+
+    /**
+     * @return The preauth integrity hash algorithm selected by an SMB 3.1.1 server, or null for other dialects.
+     */
+    public SMB2HashAlgorithm getPreauthIntegrityHashAlgorithm() {
+        return preauthIntegrityHashAlgorithm;
+    }
+
+    /**
+     * @return The signing algorithm selected by an SMB 3.1.1 server, or null if none was negotiated.
+     */
+    public SMB2SigningAlgorithm getSigningAlgorithm() {
+        return signingAlgorithm;
+    }
+
+    /**
+     * @return The cipher selected by an SMB 3.1.1 server, or null if none was negotiated.
+     */
+    public SMB2EncryptionCipher getEncryptionCipher() {
+        return encryptionCipher;
+    }
 }
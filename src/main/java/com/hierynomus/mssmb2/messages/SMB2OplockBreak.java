@@ -0,0 +1,71 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages;
+
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMB2OplockLevel;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.protocol.commons.EnumWithValue;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.smbj.common.SMBBuffer;
+
+/**
+ * [MS-SMB2].pdf 2.2.23.1 Oplock Break Notification / 2.2.24.1 Oplock Break Acknowledgment / 2.2.25.1 Oplock Break
+ * Response
+ */
+public class SMB2OplockBreak extends SMB2Packet {
+
+    private SMB2OplockLevel oplockLevel;
+    private SMB2FileId fileId;
+
+    public SMB2OplockBreak() {
+        super();
+    }
+
+    public SMB2OplockBreak(SMB2Dialect smbDialect, long sessionId, long treeId, SMB2OplockLevel oplockLevel, SMB2FileId fileId) {
+        super(24, smbDialect, SMB2MessageCommandCode.SMB2_OPLOCK_BREAK, sessionId, treeId);
+        this.oplockLevel = oplockLevel;
+        this.fileId = fileId;
+    }
+
+    @Override
+    protected void writeTo(SMBBuffer buffer) {
+        buffer.putUInt16(structureSize); // StructureSize (2 bytes)
+        buffer.putByte((byte) oplockLevel.getValue()); // OplockLevel (1 byte)
+        buffer.putReserved1(); // Reserved (1 byte)
+        buffer.putReserved4(); // Reserved2 (4 bytes)
+        fileId.write(buffer); // FileId (16 bytes)
+    }
+
+    @Override
+    protected void readMessage(SMBBuffer buffer) throws Buffer.BufferException {
+        buffer.skip(2); // StructureSize (2 bytes)
+        oplockLevel = EnumWithValue.EnumUtils.valueOf(buffer.readByte() & 0xFF, SMB2OplockLevel.class, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE); // OplockLevel (1 byte)
+        buffer.skip(1); // Reserved (1 byte)
+        buffer.skip(4); // Reserved2 (4 bytes)
+        fileId = SMB2FileId.read(buffer); // FileId (16 bytes)
+    }
+
+    public SMB2OplockLevel getOplockLevel() {
+        return oplockLevel;
+    }
+
+    public SMB2FileId getFileId() {
+        return fileId;
+    }
+}
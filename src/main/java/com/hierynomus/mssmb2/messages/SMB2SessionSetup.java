@@ -116,6 +116,10 @@ public class SMB2SessionSetup extends SMB2Packet {
         return securityBuffer;
     }
 
+    public Set<SMB2SessionFlags> getSessionFlags() {
+        return sessionFlags;
+    }
+
     public enum SMB2SessionFlags implements EnumWithValue<SMB2SessionFlags> {
         SMB2_SESSION_FLAG_IS_GUEST(0x0001L),
         SMB2_SESSION_FLAG_IS_NULL(0x0002L),
@@ -78,6 +78,16 @@ public class SMB2TreeConnectResponse extends SMB2Packet {
         return shareType == 0x03;
     }
 
+    /**
+     * Whether the SMB2_SHAREFLAG_ENCRYPT_DATA (0x00008000) ShareFlag is set, i.e. the server requires encryption of
+     * the messages for this share.
+     *
+     * @return true if the SMB2_SHAREFLAG_ENCRYPT_DATA ShareFlag is set
+     */
+    public boolean isEncryptData() {
+        return (shareFlags & 0x00008000L) != 0;
+    }
+
     public long getShareFlags() {
         return shareFlags;
     }
@@ -20,6 +20,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 
 public class IOUtils {
 
@@ -34,4 +37,38 @@ public class IOUtils {
                 LOG.warn("Error closing {} - {}", c, logged);
             }
     }
+
+    /**
+     * Release the memory mapping of a buffer returned by {@link java.nio.channels.FileChannel#map}, instead of
+     * waiting for the buffer to be garbage collected. The buffer must not be used afterwards, nor any slice or
+     * duplicate of it. Does nothing if the JVM does not allow it.
+     *
+     * @param buffer The mapped buffer itself, not a slice or duplicate of it
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Before Java 9, the cleaner of the buffer is invoked directly.
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception | LinkageError e) {
+            LOG.debug("Could not unmap {}, it is unmapped when it is garbage collected", buffer, e);
+        }
+    }
 }
@@ -21,6 +21,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
 
@@ -330,6 +332,51 @@ public class Buffer<T extends Buffer<T>> {
         return this;
     }
 
+    /**
+     * Write the remaining bytes of the passed {@link ByteBuffer} into this buffer. The position of the source is
+     * advanced by the number of bytes written. Works for both heap and direct (or memory-mapped) buffers, in both
+     * cases the bytes are copied exactly once, directly into this buffer.
+     *
+     * @param src The ByteBuffer to write the remaining bytes of.
+     * @return this.
+     */
+    public Buffer<T> putRawBytes(ByteBuffer src) {
+        int length = src.remaining();
+        if (src.hasArray()) {
+            putRawBytes(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.position() + length);
+        } else {
+            ensureCapacity(length);
+            src.get(data, wpos, length);
+            wpos += length;
+        }
+        return this;
+    }
+
+    /**
+     * Read at most <code>length</code> bytes from the channel directly into this buffer, without intermediate copies.
+     * This stops when either <code>length</code> bytes have been read, or the channel does not return any more data.
+     *
+     * @param channel The channel to read the bytes from
+     * @param length  The maximum number of bytes to read
+     * @return The number of bytes actually written into this buffer
+     * @throws IOException If the channel could not be read
+     */
+    public int transferFrom(ReadableByteChannel channel, int length) throws IOException {
+        ensureCapacity(length);
+        ByteBuffer dst = ByteBuffer.wrap(data, wpos, length);
+        int count = 0;
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst);
+            if (read <= 0) {
+                break;
+            }
+            count += read;
+        }
+        wpos += count;
+        return count;
+    }
+
     /**
      * Copies the contents of provided buffer into this buffer
      *
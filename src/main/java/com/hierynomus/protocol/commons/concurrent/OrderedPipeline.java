@@ -0,0 +1,147 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.protocol.commons.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pipeline which processes stages in parallel, but completes them strictly in the order in which they were submitted.
+ * <p/>
+ * Every {@link Stage} is first {@link Stage#process() processed}, either on the submitting thread or on the
+ * {@link Executor}. The processed stages are then {@link Stage#complete(Throwable) completed} one at a time, in
+ * submission order, by whichever thread finishes the stage that is next in line. A thread never blocks waiting for
+ * an earlier stage, it leaves its completed stage to be picked up by the thread that processes the earlier stage.
+ */
+public class OrderedPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(OrderedPipeline.class);
+
+    public interface Stage {
+        /**
+         * The (expensive) part of the work which can run in parallel with other stages.
+         */
+        void process() throws Exception;
+
+        /**
+         * The part of the work which needs to happen in order. Called exactly once, after {@link #process()} finished.
+         *
+         * @param failure The failure thrown by {@link #process()}, or null if it succeeded.
+         */
+        void complete(Throwable failure);
+    }
+
+    private final Executor executor;
+    private final AtomicLong submitted = new AtomicLong();
+    private final ConcurrentMap<Long, Processed> processed = new ConcurrentHashMap<>();
+    private final ReentrantLock completionLock = new ReentrantLock();
+    // Only written while holding the completionLock
+    private volatile long nextToComplete;
+
+    /**
+     * @param executor The executor to run parallel stages on, if null all stages are processed on the submitting thread.
+     */
+    public OrderedPipeline(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Submit a stage. The order in which stages are submitted is the order in which they will be completed, so concurrent
+     * callers need to agree on that order (e.g. by submitting while holding a lock).
+     *
+     * @param stage    The stage
+     * @param parallel Whether the stage should be processed on the executor, instead of on the calling thread.
+     */
+    public void submit(final Stage stage, boolean parallel) {
+        final long sequence = submitted.getAndIncrement();
+        if (parallel && executor != null) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        process(sequence, stage);
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // Executor is shut down or saturated, process on the calling thread.
+            }
+        }
+        process(sequence, stage);
+    }
+
+    /**
+     * Whether all submitted stages have been completed. If the caller also serializes all calls to
+     * {@link #submit(Stage, boolean)}, it can safely bypass the pipeline while it is idle.
+     *
+     * @return true if there is no stage being processed or waiting to be completed.
+     */
+    public boolean isIdle() {
+        return nextToComplete == submitted.get();
+    }
+
+    private void process(long sequence, Stage stage) {
+        Throwable failure = null;
+        try {
+            stage.process();
+        } catch (Throwable t) {
+            failure = t;
+        }
+        processed.put(sequence, new Processed(stage, failure));
+        completeInOrder();
+    }
+
+    private void completeInOrder() {
+        do {
+            if (!completionLock.tryLock()) {
+                // The thread holding the lock re-checks for processed stages after releasing it.
+                return;
+            }
+            try {
+                Processed next;
+                while ((next = processed.remove(nextToComplete)) != null) {
+                    try {
+                        next.stage.complete(next.failure);
+                    } catch (RuntimeException e) {
+                        // A misbehaving stage should not stall the stages after it.
+                        logger.error("Completing stage {} failed", nextToComplete, e);
+                    } finally {
+                        nextToComplete++;
+                    }
+                }
+            } finally {
+                completionLock.unlock();
+            }
+            // Another thread may have added the next stage after the last check, but before the lock was released.
+        } while (processed.containsKey(nextToComplete));
+    }
+
+    private static class Processed {
+        private final Stage stage;
+        private final Throwable failure;
+
+        Processed(Stage stage, Throwable failure) {
+            this.stage = stage;
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.security;
+
+import javax.crypto.spec.GCMParameterSpec;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorator for a {@link SecurityProvider} that pools the {@link MessageDigest}, {@link Mac}, {@link Cipher} and {@link AEADBlockCipher}
+ * instances created by the wrapped provider.
+ * <p/>
+ * Looking up an algorithm (either a JCE {@link java.security.Provider} lookup, or creating a new BouncyCastle engine)
+ * is relatively expensive compared to hashing the small messages used during authentication and signing. The instances
+ * handed out by this provider borrow an instance of the wrapped provider from a per-algorithm pool, and return it to
+ * the pool as soon as a computation is finished (i.e. after {@link MessageDigest#digest()}, {@link Mac#doFinal()} or
+ * {@link Cipher#doFinal(byte[], int)}). They can be used just like the instances of the wrapped provider.
+ * <p/>
+ * The pool statistics can be retrieved using {@link #getStatistics()}, in order to tune the maximum pool size.
+ */
+public class CachingSecurityProvider implements SecurityProvider {
+    public static final int DEFAULT_MAX_POOL_SIZE = 16;
+
+    private final SecurityProvider securityProvider;
+    private final int maxPoolSize;
+
+    private final ConcurrentMap<String, Pool<MessageDigest>> digests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Pool<Mac>> macs = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Pool<Cipher>> ciphers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Pool<AEADBlockCipher>> aeadCiphers = new ConcurrentHashMap<>();
+
+    public CachingSecurityProvider(SecurityProvider securityProvider) {
+        this(securityProvider, DEFAULT_MAX_POOL_SIZE);
+    }
+
+    /**
+     * @param securityProvider The provider which creates the actual instances
+     * @param maxPoolSize      The maximum number of idle instances to keep per algorithm
+     */
+    public CachingSecurityProvider(SecurityProvider securityProvider, int maxPoolSize) {
+        if (maxPoolSize < 0) {
+            throw new IllegalArgumentException("Maximum pool size should be 0 or a positive value");
+        }
+        this.securityProvider = securityProvider;
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    @Override
+    public MessageDigest getDigest(String name) throws SecurityException {
+        return new PooledMessageDigest(pool(digests, name));
+    }
+
+    @Override
+    public Mac getMac(String name) throws SecurityException {
+        return new PooledMac(pool(macs, name));
+    }
+
+    @Override
+    public Cipher getCipher(String name) throws SecurityException {
+        return new PooledCipher(pool(ciphers, name));
+    }
+
+    @Override
+    public AEADBlockCipher getAEADBlockCipher(String name) throws SecurityException {
+        return new PooledAEADBlockCipher(pool(aeadCiphers, name));
+    }
+
+    /**
+     * Get a snapshot of the statistics of all the pools of this provider.
+     *
+     * @return The statistics per type and algorithm, keyed as "MessageDigest/MD4", "Mac/HmacSHA256", "Cipher/RC4", etc.
+     */
+    public Map<String, PoolStatistics> getStatistics() {
+        Map<String, PoolStatistics> statistics = new HashMap<>();
+        addStatistics(statistics, "MessageDigest/", digests);
+        addStatistics(statistics, "Mac/", macs);
+        addStatistics(statistics, "Cipher/", ciphers);
+        addStatistics(statistics, "AEADBlockCipher/", aeadCiphers);
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    private static <T> void addStatistics(Map<String, PoolStatistics> statistics, String prefix, Map<String, Pool<T>> pools) {
+        for (Map.Entry<String, Pool<T>> entry : pools.entrySet()) {
+            Pool<T> pool = entry.getValue();
+            statistics.put(prefix + entry.getKey(), new PoolStatistics(entry.getKey(), pool.size.get(), pool.hits.get(), pool.misses.get()));
+        }
+    }
+
+    private <T> Pool<T> pool(ConcurrentMap<String, Pool<T>> pools, String name) {
+        Pool<T> pool = pools.get(name);
+        if (pool == null) {
+            Pool<T> newPool = new Pool<>(name);
+            pool = pools.putIfAbsent(name, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    private class Pool<T> {
+        private final String algorithm;
+        private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        Pool(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        T poll() {
+            T instance = idle.poll();
+            if (instance != null) {
+                size.decrementAndGet();
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+            }
+            return instance;
+        }
+
+        void release(T instance) {
+            if (size.incrementAndGet() <= maxPoolSize) {
+                idle.offer(instance);
+            } else {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    private class PooledMessageDigest implements MessageDigest {
+        private final Pool<MessageDigest> pool;
+        private MessageDigest digest;
+
+        PooledMessageDigest(Pool<MessageDigest> pool) throws SecurityException {
+            this.pool = pool;
+            this.digest = acquire();
+        }
+
+        private MessageDigest acquire() throws SecurityException {
+            MessageDigest md = pool.poll();
+            return md != null ? md : securityProvider.getDigest(pool.algorithm);
+        }
+
+        private MessageDigest delegate() {
+            if (digest == null) {
+                try {
+                    digest = acquire();
+                } catch (SecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return digest;
+        }
+
+        @Override
+        public void update(byte[] bytes) {
+            delegate().update(bytes);
+        }
+
+        @Override
+        public byte[] digest() {
+            byte[] result = delegate().digest();
+            pool.release(digest);
+            digest = null;
+            return result;
+        }
+
+        @Override
+        public void reset() {
+            if (digest != null) {
+                digest.reset();
+            }
+        }
+    }
+
+    private class PooledMac implements Mac {
+        private final Pool<Mac> pool;
+        private Mac mac;
+        private byte[] key;
+
+        PooledMac(Pool<Mac> pool) throws SecurityException {
+            this.pool = pool;
+            this.mac = acquire();
+        }
+
+        private Mac acquire() throws SecurityException {
+            Mac m = pool.poll();
+            return m != null ? m : securityProvider.getMac(pool.algorithm);
+        }
+
+        private Mac delegate() {
+            if (mac == null) {
+                try {
+                    mac = acquire();
+                    if (key != null) {
+                        mac.init(key);
+                    }
+                } catch (SecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return mac;
+        }
+
+        @Override
+        public void init(byte[] key) throws SecurityException {
+            this.key = key;
+            if (mac == null) {
+                mac = acquire();
+            }
+            mac.init(key);
+        }
+
+        @Override
+        public void update(byte b) {
+            delegate().update(b);
+        }
+
+        @Override
+        public void update(byte[] array) {
+            delegate().update(array);
+        }
+
+        @Override
+        public void update(byte[] array, int offset, int length) {
+            delegate().update(array, offset, length);
+        }
+
+        @Override
+        public byte[] doFinal() {
+            byte[] result = delegate().doFinal();
+            pool.release(mac);
+            mac = null;
+            return result;
+        }
+
+        @Override
+        public void reset() {
+            if (mac != null) {
+                mac.reset();
+            }
+        }
+    }
+
+    private class PooledCipher implements Cipher {
+        private final Pool<Cipher> pool;
+        private Cipher cipher;
+        private CryptMode cryptMode;
+        private byte[] key;
+
+        PooledCipher(Pool<Cipher> pool) throws SecurityException {
+            this.pool = pool;
+            this.cipher = acquire();
+        }
+
+        private Cipher acquire() throws SecurityException {
+            Cipher c = pool.poll();
+            return c != null ? c : securityProvider.getCipher(pool.algorithm);
+        }
+
+        private Cipher delegate() throws SecurityException {
+            if (cipher == null) {
+                cipher = acquire();
+                if (key != null) {
+                    cipher.init(cryptMode, key);
+                }
+            }
+            return cipher;
+        }
+
+        @Override
+        public void init(CryptMode cryptMode, byte[] bytes) throws SecurityException {
+            this.cryptMode = cryptMode;
+            this.key = bytes;
+            if (cipher == null) {
+                cipher = acquire();
+            }
+            cipher.init(cryptMode, bytes);
+        }
+
+        @Override
+        public int update(byte[] in, int inOff, int bytes, byte[] out, int outOff) throws SecurityException {
+            return delegate().update(in, inOff, bytes, out, outOff);
+        }
+
+        @Override
+        public int doFinal(byte[] out, int outOff) throws SecurityException {
+            int result = delegate().doFinal(out, outOff);
+            cipher.reset();
+            pool.release(cipher);
+            cipher = null;
+            return result;
+        }
+
+        @Override
+        public void reset() {
+            if (cipher != null) {
+                cipher.reset();
+            }
+        }
+    }
+
+    /**
+     * An AEAD cipher needs to be initialized with a fresh nonce for every message, so it is only borrowed between
+     * {@link #init(Cipher.CryptMode, byte[], GCMParameterSpec)} and {@link #doFinal(byte[], int, int)}.
+     */
+    private class PooledAEADBlockCipher implements AEADBlockCipher {
+        private final Pool<AEADBlockCipher> pool;
+        private AEADBlockCipher cipher;
+
+        PooledAEADBlockCipher(Pool<AEADBlockCipher> pool) {
+            this.pool = pool;
+        }
+
+        private AEADBlockCipher delegate() {
+            if (cipher == null) {
+                throw new IllegalStateException("AEADBlockCipher for " + pool.algorithm + " is not initialized");
+            }
+            return cipher;
+        }
+
+        @Override
+        public void init(Cipher.CryptMode cryptMode, byte[] bytes, GCMParameterSpec gcmParameterSpec) throws SecurityException {
+            if (cipher == null) {
+                AEADBlockCipher c = pool.poll();
+                cipher = c != null ? c : securityProvider.getAEADBlockCipher(pool.algorithm);
+            }
+            cipher.init(cryptMode, bytes, gcmParameterSpec);
+        }
+
+        @Override
+        public void updateAAD(byte[] aad, int aadOffset, int aadLength) throws SecurityException {
+            delegate().updateAAD(aad, aadOffset, aadLength);
+        }
+
+        @Override
+        public byte[] update(byte[] in, int inOffset, int inLength) throws SecurityException {
+            return delegate().update(in, inOffset, inLength);
+        }
+
+        @Override
+        public byte[] doFinal(byte[] in, int inOffset, int inLength) throws SecurityException {
+            AEADBlockCipher c = delegate();
+            cipher = null;
+            try {
+                return c.doFinal(in, inOffset, inLength);
+            } finally {
+                c.reset();
+                pool.release(c);
+            }
+        }
+
+        @Override
+        public void reset() {
+            if (cipher != null) {
+                cipher.reset();
+                pool.release(cipher);
+                cipher = null;
+            }
+        }
+    }
+
+    /**
+     * Statistics of a single algorithm pool.
+     */
+    public static class PoolStatistics {
+        private final String algorithm;
+        private final int pooled;
+        private final long hits;
+        private final long misses;
+
+        PoolStatistics(String algorithm, int pooled, long hits, long misses) {
+            this.algorithm = algorithm;
+            this.pooled = pooled;
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        /**
+         * @return The number of idle instances currently in the pool
+         */
+        public int getPooled() {
+            return pooled;
+        }
+
+        /**
+         * @return The number of instances that were taken from the pool
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return The number of instances that had to be created by the wrapped provider
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return "PoolStatistics{" +
+                "algorithm='" + algorithm + '\'' +
+                ", pooled=" + pooled +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                '}';
+        }
+    }
+}
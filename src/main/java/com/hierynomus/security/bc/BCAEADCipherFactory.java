@@ -0,0 +1,104 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.security.bc;
+
+import com.hierynomus.protocol.commons.Factory;
+import com.hierynomus.security.AEADBlockCipher;
+import com.hierynomus.security.Cipher;
+import com.hierynomus.security.SecurityException;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.CCMBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import javax.crypto.spec.GCMParameterSpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BCAEADCipherFactory {
+    private static final Map<String, Factory<AEADBlockCipher>> lookup = new HashMap<>();
+    static {
+        lookup.put("AES/GCM/NoPadding", new Factory<AEADBlockCipher>() {
+            @Override
+            public AEADBlockCipher create() {
+                return new BCAEADBlockCipher(new GCMBlockCipher(new AESEngine()));
+            }
+        });
+        lookup.put("AES/CCM/NoPadding", new Factory<AEADBlockCipher>() {
+            @Override
+            public AEADBlockCipher create() {
+                return new BCAEADBlockCipher(new CCMBlockCipher(new AESEngine()));
+            }
+        });
+    }
+
+    public static AEADBlockCipher create(String name) {
+        Factory<AEADBlockCipher> cipherFactory = lookup.get(name);
+        if (cipherFactory == null) {
+            throw new IllegalArgumentException("Unknown AEADBlockCipher " + name);
+        }
+        return cipherFactory.create();
+    }
+
+    private static class BCAEADBlockCipher implements AEADBlockCipher {
+        private org.bouncycastle.crypto.modes.AEADBlockCipher wrappedCipher;
+
+        BCAEADBlockCipher(org.bouncycastle.crypto.modes.AEADBlockCipher wrappedCipher) {
+            this.wrappedCipher = wrappedCipher;
+        }
+
+        @Override
+        public void init(Cipher.CryptMode cryptMode, byte[] bytes, GCMParameterSpec gcmParameterSpec) throws SecurityException {
+            try {
+                wrappedCipher.init(cryptMode == Cipher.CryptMode.ENCRYPT, new AEADParameters(new KeyParameter(bytes), gcmParameterSpec.getTLen(), gcmParameterSpec.getIV()));
+            } catch (IllegalArgumentException e) {
+                throw new SecurityException(e);
+            }
+        }
+
+        @Override
+        public void updateAAD(byte[] aad, int aadOffset, int aadLength) {
+            wrappedCipher.processAADBytes(aad, aadOffset, aadLength);
+        }
+
+        @Override
+        public byte[] update(byte[] in, int inOffset, int inLength) {
+            byte[] out = new byte[wrappedCipher.getUpdateOutputSize(inLength)];
+            int written = wrappedCipher.processBytes(in, inOffset, inLength, out, 0);
+            return written == out.length ? out : Arrays.copyOf(out, written);
+        }
+
+        @Override
+        public byte[] doFinal(byte[] in, int inOffset, int inLength) throws SecurityException {
+            byte[] out = new byte[wrappedCipher.getOutputSize(inLength)];
+            try {
+                int written = wrappedCipher.processBytes(in, inOffset, inLength, out, 0);
+                written += wrappedCipher.doFinal(out, written);
+                return written == out.length ? out : Arrays.copyOf(out, written);
+            } catch (InvalidCipherTextException e) {
+                throw new SecurityException(e);
+            }
+        }
+
+        @Override
+        public void reset() {
+            wrappedCipher.reset();
+        }
+    }
+}
@@ -20,6 +20,7 @@ import com.hierynomus.security.MessageDigest;
 import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.digests.MD4Digest;
 import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -33,6 +34,12 @@ public class BCMessageDigest implements MessageDigest {
                 return new SHA256Digest();
             }
         });
+        lookup.put("SHA-512", new Factory<Digest>() {
+            @Override
+            public Digest create() {
+                return new SHA512Digest();
+            }
+        });
         lookup.put("MD4", new Factory<Digest>() {
             @Override
             public Digest create() {
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.security.jce;
+
+import com.hierynomus.security.AEADBlockCipher;
+import com.hierynomus.security.Cipher;
+import com.hierynomus.security.SecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.util.Arrays;
+
+/**
+ * AES-CCM (NIST SP 800-38C, RFC 3610) on top of the JCE "AES/CBC/NoPadding" and "AES/CTR/NoPadding" Ciphers, for JCE
+ * providers that do not offer an "AES/CCM/NoPadding" Cipher (such as the default SunJCE provider).
+ * <p/>
+ * CCM authenticates the message with a CBC-MAC and encrypts it in counter mode. The first block of the CBC-MAC holds
+ * the length of the message, so all input is buffered until {@link #doFinal(byte[], int, int)}. The nonce and the tag
+ * length are taken from the {@link GCMParameterSpec}, as for the other AEAD ciphers.
+ */
+class JceAesCcm implements AEADBlockCipher {
+    private static final int BLOCK_SIZE = 16;
+    private static final int SCRATCH_SIZE = 8 * 1024;
+    private static final IvParameterSpec ZERO_IV = new IvParameterSpec(new byte[BLOCK_SIZE]);
+
+    private final javax.crypto.Cipher mac;
+    private final javax.crypto.Cipher ctr;
+    private final byte[] scratch = new byte[SCRATCH_SIZE];
+    private Cipher.CryptMode cryptMode;
+    private SecretKeySpec key;
+    private byte[] nonce;
+    private int tagLength;
+    private final ByteArrayOutputStream aad = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    JceAesCcm(Provider jceProvider, String providerName) throws SecurityException {
+        this.mac = getInstance("AES/CBC/NoPadding", jceProvider, providerName);
+        this.ctr = getInstance("AES/CTR/NoPadding", jceProvider, providerName);
+    }
+
+    private static javax.crypto.Cipher getInstance(String name, Provider jceProvider, String providerName) throws SecurityException {
+        try {
+            if (jceProvider != null) {
+                return javax.crypto.Cipher.getInstance(name, jceProvider);
+            } else if (providerName != null) {
+                return javax.crypto.Cipher.getInstance(name, providerName);
+            } else {
+                return javax.crypto.Cipher.getInstance(name);
+            }
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | NoSuchProviderException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    @Override
+    public void init(Cipher.CryptMode cryptMode, byte[] bytes, GCMParameterSpec gcmParameterSpec) throws SecurityException {
+        byte[] iv = gcmParameterSpec.getIV();
+        int t = gcmParameterSpec.getTLen() / 8;
+        // SP 800-38C A.1: a nonce of 7 to 13 bytes, and an even tag length of 4 to 16 bytes.
+        if (iv.length < 7 || iv.length > 13 || t < 4 || t > BLOCK_SIZE || t % 2 != 0) {
+            throw new SecurityException(new InvalidAlgorithmParameterException("Invalid AES-CCM parameters: nonce of " + iv.length + " bytes, tag of " + t + " bytes"));
+        }
+        this.cryptMode = cryptMode;
+        this.key = new SecretKeySpec(bytes, "AES");
+        this.nonce = iv;
+        this.tagLength = t;
+        reset();
+    }
+
+    @Override
+    public void updateAAD(byte[] aad, int aadOffset, int aadLength) {
+        this.aad.write(aad, aadOffset, aadLength);
+    }
+
+    @Override
+    public byte[] update(byte[] in, int inOffset, int inLength) {
+        data.write(in, inOffset, inLength);
+        return new byte[0];
+    }
+
+    @Override
+    public byte[] doFinal(byte[] in, int inOffset, int inLength) throws SecurityException {
+        if (key == null) {
+            throw new IllegalStateException("AES-CCM cipher is not initialized");
+        }
+        data.write(in, inOffset, inLength);
+        byte[] input = data.toByteArray();
+        try {
+            if (cryptMode == Cipher.CryptMode.ENCRYPT) {
+                // The ciphertext is followed by the tag, the CBC-MAC encrypted with the first key stream block.
+                byte[] out = new byte[input.length + tagLength];
+                byte[] s0 = initCounter();
+                ctr.doFinal(input, 0, input.length, out, 0);
+                byte[] t = cbcMac(input, input.length);
+                for (int i = 0; i < tagLength; i++) {
+                    out[input.length + i] = (byte) (t[i] ^ s0[i]);
+                }
+                return out;
+            } else {
+                int length = input.length - tagLength;
+                if (length < 0) {
+                    throw new SecurityException(new AEADBadTagException("AES-CCM input of " + input.length + " bytes is shorter than the tag"));
+                }
+                byte[] plain = new byte[length];
+                byte[] s0 = initCounter();
+                ctr.doFinal(input, 0, length, plain, 0);
+                byte[] t = cbcMac(plain, length);
+                int diff = 0;
+                for (int i = 0; i < tagLength; i++) {
+                    diff |= (t[i] ^ s0[i]) ^ input[length + i];
+                }
+                if (diff != 0) {
+                    Arrays.fill(plain, (byte) 0);
+                    throw new SecurityException(new AEADBadTagException("AES-CCM authentication tag mismatch"));
+                }
+                return plain;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Start the counter mode key stream at counter block 0, and return the first key stream block. The rest of the
+     * key stream, from counter block 1 onwards, encrypts the message.
+     */
+    private byte[] initCounter() throws GeneralSecurityException {
+        byte[] counter = new byte[BLOCK_SIZE];
+        counter[0] = (byte) (BLOCK_SIZE - 2 - nonce.length); // Flags: L - 1, where L = 15 - n
+        System.arraycopy(nonce, 0, counter, 1, nonce.length);
+        ctr.init(javax.crypto.Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+        return ctr.update(new byte[BLOCK_SIZE]);
+    }
+
+    /**
+     * SP 800-38C A.2: The CBC-MAC over B0 (flags, nonce and message length), the encoded length of the associated
+     * data, the associated data and the message, where the last two are padded with zeros to a full block.
+     */
+    private byte[] cbcMac(byte[] message, int length) throws GeneralSecurityException {
+        int l = BLOCK_SIZE - 1 - nonce.length;
+        byte[] associated = aad.toByteArray();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write((associated.length > 0 ? 0x40 : 0) | (((tagLength - 2) / 2) << 3) | (l - 1));
+        header.write(nonce, 0, nonce.length);
+        for (int i = l - 1; i >= 0; i--) {
+            header.write(i < 8 ? (int) ((long) length >>> (8 * i)) : 0);
+        }
+        if (associated.length > 0) {
+            if (associated.length < 0xFF00) {
+                header.write(associated.length >>> 8);
+                header.write(associated.length);
+            } else {
+                header.write(0xFF);
+                header.write(0xFE);
+                for (int i = 3; i >= 0; i--) {
+                    header.write(associated.length >>> (8 * i));
+                }
+            }
+            header.write(associated, 0, associated.length);
+        }
+        while (header.size() % BLOCK_SIZE != 0) {
+            header.write(0);
+        }
+        byte[] head = header.toByteArray();
+
+        mac.init(javax.crypto.Cipher.ENCRYPT_MODE, key, ZERO_IV);
+        byte[] last = new byte[BLOCK_SIZE];
+        if (length == 0) {
+            feed(head, 0, head.length - BLOCK_SIZE);
+            System.arraycopy(head, head.length - BLOCK_SIZE, last, 0, BLOCK_SIZE);
+        } else {
+            feed(head, 0, head.length);
+            // All but the last (possibly partial) block of the message go through the CBC cipher in bulk.
+            int bulk = ((length - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+            feed(message, 0, bulk);
+            System.arraycopy(message, bulk, last, 0, length - bulk);
+        }
+        // All preceding blocks have been output by update, so doFinal only outputs the last CBC block, the MAC.
+        return mac.doFinal(last);
+    }
+
+    private void feed(byte[] in, int offset, int length) throws ShortBufferException {
+        while (length > 0) {
+            int n = Math.min(length, SCRATCH_SIZE);
+            mac.update(in, offset, n, scratch, 0);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void reset() {
+        aad.reset();
+        data.reset();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.security.jce;
+
+import com.hierynomus.security.Mac;
+import com.hierynomus.security.SecurityException;
+
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+
+/**
+ * AES-CMAC (RFC 4493) on top of the JCE "AES/CBC/NoPadding" Cipher, for JCE providers that do not offer an
+ * "AESCMAC" Mac (such as the default SunJCE provider).
+ * <p/>
+ * CMAC is a CBC-MAC where the last block is masked with a derived subkey, so all but the last block of the message
+ * can be fed to the (usually hardware accelerated) CBC Cipher in bulk. The last (possibly partial) block is held back
+ * until {@link #doFinal()}, as only then it is known which subkey to use.
+ */
+class JceAesCmac implements Mac {
+    private static final int BLOCK_SIZE = 16;
+    private static final int SCRATCH_SIZE = 8 * 1024;
+    private static final IvParameterSpec ZERO_IV = new IvParameterSpec(new byte[BLOCK_SIZE]);
+
+    private final javax.crypto.Cipher cipher;
+    private SecretKeySpec key;
+    private byte[] k1;
+    private byte[] k2;
+    private final byte[] lastBlock = new byte[BLOCK_SIZE];
+    private int lastBlockLength;
+    // Whether blocks have been fed to the cipher since the last doFinal, i.e. the CBC chain needs to be restarted on reset.
+    private boolean started;
+    private final byte[] scratch = new byte[SCRATCH_SIZE];
+
+    JceAesCmac(Provider jceProvider, String providerName) throws SecurityException {
+        try {
+            if (jceProvider != null) {
+                this.cipher = javax.crypto.Cipher.getInstance("AES/CBC/NoPadding", jceProvider);
+            } else if (providerName != null) {
+                this.cipher = javax.crypto.Cipher.getInstance("AES/CBC/NoPadding", providerName);
+            } else {
+                this.cipher = javax.crypto.Cipher.getInstance("AES/CBC/NoPadding");
+            }
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | NoSuchProviderException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    @Override
+    public void init(byte[] key) throws SecurityException {
+        try {
+            this.key = new SecretKeySpec(key, "AES");
+            cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, this.key, ZERO_IV);
+            // With a zero IV, a single zero block is AES-K(0^128), from which the subkeys are derived.
+            byte[] l = cipher.doFinal(new byte[BLOCK_SIZE]);
+            k1 = shiftAndXor(l);
+            k2 = shiftAndXor(k1);
+            lastBlockLength = 0;
+            started = false;
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    /**
+     * RFC 4493 2.3: Shift left by one bit, and xor with the constant Rb (0x87) if the most significant bit was set.
+     */
+    private static byte[] shiftAndXor(byte[] in) {
+        byte[] out = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE - 1; i++) {
+            out[i] = (byte) ((in[i] << 1) | ((in[i + 1] & 0xFF) >>> 7));
+        }
+        out[BLOCK_SIZE - 1] = (byte) (in[BLOCK_SIZE - 1] << 1);
+        if ((in[0] & 0x80) != 0) {
+            out[BLOCK_SIZE - 1] ^= (byte) 0x87;
+        }
+        return out;
+    }
+
+    @Override
+    public void update(byte b) {
+        update(new byte[]{b}, 0, 1);
+    }
+
+    @Override
+    public void update(byte[] array) {
+        update(array, 0, array.length);
+    }
+
+    @Override
+    public void update(byte[] array, int offset, int length) {
+        if (length <= BLOCK_SIZE - lastBlockLength) {
+            System.arraycopy(array, offset, lastBlock, lastBlockLength, length);
+            lastBlockLength += length;
+            return;
+        }
+        try {
+            // More data follows, so the held back block is not the last block of the message.
+            int fill = BLOCK_SIZE - lastBlockLength;
+            System.arraycopy(array, offset, lastBlock, lastBlockLength, fill);
+            cipher.update(lastBlock, 0, BLOCK_SIZE, scratch, 0);
+            started = true;
+            offset += fill;
+            length -= fill;
+            // Process all full blocks in bulk, but always keep 1 to 16 bytes as the (potential) last block.
+            int bulk = ((length - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+            while (bulk > 0) {
+                int n = Math.min(bulk, SCRATCH_SIZE);
+                cipher.update(array, offset, n, scratch, 0);
+                offset += n;
+                length -= n;
+                bulk -= n;
+            }
+            System.arraycopy(array, offset, lastBlock, 0, length);
+            lastBlockLength = length;
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public byte[] doFinal() {
+        byte[] subkey;
+        if (lastBlockLength == BLOCK_SIZE) {
+            subkey = k1;
+        } else {
+            lastBlock[lastBlockLength] = (byte) 0x80;
+            for (int i = lastBlockLength + 1; i < BLOCK_SIZE; i++) {
+                lastBlock[i] = 0;
+            }
+            subkey = k2;
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            lastBlock[i] ^= subkey[i];
+        }
+        try {
+            // All preceding blocks have been output by update, so doFinal only outputs the last CBC block, the MAC.
+            return cipher.doFinal(lastBlock, 0, BLOCK_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lastBlockLength = 0;
+            started = false;
+        }
+    }
+
+    @Override
+    public void reset() {
+        if (started) {
+            try {
+                cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, key, ZERO_IV);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        lastBlockLength = 0;
+        started = false;
+    }
+}
@@ -21,6 +21,9 @@ import com.hierynomus.security.SecurityException;
 import java.security.Provider;
 
 public class JceSecurityProvider implements SecurityProvider {
+    private static final String AES_CMAC = "AESCMAC";
+    private static final String AES_CCM = "AES/CCM/NoPadding";
+
     private final Provider jceProvider;
     private final String providerName;
 
@@ -46,6 +49,14 @@ public class JceSecurityProvider implements SecurityProvider {
 
     @Override
     public Mac getMac(String name) throws SecurityException {
+        if (AES_CMAC.equalsIgnoreCase(name)) {
+            try {
+                return new JceMac(name, jceProvider, providerName);
+            } catch (SecurityException e) {
+                // Not every JCE provider offers AES-CMAC (SunJCE does not), fall back to building it on top of AES/CBC.
+                return new JceAesCmac(jceProvider, providerName);
+            }
+        }
         return new JceMac(name, jceProvider, providerName);
     }
 
@@ -53,4 +64,17 @@ public class JceSecurityProvider implements SecurityProvider {
     public Cipher getCipher(String name) throws SecurityException {
         return new JceCipher(name, jceProvider, providerName);
     }
+
+    @Override
+    public AEADBlockCipher getAEADBlockCipher(String name) throws SecurityException {
+        if (AES_CCM.equalsIgnoreCase(name)) {
+            try {
+                return new JceAEADCipher(name, jceProvider, providerName);
+            } catch (SecurityException e) {
+                // Not every JCE provider offers AES-CCM (SunJCE does not), fall back to building it on top of AES/CBC and AES/CTR.
+                return new JceAesCcm(jceProvider, providerName);
+            }
+        }
+        return new JceAEADCipher(name, jceProvider, providerName);
+    }
 }
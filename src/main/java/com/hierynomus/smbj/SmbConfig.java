@@ -34,6 +34,12 @@ import java.util.concurrent.TimeUnit;
 
 public final class SmbConfig {
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private static final int DEFAULT_READ_PIPELINE_DEPTH = 4;
+    private static final int DEFAULT_WRITE_PIPELINE_DEPTH = 4;
+    private static final int DEFAULT_METADATA_PARALLELISM = 32;
+    private static final int DEFAULT_BLOCK_CACHE_BLOCK_SIZE = 64 * 1024;
+    private static final long DEFAULT_METADATA_CACHE_TTL = 5;
+    private static final TimeUnit DEFAULT_METADATA_CACHE_TTL_UNIT = TimeUnit.SECONDS;
 
     private static final int DEFAULT_SO_TIMEOUT = 0;
     private static final TimeUnit DEFAULT_SO_TIMEOUT_UNIT = TimeUnit.SECONDS;
@@ -49,11 +55,20 @@ public final class SmbConfig {
     private Random random;
     private UUID clientGuid;
     private boolean signingRequired;
+    private boolean encryptData;
+    private int encryptionThreads;
     private SecurityProvider securityProvider;
     private int readBufferSize;
+    private int readPipelineDepth;
     private long readTimeout;
     private int writeBufferSize;
+    private int writePipelineDepth;
     private long writeTimeout;
+    private long blockCacheSize;
+    private int blockCacheBlockSize;
+    private int metadataCacheSize;
+    private long metadataCacheTtl;
+    private int metadataParallelism;
     private int transactBufferSize;
     private TransportLayerFactory<SMB2Packet> transportLayerFactory;
     private long transactTimeout;
@@ -71,7 +86,14 @@ public final class SmbConfig {
             .withSecurityProvider(new JceSecurityProvider())
             .withSocketFactory(new ProxySocketFactory())
             .withSigningRequired(false)
+            .withEncryptData(false)
+            .withEncryptionThreads(Runtime.getRuntime().availableProcessors())
             .withBufferSize(DEFAULT_BUFFER_SIZE)
+            .withReadPipelineDepth(DEFAULT_READ_PIPELINE_DEPTH)
+            .withWritePipelineDepth(DEFAULT_WRITE_PIPELINE_DEPTH)
+            .withBlockCache(0, DEFAULT_BLOCK_CACHE_BLOCK_SIZE)
+            .withMetadataCache(0, DEFAULT_METADATA_CACHE_TTL, DEFAULT_METADATA_CACHE_TTL_UNIT)
+            .withMetadataParallelism(DEFAULT_METADATA_PARALLELISM)
             .withTransportLayerFactory(DEFAULT_TRANSPORT_LAYER_FACTORY)
             .withSoTimeout(DEFAULT_SO_TIMEOUT, DEFAULT_SO_TIMEOUT_UNIT)
             .withDialects(SMB2Dialect.SMB_2_1, SMB2Dialect.SMB_2_0_2)
@@ -93,11 +115,20 @@ public final class SmbConfig {
         random = other.random;
         clientGuid = other.clientGuid;
         signingRequired = other.signingRequired;
+        encryptData = other.encryptData;
+        encryptionThreads = other.encryptionThreads;
         securityProvider = other.securityProvider;
         readBufferSize = other.readBufferSize;
+        readPipelineDepth = other.readPipelineDepth;
         readTimeout = other.readTimeout;
         writeBufferSize = other.writeBufferSize;
+        writePipelineDepth = other.writePipelineDepth;
         writeTimeout = other.writeTimeout;
+        blockCacheSize = other.blockCacheSize;
+        blockCacheBlockSize = other.blockCacheBlockSize;
+        metadataCacheSize = other.metadataCacheSize;
+        metadataCacheTtl = other.metadataCacheTtl;
+        metadataParallelism = other.metadataParallelism;
         transactBufferSize = other.transactBufferSize;
         transactTimeout = other.transactTimeout;
         transportLayerFactory = other.transportLayerFactory;
@@ -128,10 +159,22 @@ public final class SmbConfig {
         return signingRequired;
     }
 
+    public boolean isEncryptData() {
+        return encryptData;
+    }
+
+    public int getEncryptionThreads() {
+        return encryptionThreads;
+    }
+
     public int getReadBufferSize() {
         return readBufferSize;
     }
 
+    public int getReadPipelineDepth() {
+        return readPipelineDepth;
+    }
+
     public long getReadTimeout() {
         return readTimeout;
     }
@@ -140,10 +183,34 @@ public final class SmbConfig {
         return writeBufferSize;
     }
 
+    public int getWritePipelineDepth() {
+        return writePipelineDepth;
+    }
+
     public long getWriteTimeout() {
         return writeTimeout;
     }
 
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    public int getBlockCacheBlockSize() {
+        return blockCacheBlockSize;
+    }
+
+    public int getMetadataCacheSize() {
+        return metadataCacheSize;
+    }
+
+    public long getMetadataCacheTtl() {
+        return metadataCacheTtl;
+    }
+
+    public int getMetadataParallelism() {
+        return metadataParallelism;
+    }
+
     public int getTransactBufferSize() {
         return transactBufferSize;
     }
@@ -246,6 +313,26 @@ public final class SmbConfig {
             return this;
         }
 
+        /**
+         * Encrypt all messages on SMB 3.x sessions, even if the server does not require it.
+         */
+        public Builder withEncryptData(boolean encryptData) {
+            config.encryptData = encryptData;
+            return this;
+        }
+
+        /**
+         * The number of threads used to encrypt and decrypt large READ and WRITE messages in parallel, 0 encrypts and
+         * decrypts all messages on the sending and receiving threads.
+         */
+        public Builder withEncryptionThreads(int encryptionThreads) {
+            if (encryptionThreads < 0) {
+                throw new IllegalArgumentException("Encryption threads should be either 0 (no worker threads) or a positive value");
+            }
+            config.encryptionThreads = encryptionThreads;
+            return this;
+        }
+
         public Builder withReadBufferSize(int readBufferSize) {
             if (readBufferSize <= 0) {
                 throw new IllegalArgumentException("Read buffer size must be greater than zero");
@@ -254,6 +341,17 @@ public final class SmbConfig {
             return this;
         }
 
+        /**
+         * The maximum number of READ requests kept in flight when downloading a file.
+         */
+        public Builder withReadPipelineDepth(int readPipelineDepth) {
+            if (readPipelineDepth <= 0) {
+                throw new IllegalArgumentException("Read pipeline depth must be greater than zero");
+            }
+            config.readPipelineDepth = readPipelineDepth;
+            return this;
+        }
+
         public Builder withReadTimeout(long timeout, TimeUnit timeoutUnit) {
             config.readTimeout = timeoutUnit.toMillis(timeout);
             return this;
@@ -267,6 +365,63 @@ public final class SmbConfig {
             return this;
         }
 
+        /**
+         * The maximum number of WRITE requests kept in flight when writing to a file, 1 waits for every WRITE to
+         * complete before sending the next.
+         */
+        public Builder withWritePipelineDepth(int writePipelineDepth) {
+            if (writePipelineDepth <= 0) {
+                throw new IllegalArgumentException("Write pipeline depth must be greater than zero");
+            }
+            config.writePipelineDepth = writePipelineDepth;
+            return this;
+        }
+
+        /**
+         * Cache blocks of files read on a connection, in at most size bytes of off-heap memory. The blocks of a file are
+         * reused when it is opened again with the same change time and size. A size of 0 disables the cache.
+         */
+        public Builder withBlockCache(long size, int blockSize) {
+            if (size < 0) {
+                throw new IllegalArgumentException("Block cache size should be either 0 (no cache) or a positive value");
+            }
+            if (blockSize <= 0) {
+                throw new IllegalArgumentException("Block cache block size must be greater than zero");
+            }
+            config.blockCacheSize = size;
+            config.blockCacheBlockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * Cache the existence and information of at most size paths per disk share, for the given time to live. Paths
+         * that were not found are cached as well. A path is dropped when it is changed through the share. A size of 0
+         * disables the cache.
+         */
+        public Builder withMetadataCache(int size, long ttl, TimeUnit ttlUnit) {
+            if (size < 0) {
+                throw new IllegalArgumentException("Metadata cache size should be either 0 (no cache) or a positive value");
+            }
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("Metadata cache time to live must be greater than zero");
+            }
+            config.metadataCacheSize = size;
+            config.metadataCacheTtl = ttlUnit.toMillis(ttl);
+            return this;
+        }
+
+        /**
+         * The maximum number of paths worked on concurrently by batch operations on a share, such as
+         * {@link com.hierynomus.smbj.share.DiskShare#statAll(java.util.Collection, Class)}.
+         */
+        public Builder withMetadataParallelism(int metadataParallelism) {
+            if (metadataParallelism <= 0) {
+                throw new IllegalArgumentException("Metadata parallelism must be greater than zero");
+            }
+            config.metadataParallelism = metadataParallelism;
+            return this;
+        }
+
         public Builder withWriteTimeout(long timeout, TimeUnit timeoutUnit) {
             config.writeTimeout = timeoutUnit.toMillis(timeout);
             return this;
@@ -16,25 +16,37 @@
 package com.hierynomus.smbj.connection;
 
 import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2Dialect;
 import com.hierynomus.mssmb2.SMB2GlobalCapability;
+import com.hierynomus.mssmb2.SMB2Header;
 import com.hierynomus.mssmb2.SMB2MessageCommandCode;
 import com.hierynomus.mssmb2.SMB2MessageFlag;
 import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.messages.SMB2EncryptedPacket;
+import com.hierynomus.mssmb2.messages.SMB2LeaseBreak;
 import com.hierynomus.mssmb2.messages.SMB2MessageConverter;
 import com.hierynomus.mssmb2.messages.SMB2NegotiateRequest;
 import com.hierynomus.mssmb2.messages.SMB2NegotiateResponse;
+import com.hierynomus.mssmb2.messages.SMB2OplockBreak;
 import com.hierynomus.mssmb2.messages.SMB2SessionSetup;
 import com.hierynomus.protocol.commons.Factory;
+import com.hierynomus.protocol.commons.buffer.Buffer;
 import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.protocol.commons.concurrent.OrderedPipeline;
 import com.hierynomus.smbj.SmbConfig;
 import com.hierynomus.smbj.auth.AuthenticationContext;
 import com.hierynomus.smbj.auth.Authenticator;
 import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.common.SMBBuffer;
 import com.hierynomus.smbj.common.SMBRuntimeException;
 import com.hierynomus.smbj.event.ConnectionClosed;
+import com.hierynomus.smbj.event.LeaseBreakReceived;
+import com.hierynomus.smbj.event.OplockBreakReceived;
 import com.hierynomus.smbj.event.SMBEventBus;
 import com.hierynomus.smbj.event.SessionLoggedOff;
+import com.hierynomus.smbj.session.PacketEncryptor;
 import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.BlockCache;
 import com.hierynomus.smbj.transport.PacketHandlers;
 import com.hierynomus.smbj.transport.PacketReceiver;
 import com.hierynomus.smbj.transport.TransportException;
@@ -52,7 +64,11 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.hierynomus.mssmb2.SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
@@ -66,6 +82,7 @@ import static java.lang.String.format;
 public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
     private static final Logger logger = LoggerFactory.getLogger(Connection.class);
     private static final SMB2MessageConverter converter = new SMB2MessageConverter();
+    private static final long UNSOLICITED_MESSAGE_ID = 0xFFFFFFFFFFFFFFFFL;
 
     private ConnectionInfo connectionInfo;
     private String remoteName;
@@ -76,13 +93,40 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
     private final ReentrantLock lock = new ReentrantLock();
     private int remotePort;
 
+    // Large encrypted READ and WRITE messages are encrypted and decrypted in parallel, but sent and handled in order.
+    private final ThreadPoolExecutor cryptoExecutor;
+    private final OrderedPipeline sendPipeline;
+    private final OrderedPipeline receivePipeline;
+    private final BlockCache blockCache;
+
     public Connection(SmbConfig config, SMBEventBus bus) {
         this.config = config;
         this.transport = config.getTransportLayerFactory().createTransportLayer(new PacketHandlers<>(converter, this, converter), config);
         this.bus = bus;
+        this.cryptoExecutor = createCryptoExecutor(config.getEncryptionThreads());
+        this.sendPipeline = new OrderedPipeline(cryptoExecutor);
+        this.receivePipeline = new OrderedPipeline(cryptoExecutor);
+        this.blockCache = config.getBlockCacheSize() > 0 ? new BlockCache(config.getBlockCacheSize(), config.getBlockCacheBlockSize()) : null;
         bus.subscribe(this);
     }
 
+    private static ThreadPoolExecutor createCryptoExecutor(int threads) {
+        if (threads == 0) {
+            return null;
+        }
+        final AtomicInteger threadCounter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "smbj-crypto-" + threadCounter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public void connect(String hostname, int port) throws IOException {
         if (isConnected()) {
             throw new IllegalStateException(format("This connection is already connected to %s", getRemoteHostname()));
@@ -118,6 +162,9 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
             }
         }
         transport.disconnect();
+        if (cryptoExecutor != null) {
+            cryptoExecutor.shutdown();
+        }
         logger.info("Closed connection to {}", getRemoteHostname());
         bus.publish(new ConnectionClosed(remoteName, remotePort));
     }
@@ -136,14 +183,19 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
             Authenticator authenticator = getAuthenticator(authContext);
             authenticator.init(config.getSecurityProvider(), config.getRandomProvider());
             Session session = new Session(0, this, bus, connectionInfo.isServerRequiresSigning(), config.getSecurityProvider());
-            SMB2SessionSetup receive = authenticationRound(authenticator, authContext, connectionInfo.getGssNegotiateToken(), session);
+            PreauthIntegrityHash preauthIntegrityHash = null;
+            if (connectionInfo.getPreauthIntegrityHashValue() != null) {
+                // Every session setup starts from the hash over the NEGOTIATE exchange
+                preauthIntegrityHash = new PreauthIntegrityHash(config.getSecurityProvider(), connectionInfo.getPreauthIntegrityHashId(), connectionInfo.getPreauthIntegrityHashValue());
+            }
+            SMB2SessionSetup receive = authenticationRound(authenticator, authContext, connectionInfo.getGssNegotiateToken(), session, preauthIntegrityHash);
             long sessionId = receive.getHeader().getSessionId();
             session.setSessionId(sessionId);
             connectionInfo.getPreauthSessionTable().registerSession(sessionId, session);
             try {
                 while (receive.getHeader().getStatus() == NtStatus.STATUS_MORE_PROCESSING_REQUIRED) {
                     logger.debug("More processing required for authentication of {} using {}", authContext.getUsername(), authenticator);
-                    receive = authenticationRound(authenticator, authContext, receive.getSecurityBuffer(), session);
+                    receive = authenticationRound(authenticator, authContext, receive.getSecurityBuffer(), session, preauthIntegrityHash);
                 }
 
                 if (receive.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
@@ -154,6 +206,16 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
                     // process the last received buffer
                     authenticator.authenticate(authContext, receive.getSecurityBuffer(), session);
                 }
+                if (preauthIntegrityHash != null) {
+                    session.setPreauthIntegrityHashValue(preauthIntegrityHash.getValue());
+                }
+                // [MS-SMB2].pdf 3.2.5.3.1 Handling a New Authentication
+                boolean serverEncryptData = receive.getSessionFlags() != null && receive.getSessionFlags().contains(SMB2SessionSetup.SMB2SessionFlags.SMB2_SESSION_FLAG_ENCRYPT_DATA);
+                if (serverEncryptData || (config.isEncryptData() && connectionInfo.getNegotiatedProtocol().getEncryptionCipher() != null)) {
+                    session.setEncryptData(true);
+                } else if (config.isEncryptData()) {
+                    throw new SMBRuntimeException("Client requires encryption, but server " + remoteName + " does not support it");
+                }
                 logger.info("Successfully authenticated {} on {}, session is {}", authContext.getUsername(), remoteName, session.getSessionId());
                 connectionInfo.getSessionTable().registerSession(session.getSessionId(), session);
                 return session;
@@ -165,12 +227,21 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
         }
     }
 
-    private SMB2SessionSetup authenticationRound(Authenticator authenticator, AuthenticationContext authContext, byte[] inputToken, Session session) throws IOException {
+    private SMB2SessionSetup authenticationRound(Authenticator authenticator, AuthenticationContext authContext, byte[] inputToken, Session session, PreauthIntegrityHash preauthIntegrityHash) throws IOException {
         byte[] securityContext = authenticator.authenticate(authContext, inputToken, session);
         SMB2SessionSetup req = new SMB2SessionSetup(connectionInfo.getNegotiatedProtocol().getDialect(), EnumSet.of(SMB2_NEGOTIATE_SIGNING_ENABLED));
         req.setSecurityBuffer(securityContext);
         req.getHeader().setSessionId(session.getSessionId());
-        return Futures.get(this.<SMB2SessionSetup>send(req), getConfig().getTransactTimeout(), TimeUnit.MILLISECONDS, TransportException.Wrapper);
+        Future<SMB2SessionSetup> future = send(req);
+        if (preauthIntegrityHash != null) {
+            preauthIntegrityHash.updateWithRequest(req);
+        }
+        SMB2SessionSetup response = Futures.get(future, getConfig().getTransactTimeout(), TimeUnit.MILLISECONDS, TransportException.Wrapper);
+        if (preauthIntegrityHash != null && response.getHeader().getStatus() == NtStatus.STATUS_MORE_PROCESSING_REQUIRED) {
+            // The final SESSION_SETUP response is not part of the preauth integrity hash
+            preauthIntegrityHash.updateWithResponse(response);
+        }
+        return response;
     }
 
     private Authenticator getAuthenticator(AuthenticationContext context) throws IOException {
@@ -215,13 +286,25 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
 
             Request request = new Request(packet.getHeader().getMessageId(), UUID.randomUUID(), packet);
             connectionInfo.getOutstandingRequests().registerOutstanding(request);
-            transport.write(packet);
+            boolean parallel = isLargeEncryptedWrite(packet);
+            if (!parallel && sendPipeline.isIdle()) {
+                transport.write(packet);
+            } else {
+                // Keep the wire order equal to the messageId order, even when the encryption happens in parallel.
+                sendPipeline.submit(new SendStage(packet), parallel);
+            }
             return request.getFuture(null); // TODO cancel callback
         } finally {
             lock.unlock();
         }
     }
 
+    private boolean isLargeEncryptedWrite(SMB2Packet packet) {
+        return packet instanceof PacketEncryptor.EncryptedPacketWrapper
+            && packet.getHeader().getMessage() == SMB2MessageCommandCode.SMB2_WRITE
+            && packet.getMaxPayloadSize() > SINGLE_CREDIT_PAYLOAD_SIZE;
+    }
+
     private <T extends SMB2Packet> T sendAndReceive(SMB2Packet packet) throws TransportException {
         return Futures.get(this.<T>send(packet), getConfig().getTransactTimeout(), TimeUnit.MILLISECONDS, TransportException.Wrapper);
     }
@@ -246,7 +329,9 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
 
     private void negotiateDialect() throws TransportException {
         logger.debug("Negotiating dialects {} with server {}", config.getSupportedDialects(), getRemoteHostname());
-        SMB2Packet negotiatePacket = new SMB2NegotiateRequest(config.getSupportedDialects(), connectionInfo.getClientGuid(), config.isSigningRequired());
+        byte[] preauthSalt = new byte[32];
+        config.getRandomProvider().nextBytes(preauthSalt);
+        SMB2Packet negotiatePacket = new SMB2NegotiateRequest(config.getSupportedDialects(), connectionInfo.getClientGuid(), config.isSigningRequired(), preauthSalt);
         Future<SMB2Packet> send = send(negotiatePacket);
         SMB2Packet negotiateResponse = Futures.get(send, getConfig().getTransactTimeout(), TimeUnit.MILLISECONDS, TransportException.Wrapper);
         if (!(negotiateResponse instanceof SMB2NegotiateResponse)) {
@@ -254,6 +339,16 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
         }
         SMB2NegotiateResponse resp = (SMB2NegotiateResponse) negotiateResponse;
         connectionInfo.negotiated(resp);
+        if (resp.getDialect() == SMB2Dialect.SMB_3_1_1) {
+            if (connectionInfo.getPreauthIntegrityHashId() == null) {
+                throw new SMBRuntimeException("SMB 3.1.1 server " + getRemoteHostname() + " did not select a preauth integrity hash algorithm");
+            }
+            // [MS-SMB2].pdf 3.2.5.2 Connection.PreauthIntegrityHashValue starts as all zeroes (the size of a SHA-512 hash)
+            PreauthIntegrityHash preauthIntegrityHash = new PreauthIntegrityHash(config.getSecurityProvider(), connectionInfo.getPreauthIntegrityHashId(), new byte[64]);
+            preauthIntegrityHash.updateWithRequest(negotiatePacket);
+            preauthIntegrityHash.updateWithResponse(resp);
+            connectionInfo.setPreauthIntegrityHashValue(preauthIntegrityHash.getValue());
+        }
         logger.debug("Negotiated the following connection settings: {}", connectionInfo);
     }
 
@@ -265,6 +360,29 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
         return Math.abs((payloadSize - 1) / SINGLE_CREDIT_PAYLOAD_SIZE) + 1;
     }
 
+    /**
+     * Returns the number of credits that are currently available to send requests on this connection.
+     *
+     * @return The number of available credits
+     */
+    public int getAvailableCredits() {
+        return connectionInfo.getSequenceWindow().available();
+    }
+
+    /**
+     * Whether the server supports the capability, as it indicated in the NEGOTIATE response.
+     */
+    public boolean supports(SMB2GlobalCapability capability) {
+        return connectionInfo.supports(capability);
+    }
+
+    /**
+     * @return The cache of file blocks read on this connection, or null if block caching is not configured
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
     /**
      * Returns the negotiated protocol details for this connection.
      *
@@ -276,7 +394,23 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
 
     @Override
     public void handle(SMB2Packet packet) throws TransportException {
+        if (packet instanceof SMB2EncryptedPacket) {
+            SMB2EncryptedPacket encryptedPacket = (SMB2EncryptedPacket) packet;
+            receivePipeline.submit(new ReceiveStage(encryptedPacket), encryptedPacket.getEncryptedMessageLength() > SINGLE_CREDIT_PAYLOAD_SIZE);
+        } else if (!receivePipeline.isIdle()) {
+            // Wait for the earlier encrypted responses to be handled first.
+            receivePipeline.submit(new ReceiveStage(packet), false);
+        } else {
+            processPacket(packet, false);
+        }
+    }
+
+    private void processPacket(SMB2Packet packet, boolean decrypted) throws TransportException {
         long messageId = packet.getSequenceNumber();
+        if (messageId == UNSOLICITED_MESSAGE_ID) {
+            processUnsolicitedPacket(packet);
+            return;
+        }
         if (!connectionInfo.getOutstandingRequests().isOutstanding(messageId)) {
             throw new TransportException("Received response with unknown sequence number <<" + messageId + ">>");
         }
@@ -317,7 +451,10 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
             }
 
             // check packet signature.  Drop the packet if it is not correct.
-            if (packet.getHeader().isFlagSet(SMB2MessageFlag.SMB2_FLAGS_SIGNED)) {
+            if (decrypted) {
+                // [MS-SMB2].pdf 3.2.5.1.3 Verifying the Signature, encrypted messages are authenticated by the cipher.
+                logger.trace("Received encrypted packet {}", packet);
+            } else if (packet.getHeader().isFlagSet(SMB2MessageFlag.SMB2_FLAGS_SIGNED)) {
                 if (!session.getPacketSignatory().verify(packet)) {
                     logger.warn("Invalid packet signature for packet {}", packet);
                     if (config.isSigningRequired()) {
@@ -334,6 +471,135 @@ public class Connection implements AutoCloseable, PacketReceiver<SMB2Packet> {
         connectionInfo.getOutstandingRequests().receivedResponseFor(messageId).getPromise().deliver(packet);
     }
 
+    /**
+     * [MS-SMB2].pdf 3.2.5.19 Receiving an SMB2 OPLOCK_BREAK Notification. The notification is not a response to a
+     * request and is not signed, it is passed on to the share that holds the open.
+     */
+    private void processUnsolicitedPacket(SMB2Packet packet) {
+        if (packet instanceof SMB2OplockBreak) {
+            SMB2OplockBreak oplockBreak = (SMB2OplockBreak) packet;
+            logger.debug("Received oplock break to {} for {}", oplockBreak.getOplockLevel(), oplockBreak.getFileId());
+            bus.publish(new OplockBreakReceived(oplockBreak.getFileId(), oplockBreak.getOplockLevel()));
+        } else if (packet instanceof SMB2LeaseBreak) {
+            SMB2LeaseBreak leaseBreak = (SMB2LeaseBreak) packet;
+            logger.debug("Received lease break from {} to {}", leaseBreak.getCurrentLeaseState(), leaseBreak.getLeaseState());
+            bus.publish(new LeaseBreakReceived(leaseBreak.getLeaseKey(), leaseBreak.getLeaseState(), leaseBreak.isAcknowledgmentRequired()));
+        } else {
+            logger.warn("Ignoring unsolicited packet {}", packet);
+        }
+    }
+
+    private Session findSession(long sessionId) {
+        Session session = connectionInfo.getSessionTable().find(sessionId);
+        if (session == null) {
+            session = connectionInfo.getPreauthSessionTable().find(sessionId);
+        }
+        return session;
+    }
+
+    /**
+     * Serializes (and thereby encrypts) a packet off the sending thread, and writes it in order.
+     */
+    private class SendStage implements OrderedPipeline.Stage {
+        private final SMB2Packet packet;
+        private SerializedPacket serialized;
+
+        SendStage(SMB2Packet packet) {
+            this.packet = packet;
+        }
+
+        @Override
+        public void process() {
+            serialized = new SerializedPacket(packet, converter.write(packet));
+        }
+
+        @Override
+        public void complete(Throwable failure) {
+            try {
+                if (failure != null) {
+                    throw new TransportException("Could not serialize packet " + packet + ": " + failure.getMessage());
+                }
+                transport.write(serialized);
+            } catch (TransportException e) {
+                logger.warn("Failed to send packet {}", packet, e);
+                Request request = connectionInfo.getOutstandingRequests().receivedResponseFor(packet.getHeader().getMessageId());
+                request.getPromise().deliverError(e);
+            }
+        }
+    }
+
+    /**
+     * Decrypts a received packet off the receiving thread, and handles it in order.
+     */
+    private class ReceiveStage implements OrderedPipeline.Stage {
+        private final SMB2Packet received;
+        private SMB2Packet packet;
+
+        ReceiveStage(SMB2Packet received) {
+            this.received = received;
+        }
+
+        @Override
+        public void process() throws TransportException, Buffer.BufferException {
+            if (received instanceof SMB2EncryptedPacket) {
+                SMB2EncryptedPacket encryptedPacket = (SMB2EncryptedPacket) received;
+                long sessionId = encryptedPacket.getTransformHeader().getSessionId();
+                Session session = findSession(sessionId);
+                if (session == null) {
+                    throw new TransportException("Received encrypted message for unknown session " + sessionId);
+                }
+                packet = converter.read(session.getPacketEncryptor().decrypt(encryptedPacket));
+            } else {
+                packet = received;
+            }
+        }
+
+        @Override
+        public void complete(Throwable failure) {
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                processPacket(packet, packet != received);
+            } catch (Throwable t) {
+                handleError(t);
+            }
+        }
+    }
+
+    /**
+     * An already serialized packet, written as is.
+     */
+    private static class SerializedPacket extends SMB2Packet {
+        private final SMB2Packet packet;
+        private final Buffer<?> data;
+
+        SerializedPacket(SMB2Packet packet, Buffer<?> data) {
+            this.packet = packet;
+            this.data = data;
+        }
+
+        @Override
+        public void write(SMBBuffer buffer) {
+            buffer.putRawBytes(data.array(), data.rpos(), data.available());
+        }
+
+        @Override
+        public SMB2Header getHeader() {
+            return packet.getHeader();
+        }
+
+        @Override
+        public long getSequenceNumber() {
+            return packet.getSequenceNumber();
+        }
+
+        @Override
+        public String toString() {
+            return packet.toString();
+        }
+    }
+
     @Override
     public void handleError(Throwable t) {
         connectionInfo.getOutstandingRequests().handleError(t);
@@ -15,13 +15,17 @@
  */
 package com.hierynomus.smbj.connection;
 
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2EncryptionCipher;
 import com.hierynomus.mssmb2.SMB2GlobalCapability;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
 import com.hierynomus.mssmb2.messages.SMB2NegotiateResponse;
 
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.UUID;
 
+import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.ensureNotNull;
 import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.toEnumSet;
 
 public class ConnectionInfo {
@@ -48,7 +52,7 @@ public class ConnectionInfo {
     // SMB 3.1.1
     private String preauthIntegrityHashId;
     private byte[] preauthIntegrityHashValue;
-    private String cipherId;
+    private SMB2EncryptionCipher cipherId;
 
 
     public ConnectionInfo(UUID clientGuid, String serverName) {
@@ -64,8 +68,41 @@ public class ConnectionInfo {
 //        gssNegotiateToken = response.getGssToken();
         serverGuid = response.getServerGuid();
         serverCapabilities = toEnumSet(response.getCapabilities(), SMB2GlobalCapability.class);
-        this.negotiatedProtocol = new NegotiatedProtocol(response.getDialect(), response.getMaxTransactSize(), response.getMaxReadSize(), response.getMaxWriteSize(), serverCapabilities.contains(SMB2GlobalCapability.SMB2_GLOBAL_CAP_LARGE_MTU));
+        SMB2SigningAlgorithm signingAlgorithm = ensureNotNull(response.getSigningAlgorithm(), SMB2SigningAlgorithm.forDialect(response.getDialect()));
+        cipherId = negotiatedCipher(response);
+        this.negotiatedProtocol = new NegotiatedProtocol(response.getDialect(), response.getMaxTransactSize(), response.getMaxReadSize(), response.getMaxWriteSize(), serverCapabilities.contains(SMB2GlobalCapability.SMB2_GLOBAL_CAP_LARGE_MTU), signingAlgorithm, cipherId);
         serverSecurityMode = response.getSecurityMode();
+        if (response.getPreauthIntegrityHashAlgorithm() != null) {
+            preauthIntegrityHashId = response.getPreauthIntegrityHashAlgorithm().getAlgorithmName();
+        }
+    }
+
+    /**
+     * [MS-SMB2].pdf 3.2.5.2 Receiving an SMB2 NEGOTIATE Response
+     * <p/>
+     * SMB 3.0 and 3.0.2 servers support AES-128-CCM if they indicate SMB2_GLOBAL_CAP_ENCRYPTION, SMB 3.1.1 servers
+     * select the cipher in the SMB2_ENCRYPTION_CAPABILITIES negotiate context.
+     */
+    private SMB2EncryptionCipher negotiatedCipher(SMB2NegotiateResponse response) {
+        SMB2Dialect dialect = response.getDialect();
+        if (dialect == SMB2Dialect.SMB_3_1_1) {
+            return response.getEncryptionCipher();
+        } else if (dialect != null && dialect.isSmb3x() && serverCapabilities.contains(SMB2GlobalCapability.SMB2_GLOBAL_CAP_ENCRYPTION)) {
+            return SMB2EncryptionCipher.AES_128_CCM;
+        }
+        return null;
+    }
+
+    String getPreauthIntegrityHashId() {
+        return preauthIntegrityHashId;
+    }
+
+    byte[] getPreauthIntegrityHashValue() {
+        return preauthIntegrityHashValue;
+    }
+
+    void setPreauthIntegrityHashValue(byte[] preauthIntegrityHashValue) {
+        this.preauthIntegrityHashValue = preauthIntegrityHashValue;
     }
 
     SequenceWindow getSequenceWindow() {
@@ -16,6 +16,8 @@
 package com.hierynomus.smbj.connection;
 
 import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2EncryptionCipher;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
 
 import static com.hierynomus.mssmb2.SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
 
@@ -27,9 +29,17 @@ public class NegotiatedProtocol {
     private int maxTransactSize;
     private int maxReadSize;
     private int maxWriteSize;
+    private SMB2SigningAlgorithm signingAlgorithm;
+    private SMB2EncryptionCipher encryptionCipher;
 
     public NegotiatedProtocol(SMB2Dialect dialect, int maxTransactSize, int maxReadSize, int maxWriteSize, boolean supportsMultiCredit) {
+        this(dialect, maxTransactSize, maxReadSize, maxWriteSize, supportsMultiCredit, SMB2SigningAlgorithm.forDialect(dialect), null);
+    }
+
+    public NegotiatedProtocol(SMB2Dialect dialect, int maxTransactSize, int maxReadSize, int maxWriteSize, boolean supportsMultiCredit, SMB2SigningAlgorithm signingAlgorithm, SMB2EncryptionCipher encryptionCipher) {
         this.dialect = dialect;
+        this.signingAlgorithm = signingAlgorithm;
+        this.encryptionCipher = encryptionCipher;
         this.maxTransactSize = supportsMultiCredit ? maxTransactSize : Math.max(maxTransactSize, SINGLE_CREDIT_PAYLOAD_SIZE);
         this.maxReadSize = supportsMultiCredit ? maxReadSize : Math.max(maxReadSize, SINGLE_CREDIT_PAYLOAD_SIZE);
         this.maxWriteSize = supportsMultiCredit ? maxWriteSize : Math.max(maxWriteSize, SINGLE_CREDIT_PAYLOAD_SIZE);
@@ -51,6 +61,17 @@ public class NegotiatedProtocol {
         return maxWriteSize;
     }
 
+    public SMB2SigningAlgorithm getSigningAlgorithm() {
+        return signingAlgorithm;
+    }
+
+    /**
+     * @return The cipher to use for encryption, or null if the server does not support encryption.
+     */
+    public SMB2EncryptionCipher getEncryptionCipher() {
+        return encryptionCipher;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("NegotiatedProtocol{");
@@ -58,6 +79,8 @@ public class NegotiatedProtocol {
         sb.append(", maxTransactSize=").append(maxTransactSize);
         sb.append(", maxReadSize=").append(maxReadSize);
         sb.append(", maxWriteSize=").append(maxWriteSize);
+        sb.append(", signingAlgorithm=").append(signingAlgorithm);
+        sb.append(", encryptionCipher=").append(encryptionCipher);
         sb.append('}');
         return sb.toString();
     }
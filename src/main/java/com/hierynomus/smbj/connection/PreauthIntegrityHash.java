@@ -0,0 +1,76 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.connection;
+
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.security.MessageDigest;
+import com.hierynomus.security.SecurityException;
+import com.hierynomus.security.SecurityProvider;
+import com.hierynomus.smbj.common.SMBBuffer;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+
+import java.util.Arrays;
+
+/**
+ * [MS-SMB2].pdf 3.2.5.2 / 3.2.5.3 SMB 3.1.1 Preauthentication Integrity
+ * <p/>
+ * The running hash over the NEGOTIATE and SESSION_SETUP exchange: H(i) = Hash(H(i-1) || message). The connection hash
+ * covers the NEGOTIATE request and response, every session starts from the connection hash and covers its
+ * SESSION_SETUP requests and all but the final (successful) response.
+ */
+class PreauthIntegrityHash {
+    private final SecurityProvider securityProvider;
+    private final String algorithm;
+    private byte[] value;
+
+    PreauthIntegrityHash(SecurityProvider securityProvider, String algorithm, byte[] initialValue) {
+        this.securityProvider = securityProvider;
+        this.algorithm = algorithm;
+        this.value = initialValue;
+    }
+
+    /**
+     * Update the hash with a sent request, which is serialized again in the exact form it was written to the wire.
+     */
+    void updateWithRequest(SMB2Packet request) {
+        SMBBuffer buffer = new SMBBuffer();
+        request.write(buffer);
+        update(buffer.array(), 0, buffer.wpos());
+    }
+
+    /**
+     * Update the hash with a received response, as read from the wire.
+     */
+    void updateWithResponse(SMB2Packet response) {
+        SMBBuffer buffer = response.getBuffer();
+        update(buffer.array(), response.getMessageStartPos(), buffer.wpos() - response.getMessageStartPos());
+    }
+
+    private void update(byte[] message, int offset, int length) {
+        try {
+            MessageDigest digest = securityProvider.getDigest(algorithm);
+            digest.update(value);
+            digest.update(Arrays.copyOfRange(message, offset, offset + length));
+            value = digest.digest();
+        } catch (SecurityException e) {
+            throw new SMBRuntimeException(e);
+        }
+    }
+
+    byte[] getValue() {
+        return value;
+    }
+}
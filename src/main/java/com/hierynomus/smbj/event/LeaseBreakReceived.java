@@ -0,0 +1,50 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.event;
+
+import com.hierynomus.mssmb2.SMB2LeaseState;
+
+import java.util.Set;
+
+/**
+ * The server broke a lease to a lower lease state.
+ */
+public class LeaseBreakReceived implements SMBEvent {
+    private final byte[] leaseKey;
+    private final Set<SMB2LeaseState> leaseState;
+    private final boolean acknowledgmentRequired;
+
+    public LeaseBreakReceived(byte[] leaseKey, Set<SMB2LeaseState> leaseState, boolean acknowledgmentRequired) {
+        this.leaseKey = leaseKey;
+        this.leaseState = leaseState;
+        this.acknowledgmentRequired = acknowledgmentRequired;
+    }
+
+    public byte[] getLeaseKey() {
+        return leaseKey;
+    }
+
+    /**
+     * The lease state the lease is broken to.
+     */
+    public Set<SMB2LeaseState> getLeaseState() {
+        return leaseState;
+    }
+
+    public boolean isAcknowledgmentRequired() {
+        return acknowledgmentRequired;
+    }
+}
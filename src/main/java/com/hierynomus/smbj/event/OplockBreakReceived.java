@@ -0,0 +1,43 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.event;
+
+import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2OplockLevel;
+
+/**
+ * The server broke the oplock of an open to a lower level.
+ */
+public class OplockBreakReceived implements SMBEvent {
+    private final SMB2FileId fileId;
+    private final SMB2OplockLevel oplockLevel;
+
+    public OplockBreakReceived(SMB2FileId fileId, SMB2OplockLevel oplockLevel) {
+        this.fileId = fileId;
+        this.oplockLevel = oplockLevel;
+    }
+
+    public SMB2FileId getFileId() {
+        return fileId;
+    }
+
+    /**
+     * The oplock level the open is broken to.
+     */
+    public SMB2OplockLevel getOplockLevel() {
+        return oplockLevel;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.hierynomus.smbj.io;
 
+import com.hierynomus.protocol.commons.buffer.Buffer;
+
 import java.io.IOException;
 
 public class ArrayByteChunkProvider extends ByteChunkProvider {
@@ -52,6 +54,28 @@ public class ArrayByteChunkProvider extends ByteChunkProvider {
         return write;
     }
 
+    @Override
+    protected int putChunk(Buffer<?> buffer) {
+        int write = Math.min(chunkSize, remaining);
+        buffer.putRawBytes(data, bufferOffset, write);
+        bufferOffset += write;
+        remaining -= write;
+        return write;
+    }
+
+    @Override
+    public ByteChunkProvider slice(int length) {
+        return new ArrayByteChunkProvider(data, bufferOffset, Math.min(length, remaining), offset);
+    }
+
+    @Override
+    public void skip(int length) {
+        int skip = Math.min(length, remaining);
+        bufferOffset += skip;
+        remaining -= skip;
+        offset += skip;
+    }
+
     @Override
     public int bytesLeft() {
         return remaining;
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.io;
+
+import com.hierynomus.protocol.commons.buffer.Buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link ByteChunkProvider} which provides the remaining bytes of a {@link ByteBuffer}. Both heap and direct buffers
+ * are supported, which includes memory-mapped regions of a file (see {@link #map(FileChannel, long, long, long)}).
+ * <p/>
+ * The bytes are put directly into the outgoing packet, so every byte is copied exactly once.
+ */
+public class ByteBufferByteChunkProvider extends ByteChunkProvider {
+    private final ByteBuffer buffer;
+
+    public ByteBufferByteChunkProvider(ByteBuffer buffer, long fileOffset) {
+        this.buffer = buffer.slice();
+        this.offset = fileOffset;
+    }
+
+    /**
+     * Memory-map a region of a local file, and provide its contents.
+     *
+     * @param channel    The channel of the file to map
+     * @param position   The position in the local file at which the region starts
+     * @param length     The length of the region
+     * @param fileOffset The offset in the remote file where the data should be written
+     * @return A chunk provider for the mapped region
+     * @throws IOException If the region could not be mapped
+     */
+    public static ByteBufferByteChunkProvider map(FileChannel channel, long position, long length, long fileOffset) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        return new ByteBufferByteChunkProvider(mapped, fileOffset);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return buffer.hasRemaining();
+    }
+
+    @Override
+    protected int getChunk(byte[] chunk) throws IOException {
+        int toRead = Math.min(chunk.length, buffer.remaining());
+        buffer.get(chunk, 0, toRead);
+        return toRead;
+    }
+
+    @Override
+    protected int putChunk(Buffer<?> buffer) throws IOException {
+        int toWrite = Math.min(chunkSize, this.buffer.remaining());
+        ByteBuffer chunk = this.buffer.duplicate();
+        chunk.limit(chunk.position() + toWrite);
+        buffer.putRawBytes(chunk);
+        this.buffer.position(chunk.position());
+        return toWrite;
+    }
+
+    @Override
+    public ByteChunkProvider slice(int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + Math.min(length, buffer.remaining()));
+        return new ByteBufferByteChunkProvider(slice, offset);
+    }
+
+    @Override
+    public void skip(int length) {
+        int skip = Math.min(length, buffer.remaining());
+        buffer.position(buffer.position() + skip);
+        offset += skip;
+    }
+
+    @Override
+    public int bytesLeft() {
+        return buffer.remaining();
+    }
+}
@@ -27,10 +27,12 @@ public abstract class ByteChunkProvider {
     protected long offset;
     protected int chunkSize = CHUNK_SIZE;
 
+    private byte[] chunk;
+
     public abstract boolean isAvailable();
 
     public void writeChunk(OutputStream os) {
-        byte[] chunk = new byte[chunkSize];
+        byte[] chunk = getChunkBuffer();
         try {
             int size = getChunk(chunk);
             os.write(chunk, 0, size);
@@ -41,23 +43,14 @@ public abstract class ByteChunkProvider {
     }
 
     public void writeChunks(Buffer<?> buffer, int nrChunks) {
-        byte[] chunk = new byte[chunkSize];
         for (int i = 0; i < nrChunks; i++) {
-            try {
-                int size = getChunk(chunk);
-                buffer.putRawBytes(chunk, 0, size);
-                offset += size;
-            } catch (IOException e) {
-                throw new SMBRuntimeException(e);
-            }
+            writeChunk(buffer);
         }
     }
 
     public void writeChunk(Buffer<?> buffer) {
-        byte[] chunk = new byte[chunkSize];
         try {
-            int size = getChunk(chunk);
-            buffer.putRawBytes(chunk, 0, size);
+            int size = putChunk(buffer);
             offset += size;
         } catch (IOException e) {
             throw new SMBRuntimeException(e);
@@ -68,6 +61,71 @@ public abstract class ByteChunkProvider {
         return offset;
     }
 
+    /**
+     * Get a provider for the next <code>length</code> bytes of this provider, which reads them independently of this
+     * provider. The position of this provider is not changed, use {@link #skip(int)} to continue after the bytes.
+     * <p/>
+     * The default implementation returns <code>null</code>, as most providers can only be read sequentially.
+     *
+     * @param length The number of bytes, at most {@link #bytesLeft()}
+     * @return The provider for the bytes, or <code>null</code> if this provider does not support it
+     */
+    public ByteChunkProvider slice(int length) {
+        return null;
+    }
+
+    /**
+     * Skip the next <code>length</code> bytes of this provider.
+     * <p/>
+     * The default implementation reads and discards the bytes, reading no further than the bytes to skip.
+     *
+     * @param length The number of bytes to skip, at most {@link #bytesLeft()}
+     */
+    public void skip(int length) {
+        byte[] chunk = getChunkBuffer();
+        int skipped = 0;
+        try {
+            while (skipped < length) {
+                if (length - skipped < chunk.length) {
+                    chunk = new byte[length - skipped];
+                }
+                int size = getChunk(chunk);
+                if (size <= 0) {
+                    break;
+                }
+                skipped += size;
+            }
+        } catch (IOException e) {
+            throw new SMBRuntimeException(e);
+        }
+        offset += skipped;
+    }
+
+    /**
+     * Put the next chunk of (at most {@link #chunkSize} bytes) into the buffer.
+     * <p/>
+     * The default implementation reads the chunk using {@link #getChunk(byte[])} into a chunk array that is reused
+     * for the lifetime of this provider, and copies that into the buffer. Providers that are able to put their data
+     * directly into the buffer should override this to prevent the intermediate copy.
+     *
+     * @param buffer The buffer to put the chunk into
+     * @return The number of bytes put into the buffer
+     * @throws IOException If the chunk could not be read
+     */
+    protected int putChunk(Buffer<?> buffer) throws IOException {
+        byte[] chunk = getChunkBuffer();
+        int size = getChunk(chunk);
+        buffer.putRawBytes(chunk, 0, size);
+        return size;
+    }
+
+    private byte[] getChunkBuffer() {
+        if (chunk == null || chunk.length != chunkSize) {
+            chunk = new byte[chunkSize];
+        }
+        return chunk;
+    }
+
     protected abstract int getChunk(byte[] chunk) throws IOException;
 
     public abstract int bytesLeft();
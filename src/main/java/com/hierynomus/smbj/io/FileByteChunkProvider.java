@@ -15,59 +15,76 @@
  */
 package com.hierynomus.smbj.io;
 
-import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.protocol.commons.buffer.Buffer;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 
-public class FileByteChunkProvider extends ByteChunkProvider {
-
-    private File file;
-    private BufferedInputStream fis;
+/**
+ * Provides the contents of a local file. The file is opened when this provider is created, and closed as soon as
+ * its last chunk has been provided, or when {@link #close()} is called.
+ */
+public class FileByteChunkProvider extends FileChannelByteChunkProvider implements Closeable {
+    private final FileChannel channel;
 
     public FileByteChunkProvider(File file) throws FileNotFoundException {
-        this.file = file;
-        fis = new BufferedInputStream(new FileInputStream(file), CHUNK_SIZE);
+        this(openChannel(file), file.length());
     }
 
     public FileByteChunkProvider(File file, long offset) throws IOException {
-        this.file = file;
-        fis = new BufferedInputStream(new FileInputStream(file), CHUNK_SIZE);
-        ensureSkipped(fis, offset);
-        this.offset = offset;
+        this(file, openChannel(file), offset);
     }
 
-    private void ensureSkipped(final BufferedInputStream fis, final long offset) throws IOException {
-        long skipped = 0;
-        while (skipped < offset && fis.available() > 0) {
-            skipped += fis.skip(offset);
-        }
+    private FileByteChunkProvider(FileChannel channel, long length) {
+        super(channel, 0, length, 0);
+        this.channel = channel;
+    }
 
-        if (skipped < offset) {
+    private FileByteChunkProvider(File file, FileChannel channel, long offset) throws IOException {
+        super(channel, offset, channel.size() - offset, offset);
+        this.channel = channel;
+        if (offset > channel.size()) {
+            channel.close();
             throw new IOException("Was unable to go to the requested offset of " + offset + " of file " + file);
         }
     }
 
     @Override
     protected int getChunk(byte[] chunk) throws IOException {
-        int count = 0;
-        int read = 0;
-        while (count < CHUNK_SIZE && ((read = fis.read(chunk, count, CHUNK_SIZE - count)) != -1)) {
-            count += read;
+        try {
+            return super.getChunk(chunk);
+        } finally {
+            closeIfDone();
         }
-        return count;
     }
 
     @Override
-    public int bytesLeft() {
+    protected int putChunk(Buffer<?> buffer) throws IOException {
         try {
-            return fis.available();
-        } catch (IOException e) {
-            throw new SMBRuntimeException(e);
+            return super.putChunk(buffer);
+        } finally {
+            closeIfDone();
         }
     }
 
     @Override
-    public boolean isAvailable() {
-        return bytesLeft() > 0;
+    public ByteChunkProvider slice(int length) {
+        // Slices would outlive the channel, which is closed as soon as this provider has provided its last chunk.
+        return null;
+    }
+
+    private void closeIfDone() throws IOException {
+        if (!isAvailable()) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static FileChannel openChannel(File file) throws FileNotFoundException {
+        return new FileInputStream(file).getChannel();
     }
 }
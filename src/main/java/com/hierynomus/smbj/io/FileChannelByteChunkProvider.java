@@ -0,0 +1,125 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.io;
+
+import com.hierynomus.protocol.commons.buffer.Buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A {@link ByteChunkProvider} which provides a region of a {@link FileChannel}.
+ * <p/>
+ * The channel is read using positional reads directly into the outgoing packet, so every byte is copied exactly once,
+ * and the position of the channel itself is never changed. This makes it safe to have multiple providers over
+ * different regions of the same channel.
+ */
+public class FileChannelByteChunkProvider extends ByteChunkProvider {
+    private final FileChannel channel;
+    private final PositionalReadChannel reader = new PositionalReadChannel();
+    private long position;
+    private final long end;
+
+    /**
+     * Provide all bytes of the channel, from its current position until its end.
+     *
+     * @param channel    The channel to read from
+     * @param fileOffset The offset in the remote file where the data should be written
+     * @throws IOException If the size or position of the channel could not be determined
+     */
+    public FileChannelByteChunkProvider(FileChannel channel, long fileOffset) throws IOException {
+        this(channel, channel.position(), channel.size() - channel.position(), fileOffset);
+    }
+
+    /**
+     * Provide <code>length</code> bytes of the channel, starting at <code>position</code>.
+     *
+     * @param channel    The channel to read from
+     * @param position   The position in the channel at which to start reading
+     * @param length     The number of bytes to provide
+     * @param fileOffset The offset in the remote file where the data should be written
+     */
+    public FileChannelByteChunkProvider(FileChannel channel, long position, long length, long fileOffset) {
+        this.channel = channel;
+        this.position = position;
+        this.end = position + length;
+        this.offset = fileOffset;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return position < end;
+    }
+
+    @Override
+    protected int getChunk(byte[] chunk) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, end - position));
+        while (dst.hasRemaining()) {
+            if (reader.read(dst) <= 0) {
+                break;
+            }
+        }
+        return dst.position();
+    }
+
+    @Override
+    protected int putChunk(Buffer<?> buffer) throws IOException {
+        return buffer.transferFrom(reader, (int) Math.min(chunkSize, end - position));
+    }
+
+    @Override
+    public ByteChunkProvider slice(int length) {
+        return new FileChannelByteChunkProvider(channel, position, Math.min(length, end - position), offset);
+    }
+
+    @Override
+    public void skip(int length) {
+        long skip = Math.min(length, end - position);
+        position += skip;
+        offset += skip;
+    }
+
+    @Override
+    public int bytesLeft() {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    /**
+     * Adapts the positional reads of the {@link FileChannel} to a {@link ReadableByteChannel}.
+     */
+    private class PositionalReadChannel implements ReadableByteChannel {
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int read = channel.read(dst, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -36,7 +36,7 @@ public class InputStreamByteChunkProvider extends ByteChunkProvider {
     protected int getChunk(byte[] chunk) throws IOException {
         int count = 0;
         int read = 0;
-        while (count < CHUNK_SIZE && ((read = is.read(chunk, count, CHUNK_SIZE - count)) != -1)) {
+        while (count < chunk.length && ((read = is.read(chunk, count, chunk.length - count)) != -1)) {
             count += read;
         }
         return count;
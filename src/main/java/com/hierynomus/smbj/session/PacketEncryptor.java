@@ -0,0 +1,223 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.session;
+
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2EncryptionCipher;
+import com.hierynomus.mssmb2.SMB2Header;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.SMB2TransformHeader;
+import com.hierynomus.mssmb2.messages.SMB2EncryptedPacket;
+import com.hierynomus.security.AEADBlockCipher;
+import com.hierynomus.security.Cipher;
+import com.hierynomus.security.SecurityException;
+import com.hierynomus.security.SecurityProvider;
+import com.hierynomus.smbj.common.SMBBuffer;
+import com.hierynomus.smbj.transport.TransportException;
+
+import javax.crypto.spec.GCMParameterSpec;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hierynomus.mssmb2.SMB2TransformHeader.*;
+
+/**
+ * [MS-SMB2].pdf 3.1.4.3 Encrypting the Message / 3.2.5.1.1 Decrypting the Message
+ * <p/>
+ * Encrypts the messages sent on an SMB 3.x session and decrypts the received encrypted messages. Encrypted messages are
+ * not signed, the authentication tag of the cipher is sent as the Signature of the TRANSFORM_HEADER.
+ */
+public class PacketEncryptor {
+    private static final int TAG_LENGTH_BITS = SIGNATURE_SIZE * 8;
+
+    private SMB2Dialect dialect;
+    private SMB2EncryptionCipher cipher;
+    private SecurityProvider securityProvider;
+    private Random random;
+    private byte[] encryptionKey;
+    private byte[] decryptionKey;
+    // Nonces need to be unique per key, they consist of a per-key random part and a message counter.
+    private byte[] noncePrefix;
+    private final AtomicLong nonceCounter = new AtomicLong();
+    private final Queue<AEADBlockCipher> cipherPool = new ConcurrentLinkedQueue<>();
+
+    PacketEncryptor(SMB2Dialect dialect, SMB2EncryptionCipher cipher, SecurityProvider securityProvider, Random random) {
+        this.dialect = dialect;
+        this.cipher = cipher;
+        this.securityProvider = securityProvider;
+        this.random = random;
+    }
+
+    /**
+     * [MS-SMB2].pdf 3.2.5.3.1 Handling a New Authentication
+     *
+     * @param sessionKey                The session key
+     * @param preauthIntegrityHashValue The preauth integrity hash of the session setup, only used for SMB 3.1.1
+     */
+    void init(byte[] sessionKey, byte[] preauthIntegrityHashValue) {
+        if (cipher == null) {
+            return;
+        }
+        try {
+            if (dialect == SMB2Dialect.SMB_3_1_1) {
+                encryptionKey = SMB3KeyDerivation.derive(securityProvider, sessionKey, SMB3KeyDerivation.SMB311_ENCRYPTION_LABEL, preauthIntegrityHashValue);
+                decryptionKey = SMB3KeyDerivation.derive(securityProvider, sessionKey, SMB3KeyDerivation.SMB311_DECRYPTION_LABEL, preauthIntegrityHashValue);
+            } else {
+                encryptionKey = SMB3KeyDerivation.derive(securityProvider, sessionKey, SMB3KeyDerivation.SMB3_ENCRYPTION_LABEL, SMB3KeyDerivation.SMB3_ENCRYPTION_CONTEXT);
+                decryptionKey = SMB3KeyDerivation.derive(securityProvider, sessionKey, SMB3KeyDerivation.SMB3_ENCRYPTION_LABEL, SMB3KeyDerivation.SMB3_DECRYPTION_CONTEXT);
+            }
+            noncePrefix = new byte[cipher.getNonceLength() - 8];
+            random.nextBytes(noncePrefix);
+            nonceCounter.set(0);
+            cipherPool.clear();
+        } catch (SecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    boolean isInitialized() {
+        return encryptionKey != null;
+    }
+
+    SMB2EncryptionCipher getCipher() {
+        return cipher;
+    }
+
+    SMB2Packet encrypt(SMB2Packet packet) {
+        return new EncryptedPacketWrapper(packet);
+    }
+
+    /**
+     * Decrypt a received encrypted message.
+     *
+     * @param packet The received encrypted packet
+     * @return The decrypted SMB2 message(s)
+     * @throws TransportException If the message could not be decrypted, or its authentication failed.
+     */
+    public byte[] decrypt(SMB2EncryptedPacket packet) throws TransportException {
+        if (decryptionKey == null) {
+            throw new TransportException("Received an encrypted message for session " + packet.getTransformHeader().getSessionId() + " which has no decryption key");
+        }
+        SMB2TransformHeader transformHeader = packet.getTransformHeader();
+        byte[] data = packet.getData();
+        AEADBlockCipher c = acquireCipher();
+        try {
+            c.init(Cipher.CryptMode.DECRYPT, decryptionKey, new GCMParameterSpec(TAG_LENGTH_BITS, Arrays.copyOf(transformHeader.getNonce(), cipher.getNonceLength())));
+            c.updateAAD(data, packet.getTransformHeaderStartPos() + AAD_OFFSET, AAD_SIZE);
+            byte[] head = c.update(data, packet.getEncryptedMessageStartPos(), packet.getEncryptedMessageLength());
+            byte[] tail = c.doFinal(transformHeader.getSignature(), 0, SIGNATURE_SIZE);
+            if (head.length == 0) {
+                return tail;
+            }
+            byte[] plain = Arrays.copyOf(head, head.length + tail.length);
+            System.arraycopy(tail, 0, plain, head.length, tail.length);
+            return plain;
+        } catch (SecurityException e) {
+            throw new TransportException("Could not decrypt message for session " + transformHeader.getSessionId() + ": " + e.getMessage());
+        } finally {
+            releaseCipher(c);
+        }
+    }
+
+    private AEADBlockCipher acquireCipher() throws TransportException {
+        AEADBlockCipher c = cipherPool.poll();
+        if (c == null) {
+            try {
+                c = securityProvider.getAEADBlockCipher(cipher.getAlgorithmName());
+            } catch (SecurityException e) {
+                throw new TransportException(e);
+            }
+        }
+        return c;
+    }
+
+    private void releaseCipher(AEADBlockCipher c) {
+        c.reset();
+        cipherPool.offer(c);
+    }
+
+    private byte[] nextNonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        long counter = nonceCounter.incrementAndGet();
+        for (int i = 0; i < 8; i++) {
+            nonce[i] = (byte) (counter >>> (8 * i));
+        }
+        System.arraycopy(noncePrefix, 0, nonce, 8, noncePrefix.length);
+        return nonce;
+    }
+
+    public class EncryptedPacketWrapper extends SMB2Packet {
+        private final SMB2Packet wrappedPacket;
+
+        EncryptedPacketWrapper(SMB2Packet packet) {
+            this.wrappedPacket = packet;
+        }
+
+        @Override
+        public int getMaxPayloadSize() {
+            return wrappedPacket.getMaxPayloadSize();
+        }
+
+        @Override
+        public void write(SMBBuffer buffer) {
+            // Serialize the plain message first, its size is part of the authenticated TRANSFORM_HEADER.
+            SMBBuffer plain = new SMBBuffer();
+            wrappedPacket.write(plain);
+            byte[] nonce = nextNonce();
+            int transformHeaderStartPos = buffer.wpos();
+            new SMB2TransformHeader(nonce, plain.available(), wrappedPacket.getHeader().getSessionId()).writeTo(buffer);
+            AEADBlockCipher c = null;
+            try {
+                c = acquireCipher();
+                c.init(Cipher.CryptMode.ENCRYPT, encryptionKey, new GCMParameterSpec(TAG_LENGTH_BITS, Arrays.copyOf(nonce, cipher.getNonceLength())));
+                c.updateAAD(buffer.array(), transformHeaderStartPos + AAD_OFFSET, AAD_SIZE);
+                byte[] encrypted = c.doFinal(plain.array(), plain.rpos(), plain.available());
+                // The ciphertext is followed by the authentication tag, which goes into the Signature field.
+                buffer.putRawBytes(encrypted, 0, encrypted.length - SIGNATURE_SIZE);
+                System.arraycopy(encrypted, encrypted.length - SIGNATURE_SIZE, buffer.array(), transformHeaderStartPos + PROTOCOL_ID.length, SIGNATURE_SIZE);
+            } catch (SecurityException | TransportException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                if (c != null) {
+                    releaseCipher(c);
+                }
+            }
+        }
+
+        @Override
+        public SMB2Header getHeader() {
+            return wrappedPacket.getHeader();
+        }
+
+        @Override
+        public long getSequenceNumber() {
+            return wrappedPacket.getSequenceNumber();
+        }
+
+        @Override
+        public int getStructureSize() {
+            return wrappedPacket.getStructureSize();
+        }
+
+        @Override
+        public String toString() {
+            return wrappedPacket.toString();
+        }
+    }
+}
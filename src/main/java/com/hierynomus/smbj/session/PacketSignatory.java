@@ -17,15 +17,22 @@ package com.hierynomus.smbj.session;
 
 import com.hierynomus.mssmb2.SMB2Dialect;
 import com.hierynomus.mssmb2.SMB2Header;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
 import com.hierynomus.mssmb2.SMB2Packet;
-import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm;
+import com.hierynomus.security.AEADBlockCipher;
+import com.hierynomus.security.Cipher;
+import com.hierynomus.security.Mac;
 import com.hierynomus.security.SecurityException;
 import com.hierynomus.security.SecurityProvider;
 import com.hierynomus.smbj.common.SMBBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.spec.GCMParameterSpec;
 import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static com.hierynomus.mssmb2.SMB2Header.*;
 import static com.hierynomus.mssmb2.SMB2MessageFlag.SMB2_FLAGS_SIGNED;
@@ -34,23 +41,54 @@ public class PacketSignatory {
     private static final Logger logger = LoggerFactory.getLogger(PacketSignatory.class);
 
     private static final String HMAC_SHA256_ALGORITHM = "HmacSHA256";
+    private static final String AES_CMAC_ALGORITHM = "AESCMAC";
+    private static final String AES_GCM_ALGORITHM = "AES/GCM/NoPadding";
+    private static final byte[] EMPTY = new byte[0];
 
     private SMB2Dialect dialect;
+    private SMB2SigningAlgorithm signingAlgorithm;
     private SecurityProvider securityProvider;
-    private String algorithm;
-    private byte[] secretKey;
+    private volatile byte[] secretKey;
+    // Initialized Signers for the current secretKey, these are reset before being returned to the pool.
+    private final Queue<Signer> signerPool = new ConcurrentLinkedQueue<>();
 
     PacketSignatory(SMB2Dialect dialect, SecurityProvider securityProvider) {
+        this(dialect, SMB2SigningAlgorithm.forDialect(dialect), securityProvider);
+    }
+
+    PacketSignatory(SMB2Dialect dialect, SMB2SigningAlgorithm signingAlgorithm, SecurityProvider securityProvider) {
         this.dialect = dialect;
+        this.signingAlgorithm = signingAlgorithm;
         this.securityProvider = securityProvider;
     }
 
-    void init(byte[] secretKey) {
-        if (dialect.isSmb3x()) {
-            throw new IllegalStateException("Cannot set a signing key (yet) for SMB3.x");
-        } else {
-            algorithm = HMAC_SHA256_ALGORITHM;
-            this.secretKey = secretKey;
+    void init(byte[] sessionKey) {
+        init(sessionKey, null);
+    }
+
+    /**
+     * [MS-SMB2].pdf 3.2.5.3.1 Handling a New Authentication
+     * <p/>
+     * For SMB 2.x the session key is used as signing key, for SMB 3.x the signing key is derived from the session key.
+     *
+     * @param sessionKey                The session key
+     * @param preauthIntegrityHashValue The preauth integrity hash of the session setup, only used for SMB 3.1.1
+     */
+    void init(byte[] sessionKey, byte[] preauthIntegrityHashValue) {
+        try {
+            if (dialect == SMB2Dialect.SMB_3_1_1) {
+                if (preauthIntegrityHashValue == null) {
+                    throw new IllegalStateException("Cannot derive an SMB 3.1.1 signing key without the preauth integrity hash value");
+                }
+                secretKey = SMB3KeyDerivation.derive(securityProvider, sessionKey, SMB3KeyDerivation.SMB311_SIGNING_LABEL, preauthIntegrityHashValue);
+            } else if (dialect.isSmb3x()) {
+                secretKey = SMB3KeyDerivation.derive(securityProvider, sessionKey, SMB3KeyDerivation.SMB3_SIGNING_LABEL, SMB3KeyDerivation.SMB3_SIGNING_CONTEXT);
+            } else {
+                secretKey = sessionKey;
+            }
+            signerPool.clear();
+        } catch (SecurityException e) {
+            throw new IllegalStateException(e);
         }
     }
 
@@ -58,6 +96,10 @@ public class PacketSignatory {
         return secretKey != null;
     }
 
+    SMB2SigningAlgorithm getSigningAlgorithm() {
+        return signingAlgorithm;
+    }
+
     SMB2Packet sign(SMB2Packet packet) {
         if (secretKey != null) {
             return new SignedPacketWrapper(packet);
@@ -71,14 +113,24 @@ public class PacketSignatory {
     public boolean verify(SMB2Packet packet) {
         try {
             SMBBuffer buffer = packet.getBuffer();
-            com.hierynomus.security.Mac mac = getMac(secretKey, algorithm, securityProvider);
-            mac.update(buffer.array(), packet.getMessageStartPos(), SIGNATURE_OFFSET);
-            mac.update(EMPTY_SIGNATURE);
-            mac.update(buffer.array(), STRUCTURE_SIZE, packet.getMessageEndPos() - STRUCTURE_SIZE);
-            byte[] signature = mac.doFinal();
-            byte[] receivedSignature = Arrays.copyOfRange(buffer.array(), SIGNATURE_OFFSET, STRUCTURE_SIZE);
+            byte[] data = buffer.array();
+            int messageStartPos = packet.getMessageStartPos();
+            byte[] signature;
+            Signer signer = acquireSigner();
+            try {
+                signer.init(packet.getHeader(), true);
+                signer.update(data, messageStartPos, SIGNATURE_OFFSET);
+                signer.update(EMPTY_SIGNATURE, 0, SIGNATURE_SIZE);
+                signer.update(data, messageStartPos + STRUCTURE_SIZE, packet.getMessageEndPos() - messageStartPos - STRUCTURE_SIZE);
+                signature = signer.doFinal();
+            } finally {
+                releaseSigner(signer);
+            }
+
+            int receivedSignatureOffset = messageStartPos + SIGNATURE_OFFSET;
             for (int i = 0; i < SIGNATURE_SIZE; i++) {
-                if (signature[i] != receivedSignature[i]) {
+                if (signature[i] != data[receivedSignatureOffset + i]) {
+                    byte[] receivedSignature = Arrays.copyOfRange(data, receivedSignatureOffset, receivedSignatureOffset + SIGNATURE_SIZE);
                     logger.error("Signatures for packet {} do not match (received: {}, calculated: {})", packet, Arrays.toString(receivedSignature), Arrays.toString(signature));
                     return false;
                 }
@@ -90,10 +142,145 @@ public class PacketSignatory {
         }
     }
 
-    private static com.hierynomus.security.Mac getMac(byte[] secretKey, String algorithm, SecurityProvider securityProvider) throws SecurityException {
-        com.hierynomus.security.Mac mac = securityProvider.getMac(algorithm);
-        mac.init(secretKey);
-        return mac;
+    /**
+     * Get an initialized Signer for the current secret key. Looking up an algorithm implementation with the
+     * SecurityProvider and initializing it with the key is expensive, so instances are pooled and only reset between
+     * packets.
+     */
+    private Signer acquireSigner() throws SecurityException {
+        Signer signer = signerPool.poll();
+        if (signer == null) {
+            byte[] key = secretKey;
+            switch (signingAlgorithm) {
+                case AES_GMAC:
+                    signer = new GmacSigner(securityProvider.getAEADBlockCipher(AES_GCM_ALGORITHM), key);
+                    break;
+                case AES_CMAC:
+                    signer = new MacSigner(securityProvider.getMac(AES_CMAC_ALGORITHM), key);
+                    break;
+                default:
+                    signer = new MacSigner(securityProvider.getMac(HMAC_SHA256_ALGORITHM), key);
+            }
+        }
+        return signer;
+    }
+
+    private void releaseSigner(Signer signer) {
+        // A Signer acquired before the key changed is dropped, the pool was cleared when the key changed.
+        if (signer.getKey() != secretKey) {
+            return;
+        }
+        signer.reset();
+        signerPool.offer(signer);
+    }
+
+    /**
+     * Calculates the signature of a single message.
+     */
+    private interface Signer {
+        void init(SMB2Header header, boolean fromServer) throws SecurityException;
+
+        void update(byte[] data, int offset, int length) throws SecurityException;
+
+        byte[] doFinal() throws SecurityException;
+
+        void reset();
+
+        /**
+         * @return the key this Signer was initialized with
+         */
+        byte[] getKey();
+    }
+
+    /**
+     * HMAC-SHA256 (SMB 2.x) and AES-CMAC (SMB 3.x) signatures, the first 16 bytes of the Mac.
+     */
+    private static class MacSigner implements Signer {
+        private final Mac mac;
+        private final byte[] key;
+
+        MacSigner(Mac mac, byte[] key) throws SecurityException {
+            this.mac = mac;
+            this.key = key;
+            mac.init(key);
+        }
+
+        @Override
+        public void init(SMB2Header header, boolean fromServer) {
+            // The Mac is reset after each message
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            mac.update(data, offset, length);
+        }
+
+        @Override
+        public byte[] doFinal() {
+            return mac.doFinal();
+        }
+
+        @Override
+        public void reset() {
+            mac.reset();
+        }
+
+        @Override
+        public byte[] getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * [MS-SMB2].pdf 3.1.4.1 Signing An Outgoing Message - AES-GMAC
+     * <p/>
+     * The signature is the AES-GCM authentication tag over the message as additional authenticated data, with a nonce
+     * constructed from the MessageId and whether the message is sent by the server or is a CANCEL request.
+     */
+    private static class GmacSigner implements Signer {
+        private static final int NONCE_LENGTH = 12;
+        private final AEADBlockCipher cipher;
+        private final byte[] key;
+
+        GmacSigner(AEADBlockCipher cipher, byte[] key) {
+            this.cipher = cipher;
+            this.key = key;
+        }
+
+        @Override
+        public void init(SMB2Header header, boolean fromServer) throws SecurityException {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            long messageId = header.getMessageId();
+            for (int i = 0; i < 8; i++) {
+                nonce[i] = (byte) (messageId >>> (8 * i)); // MessageId (8 bytes, little endian)
+            }
+            int flags = fromServer ? 0x01 : 0x00; // Role (1 bit)
+            if (header.getMessage() == SMB2MessageCommandCode.SMB2_CANCEL) {
+                flags |= 0x02; // IsCancel (1 bit)
+            }
+            nonce[8] = (byte) flags;
+            cipher.init(Cipher.CryptMode.ENCRYPT, key, new GCMParameterSpec(SIGNATURE_SIZE * 8, nonce));
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) throws SecurityException {
+            cipher.updateAAD(data, offset, length);
+        }
+
+        @Override
+        public byte[] doFinal() throws SecurityException {
+            return cipher.doFinal(EMPTY, 0, 0);
+        }
+
+        @Override
+        public void reset() {
+            cipher.reset();
+        }
+
+        @Override
+        public byte[] getKey() {
+            return key;
+        }
     }
 
     public class SignedPacketWrapper extends SMB2Packet {
@@ -113,11 +300,18 @@ public class PacketSignatory {
             try {
                 wrappedPacket.getHeader().setFlag(SMB2_FLAGS_SIGNED);
                 int packetStartPos = buffer.wpos();
-                SigningBuffer signingBuffer = new SigningBuffer(buffer);
-                // Write the real packet to the buffer
-                wrappedPacket.write(signingBuffer);
-                // The MAC in the signingbuffer now contains the right signature.
-                byte[] signature = signingBuffer.mac.doFinal();
+                // Write the real packet to the buffer, the header contains an empty signature at this point.
+                wrappedPacket.write(buffer);
+                // Sign the complete serialized packet in one go.
+                byte[] signature;
+                Signer signer = acquireSigner();
+                try {
+                    signer.init(wrappedPacket.getHeader(), false);
+                    signer.update(buffer.array(), packetStartPos, buffer.wpos() - packetStartPos);
+                    signature = signer.doFinal();
+                } finally {
+                    releaseSigner(signer);
+                }
                 // Copy the signature into the buffer's data at the right point.
                 System.arraycopy(signature, 0, buffer.array(), packetStartPos + SIGNATURE_OFFSET, SIGNATURE_SIZE);
             } catch (SecurityException e) {
@@ -126,37 +320,6 @@ public class PacketSignatory {
             }
         }
 
-        private class SigningBuffer extends SMBBuffer {
-            private SMBBuffer wrappedBuffer;
-            private final com.hierynomus.security.Mac mac;
-
-            SigningBuffer(SMBBuffer wrappedBuffer) throws SecurityException {
-                this.wrappedBuffer = wrappedBuffer;
-                mac = getMac(PacketSignatory.this.secretKey, PacketSignatory.this.algorithm, PacketSignatory.this.securityProvider);
-            }
-
-            @Override
-            public Buffer<SMBBuffer> putByte(byte b) {
-                mac.update(b);
-                wrappedBuffer.putByte(b);
-                return this;
-            }
-
-            @Override
-            public Buffer<SMBBuffer> putBuffer(Buffer<? extends Buffer<?>> buffer) {
-                mac.update(buffer.array(), buffer.rpos(), buffer.available());
-                wrappedBuffer.putBuffer(buffer);
-                return this;
-            }
-
-            @Override
-            public Buffer<SMBBuffer> putRawBytes(byte[] buf, int offset, int length) {
-                mac.update(buf, offset, length);
-                wrappedBuffer.putRawBytes(buf, offset, length);
-                return this;
-            }
-        }
-
         @Override
         public SMB2Header getHeader() {
             return wrappedPacket.getHeader();
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.session;
+
+import com.hierynomus.security.Mac;
+import com.hierynomus.security.SecurityException;
+import com.hierynomus.security.SecurityProvider;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * [MS-SMB2].pdf 3.1.4.2 Generating Cryptographic Keys
+ * <p/>
+ * The SMB 3.x signing and encryption keys are derived from the session key using the KDF in Counter Mode as specified
+ * in [SP800-108] section 5.1, with HMAC-SHA256 as the PRF, 'r' = 32 and 'L' = 128.
+ */
+final class SMB3KeyDerivation {
+    private static final String HMAC_SHA256_ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH_BITS = 128;
+
+    // SMB 3.0 and 3.0.2
+    static final byte[] SMB3_SIGNING_LABEL = label("SMB2AESCMAC");
+    static final byte[] SMB3_SIGNING_CONTEXT = label("SmbSign");
+    static final byte[] SMB3_ENCRYPTION_LABEL = label("SMB2AESCCM");
+    static final byte[] SMB3_ENCRYPTION_CONTEXT = label("ServerIn ");
+    static final byte[] SMB3_DECRYPTION_CONTEXT = label("ServerOut");
+    // SMB 3.1.1, the context is the preauth integrity hash of the session
+    static final byte[] SMB311_SIGNING_LABEL = label("SMBSigningKey");
+    static final byte[] SMB311_ENCRYPTION_LABEL = label("SMBC2SCipherKey");
+    static final byte[] SMB311_DECRYPTION_LABEL = label("SMBS2CCipherKey");
+
+    private SMB3KeyDerivation() {
+    }
+
+    /**
+     * The labels and contexts are null-terminated ASCII strings.
+     */
+    static byte[] label(String value) {
+        byte[] ascii = value.getBytes(StandardCharsets.US_ASCII);
+        return Arrays.copyOf(ascii, ascii.length + 1);
+    }
+
+    /**
+     * KDF(Ki, Label, Context) = first L bits of PRF(Ki, [i]_32 || Label || 0x00 || Context || [L]_32), with i = 1.
+     *
+     * @param sessionKey The session key (Ki)
+     * @param label      The label, including the terminating null byte
+     * @param context    The context
+     * @return The derived 128 bit key
+     */
+    static byte[] derive(SecurityProvider securityProvider, byte[] sessionKey, byte[] label, byte[] context) throws SecurityException {
+        Mac mac = securityProvider.getMac(HMAC_SHA256_ALGORITHM);
+        mac.init(sessionKey);
+        mac.update(new byte[]{0, 0, 0, 1}); // i (4 bytes, big endian)
+        mac.update(label);
+        mac.update((byte) 0);
+        mac.update(context);
+        mac.update(new byte[]{0, 0, (byte) (KEY_LENGTH_BITS >> 8), (byte) KEY_LENGTH_BITS}); // L (4 bytes, big endian)
+        return Arrays.copyOf(mac.doFinal(), KEY_LENGTH_BITS / 8);
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.hierynomus.smbj.session;
 
+import com.hierynomus.mssmb2.SMB2Dialect;
 import com.hierynomus.mssmb2.SMB2Packet;
 import com.hierynomus.mssmb2.SMB2ShareCapabilities;
 import com.hierynomus.mssmb2.messages.SMB2Logoff;
@@ -26,6 +27,7 @@ import com.hierynomus.smbj.common.SMBApiException;
 import com.hierynomus.smbj.common.SMBRuntimeException;
 import com.hierynomus.smbj.common.SmbPath;
 import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.NegotiatedProtocol;
 import com.hierynomus.smbj.event.SMBEventBus;
 import com.hierynomus.smbj.event.SessionLoggedOff;
 import com.hierynomus.smbj.event.TreeDisconnected;
@@ -36,6 +38,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -47,7 +52,12 @@ public class Session implements AutoCloseable {
     private long sessionId;
 
     private PacketSignatory packetSignatory;
+    private PacketEncryptor packetEncryptor;
     private boolean serverSigningRequired;
+    private boolean encryptData;
+    private Set<Long> encryptedTrees = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private SMB2Dialect dialect;
+    private byte[] sessionKey;
 
     private Connection connection;
     private SMBEventBus bus;
@@ -57,7 +67,10 @@ public class Session implements AutoCloseable {
         this.sessionId = sessionId;
         this.connection = connection;
         this.bus = bus;
-        this.packetSignatory = new PacketSignatory(connection.getNegotiatedProtocol().getDialect(), securityProvider);
+        NegotiatedProtocol negotiatedProtocol = connection.getNegotiatedProtocol();
+        this.dialect = negotiatedProtocol.getDialect();
+        this.packetSignatory = new PacketSignatory(dialect, negotiatedProtocol.getSigningAlgorithm(), securityProvider);
+        this.packetEncryptor = new PacketEncryptor(dialect, negotiatedProtocol.getEncryptionCipher(), securityProvider, connection.getConfig().getRandomProvider());
         this.serverSigningRequired = signingRequired;
         if (bus != null) {
             bus.subscribe(this);
@@ -107,6 +120,12 @@ public class Session implements AutoCloseable {
             }
 
             long treeId = response.getHeader().getTreeId();
+            if (response.isEncryptData()) {
+                if (!packetEncryptor.isInitialized()) {
+                    throw new SMBRuntimeException("Share " + smbPath + " requires encryption, but no encryption key is negotiated");
+                }
+                encryptedTrees.add(treeId);
+            }
             TreeConnect treeConnect = new TreeConnect(treeId, smbPath, this, response.getCapabilities(), connection, bus);
 
             Share share;
@@ -133,6 +152,7 @@ public class Session implements AutoCloseable {
         if (disconnectEvent.getSessionId() == sessionId) {
             logger.debug("Notified of TreeDisconnected <<{}>>", disconnectEvent.getTreeId());
             treeConnectTable.closed(disconnectEvent.getTreeId());
+            encryptedTrees.remove(disconnectEvent.getTreeId());
         }
     }
 
@@ -157,8 +177,54 @@ public class Session implements AutoCloseable {
         return serverSigningRequired;
     }
 
+    /**
+     * Set the session key resulting from the authentication.
+     * <p/>
+     * For SMB 3.1.1 the signing key can only be derived once the preauth integrity hash of the complete session setup
+     * is known, see {@link #setPreauthIntegrityHashValue(byte[])}.
+     *
+     * @param signingKeyBytes The session key
+     */
     public void setSigningKey(byte[] signingKeyBytes) {
-        packetSignatory.init(signingKeyBytes);
+        this.sessionKey = signingKeyBytes;
+        if (dialect != SMB2Dialect.SMB_3_1_1) {
+            packetSignatory.init(signingKeyBytes);
+            // A no-op when no cipher was negotiated, which is always the case before SMB 3.
+            packetEncryptor.init(signingKeyBytes, null);
+        }
+    }
+
+    /**
+     * [MS-SMB2].pdf 3.2.5.3.1 Handling a New Authentication
+     * <p/>
+     * Set the final Session.PreauthIntegrityHashValue of an SMB 3.1.1 session, which is the context for the key derivation.
+     *
+     * @param preauthIntegrityHashValue The hash over all SESSION_SETUP requests and responses, except the final response.
+     */
+    public void setPreauthIntegrityHashValue(byte[] preauthIntegrityHashValue) {
+        if (dialect == SMB2Dialect.SMB_3_1_1 && sessionKey != null) {
+            packetSignatory.init(sessionKey, preauthIntegrityHashValue);
+            packetEncryptor.init(sessionKey, preauthIntegrityHashValue);
+        }
+    }
+
+    /**
+     * [MS-SMB2].pdf 3.2.5.3.1 Handling a New Authentication
+     * <p/>
+     * Encrypt all messages sent on this session, either because the server set SMB2_SESSION_FLAG_ENCRYPT_DATA, or because
+     * the client is configured to require encryption.
+     *
+     * @param encryptData Whether all messages on this session should be encrypted.
+     */
+    public void setEncryptData(boolean encryptData) {
+        if (encryptData && !packetEncryptor.isInitialized()) {
+            throw new SMBRuntimeException("Encryption is required on session " + sessionId + ", but no encryption key is negotiated");
+        }
+        this.encryptData = encryptData;
+    }
+
+    public boolean isEncryptData() {
+        return encryptData;
     }
 
     @Override
@@ -171,7 +237,7 @@ public class Session implements AutoCloseable {
     }
 
     /**
-     * send a packet.  The packet will be signed or not depending on the session's flags.
+     * send a packet.  The packet will be encrypted, signed or neither depending on the session's and the tree's flags.
      *
      * @param packet SMBPacket to send
      * @return a Future to be used to retrieve the response packet
@@ -181,6 +247,9 @@ public class Session implements AutoCloseable {
         if (serverSigningRequired && !packetSignatory.isInitialized()) {
             throw new TransportException("Message signing is required, but no signing key is negotiated");
         }
+        if (encryptData || encryptedTrees.contains(packet.getHeader().getTreeId())) {
+            return connection.send(packetEncryptor.encrypt(packet));
+        }
         return connection.send(packetSignatory.sign(packet));
     }
 
@@ -200,4 +269,8 @@ public class Session implements AutoCloseable {
     public PacketSignatory getPacketSignatory() {
         return packetSignatory;
     }
+
+    public PacketEncryptor getPacketEncryptor() {
+        return packetEncryptor;
+    }
 }
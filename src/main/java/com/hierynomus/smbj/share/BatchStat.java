@@ -0,0 +1,207 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.fileinformation.FileInformation;
+import com.hierynomus.msfscc.fileinformation.FileInformationFactory;
+import com.hierynomus.msfscc.fileinformation.FileQueryableInformation;
+import com.hierynomus.mssmb2.SMB2OplockLevel;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse;
+import com.hierynomus.mssmb2.messages.SMB2QueryInfoRequest;
+import com.hierynomus.mssmb2.messages.SMB2QueryInfoResponse;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.protocol.commons.buffer.Endian;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.hierynomus.msdtyp.AccessMask.GENERIC_READ;
+import static com.hierynomus.msfscc.FileAttributes.FILE_ATTRIBUTE_DIRECTORY;
+import static com.hierynomus.mssmb2.SMB2CreateDisposition.FILE_OPEN;
+import static com.hierynomus.mssmb2.SMB2ShareAccess.ALL;
+
+/**
+ * Queries the information of a batch of paths, returned by {@link DiskShare#statAll(Collection, Class)}. Every path is
+ * opened, queried and closed, with up to parallelism paths in flight at once, as far as the credits on the connection
+ * allow. The results are returned in the order in which they complete, a path that could not be queried is returned
+ * with the exception instead of failing the batch.
+ * <p/>
+ * The paths are worked on while iterating. Close the batch when not iterating over all results, to wait for the
+ * handles that are still open to be closed.
+ */
+public class BatchStat<F extends FileQueryableInformation> implements Iterator<StatResult<F>>, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(BatchStat.class);
+
+    private final DiskShare share;
+    private final FileInformation.Decoder<F> decoder;
+    private final Class<F> informationClass;
+    private final Iterator<String> paths;
+    private final int parallelism;
+    private final HandlePipeline<HandlePipeline.Handle> pipeline;
+    private final Deque<StatResult<F>> results = new ArrayDeque<>();
+    private boolean closed;
+
+    BatchStat(DiskShare share, Collection<String> paths, Class<F> informationClass, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be greater than zero");
+        }
+        this.share = share;
+        this.decoder = FileInformationFactory.getDecoder(informationClass);
+        this.informationClass = informationClass;
+        this.paths = paths.iterator();
+        this.parallelism = parallelism;
+        this.pipeline = new HandlePipeline<>(share, new HandlePipeline.Listener<HandlePipeline.Handle>() {
+            @Override
+            public void opened(HandlePipeline.Handle stat, SMB2CreateResponse response) {
+                BatchStat.this.opened(stat, response);
+            }
+
+            @Override
+            public void received(HandlePipeline.Handle stat, SMB2Packet response) {
+                queried(stat, (SMB2QueryInfoResponse) response);
+            }
+
+            @Override
+            public void failed(HandlePipeline.Handle stat, SMBRuntimeException exception) {
+                BatchStat.this.failed(stat, exception);
+            }
+
+            @Override
+            public void closed(HandlePipeline.Handle stat, SMBRuntimeException exception) {
+                if (exception != null) {
+                    logger.warn("Close failed for {}", stat.getPath(), exception);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (results.isEmpty() && !closed && (paths.hasNext() || !pipeline.isEmpty())) {
+            send();
+            pipeline.step();
+        }
+        return !results.isEmpty();
+    }
+
+    @Override
+    public StatResult<F> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return results.poll();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop querying paths, and wait for the paths in flight to complete so that their handles are closed. The paths
+     * that are still being opened are closed without being queried.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        while (!pipeline.isEmpty()) {
+            pipeline.step();
+        }
+        results.clear();
+    }
+
+    private void send() {
+        MetadataCache cache = share.getMetadataCache();
+        while (paths.hasNext() && pipeline.canOpen(parallelism)) {
+            String path = paths.next();
+            F cached = cache != null ? cache.get(path, informationClass) : null;
+            if (cached != null) {
+                result(path, cached, null);
+                continue;
+            }
+            try {
+                pipeline.open(new HandlePipeline.Handle(path), share.createFileAsync(path, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE, null, null, EnumSet.of(GENERIC_READ), null, ALL, FILE_OPEN, null));
+            } catch (SMBRuntimeException e) {
+                result(path, null, e);
+            }
+        }
+    }
+
+    private void failed(HandlePipeline.Handle stat, SMBRuntimeException e) {
+        MetadataCache cache = share.getMetadataCache();
+        if (cache != null && e instanceof SMBApiException) {
+            NtStatus status = ((SMBApiException) e).getStatus();
+            if (status == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND || status == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND) {
+                cache.notFound(stat.getPath());
+            }
+        }
+        result(stat.getPath(), null, e);
+    }
+
+    private void opened(HandlePipeline.Handle stat, SMB2CreateResponse response) {
+        MetadataCache cache = share.getMetadataCache();
+        if (cache != null) {
+            cache.opened(stat.getPath(), response.getFileAttributes().contains(FILE_ATTRIBUTE_DIRECTORY), false);
+        }
+        if (closed || stat.isLate()) {
+            // The batch was closed while the path was being opened, or the path was reported as failed when its
+            // CREATE timed out, only its handle needs to be closed.
+            pipeline.close(stat);
+            return;
+        }
+        try {
+            pipeline.send(stat, share.queryInfoAsync(stat.getFileId(), SMB2QueryInfoRequest.SMB2QueryInfoType.SMB2_0_INFO_FILE, null, decoder.getInformationClass(), null));
+        } catch (SMBRuntimeException e) {
+            result(stat.getPath(), null, e);
+            pipeline.close(stat);
+        }
+    }
+
+    private void queried(HandlePipeline.Handle stat, SMB2QueryInfoResponse response) {
+        if (response.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
+            result(stat.getPath(), null, new SMBApiException(response.getHeader(), "QueryInfo failed for " + stat.getPath()));
+        } else {
+            try {
+                F information = decoder.read(new Buffer.PlainBuffer(response.getOutputBuffer(), Endian.LE));
+                MetadataCache cache = share.getMetadataCache();
+                if (cache != null) {
+                    cache.put(stat.getPath(), information);
+                }
+                result(stat.getPath(), information, null);
+            } catch (Buffer.BufferException e) {
+                result(stat.getPath(), null, new SMBRuntimeException(e));
+            }
+        }
+        pipeline.close(stat);
+    }
+
+    private void result(String path, F information, SMBRuntimeException exception) {
+        if (!closed) {
+            results.add(new StatResult<>(path, information, exception));
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches blocks of files in off-heap memory, evicting the least recently used block when the cache is full.
+ * <p/>
+ * Blocks are kept per path on a share, together with the change time and size of the file when it was opened. Paths
+ * are case-insensitive, like the paths on the share. When a file is opened with a different change time or size, or
+ * written to through this client, its blocks are dropped. Every drop starts a new generation of the path, and a block
+ * read in an older generation is not cached, as it may predate the change.
+ * Evicted buffers are reused for the next block, so the cache allocates its memory only once.
+ */
+public class BlockCache {
+    private final int blockSize;
+    private final int maxBlocks;
+    private final LinkedHashMap<BlockKey, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CachedFile> files = new HashMap<>();
+    private final Map<String, Long> generations = new HashMap<>();
+    private final Deque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public BlockCache(long size, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be greater than zero");
+        }
+        this.blockSize = blockSize;
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, size / blockSize);
+        if (maxBlocks <= 0) {
+            throw new IllegalArgumentException("Cache size must hold at least one block of " + blockSize + " bytes");
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * The number of blocks in the cache.
+     */
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+        files.clear();
+        generations.clear();
+        freeBuffers.clear();
+    }
+
+    /**
+     * Register a file that was opened, dropping its blocks if it changed since they were cached.
+     */
+    synchronized CachedFile open(String path, long changeTime, long endOfFile) {
+        CachedFile file = new CachedFile(path.toUpperCase(Locale.ROOT), changeTime, endOfFile);
+        CachedFile cached = files.get(file.path);
+        if (cached != null) {
+            if (cached.isSameVersion(file)) {
+                return cached;
+            }
+            drop(cached);
+            nextGeneration(file);
+        }
+        files.put(file.path, file);
+        return file;
+    }
+
+    /**
+     * @return the generation of the path of the file, to pass to {@link #put(CachedFile, long, byte[], long)} for the
+     * data of a READ sent now
+     */
+    synchronized long generation(CachedFile file) {
+        Long generation = generations.get(file.path);
+        return generation != null ? generation : 0;
+    }
+
+    /**
+     * @return a copy of the block, or null if it is not cached for this version of the file
+     */
+    synchronized byte[] get(CachedFile file, long index) {
+        ByteBuffer block = isCurrent(file) ? blocks.get(new BlockKey(file.path, index)) : null;
+        if (block == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        byte[] data = new byte[block.limit()];
+        block.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * Cache a block of the file, unless the file has changed since the READ of the block was sent.
+     *
+     * @param generation the {@link #generation(CachedFile)} when the READ of the block was sent
+     */
+    synchronized void put(CachedFile file, long index, byte[] data, long generation) {
+        if (data.length > blockSize) {
+            throw new IllegalArgumentException("Block of " + data.length + " bytes does not fit in " + blockSize + " bytes");
+        }
+        if (generation != generation(file)) {
+            return;
+        }
+        CachedFile current = files.get(file.path);
+        if (current == null) {
+            // Dropped because of a write, cache again from now on.
+            current = file;
+            files.put(file.path, file);
+        } else if (!current.isSameVersion(file)) {
+            return;
+        }
+        BlockKey key = new BlockKey(file.path, index);
+        ByteBuffer block = blocks.remove(key);
+        if (block == null) {
+            block = allocate();
+        }
+        block.clear();
+        block.put(data);
+        block.flip();
+        blocks.put(key, block);
+        current.indexes.add(index);
+    }
+
+    /**
+     * Drop all blocks of the file, as its contents are changed.
+     */
+    synchronized void invalidate(CachedFile file) {
+        CachedFile current = files.remove(file.path);
+        if (current != null) {
+            drop(current);
+        }
+        // Also when there are no blocks, as a READ sent before the change may still be cached otherwise.
+        nextGeneration(file);
+    }
+
+    private void nextGeneration(CachedFile file) {
+        generations.put(file.path, generation(file) + 1);
+    }
+
+    private boolean isCurrent(CachedFile file) {
+        CachedFile current = files.get(file.path);
+        return current != null && current.isSameVersion(file);
+    }
+
+    private void drop(CachedFile file) {
+        for (Long index : file.indexes) {
+            ByteBuffer block = blocks.remove(new BlockKey(file.path, index));
+            if (block != null) {
+                freeBuffers.push(block);
+            }
+        }
+        file.indexes.clear();
+    }
+
+    private ByteBuffer allocate() {
+        if (!freeBuffers.isEmpty()) {
+            return freeBuffers.pop();
+        }
+        if (blocks.size() < maxBlocks) {
+            return ByteBuffer.allocateDirect(blockSize);
+        }
+        Iterator<Map.Entry<BlockKey, ByteBuffer>> eldest = blocks.entrySet().iterator();
+        Map.Entry<BlockKey, ByteBuffer> entry = eldest.next();
+        eldest.remove();
+        CachedFile file = files.get(entry.getKey().path);
+        if (file != null) {
+            file.indexes.remove(entry.getKey().index);
+        }
+        evictions++;
+        return entry.getValue();
+    }
+
+    static class CachedFile {
+        private final String path;
+        private final long changeTime;
+        private final long endOfFile;
+        private final Set<Long> indexes = new HashSet<>();
+
+        private CachedFile(String path, long changeTime, long endOfFile) {
+            this.path = path;
+            this.changeTime = changeTime;
+            this.endOfFile = endOfFile;
+        }
+
+        long getEndOfFile() {
+            return endOfFile;
+        }
+
+        private boolean isSameVersion(CachedFile other) {
+            return changeTime == other.changeTime && endOfFile == other.endOfFile;
+        }
+    }
+
+    private static class BlockKey {
+        private final String path;
+        private final long index;
+
+        BlockKey(String path, long index) {
+            this.path = path;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            BlockKey blockKey = (BlockKey) o;
+            return index == blockKey.index && path.equals(blockKey.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * path.hashCode() + (int) (index ^ (index >>> 32));
+        }
+    }
+}
@@ -27,6 +27,7 @@ import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryResponse;
 import com.hierynomus.smbj.common.SMBApiException;
 
 import java.util.*;
+import java.util.concurrent.Future;
 
 public class Directory extends DiskEntry implements Iterable<FileIdBothDirectoryInformation> {
     Directory(SMB2FileId fileId, DiskShare diskShare, String fileName) {
@@ -107,6 +108,34 @@ public class Directory extends DiskEntry implements Iterable<FileIdBothDirectory
         return new DirectoryIterator<>(informationClass, searchPattern);
     }
 
+    /**
+     * Equivalent to calling {@link #listing(String) listing(null)}.
+     *
+     * @see #listing(String)
+     */
+    public DirectoryListing listing() {
+        return listing(null);
+    }
+
+    /**
+     * Lists the contents of this directory into a {@link DirectoryListing}, which keeps the entries in arrays per
+     * field instead of in an object per entry. Use this for very large directories, or when only a few fields of the
+     * entries are needed. The entries are the same as the ones of {@link #list(Class, String)
+     * list(FileIdBothDirectoryInformation.class, searchPattern)}, but they are not added to the metadata cache.
+     *
+     * @see #iterator(Class, String)
+     */
+    public DirectoryListing listing(String searchPattern) {
+        DirectoryListing listing = new DirectoryListing();
+        QueryBuffers buffers = new QueryBuffers(FileInformationClass.FileIdBothDirectoryInformation, searchPattern);
+        byte[] buffer;
+        while ((buffer = buffers.next()) != null) {
+            listing.add(buffer);
+        }
+        listing.trim();
+        return listing;
+    }
+
     public SMB2FileId getFileId() {
         return fileId;
     }
@@ -118,15 +147,14 @@ public class Directory extends DiskEntry implements Iterable<FileIdBothDirectory
 
     private class DirectoryIterator<F extends FileDirectoryQueryableInformation> implements Iterator<F> {
         private final FileInformation.Decoder<F> decoder;
+        private final QueryBuffers buffers;
         private Iterator<F> currentIterator;
-        private byte[] currentBuffer;
         private F next;
-        private String searchPattern;
 
         DirectoryIterator(Class<F> informationClass, String searchPattern) {
             decoder = FileInformationFactory.getDecoder(informationClass);
-            this.searchPattern = searchPattern;
-            queryDirectory(true);
+            buffers = new QueryBuffers(decoder.getInformationClass(), searchPattern);
+            nextIterator();
             this.next = prepareNext();
         }
 
@@ -149,28 +177,54 @@ public class Directory extends DiskEntry implements Iterable<FileIdBothDirectory
         private F prepareNext() {
             while (currentIterator != null) {
                 if (currentIterator.hasNext()) {
-                    return currentIterator.next();
+                    F fileInfo = currentIterator.next();
+                    share.listed(fileName, fileInfo);
+                    return fileInfo;
                 } else {
-                    queryDirectory(false);
+                    nextIterator();
                 }
             }
             return null;
         }
 
-        private void queryDirectory(boolean firstQuery) {
-            DiskShare share = Directory.this.share;
+        private void nextIterator() {
+            byte[] buffer = buffers.next();
+            currentIterator = buffer != null ? FileInformationFactory.createFileInformationIterator(buffer, decoder) : null;
+        }
 
-            // Query Directory Request
-            EnumSet<SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags> flags;
-            if (firstQuery) {
-                flags = EnumSet.of(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.SMB2_RESTART_SCANS);
-            } else {
-                flags = EnumSet.noneOf(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.class);
-            }
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Returns the output buffers of the QUERY_DIRECTORY responses of a listing of this directory. The next request is
+     * sent as soon as a response with entries arrives, so that it is in flight while the entries of that response are
+     * consumed. Every request asks for as large an output buffer as the transact buffer size and the credits granted
+     * to it allow.
+     */
+    private class QueryBuffers {
+        private final FileInformationClass informationClass;
+        private final String searchPattern;
+        private Future<SMB2QueryDirectoryResponse> nextResponse;
+        private byte[] currentBuffer;
 
-            FileInformationClass informationClass = decoder.getInformationClass();
+        QueryBuffers(FileInformationClass informationClass, String searchPattern) {
+            this.informationClass = informationClass;
+            this.searchPattern = searchPattern;
+            this.nextResponse = queryDirectoryAsync(true);
+        }
 
-            SMB2QueryDirectoryResponse qdResp = share.queryDirectory(fileId, flags, informationClass, searchPattern);
+        /**
+         * @return the next buffer of entries, or null when all entries have been returned
+         */
+        byte[] next() {
+            if (nextResponse == null) {
+                return null;
+            }
+            SMB2QueryDirectoryResponse qdResp = share.receiveQueryDirectory(nextResponse, fileId);
+            nextResponse = null;
 
             NtStatus status = qdResp.getHeader().getStatus();
             byte[] buffer = qdResp.getOutputBuffer();
@@ -179,16 +233,25 @@ public class Directory extends DiskEntry implements Iterable<FileIdBothDirectory
             // an identical response back. Detect if the response is identical to the previous one and abort the loop
             // if that's the case.
             if (status == NtStatus.STATUS_NO_MORE_FILES || (currentBuffer != null && Arrays.equals(currentBuffer, buffer))) {
-                currentIterator = null;
                 currentBuffer = null;
-            } else {
-                currentBuffer = buffer;
-                currentIterator = FileInformationFactory.createFileInformationIterator(currentBuffer, decoder);
+                return null;
             }
+            currentBuffer = buffer;
+            // Keep the next request in flight while the entries of this buffer are consumed.
+            nextResponse = queryDirectoryAsync(false);
+            return buffer;
         }
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
+
+        private Future<SMB2QueryDirectoryResponse> queryDirectoryAsync(boolean firstQuery) {
+            // Query Directory Request
+            EnumSet<SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags> flags;
+            if (firstQuery) {
+                flags = EnumSet.of(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.SMB2_RESTART_SCANS);
+            } else {
+                flags = EnumSet.noneOf(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.class);
+            }
+
+            return share.queryDirectoryAsync(fileId, flags, informationClass, searchPattern);
         }
     }
 }
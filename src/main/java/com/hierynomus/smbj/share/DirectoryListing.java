@@ -0,0 +1,334 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.msdtyp.FileTime;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+
+import java.util.Arrays;
+
+import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.isSet;
+
+/**
+ * The entries of a directory listing, as returned by {@link Directory#listing(String)}. The fields of the
+ * FileIdBothDirectoryInformation entries are kept in an array per field, and the file names are kept together in one
+ * array of characters. This takes less than half the memory of a list of FileIdBothDirectoryInformation objects,
+ * and reading the entries does not allocate anything per entry, unless the file name is asked for as a String.
+ * <p/>
+ * The entries are read with a {@link Cursor}, which is positioned on one entry at a time:
+ * <pre>
+ * DirectoryListing.Cursor cursor = listing.cursor();
+ * while (cursor.next()) {
+ *     total += cursor.getEndOfFile();
+ * }
+ * </pre>
+ */
+public class DirectoryListing {
+    // [MS-FSCC] 2.4.17 FileIdBothDirectoryInformation
+    private static final int CREATION_TIME = 8;
+    private static final int LAST_ACCESS_TIME = 16;
+    private static final int LAST_WRITE_TIME = 24;
+    private static final int CHANGE_TIME = 32;
+    private static final int END_OF_FILE = 40;
+    private static final int ALLOCATION_SIZE = 48;
+    private static final int FILE_ATTRIBUTES = 56;
+    private static final int FILE_NAME_LENGTH = 60;
+    private static final int FILE_ID = 96;
+    private static final int FILE_NAME = 104;
+
+    private int size;
+    private long[] creationTimes;
+    private long[] lastAccessTimes;
+    private long[] lastWriteTimes;
+    private long[] changeTimes;
+    private long[] endOfFiles;
+    private long[] allocationSizes;
+    private long[] fileIds;
+    private int[] fileAttributes;
+    // The name of entry i is made of the characters from nameEnds[i - 1] (or 0) to nameEnds[i] in names.
+    private int[] nameEnds;
+    private char[] names;
+
+    DirectoryListing() {
+        this(64);
+    }
+
+    private DirectoryListing(int capacity) {
+        creationTimes = new long[capacity];
+        lastAccessTimes = new long[capacity];
+        lastWriteTimes = new long[capacity];
+        changeTimes = new long[capacity];
+        endOfFiles = new long[capacity];
+        allocationSizes = new long[capacity];
+        fileIds = new long[capacity];
+        fileAttributes = new int[capacity];
+        nameEnds = new int[capacity];
+        names = new char[capacity * 16];
+    }
+
+    /**
+     * Add the entries of the output buffer of a QUERY_DIRECTORY response for FileIdBothDirectoryInformation.
+     */
+    void add(byte[] buffer) {
+        int offset = 0;
+        while (true) {
+            if (offset < 0 || offset + FILE_NAME > buffer.length) {
+                throw new SMBRuntimeException("Invalid directory entry at offset " + offset);
+            }
+            int nameLength = (int) readUInt32(buffer, offset + FILE_NAME_LENGTH);
+            if (nameLength < 0 || offset + FILE_NAME + nameLength > buffer.length) {
+                throw new SMBRuntimeException("Invalid file name length " + nameLength + " at offset " + offset);
+            }
+            add(buffer, offset, nameLength / 2);
+            long nextOffset = readUInt32(buffer, offset);
+            if (nextOffset == 0) {
+                return;
+            }
+            offset += (int) nextOffset;
+        }
+    }
+
+    private void add(byte[] buffer, int offset, int nameLength) {
+        if (size == nameEnds.length) {
+            grow();
+        }
+        creationTimes[size] = readLong(buffer, offset + CREATION_TIME);
+        lastAccessTimes[size] = readLong(buffer, offset + LAST_ACCESS_TIME);
+        lastWriteTimes[size] = readLong(buffer, offset + LAST_WRITE_TIME);
+        changeTimes[size] = readLong(buffer, offset + CHANGE_TIME);
+        endOfFiles[size] = readLong(buffer, offset + END_OF_FILE);
+        allocationSizes[size] = readLong(buffer, offset + ALLOCATION_SIZE);
+        fileAttributes[size] = (int) readUInt32(buffer, offset + FILE_ATTRIBUTES);
+        fileIds[size] = readLong(buffer, offset + FILE_ID);
+
+        int nameStart = size == 0 ? 0 : nameEnds[size - 1];
+        if (nameStart + nameLength > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, nameStart + nameLength));
+        }
+        int b = offset + FILE_NAME;
+        for (int i = 0; i < nameLength; i++, b += 2) {
+            names[nameStart + i] = (char) ((buffer[b] & 0xFF) | (buffer[b + 1] & 0xFF) << 8);
+        }
+        nameEnds[size] = nameStart + nameLength;
+        size++;
+    }
+
+    /**
+     * Drop the unused capacity of the arrays, once all entries have been added.
+     */
+    void trim() {
+        resize(size);
+        names = Arrays.copyOf(names, size == 0 ? 0 : nameEnds[size - 1]);
+    }
+
+    private void grow() {
+        resize(Math.max(64, nameEnds.length * 2));
+    }
+
+    private void resize(int capacity) {
+        creationTimes = Arrays.copyOf(creationTimes, capacity);
+        lastAccessTimes = Arrays.copyOf(lastAccessTimes, capacity);
+        lastWriteTimes = Arrays.copyOf(lastWriteTimes, capacity);
+        changeTimes = Arrays.copyOf(changeTimes, capacity);
+        endOfFiles = Arrays.copyOf(endOfFiles, capacity);
+        allocationSizes = Arrays.copyOf(allocationSizes, capacity);
+        fileIds = Arrays.copyOf(fileIds, capacity);
+        fileAttributes = Arrays.copyOf(fileAttributes, capacity);
+        nameEnds = Arrays.copyOf(nameEnds, capacity);
+    }
+
+    private static long readUInt32(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFFL)
+            | (buffer[offset + 1] & 0xFFL) << 8
+            | (buffer[offset + 2] & 0xFFL) << 16
+            | (buffer[offset + 3] & 0xFFL) << 24;
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        return readUInt32(buffer, offset) | readUInt32(buffer, offset + 4) << 32;
+    }
+
+    /**
+     * @return the number of entries in the listing
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a new cursor, positioned before the first entry
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * A view on one entry of the listing at a time. Moving the cursor does not allocate anything.
+     */
+    public class Cursor {
+        private int index = -1;
+
+        /**
+         * Move to the next entry.
+         *
+         * @return false if there is no next entry
+         */
+        public boolean next() {
+            if (index < size) {
+                index++;
+            }
+            return index < size;
+        }
+
+        /**
+         * Move to the entry at the given index.
+         */
+        public void moveTo(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            this.index = index;
+        }
+
+        /**
+         * @return the index of the current entry
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the file name of the current entry, decoded into a new String
+         */
+        public String getFileName() {
+            int start = nameStart();
+            return new String(names, start, nameEnds[current()] - start);
+        }
+
+        /**
+         * @return the number of characters in the file name of the current entry
+         */
+        public int getFileNameLength() {
+            return nameEnds[current()] - nameStart();
+        }
+
+        /**
+         * @return the character at the given index of the file name of the current entry
+         */
+        public char getFileNameChar(int i) {
+            if (i < 0 || i >= getFileNameLength()) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", Length: " + getFileNameLength());
+            }
+            return names[nameStart() + i];
+        }
+
+        /**
+         * @return whether the file name of the current entry is equal to the given name, without decoding it
+         */
+        public boolean fileNameEquals(CharSequence name) {
+            int start = nameStart();
+            int length = nameEnds[current()] - start;
+            if (name.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (names[start + i] != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return whether the current entry is the "." or ".." entry of the directory
+         */
+        public boolean isDotEntry() {
+            return fileNameEquals(".") || fileNameEquals("..");
+        }
+
+        /**
+         * @return the creation time of the current entry, as a Windows timestamp
+         * @see FileTime#getWindowsTimeStamp()
+         */
+        public long getCreationTime() {
+            return creationTimes[current()];
+        }
+
+        /**
+         * @return the last access time of the current entry, as a Windows timestamp
+         * @see FileTime#getWindowsTimeStamp()
+         */
+        public long getLastAccessTime() {
+            return lastAccessTimes[current()];
+        }
+
+        /**
+         * @return the last write time of the current entry, as a Windows timestamp
+         * @see FileTime#getWindowsTimeStamp()
+         */
+        public long getLastWriteTime() {
+            return lastWriteTimes[current()];
+        }
+
+        /**
+         * @return the change time of the current entry, as a Windows timestamp
+         * @see FileTime#getWindowsTimeStamp()
+         */
+        public long getChangeTime() {
+            return changeTimes[current()];
+        }
+
+        public long getEndOfFile() {
+            return endOfFiles[current()];
+        }
+
+        public long getAllocationSize() {
+            return allocationSizes[current()];
+        }
+
+        /**
+         * @return the {@link FileAttributes} of the current entry, as a bit mask
+         */
+        public long getFileAttributes() {
+            return fileAttributes[current()] & 0xFFFFFFFFL;
+        }
+
+        public boolean isDirectory() {
+            return isSet(getFileAttributes(), FileAttributes.FILE_ATTRIBUTE_DIRECTORY);
+        }
+
+        /**
+         * @return the file id of the current entry, the 8 bytes of
+         * {@code FileIdBothDirectoryInformation.getFileId()} read as a little endian number
+         */
+        public long getFileId() {
+            return fileIds[current()];
+        }
+
+        private int current() {
+            if (index < 0 || index >= size) {
+                throw new IllegalStateException("The cursor is not positioned on an entry");
+            }
+            return index;
+        }
+
+        private int nameStart() {
+            int i = current();
+            return i == 0 ? 0 : nameEnds[i - 1];
+        }
+    }
+}
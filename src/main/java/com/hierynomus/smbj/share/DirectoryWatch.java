@@ -0,0 +1,225 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2CompletionFilter;
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyResponse;
+import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches a directory for changes, returned by {@link DiskShare#watch(String, Set, boolean, WatchListener)}. A
+ * CHANGE_NOTIFY request is kept outstanding on the directory. It is sent again as soon as its response arrives, before
+ * the listeners are called with the changes of that response, and the server collects the changes that happen in
+ * between.
+ * <p/>
+ * The responses are waited for on a thread of the watch, which also calls the listeners. Close the watch to close the
+ * directory, which completes the outstanding request and stops the thread.
+ */
+public class DirectoryWatch implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryWatch.class);
+    private static final AtomicInteger watchThreadCounter = new AtomicInteger();
+
+    private final DiskShare share;
+    private final Directory directory;
+    private final String path;
+    private final Set<SMB2CompletionFilter> completionFilter;
+    private final boolean recursive;
+    private final long timeout;
+    private final List<WatchListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private Thread thread;
+
+    DirectoryWatch(DiskShare share, Directory directory, String path, Set<SMB2CompletionFilter> completionFilter, boolean recursive) {
+        this.share = share;
+        this.directory = directory;
+        this.path = path;
+        this.completionFilter = EnumSet.copyOf(completionFilter);
+        this.recursive = recursive;
+        this.timeout = share.getTransactTimeout();
+    }
+
+    /**
+     * Send the first CHANGE_NOTIFY request, so that the changes from now on are reported, and start the thread that
+     * waits for its response.
+     */
+    void start() {
+        final Future<SMB2ChangeNotifyResponse> response = share.changeNotifyAsync(directory.getFileId(), completionFilter, recursive);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(response);
+            }
+        }, "smbj-watch-" + watchThreadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the path of the watched directory
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return whether the tree below the directory is watched as well
+     */
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    public void addListener(WatchListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(WatchListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Stop watching by closing the directory. Waits for the thread of the watch to stop, unless called by a listener.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            closeDirectory();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void watch(Future<SMB2ChangeNotifyResponse> response) {
+        SMBRuntimeException exception = null;
+        try {
+            SMB2ChangeNotifyResponse changes;
+            while ((changes = receive(response)) != null) {
+                NtStatus status = changes.getHeader().getStatus();
+                if (status == NtStatus.STATUS_NOTIFY_CLEANUP || closed.get()) {
+                    break;
+                }
+                if (status != NtStatus.STATUS_SUCCESS && status != NtStatus.STATUS_NOTIFY_ENUM_DIR) {
+                    throw new SMBApiException(changes.getHeader(), "Change notify failed for " + path);
+                }
+                // Sent before the listeners are called, so that the server collects the changes while they run.
+                response = share.changeNotifyAsync(directory.getFileId(), completionFilter, recursive);
+                List<SMB2ChangeNotifyResponse.FileNotifyInfo> infos = changes.getFileNotifyInfoList();
+                // An empty response also means that the changes did not fit in the output buffer.
+                if (status == NtStatus.STATUS_NOTIFY_ENUM_DIR || infos.isEmpty()) {
+                    rescan();
+                } else {
+                    changed(infos);
+                }
+            }
+        } catch (SMBRuntimeException e) {
+            if (!closed.get()) {
+                exception = e;
+            }
+        } finally {
+            if (closed.compareAndSet(false, true)) {
+                closeDirectory();
+            }
+            for (WatchListener listener : listeners) {
+                try {
+                    listener.stopped(this, exception);
+                } catch (RuntimeException e) {
+                    logger.warn("Watch listener failed for {}", path, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the response without a time limit, as it only arrives when something changes.
+     *
+     * @return the response, or null when the watch was closed or the share disconnected while waiting
+     */
+    private SMB2ChangeNotifyResponse receive(Future<SMB2ChangeNotifyResponse> response) {
+        while (true) {
+            try {
+                return Futures.get(response, timeout, TimeUnit.MILLISECONDS, SMBRuntimeException.Wrapper);
+            } catch (SMBRuntimeException e) {
+                if (!(e.getCause() instanceof TimeoutException)) {
+                    throw e;
+                }
+                if (closed.get() || !share.isConnected()) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private void changed(List<SMB2ChangeNotifyResponse.FileNotifyInfo> changes) {
+        for (SMB2ChangeNotifyResponse.FileNotifyInfo change : changes) {
+            share.invalidateMetadata(path.isEmpty() ? change.getFileName() : path + "\\" + change.getFileName());
+        }
+        for (WatchListener listener : listeners) {
+            try {
+                listener.changed(this, changes);
+            } catch (RuntimeException e) {
+                logger.warn("Watch listener failed for {}", path, e);
+            }
+        }
+    }
+
+    private void rescan() {
+        share.invalidateMetadata(path);
+        for (WatchListener listener : listeners) {
+            try {
+                listener.rescan(this);
+            } catch (RuntimeException e) {
+                logger.warn("Watch listener failed for {}", path, e);
+            }
+        }
+    }
+
+    private void closeDirectory() {
+        try {
+            directory.close();
+        } catch (SMBRuntimeException e) {
+            logger.warn("Failed to close watched directory {}", path, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryWatch{path='" + path + "', recursive=" + recursive + "}";
+    }
+}
@@ -22,12 +22,16 @@ import com.hierynomus.msfscc.fileinformation.FileQueryableInformation;
 import com.hierynomus.msfscc.fileinformation.FileRenameInformation;
 import com.hierynomus.msfscc.fileinformation.FileSettableInformation;
 import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2Lease;
+import com.hierynomus.mssmb2.SMB2LeaseState;
+import com.hierynomus.mssmb2.SMB2OplockLevel;
 import com.hierynomus.smbj.common.SMBApiException;
 import com.hierynomus.smbj.transport.TransportException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Set;
 
@@ -37,6 +41,9 @@ public abstract class DiskEntry implements Closeable {
     protected DiskShare share;
     protected SMB2FileId fileId;
     protected String fileName;
+    private volatile SMB2OplockLevel oplockLevel = SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE;
+    private volatile Set<SMB2LeaseState> cachingRights = Collections.emptySet();
+    private byte[] leaseKey;
 
     DiskEntry(SMB2FileId fileId, DiskShare share, String fileName) {
         this.share = share;
@@ -44,6 +51,64 @@ public abstract class DiskEntry implements Closeable {
         this.fileName = fileName;
     }
 
+    /**
+     * The oplock level granted by the server, {@link SMB2OplockLevel#SMB2_OPLOCK_LEVEL_LEASE} if this entry holds a
+     * lease instead.
+     */
+    public SMB2OplockLevel getOplockLevel() {
+        return oplockLevel;
+    }
+
+    /**
+     * The caching this entry is currently allowed by its oplock or lease, as lease states. Data read through this entry
+     * may be cached while it holds read caching, writes may be delayed while it holds write caching, and the handle
+     * may be kept open after use while it holds handle caching. The rights only decrease when the server breaks the
+     * oplock or lease.
+     *
+     * @return the current caching rights
+     */
+    public Set<SMB2LeaseState> getCachingRights() {
+        return cachingRights;
+    }
+
+    byte[] getLeaseKey() {
+        return leaseKey;
+    }
+
+    void granted(SMB2OplockLevel oplockLevel, SMB2Lease lease) {
+        this.oplockLevel = oplockLevel;
+        if (lease != null) {
+            this.leaseKey = lease.getLeaseKey();
+            this.cachingRights = Collections.unmodifiableSet(EnumSet.copyOf(lease.getLeaseState()));
+        } else {
+            this.cachingRights = Collections.unmodifiableSet(oplockLevel.getCachingRights());
+        }
+    }
+
+    /**
+     * Lower the oplock level or lease state after a break notification.
+     *
+     * @return the caching rights that were lost
+     */
+    Set<SMB2LeaseState> broken(SMB2OplockLevel newOplockLevel, Set<SMB2LeaseState> newCachingRights) {
+        EnumSet<SMB2LeaseState> lost = EnumSet.noneOf(SMB2LeaseState.class);
+        lost.addAll(cachingRights);
+        lost.removeAll(newCachingRights);
+        this.oplockLevel = newOplockLevel;
+        this.cachingRights = Collections.unmodifiableSet(EnumSet.copyOf(newCachingRights));
+        return lost;
+    }
+
+    /**
+     * Give up what is cached on the basis of the caching rights that were lost, before the break is acknowledged. Cached
+     * reads are dropped when read caching is lost.
+     */
+    void releaseCaches(Set<SMB2LeaseState> lost) {
+        if (lost.contains(SMB2LeaseState.SMB2_LEASE_READ_CACHING)) {
+            share.invalidateCachedBlocks(fileId);
+        }
+    }
+
     public void close() {
         share.closeFileId(fileId);
     }
@@ -22,45 +22,492 @@ import com.hierynomus.mserref.NtStatus;
 import com.hierynomus.msfscc.FileAttributes;
 import com.hierynomus.msfscc.FileSystemInformationClass;
 import com.hierynomus.msfscc.fileinformation.*;
+import com.hierynomus.msfscc.fsctl.FileAllocatedRangeBuffer;
+import com.hierynomus.mssmb2.SMB2CompletionFilter;
 import com.hierynomus.mssmb2.SMB2CreateDisposition;
 import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2Dialect;
 import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2GlobalCapability;
+import com.hierynomus.mssmb2.SMB2Lease;
+import com.hierynomus.mssmb2.SMB2LeaseState;
+import com.hierynomus.mssmb2.SMB2MessageCommandCode;
+import com.hierynomus.mssmb2.SMB2OplockLevel;
 import com.hierynomus.mssmb2.SMB2ShareAccess;
 import com.hierynomus.mssmb2.messages.SMB2CreateResponse;
+import com.hierynomus.mssmb2.messages.SMB2IoctlResponse;
 import com.hierynomus.mssmb2.messages.SMB2QueryInfoRequest;
 import com.hierynomus.mssmb2.messages.SMB2SetInfoRequest;
-import com.hierynomus.protocol.commons.EnumWithValue;
+import com.hierynomus.mssmb2.messages.SMB2WriteResponse;
+import com.hierynomus.protocol.commons.ByteArrayUtils;
 import com.hierynomus.protocol.commons.buffer.Buffer;
 import com.hierynomus.protocol.commons.buffer.Endian;
+import com.hierynomus.smbj.ProgressListener;
+import com.hierynomus.smbj.SmbConfig;
 import com.hierynomus.smbj.common.SMBApiException;
 import com.hierynomus.smbj.common.SMBBuffer;
 import com.hierynomus.smbj.common.SMBRuntimeException;
 import com.hierynomus.smbj.common.SmbPath;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.event.LeaseBreakReceived;
+import com.hierynomus.smbj.event.OplockBreakReceived;
+import com.hierynomus.smbj.event.SMBEventBus;
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
+import com.hierynomus.smbj.io.ByteChunkProvider;
 import com.hierynomus.smbj.transport.TransportException;
+import net.engio.mbassy.listener.Handler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.hierynomus.msdtyp.AccessMask.*;
 import static com.hierynomus.msfscc.FileAttributes.FILE_ATTRIBUTE_DIRECTORY;
 import static com.hierynomus.msfscc.FileAttributes.FILE_ATTRIBUTE_NORMAL;
 import static com.hierynomus.mssmb2.SMB2CreateDisposition.FILE_CREATE;
 import static com.hierynomus.mssmb2.SMB2CreateDisposition.FILE_OPEN;
+import static com.hierynomus.mssmb2.SMB2CreateDisposition.FILE_OVERWRITE_IF;
 import static com.hierynomus.mssmb2.SMB2ShareAccess.*;
 import static com.hierynomus.mssmb2.messages.SMB2QueryInfoRequest.SMB2QueryInfoType.SMB2_0_INFO_SECURITY;
 
 public class DiskShare extends Share {
+    private static final int FSCTL_QUERY_ALLOCATED_RANGES = 0x000940CF;
+    private static final EnumSet<NtStatus> SUCCESS_OR_BUFFER_OVERFLOW = EnumSet.of(NtStatus.STATUS_SUCCESS, NtStatus.STATUS_BUFFER_OVERFLOW);
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskShare.class);
+    private static final AtomicInteger breakThreadCounter = new AtomicInteger();
+
+    private final BlockCache blockCache;
+    private final boolean leasingSupported;
+    private final SMBEventBus bus;
+    // The entries opened on this share which hold an oplock or lease, by file id.
+    private final Map<SMB2FileId, DiskEntry> oplocks = new ConcurrentHashMap<>();
+    // The oplock breaks for unknown file ids received while opens that request an oplock are in flight.
+    private final Map<SMB2FileId, SMB2OplockLevel> pendingOplockBreaks = new HashMap<>();
+    private int oplockOpensInFlight;
+    // The leases of the files opened on this share, by lease key and by upper case path, guarded by leases.
+    private final Map<String, Lease> leases = new HashMap<>();
+    private final Map<String, Lease> leasesByPath = new HashMap<>();
+    private ThreadPoolExecutor breakExecutor;
+
+    // The files opened on this share which have their blocks cached, to invalidate them when they are written to.
+    private final Map<SMB2FileId, BlockCache.CachedFile> cachedFiles = new ConcurrentHashMap<>();
+    private final MetadataCache metadataCache;
+    private final int metadataParallelism;
+    // The paths of open handles and the handles that changed their file, to drop them from the metadata cache.
+    private final Map<SMB2FileId, String> openPaths = new ConcurrentHashMap<>();
+    private final Set<SMB2FileId> changedFileIds = Collections.newSetFromMap(new ConcurrentHashMap<SMB2FileId, Boolean>());
+
     public DiskShare(SmbPath smbPath, TreeConnect treeConnect) {
         super(smbPath, treeConnect);
+        BlockCache cache = treeConnect.getConnection().getBlockCache();
+        // A block has to be read with a single READ.
+        this.blockCache = cache != null && cache.getBlockSize() <= getReadBufferSize() ? cache : null;
+        Connection connection = treeConnect.getConnection();
+        SmbConfig config = connection.getConfig();
+        this.metadataParallelism = config.getMetadataParallelism();
+        this.metadataCache = config.getMetadataCacheSize() > 0 ? new MetadataCache(config.getMetadataCacheSize(), config.getMetadataCacheTtl(), TimeUnit.MILLISECONDS) : null;
+        this.leasingSupported = connection.getNegotiatedProtocol().getDialect() != SMB2Dialect.SMB_2_0_2 && connection.supports(SMB2GlobalCapability.SMB2_GLOBAL_CAP_LEASING);
+        this.bus = treeConnect.getBus();
+        bus.subscribe(this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        bus.unsubscribe(this);
+        synchronized (this) {
+            if (breakExecutor != null) {
+                breakExecutor.shutdown();
+            }
+        }
+        super.close();
     }
 
     public DiskEntry open(String path, Set<AccessMask> accessMask, Set<FileAttributes> attributes, Set<SMB2ShareAccess> shareAccesses, SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions) {
-        SMB2CreateResponse response = createFile(path, null, accessMask, attributes, shareAccesses, createDisposition, createOptions);
-        if (response.getFileAttributes().contains(FILE_ATTRIBUTE_DIRECTORY)) {
-            return new Directory(response.getFileId(), this, path);
+        return open(path, null, accessMask, attributes, shareAccesses, createDisposition, createOptions);
+    }
+
+    /**
+     * Open the entry in the given path, requesting an oplock or lease that allows the requested caching. A lease is
+     * requested if the server supports leasing, otherwise the lowest oplock level that allows the caching. The
+     * granted caching is available from {@link DiskEntry#getCachingRights()}, and lowered when the server breaks the
+     * oplock or lease, after which the break is acknowledged.
+     *
+     * @param requestedCaching the caching to request, none or null to request no oplock
+     */
+    public DiskEntry open(String path, Set<SMB2LeaseState> requestedCaching, Set<AccessMask> accessMask, Set<FileAttributes> attributes, Set<SMB2ShareAccess> shareAccesses, SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions) {
+        SMB2OplockLevel requestedOplockLevel = SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE;
+        SMB2Lease requestedLease = null;
+        Lease lease = null;
+        if (requestedCaching != null && !requestedCaching.isEmpty()) {
+            if (leasingSupported) {
+                requestedOplockLevel = SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE;
+                lease = openingLease(path);
+                requestedLease = new SMB2Lease(lease.leaseKey, requestedCaching);
+            } else {
+                requestedOplockLevel = SMB2OplockLevel.forCachingRights(requestedCaching);
+                synchronized (pendingOplockBreaks) {
+                    oplockOpensInFlight++;
+                }
+            }
+        }
+
+        SMB2CreateResponse response;
+        try {
+            response = createFile(path, requestedOplockLevel, requestedLease, null, accessMask, attributes, shareAccesses, createDisposition, createOptions);
+        } catch (SMBApiException e) {
+            openedWithOplock(requestedOplockLevel, lease, null, null);
+            if (metadataCache != null && createDisposition == FILE_OPEN && isNotFound(e.getStatus())) {
+                metadataCache.notFound(path);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            openedWithOplock(requestedOplockLevel, lease, null, null);
+            throw e;
+        }
+        boolean directory = response.getFileAttributes().contains(FILE_ATTRIBUTE_DIRECTORY);
+        if (metadataCache != null) {
+            if (createOptions != null && createOptions.contains(SMB2CreateOptions.FILE_DELETE_ON_CLOSE)) {
+                metadataCache.invalidate(path);
+                changedFileIds.add(response.getFileId());
+            } else {
+                metadataCache.opened(path, directory, createDisposition != FILE_OPEN);
+            }
+            openPaths.put(response.getFileId(), path);
+        }
+        DiskEntry entry;
+        if (directory) {
+            entry = new Directory(response.getFileId(), this, path);
         } else {
-            return new File(response.getFileId(), this, path);
+            BlockCache.CachedFile cachedFile = null;
+            if (blockCache != null) {
+                long changeTime = response.getChangeTime() != null ? response.getChangeTime().getWindowsTimeStamp() : 0;
+                cachedFile = blockCache.open(getSmbPath().getShareName() + "\\" + path, changeTime, response.getEndOfFile());
+                cachedFiles.put(response.getFileId(), cachedFile);
+            }
+            entry = new File(response.getFileId(), this, path, response.getEndOfFile(), cachedFile);
+        }
+
+        SMB2OplockLevel oplockLevel = response.getOplockLevel();
+        if (oplockLevel == SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE && response.getLease() != null && lease != null) {
+            entry.granted(oplockLevel, response.getLease());
+            oplocks.put(response.getFileId(), entry);
+        } else if (oplockLevel != null && oplockLevel != SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE && oplockLevel != SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE) {
+            entry.granted(oplockLevel, null);
+        }
+        openedWithOplock(requestedOplockLevel, lease, entry, response.getFileId());
+        return entry;
+    }
+
+    /**
+     * The lease of the file in the path, shared by all opens of the file on this share so that they do not break each
+     * other's lease. [MS-SMB2].pdf 3.2.4.3.8 The lease key is kept while the file is open or being opened.
+     */
+    private Lease openingLease(String path) {
+        String key = path.toUpperCase(Locale.ROOT);
+        synchronized (leases) {
+            Lease lease = leasesByPath.get(key);
+            if (lease == null) {
+                lease = new Lease(newLeaseKey(), key);
+                leasesByPath.put(key, lease);
+                leases.put(ByteArrayUtils.printHex(lease.leaseKey), lease);
+            }
+            lease.opening++;
+            return lease;
+        }
+    }
+
+    /**
+     * Register the entry opened with the requested oplock or lease, or no entry if the open failed, and apply the
+     * breaks that arrived before it was registered.
+     */
+    private void openedWithOplock(SMB2OplockLevel requestedOplockLevel, Lease lease, DiskEntry entry, SMB2FileId fileId) {
+        if (lease != null) {
+            boolean granted = entry != null && entry.getLeaseKey() != null;
+            Set<SMB2LeaseState> brokenTo;
+            synchronized (leases) {
+                lease.opening--;
+                if (granted) {
+                    lease.entries.add(entry);
+                }
+                brokenTo = lease.brokenTo;
+                if (lease.opening == 0) {
+                    lease.brokenTo = null;
+                }
+                removeIfUnused(lease);
+            }
+            if (granted && brokenTo != null) {
+                // The break was acknowledged already, nothing was cached through the new entry yet.
+                entry.broken(SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE, brokenTo);
+            }
+        } else if (requestedOplockLevel != SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE) {
+            boolean granted = entry != null && entry.getOplockLevel() != null && entry.getOplockLevel() != SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE;
+            SMB2OplockLevel brokenTo = null;
+            synchronized (pendingOplockBreaks) {
+                oplockOpensInFlight--;
+                if (granted) {
+                    oplocks.put(fileId, entry);
+                    brokenTo = pendingOplockBreaks.remove(fileId);
+                }
+                if (oplockOpensInFlight == 0) {
+                    pendingOplockBreaks.clear();
+                }
+            }
+            if (brokenTo != null) {
+                oplockBroken(entry, brokenTo);
+            }
+        }
+    }
+
+    private void removeIfUnused(Lease lease) {
+        if (lease.entries.isEmpty() && lease.opening == 0) {
+            leasesByPath.remove(lease.path);
+            leases.remove(ByteArrayUtils.printHex(lease.leaseKey));
+        }
+    }
+
+    private static byte[] newLeaseKey() {
+        UUID uuid = UUID.randomUUID();
+        SMBBuffer buffer = new SMBBuffer();
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        return buffer.getCompactData();
+    }
+
+    @Handler
+    @SuppressWarnings("unused")
+    private void oplockBreak(OplockBreakReceived oplockBreak) {
+        DiskEntry entry;
+        synchronized (pendingOplockBreaks) {
+            entry = oplocks.get(oplockBreak.getFileId());
+            if (entry == null) {
+                if (oplockOpensInFlight > 0) {
+                    // The break may be for an open whose CREATE response is still being processed.
+                    pendingOplockBreaks.put(oplockBreak.getFileId(), oplockBreak.getOplockLevel());
+                }
+                // Otherwise the open is closed or of another share, the CLOSE ends a break of a closed open.
+                return;
+            }
+        }
+        if (entry.getOplockLevel() != SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE) {
+            oplockBroken(entry, oplockBreak.getOplockLevel());
+        }
+    }
+
+    private void oplockBroken(final DiskEntry entry, final SMB2OplockLevel oplockLevel) {
+        SMB2OplockLevel previous = entry.getOplockLevel();
+        final Set<SMB2LeaseState> lost = entry.broken(oplockLevel, oplockLevel.getCachingRights());
+        // [MS-SMB2].pdf 3.2.5.19.1 A break of a level II oplock is not acknowledged.
+        final boolean acknowledge = previous != SMB2OplockLevel.SMB2_OPLOCK_LEVEL_II;
+        if (oplockLevel == SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE) {
+            oplocks.remove(entry.getFileId());
+        }
+        handleBreak(entry, new Runnable() {
+            @Override
+            public void run() {
+                entry.releaseCaches(lost);
+                if (acknowledge) {
+                    acknowledgeOplockBreak(entry.getFileId(), oplockLevel);
+                }
+            }
+        });
+    }
+
+    @Handler
+    @SuppressWarnings("unused")
+    private void leaseBreak(final LeaseBreakReceived leaseBreak) {
+        final List<DiskEntry> entries;
+        synchronized (leases) {
+            Lease lease = leases.get(ByteArrayUtils.printHex(leaseBreak.getLeaseKey()));
+            if (lease == null) {
+                // Not a lease of this share.
+                return;
+            }
+            entries = new ArrayList<>(lease.entries);
+            if (lease.opening > 0) {
+                lease.brokenTo = leaseBreak.getLeaseState();
+            }
+        }
+        final List<Set<SMB2LeaseState>> lost = new ArrayList<>();
+        for (DiskEntry entry : entries) {
+            lost.add(entry.broken(SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE, leaseBreak.getLeaseState()));
+        }
+        // The break is acknowledged even if no open holds the lease anymore, or none is registered yet.
+        handleBreak(ByteArrayUtils.printHex(leaseBreak.getLeaseKey()), new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < entries.size(); i++) {
+                    entries.get(i).releaseCaches(lost.get(i));
+                }
+                if (leaseBreak.isAcknowledgmentRequired()) {
+                    acknowledgeLeaseBreak(leaseBreak.getLeaseKey(), leaseBreak.getLeaseState());
+                }
+            }
+        });
+    }
+
+    /**
+     * Release the caches and acknowledge the break on a thread of this share, as the break notification is handled on
+     * the thread that receives the responses to the WRITEs that flush the cached writes.
+     */
+    private void handleBreak(final Object target, final Runnable release) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.run();
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to handle break for {}", target, e);
+                }
+            }
+        };
+        try {
+            getBreakExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Share is closed, not handling break for {}", target);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getBreakExecutor() {
+        if (breakExecutor == null) {
+            // A single thread handles the breaks in the order they are received.
+            breakExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "smbj-break-" + breakThreadCounter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            breakExecutor.allowCoreThreadTimeOut(true);
+        }
+        return breakExecutor;
+    }
+
+    /**
+     * The lease of a file, held by all its opens on this share.
+     */
+    private static class Lease {
+        private final byte[] leaseKey;
+        private final String path;
+        private final List<DiskEntry> entries = new ArrayList<>();
+        private int opening;
+        // The lease state of a break received while opens were in flight, for the entries registered after it.
+        private Set<SMB2LeaseState> brokenTo;
+
+        private Lease(byte[] leaseKey, String path) {
+            this.leaseKey = leaseKey;
+            this.path = path;
+        }
+    }
+
+    BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * The cache of the existence and information of paths on this share, configured with
+     * {@link SmbConfig.Builder#withMetadataCache(int, long, TimeUnit)}.
+     *
+     * @return the metadata cache, or null if it is disabled
+     */
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    @Override
+    Future<SMB2WriteResponse> writeAsync(SMB2FileId fileId, ByteChunkProvider provider) {
+        invalidateCachedBlocks(fileId);
+        changed(fileId);
+        return super.writeAsync(fileId, provider);
+    }
+
+    @Override
+    void closeFileId(SMB2FileId fileId) throws SMBApiException {
+        cachedFiles.remove(fileId);
+        String path = openPaths.remove(fileId);
+        if (changedFileIds.remove(fileId) && path != null) {
+            // The server may update the times of the file when the handle is closed.
+            metadataCache.invalidate(path);
+        }
+        DiskEntry entry = oplocks.remove(fileId);
+        Lease lease = null;
+        if (entry != null && entry.getLeaseKey() != null) {
+            synchronized (leases) {
+                lease = leases.get(ByteArrayUtils.printHex(entry.getLeaseKey()));
+                if (lease != null) {
+                    lease.entries.remove(entry);
+                }
+            }
+        }
+        try {
+            super.closeFileId(fileId);
+        } finally {
+            if (lease != null) {
+                // The lease is kept until the last open is closed, to acknowledge a break that arrives meanwhile.
+                synchronized (leases) {
+                    removeIfUnused(lease);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the path of the handle from the metadata cache, as its file is changed, and again when the handle is closed.
+     */
+    private void changed(SMB2FileId fileId) {
+        String path = metadataCache != null ? openPaths.get(fileId) : null;
+        if (path != null) {
+            metadataCache.invalidate(path);
+            changedFileIds.add(fileId);
+        }
+    }
+
+    /**
+     * Record an entry of a listing of the directory in the metadata cache.
+     */
+    void listed(String directoryPath, FileDirectoryQueryableInformation information) {
+        if (metadataCache != null) {
+            metadataCache.listed(directoryPath, information);
+        }
+    }
+
+    /**
+     * Drop the path and every path below it from the metadata cache.
+     */
+    void invalidateMetadata(String path) {
+        if (metadataCache != null) {
+            metadataCache.invalidateTree(path);
+        }
+    }
+
+    private static boolean isNotFound(NtStatus status) {
+        return status == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND || status == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND;
+    }
+
+    void invalidateCachedBlocks(SMB2FileId fileId) {
+        BlockCache.CachedFile cachedFile = cachedFiles.get(fileId);
+        if (cachedFile != null) {
+            blockCache.invalidate(cachedFile);
         }
     }
 
@@ -86,6 +533,15 @@ public class DiskShare extends Share {
     }
 
     public File openFile(String path, Set<AccessMask> accessMask, Set<FileAttributes> attributes, Set<SMB2ShareAccess> shareAccesses, SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions) {
+        return openFile(path, null, accessMask, attributes, shareAccesses, createDisposition, createOptions);
+    }
+
+    /**
+     * Get a handle to a file in the given path, requesting an oplock or lease that allows the requested caching.
+     *
+     * @see #open(String, Set, Set, Set, Set, SMB2CreateDisposition, Set)
+     */
+    public File openFile(String path, Set<SMB2LeaseState> requestedCaching, Set<AccessMask> accessMask, Set<FileAttributes> attributes, Set<SMB2ShareAccess> shareAccesses, SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions) {
         EnumSet<SMB2CreateOptions> actualCreateOptions = createOptions != null ? EnumSet.copyOf(createOptions) : EnumSet.noneOf(SMB2CreateOptions.class);
         actualCreateOptions.add(SMB2CreateOptions.FILE_NON_DIRECTORY_FILE);
         actualCreateOptions.remove(SMB2CreateOptions.FILE_DIRECTORY_FILE);
@@ -95,6 +551,7 @@ public class DiskShare extends Share {
 
         return (File) open(
             path,
+            requestedCaching,
             accessMask,
             actualAttributes,
             shareAccesses,
@@ -118,10 +575,16 @@ public class DiskShare extends Share {
     }
 
     private boolean exists(String path, EnumSet<SMB2CreateOptions> createOptions) throws SMBApiException {
+        if (metadataCache != null) {
+            Boolean exists = metadataCache.exists(path, createOptions.contains(SMB2CreateOptions.FILE_DIRECTORY_FILE));
+            if (exists != null) {
+                return exists;
+            }
+        }
         try (DiskEntry ignored = open(path, EnumSet.of(FILE_READ_ATTRIBUTES), EnumSet.of(FILE_ATTRIBUTE_NORMAL), ALL, FILE_OPEN, createOptions)){
             return true;
         } catch (SMBApiException sae) {
-            if (sae.getStatus() == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND || sae.getStatus() == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND) {
+            if (isNotFound(sae.getStatus())) {
                 return false;
             } else {
                 throw sae;
@@ -167,6 +630,107 @@ public class DiskShare extends Share {
         }
     }
 
+    /**
+     * Equivalent to calling {@link #listing(String, String) listing(path, null)}.
+     *
+     * @see #listing(String, String)
+     */
+    public DirectoryListing listing(String path) {
+        return listing(path, null);
+    }
+
+    /**
+     * Opens the given path for read-only access and lists it into a compact {@link DirectoryListing}.
+     *
+     * @see Directory#listing(String)
+     */
+    public DirectoryListing listing(String path, String searchPattern) {
+        try (Directory d = openDirectory(path, EnumSet.of(GENERIC_READ), null, ALL, FILE_OPEN, null)) {
+            return d.listing(searchPattern);
+        }
+    }
+
+    /**
+     * Watch the directory at the given path for changes with CHANGE_NOTIFY requests, until the returned watch is
+     * closed. The listener is called with the changes on the thread of the watch, and is told to rescan the directory
+     * when the server could not keep track of all changes. The metadata cache entries of the changed paths are
+     * invalidated.
+     *
+     * @param path      the directory to watch
+     * @param filters   the kinds of changes to report
+     * @param recursive whether to report the changes in the tree below the directory as well
+     * @param listener  the listener to call with the changes, more can be added to the returned watch
+     * @return the watch, which has started watching
+     */
+    public DirectoryWatch watch(String path, Set<SMB2CompletionFilter> filters, boolean recursive, WatchListener listener) {
+        Directory directory = openDirectory(path, EnumSet.of(FILE_LIST_DIRECTORY, FILE_READ_ATTRIBUTES), null, ALL, FILE_OPEN, null);
+        DirectoryWatch watch = new DirectoryWatch(this, directory, TreeWalk.rootPath(path), filters, recursive);
+        watch.addListener(listener);
+        try {
+            watch.start();
+        } catch (SMBRuntimeException e) {
+            directory.close();
+            throw e;
+        }
+        return watch;
+    }
+
+    /**
+     * Mirror the directory in the given path to a local directory. Nothing is transferred until
+     * {@link TreeMirror#sync()} is called, which downloads only the entries that changed since the previous sync, as
+     * recorded in the manifest file.
+     *
+     * @param path      the directory to mirror
+     * @param localRoot the local directory to mirror to, which is created when needed
+     * @param manifest  the file in which the mirrored entries are recorded between syncs, outside of localRoot
+     * @return the mirror, which can watch the directory for changes to make later syncs cheaper
+     */
+    public TreeMirror mirror(String path, Path localRoot, Path manifest) {
+        return new TreeMirror(this, path, localRoot, manifest, metadataParallelism);
+    }
+
+    /**
+     * Equivalent to calling {@link #walk(String, int, TreeWalk.Filter) walk(path, Integer.MAX_VALUE, null)}.
+     *
+     * @see #walk(String, int, TreeWalk.Filter, int)
+     */
+    public TreeWalk walk(String path) {
+        return walk(path, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Equivalent to calling {@link #walk(String, int, TreeWalk.Filter, int) walk(path, maxDepth, filter, parallelism)}
+     * with the parallelism configured with {@link SmbConfig.Builder#withMetadataParallelism(int)}.
+     *
+     * @see #walk(String, int, TreeWalk.Filter, int)
+     */
+    public TreeWalk walk(String path, int maxDepth, TreeWalk.Filter filter) {
+        return walk(path, maxDepth, filter, metadataParallelism);
+    }
+
+    /**
+     * Walk the tree below the directory in the given path, listing up to parallelism directories at once. The entries
+     * are returned as the listings arrive.
+     *
+     * @param path        the directory to walk
+     * @param maxDepth    the maximum depth of the entries to return, 1 to only list the directory itself
+     * @param filter      selects the entries to return, or null to return all entries
+     * @param parallelism the maximum number of directories to list at once
+     * @return the entries of the tree, which are listed while iterating
+     */
+    public TreeWalk walk(String path, int maxDepth, TreeWalk.Filter filter, int parallelism) {
+        return new TreeWalk(this, path, maxDepth, filter, parallelism);
+    }
+
+    /**
+     * Walk the tree below the directory in the given path with the visitor.
+     *
+     * @see #walk(String, int, TreeWalk.Filter)
+     */
+    public void walk(String path, int maxDepth, TreeWalk.Filter filter, TreeVisitor visitor) {
+        walk(path, maxDepth, filter).walk(visitor);
+    }
+
     /**
      * Create a directory in the given path.
      */
@@ -192,11 +756,45 @@ public class DiskShare extends Share {
      * Get information about the given path.
      **/
     public <F extends FileQueryableInformation> F getFileInformation(String path, Class<F> informationClass) throws SMBApiException {
+        if (metadataCache != null) {
+            F information = metadataCache.get(path, informationClass);
+            if (information != null) {
+                return information;
+            }
+        }
         try (DiskEntry e = open(path, EnumSet.of(GENERIC_READ), null, ALL, FILE_OPEN, null)) {
-            return e.getFileInformation(informationClass);
+            F information = e.getFileInformation(informationClass);
+            if (metadataCache != null) {
+                metadataCache.put(path, information);
+            }
+            return information;
         }
     }
 
+    /**
+     * Equivalent to calling {@link #statAll(Collection, Class, int) statAll(paths, informationClass, parallelism)} with
+     * the parallelism configured with {@link SmbConfig.Builder#withMetadataParallelism(int)}.
+     *
+     * @see #statAll(Collection, Class, int)
+     */
+    public <F extends FileQueryableInformation> BatchStat<F> statAll(Collection<String> paths, Class<F> informationClass) {
+        return statAll(paths, informationClass, metadataParallelism);
+    }
+
+    /**
+     * Get information about many paths at once. The opens, queries and closes of up to parallelism paths are kept in
+     * flight, instead of waiting for each of them in turn. The results are returned as they complete, a path that could
+     * not be queried is returned with its exception.
+     *
+     * @param paths            the paths to query
+     * @param informationClass the information to query of every path
+     * @param parallelism      the maximum number of paths to work on at once
+     * @return the results, which are queried while iterating
+     */
+    public <F extends FileQueryableInformation> BatchStat<F> statAll(Collection<String> paths, Class<F> informationClass, int parallelism) {
+        return new BatchStat<>(this, paths, informationClass, parallelism);
+    }
+
     /**
      * Get information for a given fileId
      **/
@@ -222,7 +820,58 @@ public class DiskShare extends Share {
         }
     }
 
+    /**
+     * Get the ranges of the file that are allocated on disk within the given range, using
+     * FSCTL_QUERY_ALLOCATED_RANGES. The rest of the range consists of holes of a sparse file, which read as zeros.
+     * A file that is not sparse is reported as a single allocated range.
+     *
+     * @param fileId the file to query
+     * @param offset the offset of the range to query
+     * @param length the length of the range to query
+     * @return the allocated ranges in ascending order
+     */
+    public List<FileAllocatedRangeBuffer> getAllocatedRanges(SMB2FileId fileId, long offset, long length) throws SMBApiException {
+        List<FileAllocatedRangeBuffer> ranges = new ArrayList<>();
+        // A length up to the end of any file, like Long.MAX_VALUE, would overflow.
+        long end = length > Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + length;
+        while (offset < end) {
+            SMBBuffer request = new SMBBuffer();
+            new FileAllocatedRangeBuffer(offset, end - offset).write(request);
+            SMB2IoctlResponse response = ioctl(fileId, FSCTL_QUERY_ALLOCATED_RANGES, true, new ArrayByteChunkProvider(request.getCompactData(), 0), -1, SUCCESS_OR_BUFFER_OVERFLOW);
+            byte[] outputBuffer = response.getOutputBuffer();
+            int count = outputBuffer == null ? 0 : outputBuffer.length / FileAllocatedRangeBuffer.STRUCTURE_SIZE;
+            SMBBuffer buffer = new SMBBuffer(outputBuffer == null ? new byte[0] : outputBuffer);
+            try {
+                for (int i = 0; i < count; i++) {
+                    ranges.add(FileAllocatedRangeBuffer.read(buffer));
+                }
+            } catch (Buffer.BufferException e) {
+                throw new SMBRuntimeException(e);
+            }
+            if (response.getHeader().getStatus() != NtStatus.STATUS_BUFFER_OVERFLOW) {
+                break;
+            }
+            if (count == 0) {
+                throw new SMBApiException(response.getHeader(), "Allocated ranges do not fit in the output buffer for " + fileId);
+            }
+            // The output buffer was full, query the remainder after the last range returned.
+            FileAllocatedRangeBuffer last = ranges.get(ranges.size() - 1);
+            offset = last.getFileOffset() + last.getLength();
+        }
+        return ranges;
+    }
+
     public <F extends FileSettableInformation> void setFileInformation(SMB2FileId fileId, F information) {
+        invalidateCachedBlocks(fileId);
+        String path = metadataCache != null ? openPaths.get(fileId) : null;
+        if (path != null && information instanceof FileRenameInformation) {
+            // Everything below a renamed directory moves along with it.
+            String newPath = ((FileRenameInformation) information).getFileName();
+            metadataCache.invalidateTree(path);
+            metadataCache.invalidateTree(newPath);
+            openPaths.put(fileId, newPath);
+        }
+        changed(fileId);
         SMBBuffer buffer = new SMBBuffer();
         FileInformation.Encoder<F> encoder = FileInformationFactory.getEncoder(information);
         encoder.write(information, buffer);
@@ -269,23 +918,23 @@ public class DiskShare extends Share {
     }
 
     /**
-     * Remove the directory at the given path.
+     * Remove the directory at the given path. A recursive remove deletes the tree below the directory with
+     * {@link #deleteTree(String, ProgressListener)}, and throws the first failure if any entry could not be deleted,
+     * wrapped in an {@link SMBApiException} if it is not one.
      */
     public void rmdir(String path, boolean recursive) throws SMBApiException {
+        invalidateMetadata(path);
         if (recursive) {
-            List<FileIdBothDirectoryInformation> list = list(path);
-            for (FileIdBothDirectoryInformation fi : list) {
-	            if (fi.getFileName().equals(".") || fi.getFileName().equals("..")) {
-		            continue;
-	            }
-                String childPath = path + "\\" + fi.getFileName();
-                if (!EnumWithValue.EnumUtils.isSet(fi.getFileAttributes(), FILE_ATTRIBUTE_DIRECTORY)) {
-                    rm(childPath);
-                } else {
-                    rmdir(childPath, true);
+            Map<String, SMBRuntimeException> failures = deleteTree(path, null);
+            if (!failures.isEmpty()) {
+                Map.Entry<String, SMBRuntimeException> failure = failures.entrySet().iterator().next();
+                if (failure.getValue() instanceof SMBApiException) {
+                    throw (SMBApiException) failure.getValue();
                 }
+                SMBApiException e = new SMBApiException(NtStatus.UNKNOWN, NtStatus.UNKNOWN.getValue(), SMB2MessageCommandCode.SMB2_CREATE, "Delete failed for " + failure.getKey());
+                e.initCause(failure.getValue());
+                throw e;
             }
-            rmdir(path, false);
         } else {
             try (DiskEntry e = open(
                 path,
@@ -300,6 +949,32 @@ public class DiskShare extends Share {
         }
     }
 
+    /**
+     * Equivalent to calling {@link #deleteTree(String, int, ProgressListener) deleteTree(path, parallelism,
+     * progressListener)} with the parallelism configured with {@link SmbConfig.Builder#withMetadataParallelism(int)}.
+     *
+     * @see #deleteTree(String, int, ProgressListener)
+     */
+    public Map<String, SMBRuntimeException> deleteTree(String path, ProgressListener progressListener) {
+        return deleteTree(path, metadataParallelism, progressListener);
+    }
+
+    /**
+     * Remove the directory at the given path and everything below it. The tree is walked and deleted at the same
+     * time, with up to parallelism listings and deletes in flight. Files are deleted as soon as they are listed, and
+     * directories as soon as they are empty. Every entry is opened with FILE_DELETE_ON_CLOSE and closed. The entries
+     * that could not be deleted are returned, and the directories above them are kept.
+     *
+     * @param path             the directory to remove
+     * @param parallelism      the maximum number of listings and of deletes in flight
+     * @param progressListener an optional callback that is invoked with the number of entries deleted and found so far
+     * @return the paths that could not be deleted or listed, empty if the whole tree was removed
+     */
+    public Map<String, SMBRuntimeException> deleteTree(String path, int parallelism, ProgressListener progressListener) {
+        invalidateMetadata(path);
+        return new TreeDelete(this, path, parallelism, progressListener).delete();
+    }
+
     /**
      * Remove the file at the given path
      */
@@ -316,6 +991,35 @@ public class DiskShare extends Share {
         }
     }
 
+    /**
+     * Copy the file at the source path to the destination path on this share, which is created or overwritten.
+     * The server copies the data without sending it to the client, if it supports server-side copy.
+     *
+     * @return the number of bytes copied
+     */
+    public long copy(String src, String dst) throws SMBApiException {
+        return copy(src, dst, null);
+    }
+
+    /**
+     * Copy the file at the source path to the destination path on this share, which is created or overwritten.
+     * The server copies the data without sending it to the client, if it supports server-side copy.
+     *
+     * @param progressListener an optional callback that will be invoked when data has been copied
+     * @return the number of bytes copied
+     */
+    public long copy(String src, String dst, ProgressListener progressListener) throws SMBApiException {
+        try (File srcFile = openFile(src, EnumSet.of(GENERIC_READ), null, EnumSet.of(FILE_SHARE_READ), FILE_OPEN, null);
+             File dstFile = openFile(dst, EnumSet.of(GENERIC_READ, GENERIC_WRITE), null, EnumSet.noneOf(SMB2ShareAccess.class), FILE_OVERWRITE_IF, null)) {
+            try {
+                return new ServerSideCopy(this, progressListener).copy(srcFile, dstFile);
+            } finally {
+                invalidateCachedBlocks(dstFile.getFileId());
+                changed(dstFile.getFileId());
+            }
+        }
+    }
+
     public void deleteOnClose(SMB2FileId fileId) {
         setFileInformation(fileId, new FileDispositionInformation(true));
     }
@@ -371,6 +1075,7 @@ public class DiskShare extends Share {
      * The SecurityDescriptor(MS-DTYP 2.4.6 SECURITY_DESCRIPTOR) for the Given FileId
      */
     public void setSecurityInfo(SMB2FileId fileId, Set<SecurityInformation> securityInfo, SecurityDescriptor securityDescriptor) throws SMBApiException {
+        changed(fileId);
         SMBBuffer buffer = new SMBBuffer();
         securityDescriptor.write(buffer);
 
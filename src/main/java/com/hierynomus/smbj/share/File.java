@@ -16,26 +16,64 @@
 package com.hierynomus.smbj.share;
 
 import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.fileinformation.FileSettableInformation;
+import com.hierynomus.msfscc.fsctl.FileAllocatedRangeBuffer;
 import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2LeaseState;
 import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
 import com.hierynomus.mssmb2.messages.SMB2WriteResponse;
 import com.hierynomus.smbj.ProgressListener;
+import com.hierynomus.smbj.common.SMBRuntimeException;
 import com.hierynomus.smbj.io.ArrayByteChunkProvider;
 import com.hierynomus.smbj.io.ByteChunkProvider;
+import com.hierynomus.smbj.transport.TransportException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class File extends DiskEntry {
 
     private static final Logger logger = LoggerFactory.getLogger(File.class);
 
+    // Reading 16 KiB that is not needed costs less than the round trip of another READ.
+    private static final int DEFAULT_VECTORED_READ_GAP = 16 * 1024;
+
+    private final long endOfFileHint;
+    private final BlockCache.CachedFile cachedFile;
+    private volatile WriteCoalescer writeCoalescer;
+
     File(SMB2FileId fileId, DiskShare diskShare, String fileName) {
+        this(fileId, diskShare, fileName, -1, null);
+    }
+
+    File(SMB2FileId fileId, DiskShare diskShare, String fileName, long endOfFileHint, BlockCache.CachedFile cachedFile) {
         super(fileId, diskShare, fileName);
+        this.endOfFileHint = endOfFileHint;
+        this.cachedFile = cachedFile;
+    }
+
+    /**
+     * The size of the file when it was opened, or -1 if not known. The file may have changed since.
+     */
+    long getEndOfFileHint() {
+        return endOfFileHint;
     }
 
     /**
@@ -57,6 +95,11 @@ public class File extends DiskEntry {
      * @return the actual number of bytes that was written to the file
      */
     public int write(byte[] buffer, long fileOffset, int offset, int length) {
+        WriteCoalescer coalescer = writeCoalescer;
+        if (coalescer != null && length < coalescer.getMaxBufferedBytes()) {
+            coalescer.write(buffer, offset, length, fileOffset);
+            return length;
+        }
         return write(new ArrayByteChunkProvider(buffer, offset, length, fileOffset), null);
     }
 
@@ -78,14 +121,87 @@ public class File extends DiskEntry {
      * @return the actual number of bytes that was written to the file
      */
     public int write(ByteChunkProvider provider, ProgressListener progressListener) {
-        int bytesWritten = 0;
-        while (provider.isAvailable()) {
-            logger.debug("Writing to {} from offset {}", this.fileName, provider.getOffset());
-            SMB2WriteResponse wresp = share.write(fileId, provider);
-            bytesWritten += wresp.getBytesWritten();
-            if (progressListener != null) progressListener.onProgressChanged(wresp.getBytesWritten(), provider.getOffset());
+        return (int) write(provider, share.getWritePipelineDepth(), progressListener);
+    }
+
+    /**
+     * Write all available data from the byte chunk provider to this file, keeping up to depth WRITE requests for
+     * consecutive ranges of the file in flight.
+     * The offset in the file to which data is written is determined by {@link ByteChunkProvider#getOffset()}.
+     * @param provider the byte chunk provider
+     * @param depth the maximum number of WRITE requests in flight, 1 sends every WRITE after the previous completed
+     * @param progressListener an optional callback that will be invoked when data has been written to the file
+     * @return the actual number of bytes that was written to the file
+     * @throws IncompleteWriteException if a WRITE failed; this is the
+     *                                  {@link com.hierynomus.smbj.common.SMBApiException} of the failed WRITE,
+     *                                  with the number of bytes that were written
+     */
+    public long write(ByteChunkProvider provider, int depth, ProgressListener progressListener) {
+        logger.debug("Writing to {} from offset {} with {} WRITEs in flight", this.fileName, provider.getOffset(), depth);
+        flushWrites();
+        return new FileUpload(this, depth, progressListener).transferFrom(provider);
+    }
+
+    Future<SMB2WriteResponse> writeAsync(ByteChunkProvider provider) {
+        flushWrites();
+        return share.writeAsync(fileId, provider);
+    }
+
+    /**
+     * Collect writes through {@link #write(byte[], long, int, int)} that are smaller than the buffer size, and send them
+     * as large WRITEs. Adjacent and overlapping writes are merged. The writes are sent when the buffer size is reached,
+     * when the oldest write is older than the maximum age at the next write or read, on {@link #flush()} and on
+     * {@link #close()}. Reads and other writes through this file see the collected writes.
+     * @param bufferSize the number of bytes to collect before sending them, 0 sends the collected writes and stops
+     *                   collecting
+     * @param maxAge the maximum age of a collected write
+     * @param unit the unit of the maximum age
+     */
+    public void setWriteCoalescing(int bufferSize, long maxAge, TimeUnit unit) {
+        flushWrites();
+        writeCoalescer = bufferSize > 0 ? new WriteCoalescer(this, bufferSize, unit.toNanos(maxAge)) : null;
+    }
+
+    private void flushWrites() {
+        WriteCoalescer coalescer = writeCoalescer;
+        if (coalescer != null) {
+            coalescer.flush();
+        }
+    }
+
+    /**
+     * Send the collected writes and flush the file on the server.
+     */
+    @Override
+    public void flush() {
+        flushWrites();
+        super.flush();
+    }
+
+    @Override
+    public <F extends FileSettableInformation> void setFileInformation(F information) {
+        flushWrites();
+        super.setFileInformation(information);
+    }
+
+    /**
+     * Also send the collected writes when write caching is lost.
+     */
+    @Override
+    void releaseCaches(Set<SMB2LeaseState> lost) {
+        if (lost.contains(SMB2LeaseState.SMB2_LEASE_WRITE_CACHING)) {
+            flushWrites();
+        }
+        super.releaseCaches(lost);
+    }
+
+    @Override
+    public void close() {
+        try {
+            flushWrites();
+        } finally {
+            super.close();
         }
-        return bytesWritten;
     }
 
     public OutputStream getOutputStream() {
@@ -93,9 +209,21 @@ public class File extends DiskEntry {
     }
 
     public OutputStream getOutputStream(ProgressListener listener) {
+        return getOutputStream(listener, share.getWritePipelineDepth());
+    }
+
+    /**
+     * Get a write-behind stream on this file, which sends full buffers without waiting for the previous WRITE to
+     * complete.
+     * @param listener an optional callback that will be invoked when data has been written to the file
+     * @param buffers the maximum number of buffers of the write buffer size to use, 1 waits for every WRITE
+     * @return the stream
+     */
+    public OutputStream getOutputStream(ProgressListener listener, int buffers) {
         return new FileOutputStream(
             this,
             share.getWriteBufferSize(),
+            buffers,
             listener
         );
     }
@@ -119,6 +247,13 @@ public class File extends DiskEntry {
      * @return the actual number of bytes that were read; or -1 if the end of the file was reached
      */
     public int read(byte[] buffer, long fileOffset, int offset, int length) {
+        WriteCoalescer coalescer = writeCoalescer;
+        if (coalescer != null && coalescer.read(buffer, fileOffset, offset, length)) {
+            return length;
+        }
+        if (cachedFile != null) {
+            return readCached(buffer, fileOffset, offset, length);
+        }
         SMB2ReadResponse response = share.read(fileId, fileOffset, length);
         if (response.getHeader().getStatus() == NtStatus.STATUS_END_OF_FILE) {
             return -1;
@@ -130,22 +265,310 @@ public class File extends DiskEntry {
         }
     }
 
+    /**
+     * Read a batch of ranges of this file, each into its own buffer. Ranges that are at most 16 KiB apart are read
+     * with a single READ, and all READs are sent at once as far as the credits allow.
+     * @param ranges the ranges to read, which may be in any order and may overlap
+     * @see #readVectored(List, int, int)
+     */
+    public void readVectored(List<FileRange> ranges) {
+        readVectored(ranges, DEFAULT_VECTORED_READ_GAP, share.getReadBufferSize());
+    }
+
+    /**
+     * Read a batch of ranges of this file, each into its own buffer. When this returns, the buffer of every range is
+     * filled up to {@link FileRange#getBytesRead()}, and its position advanced by that number of bytes.
+     * @param ranges the ranges to read, which may be in any order and may overlap
+     * @param maxGap the maximum number of bytes between two ranges to read them with a single READ, the bytes in between
+     *               are read and dropped
+     * @param maxReadSize the maximum number of bytes of a single READ, at most the read buffer size
+     */
+    public void readVectored(List<FileRange> ranges, int maxGap, int maxReadSize) {
+        try {
+            new VectoredRead(this, maxGap, maxReadSize).read(ranges);
+        } catch (TransportException e) {
+            throw new SMBRuntimeException(e);
+        }
+    }
+
     Future<SMB2ReadResponse> readAsync(long offset, int length) {
+        WriteCoalescer coalescer = writeCoalescer;
+        if (coalescer != null) {
+            coalescer.flushIfOverlaps(offset, length);
+        }
         return share.readAsync(fileId, offset, length);
     }
 
+    /**
+     * Read through the block cache. The blocks that are not cached are read with up to the read pipeline depth of
+     * READs in flight.
+     */
+    private int readCached(byte[] buffer, long fileOffset, int offset, int length) {
+        int blockSize = getCacheBlockSize();
+        long nextIndex = fileOffset / blockSize;
+        long lastIndex = length > 0 ? (fileOffset + length - 1) / blockSize : nextIndex - 1;
+        int depth = Math.max(1, share.getReadPipelineDepth());
+        Deque<CachedRead> pending = new ArrayDeque<>();
+        int bytesRead = 0;
+        try {
+            while (bytesRead < length) {
+                while (nextIndex <= lastIndex && pending.size() < depth) {
+                    pending.add(new CachedRead(nextIndex++, blockSize));
+                }
+                CachedRead read = pending.poll();
+                byte[] block = read.receive();
+                long position = fileOffset + bytesRead;
+                int offsetInBlock = (int) (position - read.index * blockSize);
+                if (block == null || offsetInBlock >= block.length) {
+                    break;
+                }
+                int n = Math.min(length - bytesRead, block.length - offsetInBlock);
+                System.arraycopy(block, offsetInBlock, buffer, offset + bytesRead, n);
+                bytesRead += n;
+                if (block.length < blockSize) {
+                    break;
+                }
+            }
+        } finally {
+            // The READs beyond the end of the file, or after a failure.
+            for (CachedRead read : pending) {
+                read.discard();
+            }
+        }
+        return bytesRead == 0 && length > 0 ? -1 : bytesRead;
+    }
+
+    /**
+     * A block read through the block cache, either taken from the cache or read with a READ.
+     */
+    private class CachedRead {
+        private final long index;
+        private final byte[] cached;
+        private final long generation;
+        private final Future<SMB2ReadResponse> response;
+
+        CachedRead(long index, int blockSize) {
+            this.index = index;
+            this.cached = getCachedBlock(index);
+            if (cached == null) {
+                this.generation = getCacheGeneration();
+                this.response = readAsync(index * blockSize, blockSize);
+            } else {
+                this.generation = 0;
+                this.response = null;
+            }
+        }
+
+        /**
+         * @return the block, or null at the end of the file
+         */
+        byte[] receive() {
+            if (cached != null) {
+                return cached;
+            }
+            SMB2ReadResponse res = share.receiveRead(response, fileId);
+            if (res.getHeader().getStatus() == NtStatus.STATUS_END_OF_FILE) {
+                return null;
+            }
+            cacheBlock(index, res.getData(), generation);
+            return res.getData();
+        }
+
+        void discard() {
+            if (response != null) {
+                try {
+                    receive();
+                } catch (SMBRuntimeException e) {
+                    logger.debug("Discarded read of block {} of {} failed", index, File.this, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the size of the blocks in the block cache, or 0 if the blocks of this file are not cached
+     */
+    int getCacheBlockSize() {
+        return cachedFile != null ? share.getBlockCache().getBlockSize() : 0;
+    }
+
+    /**
+     * @return the cached block with the given index, or null if it is not cached
+     */
+    byte[] getCachedBlock(long index) {
+        return share.getBlockCache().get(cachedFile, index);
+    }
+
+    /**
+     * @return the generation of the cached blocks of this file, to pass to {@link #cacheBlock(long, byte[], long)} for
+     * the data of a READ sent now
+     */
+    long getCacheGeneration() {
+        return share.getBlockCache().generation(cachedFile);
+    }
+
+    /**
+     * Cache the data read at the start of a block. A block shorter than the block size is only cached if it ends at
+     * the end of the file, later reads in the block would find a premature end of file otherwise.
+     * @param generation the {@link #getCacheGeneration()} when the READ was sent
+     */
+    void cacheBlock(long index, byte[] data, long generation) {
+        int blockSize = getCacheBlockSize();
+        if (data.length == blockSize || index * blockSize + data.length >= cachedFile.getEndOfFile()) {
+            share.getBlockCache().put(cachedFile, index, data, generation);
+        }
+    }
+
     public void read(OutputStream destStream) throws IOException {
         read(destStream, null);
     }
 
+    /**
+     * Read the whole file into the given stream, keeping several READ requests in flight.
+     * @param destStream the stream to write the file contents to
+     * @param progressListener an optional callback that will be invoked when data has been read from the file
+     */
     public void read(OutputStream destStream, ProgressListener progressListener) throws IOException {
-        InputStream is = getInputStream(progressListener);
-        int numRead;
-        byte[] buf = new byte[share.getReadBufferSize()];
-        while ((numRead = is.read(buf)) != -1) {
-            destStream.write(buf, 0, numRead);
+        read(Channels.newChannel(destStream), progressListener);
+    }
+
+    /**
+     * Read the whole file into the given channel, keeping up to {@link com.hierynomus.smbj.SmbConfig#getReadPipelineDepth()}
+     * READ requests in flight.
+     * @param dest the channel to write the file contents to
+     * @param progressListener an optional callback that will be invoked when data has been read from the file
+     * @return the number of bytes read
+     */
+    public long read(WritableByteChannel dest, ProgressListener progressListener) throws IOException {
+        return read(dest, share.getReadBufferSize(), share.getReadPipelineDepth(), progressListener);
+    }
+
+    /**
+     * Read the whole file into the given channel, keeping up to depth READ requests for consecutive chunks in flight.
+     * @param dest the channel to write the file contents to
+     * @param chunkSize the number of bytes to read per request, at most the read buffer size
+     * @param depth the maximum number of READ requests in flight
+     * @param progressListener an optional callback that will be invoked when data has been read from the file
+     * @return the number of bytes read
+     */
+    public long read(WritableByteChannel dest, int chunkSize, int depth, ProgressListener progressListener) throws IOException {
+        return new FileDownload(this, chunkSize, depth, progressListener).transferTo(0, dest);
+    }
+
+    /**
+     * Download the whole file to a local file, which is created or truncated.
+     * @param dest the local file
+     * @param progressListener an optional callback that will be invoked when data has been read from the file
+     * @return the number of bytes read
+     */
+    public long read(Path dest, ProgressListener progressListener) throws IOException {
+        try (FileChannel channel = FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            return read(channel, progressListener);
+        }
+    }
+
+    /**
+     * Download the whole file to a local file, which is created or truncated.
+     * @param dest the local file
+     * @return the number of bytes read
+     * @see #transferTo(FileChannel, int, boolean, ProgressListener)
+     */
+    public long transferTo(Path dest) throws IOException {
+        try (FileChannel channel = FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return transferTo(channel, share.getReadPipelineDepth(), false, null);
+        }
+    }
+
+    /**
+     * Download the whole file to the start of a local channel, keeping up to depth READs in flight. Every chunk is
+     * written at its own position, the local file is extended to the size of this file up front, and truncated to
+     * the number of bytes read afterwards.
+     * @param dest the local channel, which must be readable as well if memoryMapped is set
+     * @param depth the maximum number of READ requests in flight
+     * @param memoryMapped whether to write the chunks to a mapping of the local file, instead of with positional writes
+     * @param progressListener an optional callback that will be invoked when data has been read from the file
+     * @return the number of bytes read
+     */
+    public long transferTo(FileChannel dest, int depth, boolean memoryMapped, ProgressListener progressListener) throws IOException {
+        return new FileTransfer(this, depth, memoryMapped, progressListener).download(dest);
+    }
+
+    /**
+     * Download the whole file to a local file, which is created or replaced, reading only the allocated ranges of
+     * this file. The holes of this file are left as holes in the local file, if its file system supports sparse files.
+     * @param dest the local file
+     * @return the number of bytes read
+     * @see #transferSparseTo(FileChannel, int, ProgressListener)
+     */
+    public long transferSparseTo(Path dest) throws IOException {
+        // A file is only created as a sparse file when it is new.
+        Files.deleteIfExists(dest);
+        try (FileChannel channel = FileChannel.open(dest, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+            return transferSparseTo(channel, share.getReadPipelineDepth(), null);
+        }
+    }
+
+    /**
+     * Download the whole file to the start of a local channel, keeping up to depth READs in flight, reading only the
+     * allocated ranges of this file as reported by {@link #getAllocatedRanges()}. The holes are not written, so the
+     * local channel is truncated to zero first and then extended to the size of this file. If the server cannot report
+     * the allocated ranges, the whole file is read.
+     * @param dest the local channel
+     * @param depth the maximum number of READ requests in flight
+     * @param progressListener an optional callback that will be invoked when data has been read from the file
+     * @return the number of bytes read, which excludes the holes
+     */
+    public long transferSparseTo(FileChannel dest, int depth, ProgressListener progressListener) throws IOException {
+        return new FileTransfer(this, depth, false, progressListener).downloadSparse(dest);
+    }
+
+    /**
+     * Get the ranges of this file that are allocated on disk. The rest of the file consists of holes, which read as
+     * zeros.
+     * @return the allocated ranges in ascending order
+     */
+    public List<FileAllocatedRangeBuffer> getAllocatedRanges() {
+        return getAllocatedRanges(0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get the ranges of this file that are allocated on disk within the given range.
+     * @param offset the offset of the range to query
+     * @param length the length of the range to query
+     * @return the allocated ranges in ascending order
+     */
+    public List<FileAllocatedRangeBuffer> getAllocatedRanges(long offset, long length) {
+        flushWrites();
+        return share.getAllocatedRanges(fileId, offset, length);
+    }
+
+    /**
+     * Upload a whole local file to the start of this file.
+     * @param src the local file
+     * @return the number of bytes written
+     * @see #transferFrom(FileChannel, int, boolean, ProgressListener)
+     */
+    public long transferFrom(Path src) throws IOException {
+        try (FileChannel channel = FileChannel.open(src, StandardOpenOption.READ)) {
+            return transferFrom(channel, share.getWritePipelineDepth(), false, null);
         }
-        is.close();
+    }
+
+    /**
+     * Upload a whole local channel to the start of this file, keeping up to depth WRITEs in flight. If this file is
+     * smaller than the channel, the space for the data is allocated on the server first. The size of this file is not
+     * changed if it was larger.
+     * @param src the local channel
+     * @param depth the maximum number of WRITE requests in flight
+     * @param memoryMapped whether to read the local file through mappings of it, instead of with positional reads
+     * @param progressListener an optional callback that will be invoked when data has been written to the file
+     * @return the number of bytes written
+     * @throws IncompleteWriteException if a WRITE failed; this is the
+     *                                  {@link com.hierynomus.smbj.common.SMBApiException} of the failed WRITE,
+     *                                  with the number of bytes that were written
+     */
+    public long transferFrom(FileChannel src, int depth, boolean memoryMapped, ProgressListener progressListener) throws IOException {
+        return new FileTransfer(this, depth, memoryMapped, progressListener).upload(src);
     }
 
     public InputStream getInputStream() {
@@ -153,7 +576,34 @@ public class File extends DiskEntry {
     }
 
     public InputStream getInputStream(ProgressListener listener) {
-        return new FileInputStream(this, share.getReadBufferSize(), share.getReadTimeout(), listener);
+        return new FileInputStream(this, share.getReadBufferSize(), share.getReadPipelineDepth(), share.getReadTimeout(), listener);
+    }
+
+    /**
+     * Get a seekable channel on this file, which also offers positional reads and writes that can be used by many
+     * threads concurrently.
+     * @return the channel
+     */
+    public FileByteChannel getByteChannel() {
+        return new FileByteChannel(this);
+    }
+
+    /**
+     * Get an asynchronous channel on this file, which invokes completion handlers from its own daemon threads.
+     * @return the channel
+     */
+    public AsynchronousFileChannel getAsynchronousChannel() {
+        return getAsynchronousChannel(null);
+    }
+
+    /**
+     * Get an asynchronous channel on this file.
+     * @param executor the executor from which completion handlers are invoked, or null to use daemon threads owned by
+     *                 the channel
+     * @return the channel
+     */
+    public AsynchronousFileChannel getAsynchronousChannel(ExecutorService executor) {
+        return new FileAsyncChannel(this, executor);
     }
 
     @Override
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.fileinformation.FileEndOfFileInformation;
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
+import com.hierynomus.mssmb2.messages.SMB2WriteResponse;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.io.ByteBufferByteChunkProvider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link AsynchronousFileChannel} on a {@link File}. Every read or write sends a single READ or WRITE request of at
+ * most the read or write buffer size, so a read or write may transfer less bytes than the buffer has remaining.
+ * <p/>
+ * The returned {@link Future}s copy the response into the buffer when their result is retrieved, or when they are
+ * found to be done. The {@link CompletionHandler}s are invoked from the given executor, which waits for the response;
+ * if no executor is given the channel starts its own daemon threads, which are stopped when the channel is closed.
+ * <p/>
+ * Byte range locks are not supported. Closing the channel does not close the file.
+ */
+public class FileAsyncChannel extends AsynchronousFileChannel {
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final File file;
+    private final AtomicLong size;
+    private final boolean ownsExecutor;
+    private ExecutorService executor;
+    private volatile boolean isOpen = true;
+
+    FileAsyncChannel(File file, ExecutorService executor) {
+        this.file = file;
+        this.size = new AtomicLong(file.getEndOfFileHint());
+        this.executor = executor;
+        this.ownsExecutor = executor == null;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return FileByteChannel.size(file, size);
+    }
+
+    @Override
+    public FileAsyncChannel truncate(long newSize) throws IOException {
+        ensureOpen();
+        if (newSize < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        if (newSize < size()) {
+            file.setFileInformation(new FileEndOfFileInformation(newSize));
+            size.set(newSize);
+        }
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        ensureOpen();
+        file.flush();
+    }
+
+    @Override
+    public Future<Integer> read(final ByteBuffer dst, long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        if (!isOpen) {
+            return closed();
+        }
+        if (!dst.hasRemaining()) {
+            return done(0);
+        }
+        final int length = Math.min(dst.remaining(), file.share.getReadBufferSize());
+        return new Completion<SMB2ReadResponse>(file.readAsync(position, length)) {
+            @Override
+            Integer complete(SMB2ReadResponse response) {
+                if (response.getHeader().getStatus() == NtStatus.STATUS_END_OF_FILE) {
+                    return -1;
+                }
+                if (response.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
+                    throw new SMBApiException(response.getHeader(), "Read failed for " + file);
+                }
+                int bytesRead = Math.min(length, response.getData().length);
+                dst.put(response.getData(), 0, bytesRead);
+                return bytesRead;
+            }
+        };
+    }
+
+    @Override
+    public <A> void read(ByteBuffer dst, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        notify(read(dst, position), file.share.getReadTimeout(), attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> write(final ByteBuffer src, final long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        if (!isOpen) {
+            return closed();
+        }
+        if (!src.hasRemaining()) {
+            return done(0);
+        }
+        return new Completion<SMB2WriteResponse>(file.writeAsync(new ByteBufferByteChunkProvider(src, position))) {
+            @Override
+            Integer complete(SMB2WriteResponse response) {
+                if (response.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
+                    throw new SMBApiException(response.getHeader(), "Write failed for " + file);
+                }
+                int bytesWritten = (int) response.getBytesWritten();
+                src.position(src.position() + bytesWritten);
+                FileByteChannel.growSize(size, position + bytesWritten);
+                return bytesWritten;
+            }
+        };
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        notify(write(src, position), file.share.getWriteTimeout(), attachment, handler);
+    }
+
+    @Override
+    public <A> void lock(long position, long size, boolean shared, A attachment, CompletionHandler<FileLock, ? super A> handler) {
+        throw new UnsupportedOperationException("Byte range locks are not supported");
+    }
+
+    @Override
+    public Future<FileLock> lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Byte range locks are not supported");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("Byte range locks are not supported");
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public synchronized void close() {
+        isOpen = false;
+        if (ownsExecutor && executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private <A> void notify(final Future<Integer> result, final long timeout, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Integer value;
+                try {
+                    value = timeout > 0 ? result.get(timeout, TimeUnit.MILLISECONDS) : result.get();
+                } catch (ExecutionException e) {
+                    handler.failed(e.getCause(), attachment);
+                    return;
+                } catch (InterruptedException | TimeoutException e) {
+                    handler.failed(e, attachment);
+                    return;
+                }
+                handler.completed(value, attachment);
+            }
+        });
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "smbj-channel-" + threadCounter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private static Future<Integer> done(final int value) {
+        FutureTask<Integer> result = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return value;
+            }
+        });
+        result.run();
+        return result;
+    }
+
+    private static Future<Integer> closed() {
+        FutureTask<Integer> result = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                throw new ClosedChannelException();
+            }
+        });
+        result.run();
+        return result;
+    }
+
+    /**
+     * Turns the response to a request into the result of a read or write, exactly once.
+     */
+    private abstract static class Completion<T> implements Future<Integer> {
+        private final Future<T> response;
+        private Integer result;
+        private ExecutionException failure;
+
+        Completion(Future<T> response) {
+            this.response = response;
+        }
+
+        abstract Integer complete(T response);
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return response.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return response.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            if (!response.isDone()) {
+                return false;
+            }
+            try {
+                get();
+            } catch (InterruptedException | ExecutionException ignored) {
+                // Thrown again from get()
+            }
+            return true;
+        }
+
+        @Override
+        public Integer get() throws InterruptedException, ExecutionException {
+            try {
+                return result(response.get());
+            } catch (RuntimeException e) {
+                return failed(e);
+            }
+        }
+
+        @Override
+        public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            try {
+                return result(response.get(timeout, unit));
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof TimeoutException) {
+                    throw (TimeoutException) e.getCause();
+                }
+                return failed(e);
+            }
+        }
+
+        private synchronized Integer result(T value) throws ExecutionException {
+            if (result == null && failure == null) {
+                try {
+                    result = complete(value);
+                } catch (RuntimeException e) {
+                    failure = new ExecutionException(e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+
+        private synchronized Integer failed(RuntimeException e) throws ExecutionException {
+            if (result == null && failure == null) {
+                failure = new ExecutionException(e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.fileinformation.FileEndOfFileInformation;
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation;
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
+import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.io.ByteBufferByteChunkProvider;
+import com.hierynomus.smbj.transport.TransportException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hierynomus.mssmb2.SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
+
+/**
+ * A {@link SeekableByteChannel} on a {@link File}. Changing the position is free, no request is sent until data is
+ * read or written.
+ * <p/>
+ * Next to the position based methods of {@link SeekableByteChannel}, the channel offers the positional
+ * {@link #read(ByteBuffer, long)} and {@link #write(ByteBuffer, long)}, which can be used concurrently by many threads.
+ * A read larger than the read buffer size is split into several READ requests which are in flight at the same time.
+ * <p/>
+ * Closing the channel does not close the file.
+ */
+public class FileByteChannel implements SeekableByteChannel {
+
+    private final File file;
+    private final long readTimeout;
+    private final AtomicLong size;
+    private final Object positionLock = new Object();
+    private long position;
+    private volatile boolean isOpen = true;
+
+    FileByteChannel(File file) {
+        this.file = file;
+        this.readTimeout = file.share.getReadTimeout();
+        this.size = new AtomicLong(file.getEndOfFileHint());
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (positionLock) {
+            int bytesRead = read(dst, position);
+            if (bytesRead > 0) {
+                position += bytesRead;
+            }
+            return bytesRead;
+        }
+    }
+
+    /**
+     * Read bytes from the file at the given position, without changing the position of this channel.
+     *
+     * @param dst      The buffer into which bytes are read
+     * @param position The position in the file at which to start reading
+     * @return The number of bytes read, which is less than requested if the end of the file was reached; or -1 if the
+     * position is at or after the end of the file
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        ensureOpen();
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        int length = dst.remaining();
+        if (length == 0) {
+            return 0;
+        }
+
+        int chunkSize = file.share.getReadBufferSize();
+        int depth = file.share.getReadPipelineDepth();
+        int creditsPerRead = (chunkSize - 1) / SINGLE_CREDIT_PAYLOAD_SIZE + 1;
+        Deque<PendingRead> inFlight = new ArrayDeque<>();
+        int requested = 0;
+        int bytesRead = 0;
+        while (bytesRead < length) {
+            while (requested < length && inFlight.size() < depth && (inFlight.isEmpty() || file.share.getAvailableCredits() > creditsPerRead)) {
+                PendingRead read = new PendingRead(position + requested, Math.min(chunkSize, length - requested));
+                inFlight.add(read);
+                requested += read.length;
+            }
+
+            PendingRead head = inFlight.poll();
+            byte[] data = receive(head.response);
+            if (data == null) {
+                break;
+            }
+            int n = Math.min(data.length, head.length);
+            dst.put(data, 0, n);
+            bytesRead += n;
+            if (n < head.length) {
+                // Short read, the ranges that follow cannot be copied without leaving a gap.
+                break;
+            }
+        }
+        return bytesRead == 0 ? -1 : bytesRead;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (positionLock) {
+            int bytesWritten = write(src, position);
+            position += bytesWritten;
+            return bytesWritten;
+        }
+    }
+
+    /**
+     * Write all remaining bytes of the buffer to the file at the given position, without changing the position of
+     * this channel.
+     *
+     * @param src      The buffer from which bytes are written
+     * @param position The position in the file at which to start writing
+     * @return The number of bytes written
+     */
+    public int write(ByteBuffer src, long position) throws IOException {
+        ensureOpen();
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        int bytesWritten = (int) file.write(new ByteBufferByteChunkProvider(src, position), file.share.getWritePipelineDepth(), null);
+        src.position(src.position() + bytesWritten);
+        growSize(size, position + bytesWritten);
+        return bytesWritten;
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        synchronized (positionLock) {
+            return position;
+        }
+    }
+
+    @Override
+    public FileByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        synchronized (positionLock) {
+            position = newPosition;
+        }
+        return this;
+    }
+
+    /**
+     * The size of the file as reported when it was opened, including the writes through this channel. The file is
+     * only queried if the size was not reported.
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size(file, size);
+    }
+
+    @Override
+    public FileByteChannel truncate(long newSize) throws IOException {
+        ensureOpen();
+        if (newSize < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        if (newSize < size()) {
+            file.setFileInformation(new FileEndOfFileInformation(newSize));
+            size.set(newSize);
+        }
+        synchronized (positionLock) {
+            position = Math.min(position, newSize);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public void close() {
+        isOpen = false;
+    }
+
+    static long size(File file, AtomicLong size) {
+        long current = size.get();
+        if (current < 0) {
+            long endOfFile = file.getFileInformation(FileStandardInformation.class).getEndOfFile();
+            size.compareAndSet(current, endOfFile);
+            current = size.get();
+        }
+        return current;
+    }
+
+    static void growSize(AtomicLong size, long endOfWrite) {
+        long current;
+        do {
+            current = size.get();
+        } while (current >= 0 && current < endOfWrite && !size.compareAndSet(current, endOfWrite));
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * @return the data read, or null at the end of the file.
+     */
+    private byte[] receive(Future<SMB2ReadResponse> response) throws TransportException {
+        SMB2ReadResponse res = Futures.get(response, readTimeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
+        if (res.getHeader().getStatus() == NtStatus.STATUS_END_OF_FILE) {
+            return null;
+        }
+        if (res.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
+            throw new SMBApiException(res.getHeader(), "Read failed for " + file);
+        }
+        return res.getData();
+    }
+
+    private class PendingRead {
+        private final int length;
+        private final Future<SMB2ReadResponse> response;
+
+        PendingRead(long offset, int length) {
+            this.length = length;
+            this.response = file.readAsync(offset, length);
+        }
+    }
+}
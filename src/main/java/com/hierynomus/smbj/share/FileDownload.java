@@ -0,0 +1,166 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
+import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.smbj.ProgressListener;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.transport.TransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.hierynomus.mssmb2.SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
+
+/**
+ * Downloads a file by keeping several READ requests for consecutive ranges of the file in flight, and writing the
+ * responses in file order to the destination.
+ * <p/>
+ * A new READ is only sent while the connection has enough credits for it, so that a download never starves the other
+ * requests on the connection, or sends a READ with less credits than its length requires.
+ */
+class FileDownload {
+    private static final Logger logger = LoggerFactory.getLogger(FileDownload.class);
+
+    private final File file;
+    private final int chunkSize;
+    private final int depth;
+    private final int creditsPerRead;
+    private final long readTimeout;
+    private final ProgressListener progressListener;
+
+    FileDownload(File file, int chunkSize, int depth, ProgressListener progressListener) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be greater than zero");
+        }
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Depth must be greater than zero");
+        }
+        this.file = file;
+        // The share truncates longer reads, which would leave gaps between the ranges.
+        this.chunkSize = Math.min(chunkSize, file.share.getReadBufferSize());
+        this.depth = depth;
+        this.creditsPerRead = (this.chunkSize - 1) / SINGLE_CREDIT_PAYLOAD_SIZE + 1;
+        this.readTimeout = file.share.getReadTimeout();
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Download the file from the given offset until the end of the file.
+     *
+     * @param fileOffset The offset in the file to start reading from
+     * @param dest       The channel to write the file contents to
+     * @return The number of bytes written to the destination
+     */
+    long transferTo(long fileOffset, WritableByteChannel dest) throws IOException {
+        Deque<PendingRead> inFlight = new ArrayDeque<>();
+        long nextOffset = fileOffset;
+        long bytesWritten = 0;
+        boolean eof = false;
+        while (!eof) {
+            while (inFlight.size() < depth && (inFlight.isEmpty() || file.share.getAvailableCredits() > creditsPerRead)) {
+                inFlight.add(new PendingRead(nextOffset, chunkSize));
+                nextOffset += chunkSize;
+            }
+
+            PendingRead head = inFlight.poll();
+            long offset = head.offset;
+            int remaining = head.length;
+            Future<SMB2ReadResponse> response = head.response;
+            // Fill the range of the head, re-issuing the remainder if the server returned less than requested.
+            while (remaining > 0) {
+                byte[] data = receive(response);
+                if (data == null || data.length == 0) {
+                    eof = true;
+                    break;
+                }
+                write(dest, data);
+                bytesWritten += data.length;
+                offset += data.length;
+                remaining -= data.length;
+                if (progressListener != null) progressListener.onProgressChanged(bytesWritten, -1);
+                if (remaining > 0) {
+                    logger.debug("Short read of {} bytes at offset {}, reading remaining {} bytes", data.length, offset - data.length, remaining);
+                    response = file.readAsync(offset, remaining);
+                }
+            }
+        }
+        logger.debug("EOF, {} bytes read from {} with {} reads still in flight", bytesWritten, file, inFlight.size());
+        drain(inFlight);
+        return bytesWritten;
+    }
+
+    /**
+     * Wait for the reads sent past the end of the file, so that their responses (and the credits they grant) are
+     * received before the caller continues on the file handle. The file has been read completely at this point, so a
+     * failure of any of these reads is only logged.
+     */
+    private void drain(Deque<PendingRead> inFlight) {
+        PendingRead pending;
+        while ((pending = inFlight.poll()) != null) {
+            try {
+                SMB2ReadResponse res = Futures.get(pending.response, readTimeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
+                if (res.getHeader().getStatus() != NtStatus.STATUS_END_OF_FILE) {
+                    logger.debug("Read at offset {} past the end of {} returned {}", pending.offset, file, res.getHeader().getStatus());
+                }
+            } catch (TransportException e) {
+                logger.debug("Read at offset {} past the end of {} failed", pending.offset, file, e);
+            }
+        }
+    }
+
+    /**
+     * @return the data read, or null at the end of the file.
+     */
+    private byte[] receive(Future<SMB2ReadResponse> response) throws TransportException {
+        SMB2ReadResponse res = Futures.get(response, readTimeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
+        if (res.getHeader().getStatus() == NtStatus.STATUS_END_OF_FILE) {
+            return null;
+        }
+        if (res.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
+            throw new SMBApiException(res.getHeader(), "Read failed for " + file);
+        }
+        return res.getData();
+    }
+
+    private static void write(WritableByteChannel dest, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            dest.write(buffer);
+        }
+    }
+
+    private class PendingRead {
+        private final long offset;
+        private final int length;
+        private final Future<SMB2ReadResponse> response;
+
+        PendingRead(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+            this.response = file.readAsync(offset, length);
+        }
+    }
+}
@@ -26,9 +26,25 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import static com.hierynomus.mssmb2.SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
+
+/**
+ * An InputStream on a file, which reads ahead of the consumer.
+ * <p/>
+ * The read-ahead window starts at a single small read, and doubles every time the consumer has to wait for a read,
+ * up to depth reads of bufferSize bytes. A consumer that is slower than the reads finds the data already received, and
+ * does not grow the window any further. A skip outside of the current block resets the window. Reads are limited to
+ * the size of the file when it was opened, a single read of one byte at that size detects whether the file has grown,
+ * in parallel with the read of the last block.
+ * <p/>
+ * If the blocks of the file are cached, the stream reads whole blocks, and takes the blocks that are cached from the
+ * cache instead of reading them.
+ */
 class FileInputStream extends InputStream {
 
     private final long readTimeout;
@@ -38,16 +54,29 @@ class FileInputStream extends InputStream {
     private byte[] buf;
     private ProgressListener progressListener;
     private boolean isClosed;
-    private Future<SMB2ReadResponse> nextResponse;
+    private final Deque<PendingRead> readAhead = new ArrayDeque<>();
+    // The file offset up to which reads were sent
+    private long readAheadOffset = 0;
+    private int readAheadSize;
+    private final int maxReadAheadSize;
+    private long endOfFileHint;
 
     private static final Logger logger = LoggerFactory.getLogger(FileInputStream.class);
+    // The length of the read that detects whether the file has grown since it was opened
+    private static final int PROBE_LENGTH = 1;
     private int bufferSize;
+    // The size of the blocks in the block cache, reads are aligned to blocks when it is used
+    private final int blockSize;
 
-    FileInputStream(File file, int bufferSize, long readTimeout, ProgressListener progressListener) {
+    FileInputStream(File file, int bufferSize, int depth, long readTimeout, ProgressListener progressListener) {
         this.file = file;
         this.bufferSize = bufferSize;
         this.progressListener = progressListener;
         this.readTimeout = readTimeout;
+        this.blockSize = file.getCacheBlockSize();
+        this.maxReadAheadSize = (int) Math.min(Integer.MAX_VALUE, (long) (blockSize > 0 ? blockSize : bufferSize) * depth);
+        this.readAheadSize = initialReadAheadSize();
+        this.endOfFileHint = file.getEndOfFileHint();
     }
 
     @Override
@@ -77,11 +106,43 @@ class FileInputStream extends InputStream {
         return l;
     }
 
+    @Override
+    public long skip(long n) throws IOException {
+        if (isClosed || n <= 0) {
+            return 0;
+        }
+        int buffered = buf == null ? 0 : buf.length - curr;
+        if (n <= buffered) {
+            curr += (int) n;
+            return n;
+        }
+        long position = offset - buffered;
+        long target = position + n;
+        if (endOfFileHint >= 0 && target > endOfFileHint) {
+            // Do not skip beyond the end of the file, the read at the end detects whether it has grown.
+            target = Math.max(position, endOfFileHint);
+        }
+        if (target - position <= buffered) {
+            curr += (int) (target - position);
+            return target - position;
+        }
+        // Random access, the data read ahead is of no use anymore.
+        logger.debug("Skipping to offset {}, discarding {} reads ahead", target, readAhead.size());
+        buf = null;
+        curr = 0;
+        offset = target;
+        readAheadOffset = blockSize > 0 ? target - target % blockSize : target;
+        readAhead.clear();
+        readAheadSize = initialReadAheadSize();
+        return target - position;
+    }
+
     @Override
     public void close() throws IOException {
         isClosed = true;
         file = null;
         buf = null;
+        readAhead.clear();
     }
 
     @Override
@@ -90,29 +151,110 @@ class FileInputStream extends InputStream {
     }
 
     private void loadBuffer() throws IOException {
-
-        if (nextResponse == null)
-            nextResponse = sendRequest();
-
-        SMB2ReadResponse res = Futures.get(nextResponse, readTimeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
-        if (res.getHeader().getStatus() == NtStatus.STATUS_SUCCESS) {
-            buf = res.getData();
-            curr = 0;
-            offset += res.getDataLength();
-            if (progressListener != null) progressListener.onProgressChanged(offset, -1);
+        sendReadAhead();
+        PendingRead next = readAhead.poll();
+        byte[] data = next.cached;
+        if (data == null) {
+            if (!next.response.isDone()) {
+                // The consumer has caught up with the reads, so grow the window.
+                readAheadSize = (int) Math.min(maxReadAheadSize, 2L * readAheadSize);
+            }
+            SMB2ReadResponse res = Futures.get(next.response, readTimeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
+            if (res.getHeader().getStatus() == NtStatus.STATUS_END_OF_FILE) {
+                logger.debug("EOF, {} bytes read", offset);
+                isClosed = true;
+                return;
+            }
+            if (res.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
+                throw new SMBApiException(res.getHeader(), "Read failed for " + this);
+            }
+            data = res.getData();
+            if (blockSize > 0 && next.offset % blockSize == 0 && !next.isProbe) {
+                file.cacheBlock(next.offset / blockSize, data, next.generation);
+            }
         }
-        if (res.getHeader().getStatus() == NtStatus.STATUS_END_OF_FILE) {
+        // A block read from the cache may start before the position of the consumer.
+        int start = (int) (offset - next.offset);
+        if (start >= data.length) {
             logger.debug("EOF, {} bytes read", offset);
             isClosed = true;
             return;
         }
-        if (res.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
-            throw new SMBApiException(res.getHeader(), "Read failed for " + this);
+        buf = data;
+        curr = start;
+        offset = next.offset + data.length;
+        if (progressListener != null) progressListener.onProgressChanged(offset, -1);
+        if (next.offset >= endOfFileHint && endOfFileHint >= 0) {
+            logger.debug("File {} has grown beyond {} bytes since it was opened", file, endOfFileHint);
+            endOfFileHint = -1;
+        }
+        if (offset != next.offset + next.length && !readAhead.isEmpty()) {
+            // Short read, the reads ahead do not continue where this one ended.
+            readAhead.clear();
+            readAheadOffset = offset;
+        }
+    }
+
+    /**
+     * Send reads until the window ahead of the consumer is filled, there is always at least one read outstanding.
+     */
+    private void sendReadAhead() throws IOException {
+        while (readAhead.isEmpty() || readAheadOffset - offset < readAheadSize) {
+            int length = blockSize > 0 ? blockSize : Math.min(bufferSize, readAheadSize);
+            boolean isProbe = false;
+            if (endOfFileHint >= 0) {
+                if (readAheadOffset > endOfFileHint && !readAhead.isEmpty()) {
+                    // Only the read that detects whether the file has grown is sent beyond the known size.
+                    break;
+                } else if (readAheadOffset < endOfFileHint) {
+                    length = (int) Math.min(length, endOfFileHint - readAheadOffset);
+                } else {
+                    length = PROBE_LENGTH;
+                    isProbe = true;
+                }
+            }
+            boolean isBlock = blockSize > 0 && readAheadOffset % blockSize == 0 && !isProbe;
+            byte[] cached = isBlock ? file.getCachedBlock(readAheadOffset / blockSize) : null;
+            if (cached != null) {
+                readAhead.add(new PendingRead(readAheadOffset, length, cached));
+            } else {
+                long generation = blockSize > 0 ? file.getCacheGeneration() : 0;
+                readAhead.add(new PendingRead(readAheadOffset, length, file.readAsync(readAheadOffset, length), generation, isProbe));
+            }
+            readAheadOffset += length;
         }
-        nextResponse = sendRequest();
     }
 
-    private Future<SMB2ReadResponse> sendRequest() throws IOException {
-        return file.readAsync(offset, bufferSize);
+    private int initialReadAheadSize() {
+        return Math.min(SINGLE_CREDIT_PAYLOAD_SIZE, bufferSize);
+    }
+
+    private static class PendingRead {
+        private final long offset;
+        private final int length;
+        private final Future<SMB2ReadResponse> response;
+        private final byte[] cached;
+        // The generation of the cached blocks when the read was sent
+        private final long generation;
+        // Whether this is the read that detects whether the file has grown, its data is not a whole block
+        private final boolean isProbe;
+
+        PendingRead(long offset, int length, Future<SMB2ReadResponse> response, long generation, boolean isProbe) {
+            this.offset = offset;
+            this.length = length;
+            this.response = response;
+            this.cached = null;
+            this.generation = generation;
+            this.isProbe = isProbe;
+        }
+
+        PendingRead(long offset, int length, byte[] cached) {
+            this.offset = offset;
+            this.length = length;
+            this.response = null;
+            this.cached = cached;
+            this.generation = 0;
+            this.isProbe = false;
+        }
     }
 }
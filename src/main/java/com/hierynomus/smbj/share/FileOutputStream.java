@@ -15,41 +15,69 @@
  */
 package com.hierynomus.smbj.share;
 
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.messages.SMB2WriteResponse;
 import com.hierynomus.smbj.ProgressListener;
-import com.hierynomus.smbj.io.ByteChunkProvider;
-import com.hierynomus.smbj.transport.TransportException;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
+
+/**
+ * A write-behind OutputStream on a file.
+ * <p/>
+ * Data is collected in buffers of the write buffer size. A full buffer is sent as a WRITE request without waiting for
+ * the response, while the caller fills the next buffer. At most the given number of buffers is allocated, when all of
+ * them are full the caller waits for the oldest WRITE to complete. A failed WRITE is reported by the next call to
+ * {@link #write(int)}, {@link #flush()} or {@link #close()}, with the {@link SMBApiException} of that WRITE, as
+ * {@link File#write(com.hierynomus.smbj.io.ByteChunkProvider, int, ProgressListener)} does.
+ */
 class FileOutputStream extends OutputStream {
 
     private File file;
     private ProgressListener progressListener;
     private boolean isClosed = false;
-    private ByteArrayProvider provider;
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final long writeTimeout;
+    private byte[] buf;
+    private int count;
+    // The file offset of the first byte in buf
+    private long offset;
+    private int allocatedBuffers;
+    private final Deque<byte[]> freeBuffers = new ArrayDeque<>();
+    private final Deque<PendingWrite> inFlight = new ArrayDeque<>();
+    private RuntimeException failure;
 
     private static final Logger logger = LoggerFactory.getLogger(FileOutputStream.class);
 
-    FileOutputStream(File file, int bufferSize, ProgressListener progressListener) {
+    FileOutputStream(File file, int bufferSize, int maxBuffers, ProgressListener progressListener) {
+        if (maxBuffers <= 0) {
+            throw new IllegalArgumentException("The number of buffers must be greater than zero");
+        }
         this.file = file;
         this.progressListener = progressListener;
-        this.provider = new ByteArrayProvider(bufferSize);
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.writeTimeout = file.share.getWriteTimeout();
+        this.buf = new byte[bufferSize];
+        this.allocatedBuffers = 1;
     }
 
     @Override
     public void write(int b) throws IOException {
         verifyConnectionNotClosed();
-
-        if (provider.isBufferFull()) {
-            flush();
-        }
-
-        if (!provider.isBufferFull()) {
-            provider.writeByte(b);
+        if (count == buf.length) {
+            sendBuffer();
         }
+        buf[count++] = (byte) b;
     }
 
     @Override
@@ -60,98 +88,126 @@ class FileOutputStream extends OutputStream {
     @Override
     public void write(byte b[], int off, int len) throws IOException {
         verifyConnectionNotClosed();
-        do {
-            int writeLen = Math.min(len, provider.maxSize());
-
-            while (provider.isBufferFull(writeLen)) {
-                flush();
-            }
-
-            if (!provider.isBufferFull()) {
-                provider.writeBytes(b, off, writeLen);
+        if (off < 0 || len < 0 || b.length - off < len) {
+            throw new IndexOutOfBoundsException("Bytes to write do not exist in source");
+        }
+        while (len > 0) {
+            if (count == buf.length) {
+                sendBuffer();
             }
-            
+            int writeLen = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, writeLen);
+            count += writeLen;
             off += writeLen;
             len -= writeLen;
-            
-        } while (len > 0);
+        }
     }
 
+    /**
+     * Send the buffered data, and wait until all data written to this stream has been written to the file.
+     */
     @Override
     public void flush() throws IOException {
         verifyConnectionNotClosed();
-        if (provider.isAvailable()) {
-            sendWriteRequest();
+        if (count > 0) {
+            sendBuffer();
         }
-    }
-
-    private void sendWriteRequest() throws TransportException {
-        file.write(provider, progressListener);
+        while (!inFlight.isEmpty()) {
+            complete(inFlight.poll());
+        }
+        throwFailure();
     }
 
     @Override
     public void close() throws IOException {
-
-        while (provider.isAvailable()) {
-            sendWriteRequest();
+        if (isClosed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            isClosed = true;
+            inFlight.clear();
+            freeBuffers.clear();
+            buf = null;
+            file = null;
+            logger.debug("EOF, {} bytes written", offset);
         }
-
-        provider.reset();
-
-        isClosed = true;
-        file = null;
-        logger.debug("EOF, {} bytes written", provider.getOffset());
     }
 
-    private void verifyConnectionNotClosed() throws IOException {
-        if (isClosed) throw new IOException("Stream is closed");
+    private void sendBuffer() {
+        logger.debug("Writing {} bytes to {} from offset {}", count, file, offset);
+        inFlight.add(new PendingWrite(buf, count, offset));
+        offset += count;
+        buf = nextBuffer();
+        count = 0;
+        throwFailure();
     }
 
-    private static class ByteArrayProvider extends ByteChunkProvider {
-
-        private RingBuffer buf;
-
-        private ByteArrayProvider(int maxWriteSize) {
-            this.buf = new RingBuffer(maxWriteSize);
+    private byte[] nextBuffer() {
+        // Recycle the buffers of the WRITEs that completed in the meantime.
+        while (!inFlight.isEmpty() && inFlight.peek().response.isDone()) {
+            complete(inFlight.poll());
         }
-
-        @Override
-        public boolean isAvailable() {
-            return !buf.isEmpty();
-        }
-
-        @Override
-        protected int getChunk(byte[] chunk) throws IOException {
-            return buf.read(chunk);
+        if (!freeBuffers.isEmpty()) {
+            return freeBuffers.pop();
         }
-
-        @Override
-        public int bytesLeft() {
-            return buf.size();
-        }
-
-        public void writeBytes(byte[] b, int off, int len) {
-            buf.write(b, off, len);
-        }
-
-        public void writeByte(int b) {
-            buf.write(b);
+        if (allocatedBuffers < maxBuffers) {
+            allocatedBuffers++;
+            return new byte[bufferSize];
         }
+        complete(inFlight.poll());
+        return freeBuffers.pop();
+    }
 
-        public boolean isBufferFull() {
-            return buf.isFull();
+    private void complete(PendingWrite write) {
+        try {
+            SMB2WriteResponse response = file.share.receive(write.response, writeTimeout);
+            if (response.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
+                throw new SMBApiException(response.getHeader(), "Write failed for " + file);
+            }
+            long written = response.getBytesWritten();
+            while (written < write.length) {
+                // Short write, synchronously write the remainder of the buffer.
+                int remaining = (int) (write.length - written);
+                response = file.share.write(file.fileId, new ArrayByteChunkProvider(write.buffer, (int) written, remaining, write.offset + written));
+                if (response.getBytesWritten() <= 0) {
+                    throw new SMBRuntimeException("Write of " + remaining + " bytes at offset " + (write.offset + written) + " for " + file + " did not write any data");
+                }
+                written += response.getBytesWritten();
+            }
+            if (progressListener != null) progressListener.onProgressChanged(write.length, write.offset + write.length);
+        } catch (SMBRuntimeException e) {
+            logger.debug("Write at offset {} for {} failed", write.offset, file, e);
+            if (failure == null) {
+                failure = e;
+            }
         }
+        freeBuffers.push(write.buffer);
+    }
 
-        public boolean isBufferFull(int len) {
-            return buf.isFull(len);
+    private void throwFailure() {
+        if (failure != null) {
+            throw failure;
         }
+    }
 
-        public int maxSize() {
-            return buf.maxSize();
-        }
+    private void verifyConnectionNotClosed() throws IOException {
+        if (isClosed) throw new IOException("Stream is closed");
+        throwFailure();
+    }
 
-        private void reset() {
-            this.buf = null;
+    private class PendingWrite {
+        private final byte[] buffer;
+        private final int length;
+        private final long offset;
+        private final Future<SMB2WriteResponse> response;
+
+        PendingWrite(byte[] buffer, int length, long offset) {
+            this.buffer = buffer;
+            this.length = length;
+            this.offset = offset;
+            this.response = file.writeAsync(new ArrayByteChunkProvider(buffer, 0, length, offset));
         }
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A range of a file to read with {@link File#readVectored(java.util.List)}, and the buffer to read it into.
+ */
+public class FileRange {
+    private final long offset;
+    private final ByteBuffer buffer;
+    private final int length;
+    private int bytesRead;
+
+    /**
+     * @param offset The offset in the file at which the range starts
+     * @param buffer The buffer to read into, the range is as long as the bytes remaining in the buffer
+     */
+    public FileRange(long offset, ByteBuffer buffer) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Negative offset");
+        }
+        this.offset = offset;
+        this.buffer = buffer;
+        this.length = buffer.remaining();
+    }
+
+    public FileRange(long offset, byte[] buffer) {
+        this(offset, ByteBuffer.wrap(buffer));
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    long getEnd() {
+        return offset + length;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the number of bytes read, which is less than the length if the end of the file was reached; or -1 if
+     * the range starts at or after the end of the file
+     */
+    public int getBytesRead() {
+        return bytesRead;
+    }
+
+    void setBytesRead(int bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    @Override
+    public String toString() {
+        return "FileRange{" +
+            "offset=" + offset +
+            ", length=" + length +
+            '}';
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.fileinformation.FileAllocationInformation;
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation;
+import com.hierynomus.msfscc.fsctl.FileAllocatedRangeBuffer;
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
+import com.hierynomus.protocol.commons.IOUtils;
+import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.smbj.ProgressListener;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.io.ByteBufferByteChunkProvider;
+import com.hierynomus.smbj.io.FileChannelByteChunkProvider;
+import com.hierynomus.smbj.transport.TransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.hierynomus.mssmb2.SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
+
+/**
+ * Copies a whole file between the share and a local {@link FileChannel}, using positional I/O on the local side so
+ * that every chunk is written to or read from its own position, independent of the other chunks in flight.
+ * <p/>
+ * The size of the copy is known up front, which allows preallocating the destination. The local side can be
+ * memory-mapped: a download maps the range of every READ, an upload maps regions of at most
+ * {@link #MAX_MAPPED_REGION} bytes.
+ */
+class FileTransfer {
+    private static final Logger logger = LoggerFactory.getLogger(FileTransfer.class);
+
+    static final int MAX_MAPPED_REGION = 64 * 1024 * 1024;
+
+    private final File file;
+    private final int depth;
+    private final boolean memoryMapped;
+    private final ProgressListener progressListener;
+
+    FileTransfer(File file, int depth, boolean memoryMapped, ProgressListener progressListener) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Depth must be greater than zero");
+        }
+        this.file = file;
+        this.depth = depth;
+        this.memoryMapped = memoryMapped;
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Download the file to the start of the local channel. The local file is extended to the size of the remote file
+     * before reading, and truncated to the number of bytes read afterwards.
+     *
+     * @return The number of bytes read
+     */
+    long download(FileChannel dest) throws IOException {
+        long size = remoteSize();
+        return download(dest, size, Collections.singletonList(new FileAllocatedRangeBuffer(0, size)));
+    }
+
+    /**
+     * Download only the allocated ranges of the file to the start of the local channel, leaving the holes of a sparse
+     * file unwritten, so that they become holes of the local file if its file system supports them. The local file
+     * is emptied first, so that the holes read as zeros, and then extended to the size of the remote file.
+     *
+     * @return The number of bytes read
+     */
+    long downloadSparse(FileChannel dest) throws IOException {
+        long size = remoteSize();
+        // The holes are not written, so what the channel held there before would remain.
+        dest.truncate(0);
+        List<FileAllocatedRangeBuffer> ranges;
+        try {
+            ranges = file.getAllocatedRanges(0, size);
+        } catch (SMBApiException e) {
+            logger.debug("Could not query allocated ranges of {} ({}), reading the whole file", file, e.getStatus());
+            ranges = Collections.singletonList(new FileAllocatedRangeBuffer(0, size));
+        }
+        return download(dest, size, ranges);
+    }
+
+    private long download(FileChannel dest, long size, List<FileAllocatedRangeBuffer> ranges) throws IOException {
+        if (size > dest.size()) {
+            // Set the size of the local file once, instead of growing it with every chunk.
+            dest.write(ByteBuffer.allocate(1), size - 1);
+        }
+
+        int chunkSize = file.share.getReadBufferSize();
+        int creditsPerRead = (chunkSize - 1) / SINGLE_CREDIT_PAYLOAD_SIZE + 1;
+        long readTimeout = file.share.getReadTimeout();
+        Deque<PendingRead> inFlight = new ArrayDeque<>();
+        Iterator<FileAllocatedRangeBuffer> nextRanges = ranges.iterator();
+        long nextOffset = 0;
+        long rangeEnd = 0;
+        long bytesRead = 0;
+        // The holes between the ranges count as transferred for the progress.
+        long holes = 0;
+        long endOfFile = size;
+        while (true) {
+            while (inFlight.size() < depth && (inFlight.isEmpty() || file.share.getAvailableCredits() > creditsPerRead)) {
+                if (nextOffset >= Math.min(rangeEnd, endOfFile)) {
+                    if (!nextRanges.hasNext()) {
+                        break;
+                    }
+                    FileAllocatedRangeBuffer range = nextRanges.next();
+                    holes += Math.max(0, Math.min(range.getFileOffset(), endOfFile) - nextOffset);
+                    nextOffset = range.getFileOffset();
+                    rangeEnd = range.getFileOffset() + range.getLength();
+                    continue;
+                }
+                int length = (int) Math.min(chunkSize, Math.min(rangeEnd, endOfFile) - nextOffset);
+                inFlight.add(new PendingRead(nextOffset, length));
+                nextOffset += length;
+            }
+            if (inFlight.isEmpty()) {
+                break;
+            }
+
+            PendingRead read = inFlight.poll();
+            SMB2ReadResponse response = Futures.get(read.response, readTimeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
+            if (response.getHeader().getStatus() == NtStatus.STATUS_END_OF_FILE) {
+                // The file shrank since its size was determined.
+                endOfFile = Math.min(endOfFile, read.offset);
+                continue;
+            }
+            if (response.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
+                throw new SMBApiException(response.getHeader(), "Read failed for " + file);
+            }
+            byte[] data = response.getData();
+            int length = Math.min(data.length, read.length);
+            write(dest, ByteBuffer.wrap(data, 0, length), read.offset);
+            bytesRead += length;
+            if (progressListener != null) progressListener.onProgressChanged(bytesRead + holes, size);
+            if (length < read.length) {
+                // Short read, the remainder is read with the next READs.
+                logger.debug("Short read of {} bytes at offset {}, reading remaining {} bytes", length, read.offset, read.length - length);
+                inFlight.addFirst(new PendingRead(read.offset + length, read.length - length));
+            }
+        }
+
+        if (progressListener != null && bytesRead + holes < endOfFile) {
+            // The file ends with a hole, or has no allocated ranges at all.
+            progressListener.onProgressChanged(endOfFile, endOfFile);
+        }
+
+        long localSize = endOfFile;
+        if (endOfFile == size) {
+            // The file may have grown since its size was determined.
+            dest.position(size);
+            long tail = new FileDownload(file, chunkSize, depth, null).transferTo(size, dest);
+            bytesRead += tail;
+            localSize += tail;
+        }
+        if (dest.size() > localSize) {
+            dest.truncate(localSize);
+        }
+        logger.debug("Downloaded {} bytes of {}", bytesRead, file);
+        return bytesRead;
+    }
+
+    /**
+     * Upload the whole local channel to the start of the file. When the file is smaller than the channel, the space
+     * for the data is reserved on the server first. A larger file is left as is, as setting its allocation size would
+     * truncate it.
+     *
+     * @return The number of bytes written
+     */
+    long upload(FileChannel src) throws IOException {
+        long size = src.size();
+        // The current size, the file may have been written to since it was opened.
+        if (size > file.getFileInformation(FileStandardInformation.class).getEndOfFile()) {
+            file.setFileInformation(new FileAllocationInformation(size));
+        }
+        if (!memoryMapped) {
+            return file.write(new FileChannelByteChunkProvider(src, 0, size, 0), depth, progressListener);
+        }
+        long bytesWritten = 0;
+        for (long position = 0; position < size; position += MAX_MAPPED_REGION) {
+            long length = Math.min(MAX_MAPPED_REGION, size - position);
+            MappedByteBuffer mapped = src.map(FileChannel.MapMode.READ_ONLY, position, length);
+            try {
+                bytesWritten += file.write(new ByteBufferByteChunkProvider(mapped, position), depth, null);
+            } catch (IncompleteWriteException e) {
+                long written = bytesWritten + e.getBytesWritten();
+                throw new IncompleteWriteException("Upload failed for " + file + ", " + written + " bytes were written", written, (SMBApiException) e.getCause());
+            } finally {
+                IOUtils.unmap(mapped);
+            }
+            if (progressListener != null) progressListener.onProgressChanged(bytesWritten, size);
+        }
+        return bytesWritten;
+    }
+
+    private long remoteSize() {
+        long size = file.getEndOfFileHint();
+        if (size < 0) {
+            size = file.getFileInformation(FileStandardInformation.class).getEndOfFile();
+        }
+        return size;
+    }
+
+    private void write(FileChannel dest, ByteBuffer data, long position) throws IOException {
+        if (memoryMapped) {
+            MappedByteBuffer mapped = dest.map(FileChannel.MapMode.READ_WRITE, position, data.remaining());
+            try {
+                mapped.put(data);
+            } finally {
+                IOUtils.unmap(mapped);
+            }
+            return;
+        }
+        while (data.hasRemaining()) {
+            position += dest.write(data, position);
+        }
+    }
+
+    private class PendingRead {
+        private final long offset;
+        private final int length;
+        private final Future<SMB2ReadResponse> response;
+
+        PendingRead(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+            this.response = file.readAsync(offset, length);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.messages.SMB2WriteResponse;
+import com.hierynomus.smbj.ProgressListener;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.common.SMBBuffer;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
+import com.hierynomus.smbj.io.ByteChunkProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
+
+import static com.hierynomus.mssmb2.SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
+
+/**
+ * Uploads data to a file by keeping several WRITE requests for consecutive ranges of the file in flight.
+ * <p/>
+ * Every WRITE is sent with a {@link ByteChunkProvider#slice(int) slice} of the provider, so that its data is put
+ * straight into the packet even when the requests are serialized out of order. Providers that can only be read
+ * sequentially do not support slices; the data of every WRITE is then copied from the provider up front. As for
+ * {@link FileDownload}, a new WRITE is only sent while the connection has enough credits for it.
+ */
+class FileUpload {
+    private static final Logger logger = LoggerFactory.getLogger(FileUpload.class);
+
+    private final File file;
+    private final int depth;
+    private final int chunksPerWrite;
+    private final int creditsPerWrite;
+    private final long writeTimeout;
+    private final ProgressListener progressListener;
+
+    FileUpload(File file, int depth, ProgressListener progressListener) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Depth must be greater than zero");
+        }
+        this.file = file;
+        this.depth = depth;
+        this.chunksPerWrite = Math.max(1, file.share.getWriteBufferSize() / SINGLE_CREDIT_PAYLOAD_SIZE);
+        this.creditsPerWrite = chunksPerWrite;
+        this.writeTimeout = file.share.getWriteTimeout();
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Write all available data from the provider to the file, starting at {@link ByteChunkProvider#getOffset()}.
+     *
+     * @param provider The data to write
+     * @return The number of bytes written
+     * @throws IncompleteWriteException If a WRITE failed, the remaining WRITEs are not sent.
+     * @throws SMBRuntimeException If a WRITE could not be sent or did not write any data.
+     */
+    long transferFrom(ByteChunkProvider provider) {
+        long startOffset = provider.getOffset();
+        Deque<PendingWrite> inFlight = new ArrayDeque<>();
+        Deque<SMBBuffer> freeBuffers = new ArrayDeque<>();
+        long bytesWritten = 0;
+        while (provider.isAvailable() || !inFlight.isEmpty()) {
+            while (provider.isAvailable() && inFlight.size() < depth && (inFlight.isEmpty() || file.share.getAvailableCredits() > creditsPerWrite)) {
+                inFlight.add(nextWrite(provider, freeBuffers));
+            }
+
+            PendingWrite head = inFlight.poll();
+            int written;
+            try {
+                written = receive(head);
+            } catch (SMBApiException e) {
+                long committed = drain(head.offset, inFlight) - startOffset;
+                throw new IncompleteWriteException("Write failed for " + file + " at offset " + head.offset + ", " + committed + " bytes were written", committed, e);
+            } catch (SMBRuntimeException e) {
+                drain(head.offset, inFlight);
+                throw e;
+            }
+            bytesWritten += written;
+            if (progressListener != null) progressListener.onProgressChanged(written, provider.getOffset());
+            if (written < head.length) {
+                logger.debug("Short write of {} bytes at offset {}, writing remaining {} bytes", written, head.offset, head.length - written);
+                head.data.skip(written);
+                inFlight.add(new PendingWrite(head.data, head.buffer));
+            } else if (head.buffer != null) {
+                freeBuffers.push(head.buffer);
+            }
+        }
+        return bytesWritten;
+    }
+
+    private PendingWrite nextWrite(ByteChunkProvider provider, Deque<SMBBuffer> freeBuffers) {
+        int length = Math.min(provider.bytesLeft(), chunksPerWrite * SINGLE_CREDIT_PAYLOAD_SIZE);
+        ByteChunkProvider slice = provider.slice(length);
+        if (slice != null) {
+            provider.skip(length);
+            return new PendingWrite(slice, null);
+        }
+        SMBBuffer buffer = freeBuffers.isEmpty() ? new SMBBuffer() : freeBuffers.pop();
+        buffer.clear();
+        long offset = provider.getOffset();
+        for (int i = 0; i < chunksPerWrite && provider.isAvailable(); i++) {
+            provider.writeChunk(buffer);
+        }
+        return new PendingWrite(new ArrayByteChunkProvider(buffer.array(), buffer.rpos(), buffer.available(), offset), buffer);
+    }
+
+    /**
+     * @return the number of bytes written by the WRITE.
+     */
+    private int receive(PendingWrite write) {
+        SMB2WriteResponse response = file.share.receive(write.response, writeTimeout);
+        if (response.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
+            throw new SMBApiException(response.getHeader(), "Write failed for " + file);
+        }
+        if (response.getBytesWritten() <= 0) {
+            throw new SMBRuntimeException("Write of " + write.length + " bytes at offset " + write.offset + " for " + file + " did not write any data");
+        }
+        return (int) Math.min(response.getBytesWritten(), write.length);
+    }
+
+    /**
+     * Wait for the WRITEs still in flight after a failure, to determine up to where the file was written.
+     *
+     * @return the offset up to which all data was written.
+     */
+    private long drain(long failedOffset, Deque<PendingWrite> inFlight) {
+        long committedUpTo = failedOffset;
+        for (PendingWrite write : inFlight) {
+            try {
+                int written = receive(write);
+                if (written < write.length) {
+                    committedUpTo = Math.min(committedUpTo, write.offset + written);
+                }
+            } catch (SMBRuntimeException e) {
+                logger.debug("Write at offset {} for {} failed as well", write.offset, file, e);
+                committedUpTo = Math.min(committedUpTo, write.offset);
+            }
+        }
+        inFlight.clear();
+        return committedUpTo;
+    }
+
+    private class PendingWrite {
+        /**
+         * The data of the WRITE, which is not read itself, but only through a slice per WRITE sent.
+         */
+        private final ByteChunkProvider data;
+        /**
+         * The buffer the data was copied into, or null if the data is a slice of the provider.
+         */
+        private final SMBBuffer buffer;
+        private final int length;
+        private final long offset;
+        private final Future<SMB2WriteResponse> response;
+
+        PendingWrite(ByteChunkProvider data, SMBBuffer buffer) {
+            this.data = data;
+            this.buffer = buffer;
+            this.length = data.bytesLeft();
+            this.offset = data.getOffset();
+            this.response = file.writeAsync(data.slice(length));
+        }
+    }
+}
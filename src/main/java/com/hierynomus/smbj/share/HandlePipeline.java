@@ -0,0 +1,274 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse;
+import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.transport.TransportException;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The handles in flight of {@link BatchStat}, {@link TreeWalk} and {@link TreeDelete}. Every handle is opened with a
+ * CREATE, used for requests sent one after the other, and closed with a CLOSE, where the next request is sent by the
+ * {@link Listener} as soon as the response to the previous one arrives. A handle stays in flight until its CLOSE
+ * completes.
+ * <p/>
+ * A response that does not arrive within the transact timeout fails the handle. A CREATE that timed out may still
+ * succeed and leave a handle open, so it is waited for once more when nothing else is in flight.
+ */
+class HandlePipeline<H extends HandlePipeline.Handle> {
+    /**
+     * Notified of the responses to the requests of the handles.
+     */
+    interface Listener<H> {
+        /**
+         * The CREATE of the handle succeeded. Send the next request with {@link HandlePipeline#send} or close the handle
+         * with {@link HandlePipeline#close}. Also called for a CREATE that succeeded after it failed on its timeout, see
+         * {@link Handle#isLate()}.
+         */
+        void opened(H handle, SMB2CreateResponse response);
+
+        /**
+         * The response to the request sent for the handle arrived, whatever its status. Send the next request or close
+         * the handle.
+         */
+        void received(H handle, SMB2Packet response);
+
+        /**
+         * The CREATE or a request of the handle failed or timed out. A handle that was opened is closed afterwards.
+         */
+        void failed(H handle, SMBRuntimeException exception);
+
+        /**
+         * The CLOSE of the handle completed, with the exception if it failed.
+         */
+        void closed(H handle, SMBRuntimeException exception);
+    }
+
+    private final DiskShare share;
+    private final Listener<H> listener;
+    private final long timeout;
+    private final List<H> inFlight = new LinkedList<>();
+    // The handles whose CREATE timed out, which may still succeed and leave a handle open.
+    private final List<H> late = new LinkedList<>();
+
+    HandlePipeline(DiskShare share, Listener<H> listener) {
+        this.share = share;
+        this.listener = listener;
+        this.timeout = share.getTransactTimeout();
+    }
+
+    /**
+     * @return whether another handle can be opened with at most parallelism handles in flight, as far as the credits on
+     * the connection allow
+     */
+    boolean canOpen(int parallelism) {
+        return inFlight.size() < parallelism && (inFlight.isEmpty() || share.getAvailableCredits() > 1);
+    }
+
+    /**
+     * @return whether no handle is in flight, and no CREATE that timed out is left to wait for
+     */
+    boolean isEmpty() {
+        return inFlight.isEmpty() && late.isEmpty();
+    }
+
+    /**
+     * Add the handle that is being opened with the CREATE.
+     */
+    void open(H handle, Future<SMB2CreateResponse> response) {
+        handle.stage = Stage.CREATE;
+        handle.response = response;
+        inFlight.add(handle);
+    }
+
+    /**
+     * Wait for the response to the request sent for the open handle.
+     */
+    void send(H handle, Future<? extends SMB2Packet> response) {
+        handle.stage = Stage.REQUEST;
+        handle.response = response;
+    }
+
+    /**
+     * Send the CLOSE for the open handle.
+     */
+    void close(H handle) {
+        try {
+            handle.response = share.closeFileIdAsync(handle.fileId);
+            handle.stage = Stage.CLOSE;
+        } catch (SMBRuntimeException e) {
+            inFlight.remove(handle);
+            listener.closed(handle, e);
+        }
+    }
+
+    /**
+     * Advance every handle with a response, or wait for the oldest if none has one yet.
+     */
+    void step() {
+        if (!advanceDone()) {
+            waitForOldest();
+        }
+    }
+
+    /**
+     * Advance every handle with a response, without waiting.
+     *
+     * @return whether a handle was advanced
+     */
+    boolean advanceDone() {
+        boolean advanced = false;
+        for (H handle : new ArrayList<>(inFlight)) {
+            if (handle.response.isDone()) {
+                advance(handle);
+                advanced = true;
+            }
+        }
+        for (H handle : new ArrayList<>(late)) {
+            if (handle.response.isDone()) {
+                retry(handle);
+                advanced = true;
+            }
+        }
+        return advanced;
+    }
+
+    /**
+     * Wait for the oldest handle in flight, or for the oldest CREATE that timed out once more if none is in flight.
+     */
+    void waitForOldest() {
+        if (!inFlight.isEmpty()) {
+            advance(inFlight.get(0));
+        } else if (!late.isEmpty()) {
+            retry(late.get(0));
+        }
+    }
+
+    private void retry(H handle) {
+        late.remove(handle);
+        inFlight.add(handle);
+        advance(handle);
+    }
+
+    private void advance(H handle) {
+        SMB2Packet response;
+        try {
+            response = Futures.get(handle.response, timeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
+        } catch (TransportException e) {
+            failed(handle, new SMBRuntimeException(e));
+            return;
+        } catch (SMBRuntimeException e) {
+            // The response did not arrive within the timeout.
+            failed(handle, e);
+            return;
+        }
+
+        boolean success = response.getHeader().getStatus() == NtStatus.STATUS_SUCCESS;
+        switch (handle.stage) {
+            case CREATE:
+                if (!success) {
+                    failed(handle, new SMBApiException(response.getHeader(), "Create failed for " + handle.path));
+                    return;
+                }
+                handle.fileId = ((SMB2CreateResponse) response).getFileId();
+                listener.opened(handle, (SMB2CreateResponse) response);
+                break;
+            case REQUEST:
+                listener.received(handle, response);
+                break;
+            case CLOSE:
+                inFlight.remove(handle);
+                listener.closed(handle, success ? null : new SMBApiException(response.getHeader(), "Close failed for " + handle.path));
+                break;
+        }
+    }
+
+    private void failed(H handle, SMBRuntimeException exception) {
+        switch (handle.stage) {
+            case CREATE:
+                inFlight.remove(handle);
+                if (handle.late) {
+                    // The CREATE was reported as failed before.
+                    return;
+                }
+                if (!handle.response.isDone()) {
+                    handle.late = true;
+                    late.add(handle);
+                }
+                listener.failed(handle, exception);
+                break;
+            case REQUEST:
+                listener.failed(handle, exception);
+                close(handle);
+                break;
+            case CLOSE:
+                inFlight.remove(handle);
+                listener.closed(handle, exception);
+                break;
+        }
+    }
+
+    private enum Stage {
+        CREATE,
+        REQUEST,
+        CLOSE
+    }
+
+    /**
+     * A handle in the pipeline, extended with the state of the requests sent for it.
+     */
+    static class Handle {
+        // Package-private, as the members of a type variable do not include the private fields of its bound.
+        final String path;
+        Stage stage;
+        Future<? extends SMB2Packet> response;
+        SMB2FileId fileId;
+        boolean late;
+
+        Handle(String path) {
+            this.path = path;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the file id of the open handle
+         */
+        SMB2FileId getFileId() {
+            return fileId;
+        }
+
+        /**
+         * @return whether the CREATE of the handle timed out and was reported as failed
+         */
+        boolean isLate() {
+            return late;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.smbj.common.SMBApiException;
+
+/**
+ * Thrown when a write to a file failed after part of the data was written. It carries the status of the failed WRITE,
+ * so callers that handle the {@link SMBApiException} of a failed write keep working.
+ */
+public class IncompleteWriteException extends SMBApiException {
+    private final long bytesWritten;
+
+    public IncompleteWriteException(String msg, long bytesWritten, SMBApiException cause) {
+        super(cause.getStatus(), cause.getStatusCode(), cause.getFailedCommand(), msg);
+        initCause(cause);
+        this.bytesWritten = bytesWritten;
+    }
+
+    /**
+     * @return The number of bytes, from the start of the write, that are known to be written to the file.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.isSet;
+
+/**
+ * Caches the existence and information of paths on a share for a limited time, evicting the least recently used path
+ * when the cache is full. Paths that were not found are cached as well, so that repeated existence checks of missing
+ * paths are answered without a round trip.
+ * <p/>
+ * The cache is filled by opens, queries and directory listings on the share, and a path is dropped when it is changed
+ * through the share, by a write, a change of its information, a rename or its removal. Changes made by other clients
+ * are only seen once the cached entry expires.
+ */
+public class MetadataCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public MetadataCache(int maxEntries, long ttl, TimeUnit ttlUnit) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Metadata cache must hold at least one entry");
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Metadata cache time to live must be greater than zero");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlUnit.toNanos(ttl);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * The number of paths in the cache, including expired paths that were not looked up since.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return whether a file or a directory exists at the path, or null if that is not known
+     */
+    synchronized Boolean exists(String path, boolean directory) {
+        Entry entry = lookup(path);
+        Boolean exists = null;
+        if (entry != null) {
+            if (entry.notFound) {
+                exists = false;
+            } else if (entry.directory != null && entry.directory == directory) {
+                exists = true;
+            }
+        }
+        count(exists != null);
+        return exists;
+    }
+
+    /**
+     * @return the cached information of the path, or null if it is not cached
+     */
+    synchronized <F extends FileQueryableInformation> F get(String path, Class<F> informationClass) {
+        Entry entry = lookup(path);
+        Object information = null;
+        if (entry != null) {
+            information = entry.information.get(informationClass);
+            if (information == null && informationClass == FileBasicInformation.class && entry.information.containsKey(FileAllInformation.class)) {
+                information = ((FileAllInformation) entry.information.get(FileAllInformation.class)).getBasicInformation();
+            }
+        }
+        count(information != null);
+        return informationClass.cast(information);
+    }
+
+    /**
+     * Record that the path was opened, dropping its cached information first if the open could have changed it.
+     */
+    synchronized void opened(String path, boolean directory, boolean changed) {
+        String key = key(path);
+        Entry entry = changed ? null : live(key);
+        if (entry == null || entry.notFound || (entry.directory != null && entry.directory != directory)) {
+            entry = new Entry(System.nanoTime() + ttlNanos);
+            put(key, entry);
+        }
+        entry.directory = directory;
+    }
+
+    synchronized void notFound(String path) {
+        Entry entry = new Entry(System.nanoTime() + ttlNanos);
+        entry.notFound = true;
+        put(key(path), entry);
+    }
+
+    synchronized void put(String path, FileQueryableInformation information) {
+        String key = key(path);
+        Entry entry = live(key);
+        if (entry == null || entry.notFound) {
+            entry = new Entry(System.nanoTime() + ttlNanos);
+            put(key, entry);
+        }
+        entry.information.put(information.getClass(), information);
+        if (information instanceof FileAllInformation) {
+            entry.directory = ((FileAllInformation) information).getStandardInformation().isDirectory();
+        } else if (information instanceof FileStandardInformation) {
+            entry.directory = ((FileStandardInformation) information).isDirectory();
+        } else if (information instanceof FileBasicInformation) {
+            entry.directory = isSet(((FileBasicInformation) information).getFileAttributes(), FileAttributes.FILE_ATTRIBUTE_DIRECTORY);
+        }
+    }
+
+    /**
+     * Record an entry of a directory listing. Its basic information is cached, if the information class of the listing
+     * contains it.
+     */
+    void listed(String directoryPath, FileDirectoryQueryableInformation information) {
+        String name = information.getFileName();
+        if (".".equals(name) || "..".equals(name)) {
+            return;
+        }
+        String directory = key(directoryPath);
+        String path = directory.isEmpty() ? name : directory + "\\" + name;
+        FileBasicInformation basicInformation = basicInformation(information);
+        if (basicInformation != null) {
+            put(path, basicInformation);
+        }
+    }
+
+    synchronized void invalidate(String path) {
+        entries.remove(key(path));
+    }
+
+    /**
+     * Drop the path and every path below it.
+     */
+    synchronized void invalidateTree(String path) {
+        String key = key(path);
+        if (key.isEmpty()) {
+            entries.clear();
+            return;
+        }
+        String prefix = key + "\\";
+        Iterator<String> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            String k = keys.next();
+            if (k.equals(key) || k.startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    private Entry lookup(String path) {
+        return live(key(path));
+    }
+
+    private Entry live(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private void put(String key, Entry entry) {
+        entries.put(key, entry);
+        if (entries.size() > maxEntries) {
+            Iterator<String> eldest = entries.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void count(boolean hit) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    /**
+     * The key of a path, paths on a share are case-insensitive, so differently cased paths share their entry.
+     */
+    private static String key(String path) {
+        String key = path.replace('/', '\\').toUpperCase(Locale.ROOT);
+        int start = 0;
+        int end = key.length();
+        while (start < end && key.charAt(start) == '\\') {
+            start++;
+        }
+        while (end > start && key.charAt(end - 1) == '\\') {
+            end--;
+        }
+        return key.substring(start, end);
+    }
+
+    private static FileBasicInformation basicInformation(FileDirectoryQueryableInformation information) {
+        if (information instanceof FileIdBothDirectoryInformation) {
+            FileIdBothDirectoryInformation i = (FileIdBothDirectoryInformation) information;
+            return new FileBasicInformation(i.getCreationTime(), i.getLastAccessTime(), i.getLastWriteTime(), i.getChangeTime(), i.getFileAttributes());
+        } else if (information instanceof FileIdFullDirectoryInformation) {
+            FileIdFullDirectoryInformation i = (FileIdFullDirectoryInformation) information;
+            return new FileBasicInformation(i.getCreationTime(), i.getLastAccessTime(), i.getLastWriteTime(), i.getChangeTime(), i.getFileAttributes());
+        } else if (information instanceof FileBothDirectoryInformation) {
+            FileBothDirectoryInformation i = (FileBothDirectoryInformation) information;
+            return new FileBasicInformation(i.getCreationTime(), i.getLastAccessTime(), i.getLastWriteTime(), i.getChangeTime(), i.getFileAttributes());
+        } else if (information instanceof FileFullDirectoryInformation) {
+            FileFullDirectoryInformation i = (FileFullDirectoryInformation) information;
+            return new FileBasicInformation(i.getCreationTime(), i.getLastAccessTime(), i.getLastWriteTime(), i.getChangeTime(), i.getFileAttributes());
+        } else if (information instanceof FileDirectoryInformation) {
+            FileDirectoryInformation i = (FileDirectoryInformation) information;
+            return new FileBasicInformation(i.getCreationTime(), i.getLastAccessTime(), i.getLastWriteTime(), i.getChangeTime(), i.getFileAttributes());
+        }
+        return null;
+    }
+
+    private static class Entry {
+        private final long expiresAt;
+        private final Map<Class<?>, Object> information = new HashMap<>();
+        private Boolean directory;
+        private boolean notFound;
+
+        Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation;
+import com.hierynomus.msfscc.fsctl.SrvCopyChunkCopyRequest;
+import com.hierynomus.msfscc.fsctl.SrvCopyChunkResponse;
+import com.hierynomus.msfscc.fsctl.SrvRequestResumeKeyResponse;
+import com.hierynomus.mssmb2.messages.SMB2IoctlResponse;
+import com.hierynomus.protocol.commons.buffer.Buffer;
+import com.hierynomus.smbj.ProgressListener;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.common.SMBBuffer;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+/**
+ * Copies a file to another file on the same share without transferring the data to the client, using
+ * FSCTL_SRV_COPYCHUNK ([MS-SMB2] 3.2.4.20.2).
+ * <p/>
+ * The chunks are sent in batches within the limits of the server. The copy starts with the limits of Windows servers,
+ * and if the server rejects a batch it adopts the limits it returns. If the server does not support server-side copy
+ * before anything is copied, the file is copied through the client instead.
+ */
+class ServerSideCopy {
+    private static final Logger logger = LoggerFactory.getLogger(ServerSideCopy.class);
+
+    private static final int FSCTL_SRV_REQUEST_RESUME_KEY = 0x00140078;
+    private static final int FSCTL_SRV_COPYCHUNK = 0x001440F2;
+
+    private static final EnumSet<NtStatus> SUCCESS_OR_INVALID_PARAMETER = EnumSet.of(NtStatus.STATUS_SUCCESS, NtStatus.STATUS_INVALID_PARAMETER);
+
+    static final int DEFAULT_MAX_CHUNKS = 256;
+    static final int DEFAULT_MAX_CHUNK_SIZE = 1024 * 1024;
+    static final int DEFAULT_MAX_TOTAL_SIZE = 16 * 1024 * 1024;
+
+    private final DiskShare share;
+    private final ProgressListener progressListener;
+
+    private long maxChunks = DEFAULT_MAX_CHUNKS;
+    private long maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+    private long maxTotalSize = DEFAULT_MAX_TOTAL_SIZE;
+
+    ServerSideCopy(DiskShare share, ProgressListener progressListener) {
+        this.share = share;
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Copy the whole source file to the start of the destination file, which has to be opened for reading and writing.
+     *
+     * @return The number of bytes copied
+     */
+    long copy(File src, File dst) {
+        long size = src.getEndOfFileHint();
+        if (size < 0) {
+            size = src.getFileInformation(FileStandardInformation.class).getEndOfFile();
+        }
+        byte[] resumeKey;
+        try {
+            resumeKey = requestResumeKey(src);
+        } catch (SMBApiException e) {
+            logger.info("Server-side copy of {} not supported ({}), copying through the client", src, e.getStatus());
+            return copyThroughClient(src, dst);
+        }
+
+        long copied = 0;
+        while (copied < size) {
+            SrvCopyChunkCopyRequest request = new SrvCopyChunkCopyRequest(resumeKey);
+            long batchSize = 0;
+            while (request.getChunks().size() < maxChunks && batchSize < maxTotalSize && copied + batchSize < size) {
+                long length = Math.min(Math.min(maxChunkSize, maxTotalSize - batchSize), size - copied - batchSize);
+                request.addChunk(copied + batchSize, copied + batchSize, (int) length);
+                batchSize += length;
+            }
+
+            SMB2IoctlResponse response;
+            try {
+                response = copyChunks(dst, request);
+            } catch (SMBApiException e) {
+                if (copied > 0) {
+                    throw e;
+                }
+                logger.info("Server-side copy of {} failed ({}), copying through the client", src, e.getStatus());
+                return copyThroughClient(src, dst);
+            }
+
+            SrvCopyChunkResponse result = readResponse(response);
+            if (response.getHeader().getStatus() == NtStatus.STATUS_INVALID_PARAMETER) {
+                if (result.getChunksWritten() >= maxChunks && result.getChunkBytesWritten() >= maxChunkSize && result.getTotalBytesWritten() >= maxTotalSize) {
+                    throw new SMBApiException(response.getHeader(), "Server-side copy rejected for " + dst + " within the limits of the server");
+                }
+                maxChunks = Math.min(maxChunks, result.getChunksWritten());
+                maxChunkSize = Math.min(maxChunkSize, result.getChunkBytesWritten());
+                maxTotalSize = Math.min(maxTotalSize, result.getTotalBytesWritten());
+                logger.debug("Adopting server-side copy limits of {} chunks, {} bytes per chunk, {} bytes per request", maxChunks, maxChunkSize, maxTotalSize);
+                if (maxChunks <= 0 || maxChunkSize <= 0 || maxTotalSize <= 0) {
+                    throw new SMBApiException(response.getHeader(), "Server-side copy not allowed for " + dst);
+                }
+                continue;
+            }
+            if (result.getTotalBytesWritten() <= 0) {
+                throw new SMBRuntimeException("Server-side copy to " + dst + " made no progress at offset " + copied);
+            }
+            copied += result.getTotalBytesWritten();
+            if (progressListener != null) progressListener.onProgressChanged(copied, size);
+        }
+        return copied;
+    }
+
+    private byte[] requestResumeKey(File src) {
+        SMB2IoctlResponse response = share.ioctl(src.getFileId(), FSCTL_SRV_REQUEST_RESUME_KEY, true, null, SrvRequestResumeKeyResponse.STRUCTURE_SIZE, EnumSet.of(NtStatus.STATUS_SUCCESS));
+        SrvRequestResumeKeyResponse resp = new SrvRequestResumeKeyResponse();
+        try {
+            resp.read(new SMBBuffer(response.getOutputBuffer()));
+        } catch (Buffer.BufferException e) {
+            throw new SMBRuntimeException(e);
+        }
+        return resp.getResumeKey();
+    }
+
+    private SMB2IoctlResponse copyChunks(File dst, SrvCopyChunkCopyRequest request) {
+        SMBBuffer buffer = new SMBBuffer();
+        request.write(buffer);
+        return share.ioctl(dst.getFileId(), FSCTL_SRV_COPYCHUNK, true, new ArrayByteChunkProvider(buffer.getCompactData(), 0), SrvCopyChunkResponse.STRUCTURE_SIZE, SUCCESS_OR_INVALID_PARAMETER);
+    }
+
+    private SrvCopyChunkResponse readResponse(SMB2IoctlResponse response) {
+        if (response.getOutputBuffer() == null) {
+            throw new SMBApiException(response.getHeader(), "No server-side copy response");
+        }
+        SrvCopyChunkResponse result = new SrvCopyChunkResponse();
+        try {
+            result.read(new SMBBuffer(response.getOutputBuffer()));
+        } catch (Buffer.BufferException e) {
+            throw new SMBRuntimeException(e);
+        }
+        return result;
+    }
+
+    private long copyThroughClient(File src, File dst) {
+        try (FileByteChannel channel = dst.getByteChannel()) {
+            return src.read(channel, progressListener);
+        } catch (IOException e) {
+            throw new SMBRuntimeException(e);
+        }
+    }
+}
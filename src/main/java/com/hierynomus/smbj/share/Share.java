@@ -23,6 +23,7 @@ import com.hierynomus.msfscc.FileInformationClass;
 import com.hierynomus.msfscc.FileSystemInformationClass;
 import com.hierynomus.mssmb2.*;
 import com.hierynomus.mssmb2.messages.*;
+import com.hierynomus.protocol.commons.ByteArrayUtils;
 import com.hierynomus.protocol.commons.concurrent.Futures;
 import com.hierynomus.smbj.SmbConfig;
 import com.hierynomus.smbj.common.SMBApiException;
@@ -59,8 +60,10 @@ public class Share implements AutoCloseable {
     private final Session session;
     private final SMB2Dialect dialect;
     private final int readBufferSize;
+    private final int readPipelineDepth;
     private final long readTimeout;
     private final int writeBufferSize;
+    private final int writePipelineDepth;
     private final long writeTimeout;
     private final int transactBufferSize;
     private final long transactTimeout;
@@ -76,8 +79,10 @@ public class Share implements AutoCloseable {
         dialect = negotiatedProtocol.getDialect();
         SmbConfig config = connection.getConfig();
         readBufferSize = Math.min(config.getReadBufferSize(), negotiatedProtocol.getMaxReadSize());
+        readPipelineDepth = config.getReadPipelineDepth();
         readTimeout = config.getReadTimeout();
         writeBufferSize = Math.min(config.getWriteBufferSize(), negotiatedProtocol.getMaxWriteSize());
+        writePipelineDepth = config.getWritePipelineDepth();
         writeTimeout = config.getWriteTimeout();
         transactBufferSize = Math.min(config.getTransactBufferSize(), negotiatedProtocol.getMaxTransactSize());
         transactTimeout = config.getTransactTimeout();
@@ -108,22 +113,53 @@ public class Share implements AutoCloseable {
         return readBufferSize;
     }
 
+    int getReadPipelineDepth() {
+        return readPipelineDepth;
+    }
+
+    int getAvailableCredits() {
+        return treeConnect.getConnection().getAvailableCredits();
+    }
+
     long getReadTimeout() {
         return readTimeout;
     }
 
+    long getTransactTimeout() {
+        return transactTimeout;
+    }
+
     int getWriteBufferSize() {
         return writeBufferSize;
     }
 
+    int getWritePipelineDepth() {
+        return writePipelineDepth;
+    }
+
+    long getWriteTimeout() {
+        return writeTimeout;
+    }
+
     SMB2FileId openFileId(String path, SMB2ImpersonationLevel impersonationLevel, Set<AccessMask> accessMask, Set<FileAttributes> fileAttributes, Set<SMB2ShareAccess> shareAccess, SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions) {
         return createFile(path, impersonationLevel, accessMask, fileAttributes, shareAccess, createDisposition, createOptions).getFileId();
     }
 
     SMB2CreateResponse createFile(String path, SMB2ImpersonationLevel impersonationLevel, Set<AccessMask> accessMask, Set<FileAttributes> fileAttributes, Set<SMB2ShareAccess> shareAccess, SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions) {
+        return createFile(path, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE, null, impersonationLevel, accessMask, fileAttributes, shareAccess, createDisposition, createOptions);
+    }
+
+    SMB2CreateResponse createFile(String path, SMB2OplockLevel requestedOplockLevel, SMB2Lease requestedLease, SMB2ImpersonationLevel impersonationLevel, Set<AccessMask> accessMask, Set<FileAttributes> fileAttributes, Set<SMB2ShareAccess> shareAccess, SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions) {
+        Future<SMB2CreateResponse> fut = createFileAsync(path, requestedOplockLevel, requestedLease, impersonationLevel, accessMask, fileAttributes, shareAccess, createDisposition, createOptions);
+        return receive(fut, "Create", path, SUCCESS, transactTimeout);
+    }
+
+    Future<SMB2CreateResponse> createFileAsync(String path, SMB2OplockLevel requestedOplockLevel, SMB2Lease requestedLease, SMB2ImpersonationLevel impersonationLevel, Set<AccessMask> accessMask, Set<FileAttributes> fileAttributes, Set<SMB2ShareAccess> shareAccess, SMB2CreateDisposition createDisposition, Set<SMB2CreateOptions> createOptions) {
         SMB2CreateRequest cr = new SMB2CreateRequest(
             dialect,
             sessionId, treeId,
+            requestedOplockLevel,
+            requestedLease,
             impersonationLevel,
             accessMask,
             fileAttributes,
@@ -132,8 +168,23 @@ public class Share implements AutoCloseable {
             createOptions,
             path
         );
+        return send(cr);
+    }
 
-        return sendReceive(cr, "Create", path, SUCCESS, transactTimeout);
+    /**
+     * [MS-SMB2].pdf 3.2.4.24 Application Requests Sending an Oplock Break Acknowledgment
+     */
+    void acknowledgeOplockBreak(SMB2FileId fileId, SMB2OplockLevel oplockLevel) {
+        SMB2OplockBreak ack = new SMB2OplockBreak(dialect, sessionId, treeId, oplockLevel, fileId);
+        sendReceive(ack, "Oplock break acknowledgment", fileId, SUCCESS, transactTimeout);
+    }
+
+    /**
+     * [MS-SMB2].pdf 3.2.4.25 Application Requests Sending a Lease Break Acknowledgment
+     */
+    void acknowledgeLeaseBreak(byte[] leaseKey, Set<SMB2LeaseState> leaseState) {
+        SMB2LeaseBreak ack = new SMB2LeaseBreak(dialect, sessionId, treeId, leaseKey, leaseState);
+        sendReceive(ack, "Lease break acknowledgment", ByteArrayUtils.printHex(leaseKey), SUCCESS, transactTimeout);
     }
 
     void flush(SMB2FileId fileId) throws SMBApiException {
@@ -145,18 +196,27 @@ public class Share implements AutoCloseable {
     }
 
     void closeFileId(SMB2FileId fileId) throws SMBApiException {
+        receive(closeFileIdAsync(fileId), "Close", fileId, SUCCESS, transactTimeout);
+    }
+
+    Future<SMB2Close> closeFileIdAsync(SMB2FileId fileId) {
         SMB2Close closeReq = new SMB2Close(dialect, sessionId, treeId, fileId);
-        sendReceive(closeReq, "Close", fileId, SUCCESS, transactTimeout);
+        return send(closeReq);
     }
 
     SMB2QueryInfoResponse queryInfo(SMB2FileId fileId, SMB2QueryInfoRequest.SMB2QueryInfoType infoType, Set<SecurityInformation> securityInfo, FileInformationClass fileInformationClass, FileSystemInformationClass fileSystemInformationClass) {
+        Future<SMB2QueryInfoResponse> fut = queryInfoAsync(fileId, infoType, securityInfo, fileInformationClass, fileSystemInformationClass);
+        return receive(fut, "QueryInfo", fileId, SUCCESS, transactTimeout);
+    }
+
+    Future<SMB2QueryInfoResponse> queryInfoAsync(SMB2FileId fileId, SMB2QueryInfoRequest.SMB2QueryInfoType infoType, Set<SecurityInformation> securityInfo, FileInformationClass fileInformationClass, FileSystemInformationClass fileSystemInformationClass) {
         SMB2QueryInfoRequest qreq = new SMB2QueryInfoRequest(
             dialect,
             sessionId, treeId,
             fileId, infoType,
             fileInformationClass, fileSystemInformationClass, null, securityInfo
         );
-        return sendReceive(qreq, "QueryInfo", fileId, SUCCESS, transactTimeout);
+        return send(qreq);
     }
 
     SMB2SetInfoResponse setInfo(SMB2FileId fileId, SMB2SetInfoRequest.SMB2InfoType infoType, Set<SecurityInformation> securityInfo, FileInformationClass fileInformationClass, byte[] buffer) {
@@ -170,6 +230,14 @@ public class Share implements AutoCloseable {
     }
 
     SMB2QueryDirectoryResponse queryDirectory(SMB2FileId fileId, Set<SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags> flags, FileInformationClass informationClass, String searchPattern) {
+        return receiveQueryDirectory(queryDirectoryAsync(fileId, flags, informationClass, searchPattern), fileId);
+    }
+
+    SMB2QueryDirectoryResponse receiveQueryDirectory(Future<SMB2QueryDirectoryResponse> fut, SMB2FileId fileId) {
+        return receive(fut, "Query directory", fileId, SUCCESS_OR_NO_MORE_FILES, transactTimeout);
+    }
+
+    Future<SMB2QueryDirectoryResponse> queryDirectoryAsync(SMB2FileId fileId, Set<SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags> flags, FileInformationClass informationClass, String searchPattern) {
         SMB2QueryDirectoryRequest qdr = new SMB2QueryDirectoryRequest(
             dialect,
             sessionId, treeId,
@@ -179,11 +247,26 @@ public class Share implements AutoCloseable {
             searchPattern,
             transactBufferSize
         );
+        return send(qdr);
+    }
 
-        return sendReceive(qdr, "Query directory", fileId, SUCCESS_OR_NO_MORE_FILES, transactTimeout);
+    Future<SMB2ChangeNotifyResponse> changeNotifyAsync(SMB2FileId fileId, Set<SMB2CompletionFilter> completionFilter, boolean recursive) {
+        SMB2ChangeNotifyRequest cnr = new SMB2ChangeNotifyRequest(
+            dialect,
+            sessionId, treeId,
+            fileId,
+            completionFilter,
+            Math.min(transactBufferSize, SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE),
+            recursive
+        );
+        return send(cnr);
     }
 
     SMB2WriteResponse write(SMB2FileId fileId, ByteChunkProvider provider) {
+        return receive(writeAsync(fileId, provider), "Write", fileId, SUCCESS, writeTimeout);
+    }
+
+    Future<SMB2WriteResponse> writeAsync(SMB2FileId fileId, ByteChunkProvider provider) {
         SMB2WriteRequest wreq = new SMB2WriteRequest(
             dialect,
             fileId,
@@ -191,12 +274,16 @@ public class Share implements AutoCloseable {
             provider,
             writeBufferSize
         );
-        return sendReceive(wreq, "Write", fileId, SUCCESS, writeTimeout);
+        return send(wreq);
     }
 
     SMB2ReadResponse read(SMB2FileId fileId, long offset, int length) {
+        return receiveRead(readAsync(fileId, offset, length), fileId);
+    }
+
+    SMB2ReadResponse receiveRead(Future<SMB2ReadResponse> fut, SMB2FileId fileId) {
         return receive(
-            readAsync(fileId, offset, length),
+            fut,
             "Read",
             fileId,
             SUCCESS_OR_EOF,
@@ -271,8 +358,12 @@ public class Share implements AutoCloseable {
     }
 
     private SMB2IoctlResponse ioctl(SMB2FileId fileId, int ctlCode, boolean isFsCtl, ByteChunkProvider inputData, int maxOutputResponse) {
+        return ioctl(fileId, ctlCode, isFsCtl, inputData, maxOutputResponse, SUCCESS);
+    }
+
+    SMB2IoctlResponse ioctl(SMB2FileId fileId, int ctlCode, boolean isFsCtl, ByteChunkProvider inputData, int maxOutputResponse, Set<NtStatus> successResponses) {
         Future<SMB2IoctlResponse> fut = ioctlAsync(fileId, ctlCode, isFsCtl, inputData, maxOutputResponse);
-        return receive(fut, "IOCTL", fileId, SUCCESS, transactTimeout);
+        return receive(fut, "IOCTL", fileId, successResponses, transactTimeout);
     }
 
     Future<SMB2IoctlResponse> ioctlAsync(int ctlCode, boolean isFsCtl, ByteChunkProvider inputData) {
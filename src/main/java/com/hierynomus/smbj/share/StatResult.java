@@ -0,0 +1,66 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.msfscc.fileinformation.FileQueryableInformation;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+
+/**
+ * The information of a path queried by {@link DiskShare#statAll(java.util.Collection, Class)}, or the reason it could
+ * not be queried.
+ */
+public class StatResult<F extends FileQueryableInformation> {
+    private final String path;
+    private final F information;
+    private final SMBRuntimeException exception;
+
+    StatResult(String path, F information, SMBRuntimeException exception) {
+        this.path = path;
+        this.information = information;
+        this.exception = exception;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isSuccess() {
+        return exception == null;
+    }
+
+    /**
+     * @return the information of the path, or null if it could not be queried
+     */
+    public F getInformation() {
+        return information;
+    }
+
+    /**
+     * @return why the path could not be queried, an {@link com.hierynomus.smbj.common.SMBApiException} if the server
+     * returned an error, or null if it was queried
+     */
+    public SMBRuntimeException getException() {
+        return exception;
+    }
+
+    @Override
+    public String toString() {
+        return "StatResult{" +
+            "path='" + path + '\'' +
+            (exception == null ? ", information=" + information : ", exception=" + exception) +
+            '}';
+    }
+}
@@ -56,6 +56,10 @@ public class TreeConnect {
         return connection;
     }
 
+    SMBEventBus getBus() {
+        return bus;
+    }
+
     void close() throws TransportException {
         SMB2TreeDisconnect disconnect = new SMB2TreeDisconnect(connection.getNegotiatedProtocol().getDialect(), session.getSessionId(), treeId);
         Future<SMB2Packet> send = session.send(disconnect);
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2OplockLevel;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse;
+import com.hierynomus.smbj.ProgressListener;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.hierynomus.msdtyp.AccessMask.DELETE;
+import static com.hierynomus.msdtyp.AccessMask.FILE_READ_ATTRIBUTES;
+import static com.hierynomus.mssmb2.SMB2CreateDisposition.FILE_OPEN;
+import static com.hierynomus.mssmb2.SMB2ShareAccess.FILE_SHARE_DELETE;
+import static com.hierynomus.mssmb2.SMB2ShareAccess.FILE_SHARE_READ;
+import static com.hierynomus.mssmb2.SMB2ShareAccess.FILE_SHARE_WRITE;
+
+/**
+ * Deletes the tree below a directory, and the directory itself, while walking it. Every entry is deleted with a CREATE
+ * with FILE_DELETE_ON_CLOSE followed by a CLOSE, with up to parallelism deletes in flight next to the listings of the
+ * {@link TreeWalk}. Files are deleted as soon as they are listed, a directory as soon as all its entries are deleted.
+ * <p/>
+ * An entry that cannot be deleted is reported as a failure, and the directories above it are kept. Reparse points are
+ * deleted themselves, not what they point to. A CREATE that times out is waited for once more at the end, so that the
+ * entry is still deleted and its handle closed if it succeeds late.
+ */
+class TreeDelete implements TreeWalk.ListingListener {
+    private final DiskShare share;
+    private final String path;
+    private final int parallelism;
+    private final ProgressListener progressListener;
+    private final HandlePipeline<Delete> pipeline;
+    private final Map<String, Directory> directories = new HashMap<>();
+    private final Deque<Target> ready = new ArrayDeque<>();
+    private final Map<String, SMBRuntimeException> failures = new LinkedHashMap<>();
+    private long found;
+    private long deleted;
+
+    TreeDelete(DiskShare share, String path, int parallelism, ProgressListener progressListener) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be greater than zero");
+        }
+        this.share = share;
+        this.path = path;
+        this.parallelism = parallelism;
+        this.progressListener = progressListener;
+        this.pipeline = new HandlePipeline<>(share, new HandlePipeline.Listener<Delete>() {
+            @Override
+            public void opened(Delete delete, SMB2CreateResponse response) {
+                // The entry is deleted when the handle is closed.
+                pipeline.close(delete);
+            }
+
+            @Override
+            public void received(Delete delete, SMB2Packet response) {
+                throw new IllegalStateException("No request is sent before closing " + delete.getPath());
+            }
+
+            @Override
+            public void failed(Delete delete, SMBRuntimeException exception) {
+                failures.put(delete.getPath(), exception);
+            }
+
+            @Override
+            public void closed(Delete delete, SMBRuntimeException exception) {
+                TreeDelete.this.closed(delete.target, exception);
+            }
+        });
+    }
+
+    /**
+     * @return the paths that could not be deleted, in the order in which they failed
+     */
+    Map<String, SMBRuntimeException> delete() {
+        TreeWalk walk = new TreeWalk(share, path, Integer.MAX_VALUE, null, parallelism, this);
+        String root = TreeWalk.rootPath(path);
+        directories.put(root, new Directory(root, null));
+        found++;
+        try {
+            boolean walking = true;
+            while (walking || !ready.isEmpty() || !pipeline.isEmpty()) {
+                send();
+                if (walking) {
+                    pipeline.advanceDone();
+                    // Takes one entry at a time, so that deletes are sent while the walk continues.
+                    walking = walk.hasNext();
+                    if (walking) {
+                        found(walk.next());
+                    }
+                } else {
+                    pipeline.step();
+                }
+            }
+        } finally {
+            walk.close();
+            share.invalidateMetadata(path);
+        }
+        return failures;
+    }
+
+    private void found(TreeWalk.Entry entry) {
+        if (entry.getException() != null) {
+            // The directory is not listed completely, so it is kept.
+            failures.put(entry.getPath(), entry.getException());
+            return;
+        }
+        Directory parent = directories.get(entry.getParent().getPath());
+        parent.pending++;
+        found++;
+        if (entry.isDirectory() && !entry.isReparsePoint()) {
+            directories.put(entry.getPath(), new Directory(entry.getPath(), parent));
+        } else {
+            ready.add(new Target(entry.getPath(), entry.isDirectory(), parent));
+        }
+        progress();
+    }
+
+    @Override
+    public void listed(TreeWalk.Entry entry) {
+        Directory directory = directories.get(entry.getPath());
+        directory.listed = true;
+        deleteIfEmpty(directory);
+    }
+
+    private void deleteIfEmpty(Directory directory) {
+        if (directory.listed && directory.pending == 0) {
+            directories.remove(directory.path);
+            ready.add(new Target(directory.path, true, directory.parent));
+        }
+    }
+
+    private void send() {
+        while (!ready.isEmpty() && pipeline.canOpen(parallelism)) {
+            Target target = ready.poll();
+            EnumSet<SMB2CreateOptions> createOptions = EnumSet.of(SMB2CreateOptions.FILE_DELETE_ON_CLOSE, SMB2CreateOptions.FILE_OPEN_REPARSE_POINT);
+            createOptions.add(target.directory ? SMB2CreateOptions.FILE_DIRECTORY_FILE : SMB2CreateOptions.FILE_NON_DIRECTORY_FILE);
+            try {
+                pipeline.open(new Delete(target), share.createFileAsync(target.path, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE, null, null, EnumSet.of(DELETE), null, EnumSet.of(FILE_SHARE_DELETE, FILE_SHARE_WRITE, FILE_SHARE_READ), FILE_OPEN, createOptions));
+            } catch (SMBRuntimeException e) {
+                failures.put(target.path, e);
+            }
+        }
+    }
+
+    private void closed(Target target, SMBRuntimeException exception) {
+        if (exception == null || isGone(target)) {
+            // A handle that was closed deletes the entry, even when the CLOSE did not report success.
+            deleted(target);
+        } else {
+            failures.put(target.path, exception);
+        }
+    }
+
+    private void deleted(Target target) {
+        // A CREATE that succeeded late was reported as failed before.
+        failures.remove(target.path);
+        deleted++;
+        progress();
+        if (target.parent != null) {
+            target.parent.pending--;
+            deleteIfEmpty(target.parent);
+        }
+    }
+
+    private boolean isGone(Target target) {
+        try (DiskEntry ignored = share.open(target.path, EnumSet.of(FILE_READ_ATTRIBUTES), null, EnumSet.of(FILE_SHARE_DELETE, FILE_SHARE_WRITE, FILE_SHARE_READ), FILE_OPEN, EnumSet.of(SMB2CreateOptions.FILE_OPEN_REPARSE_POINT))) {
+            return false;
+        } catch (SMBApiException e) {
+            NtStatus status = e.getStatus();
+            return status == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND || status == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND || status == NtStatus.STATUS_DELETE_PENDING;
+        } catch (SMBRuntimeException e) {
+            return false;
+        }
+    }
+
+    private void progress() {
+        if (progressListener != null) {
+            progressListener.onProgressChanged(deleted, found);
+        }
+    }
+
+    private static class Directory {
+        private final String path;
+        private final Directory parent;
+        private int pending;
+        private boolean listed;
+
+        Directory(String path, Directory parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+
+    private static class Target {
+        private final String path;
+        private final boolean directory;
+        private final Directory parent;
+
+        Target(String path, boolean directory, Directory parent) {
+            this.path = path;
+            this.directory = directory;
+            this.parent = parent;
+        }
+    }
+
+    private static class Delete extends HandlePipeline.Handle {
+        private final Target target;
+
+        Delete(Target target) {
+            super(target.path);
+            this.target = target;
+        }
+    }
+}
@@ -0,0 +1,871 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.mssmb2.SMB2CompletionFilter;
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyResponse;
+import com.hierynomus.smbj.ProgressListener;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hierynomus.msdtyp.AccessMask.GENERIC_READ;
+import static com.hierynomus.msfscc.FileAttributes.FILE_ATTRIBUTE_DIRECTORY;
+import static com.hierynomus.mssmb2.SMB2CreateDisposition.FILE_OPEN;
+import static com.hierynomus.mssmb2.SMB2ShareAccess.ALL;
+import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.isSet;
+
+/**
+ * Mirrors a directory on the share to a local directory, returned by
+ * {@link DiskShare#mirror(String, Path, Path)}. Every {@link #sync()} transfers only what changed since the previous
+ * one, by comparing the size, last write time and file id of the remote entries with a manifest of the entries that
+ * were mirrored, which is kept in a local file.
+ * <ul>
+ * <li>A file whose size, last write time or file id changed is downloaded again, up to parallelism files at once.
+ * Every file is downloaded to a temporary file next to it, which replaces it once complete.</li>
+ * <li>A file or directory that was renamed or moved on the share, and so kept its file id, is moved locally.</li>
+ * <li>A file or directory that was removed from the share is deleted locally.</li>
+ * </ul>
+ * The tree is walked with a {@link TreeWalk}. Entries in directories that could not be listed are not deleted, and
+ * files that could not be downloaded are tried again by the next sync. Reparse points are not mirrored, nor are entries
+ * whose name could resolve outside of the local directory, such as "..".
+ * <p/>
+ * After {@link #watch()}, the tree is watched for changes with CHANGE_NOTIFY, and a sync after the first one only
+ * lists the directories in which something changed. When the server could not keep track of all changes, or the watch
+ * stopped, the next sync walks the whole tree again. Close the mirror to stop watching.
+ */
+public class TreeMirror implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TreeMirror.class);
+    private static final AtomicInteger mirrorThreadCounter = new AtomicInteger();
+
+    /**
+     * The number of files downloaded at once by {@link #sync()}.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final String MANIFEST_HEADER = "smbj-mirror 1";
+    private static final String PART_SUFFIX = ".smbj-part";
+    private static final Set<SMB2CompletionFilter> WATCH_FILTER = EnumSet.of(
+        SMB2CompletionFilter.FILE_NOTIFY_CHANGE_FILE_NAME,
+        SMB2CompletionFilter.FILE_NOTIFY_CHANGE_DIR_NAME,
+        SMB2CompletionFilter.FILE_NOTIFY_CHANGE_SIZE,
+        SMB2CompletionFilter.FILE_NOTIFY_CHANGE_LAST_WRITE
+    );
+
+    private final DiskShare share;
+    private final String remotePath;
+    private final Path localRoot;
+    private final Path manifestFile;
+    private final int listingParallelism;
+    private final Object lock = new Object();
+    private TreeMap<String, MirroredEntry> manifest;
+    private DirectoryWatch watch;
+    private boolean fullScan = true;
+    private TreeSet<String> changedDirectories = new TreeSet<>();
+    private ThreadPoolExecutor downloadExecutor;
+
+    TreeMirror(DiskShare share, String remotePath, Path localRoot, Path manifestFile, int listingParallelism) {
+        this.share = share;
+        this.remotePath = TreeWalk.rootPath(remotePath);
+        this.localRoot = localRoot;
+        this.manifestFile = manifestFile;
+        this.listingParallelism = listingParallelism;
+    }
+
+    public String getRemotePath() {
+        return remotePath;
+    }
+
+    public Path getLocalRoot() {
+        return localRoot;
+    }
+
+    /**
+     * Equivalent to calling {@link #sync(int, ProgressListener) sync(DEFAULT_PARALLELISM, null)}.
+     *
+     * @see #sync(int, ProgressListener)
+     */
+    public Result sync() throws IOException {
+        return sync(DEFAULT_PARALLELISM, null);
+    }
+
+    /**
+     * Bring the local directory up to date with the share, and save the manifest.
+     *
+     * @param parallelism      the maximum number of files downloaded at once
+     * @param progressListener an optional callback that is invoked with the number of bytes downloaded and the number
+     *                         of bytes to download
+     * @return what was transferred, and which entries failed
+     * @throws IOException when the manifest could not be read or saved
+     */
+    public synchronized Result sync(int parallelism, ProgressListener progressListener) throws IOException {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be greater than zero");
+        }
+        if (manifest == null) {
+            manifest = readManifest();
+        }
+        boolean full;
+        TreeSet<String> changed;
+        synchronized (lock) {
+            full = fullScan || watch == null;
+            changed = changedDirectories;
+            changedDirectories = new TreeSet<>();
+            fullScan = false;
+        }
+
+        Result result = new Result(full);
+        Files.createDirectories(localRoot);
+        Scan scan = new Scan(result);
+        if (full) {
+            scan.walk("", null);
+        } else {
+            for (String directory : changed) {
+                String start = knownAncestor(directory);
+                if (!start.equals(directory) && changed.contains(start)) {
+                    continue;
+                }
+                if (!hasChangedAncestor(changed, start)) {
+                    // A changed directory may have been removed since, then its parent is listed instead.
+                    while (!scan.walk(start, changed)) {
+                        start = knownAncestor(parent(start));
+                    }
+                }
+            }
+        }
+        synchronized (lock) {
+            // Directories that could not be listed completely are listed again by the next sync.
+            changedDirectories.addAll(scan.failedDirectories);
+        }
+
+        result.listedDirectories = scan.listedDirectories.size();
+        new Apply(scan, result, parallelism, progressListener).apply();
+        writeManifest();
+        return result;
+    }
+
+    /**
+     * Watch the tree for changes, so that the syncs after the next one only list the directories that changed.
+     */
+    public void watch() {
+        synchronized (lock) {
+            if (watch != null) {
+                return;
+            }
+            fullScan = true;
+            watch = share.watch(remotePath, WATCH_FILTER, true, new WatchListener() {
+                @Override
+                public void changed(DirectoryWatch watch, List<SMB2ChangeNotifyResponse.FileNotifyInfo> changes) {
+                    synchronized (lock) {
+                        for (SMB2ChangeNotifyResponse.FileNotifyInfo change : changes) {
+                            changedDirectories.add(parent(change.getFileName()));
+                        }
+                    }
+                }
+
+                @Override
+                public void rescan(DirectoryWatch watch) {
+                    synchronized (lock) {
+                        fullScan = true;
+                    }
+                }
+
+                @Override
+                public void stopped(DirectoryWatch stopped, SMBRuntimeException exception) {
+                    if (exception != null) {
+                        logger.warn("Stopped watching {}, the next sync walks the whole tree", remotePath, exception);
+                    }
+                    synchronized (lock) {
+                        fullScan = true;
+                        if (watch == stopped) {
+                            watch = null;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop watching the tree, and stop the threads that download files.
+     */
+    @Override
+    public void close() {
+        DirectoryWatch stopping;
+        synchronized (lock) {
+            stopping = watch;
+            watch = null;
+            if (downloadExecutor != null) {
+                downloadExecutor.shutdown();
+                downloadExecutor = null;
+            }
+        }
+        if (stopping != null) {
+            stopping.close();
+        }
+    }
+
+    /**
+     * The threads are kept between syncs, and stop when they have been idle for a while.
+     */
+    private ExecutorService getDownloadExecutor(int threads) {
+        synchronized (lock) {
+            if (downloadExecutor == null) {
+                downloadExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "smbj-mirror-" + mirrorThreadCounter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                downloadExecutor.allowCoreThreadTimeOut(true);
+            } else if (threads > downloadExecutor.getMaximumPoolSize()) {
+                downloadExecutor.setMaximumPoolSize(threads);
+                downloadExecutor.setCorePoolSize(threads);
+            } else if (threads < downloadExecutor.getMaximumPoolSize()) {
+                downloadExecutor.setCorePoolSize(threads);
+                downloadExecutor.setMaximumPoolSize(threads);
+            }
+            return downloadExecutor;
+        }
+    }
+
+    private String knownAncestor(String directory) {
+        String path = directory;
+        while (!path.isEmpty()) {
+            MirroredEntry entry = manifest.get(path);
+            if (entry != null && entry.directory) {
+                return path;
+            }
+            path = parent(path);
+        }
+        return path;
+    }
+
+    private static boolean hasChangedAncestor(TreeSet<String> changed, String directory) {
+        String path = directory;
+        while (!path.isEmpty()) {
+            path = parent(path);
+            if (changed.contains(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasChangedDescendant(TreeSet<String> changed, String directory) {
+        String from = directory.isEmpty() ? "" : directory + "\\";
+        String ceiling = changed.higher(from);
+        return ceiling != null && (directory.isEmpty() || ceiling.startsWith(from));
+    }
+
+    private static boolean isNotFound(SMBRuntimeException e) {
+        if (!(e instanceof SMBApiException)) {
+            return false;
+        }
+        NtStatus status = ((SMBApiException) e).getStatus();
+        return status == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND || status == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND;
+    }
+
+    private static String parent(String path) {
+        int separator = path.lastIndexOf('\\');
+        return separator < 0 ? "" : path.substring(0, separator);
+    }
+
+    private static NavigableMap<String, MirroredEntry> subtree(NavigableMap<String, MirroredEntry> entries, String directory) {
+        // '\\' + 1 is ']', so this is every path that starts with directory + "\\"
+        return entries.subMap(directory + "\\", true, directory + "]", false);
+    }
+
+    private String remote(String path) {
+        if (path.isEmpty()) {
+            return remotePath;
+        }
+        return remotePath.isEmpty() ? path : remotePath + "\\" + path;
+    }
+
+    /**
+     * @throws IOException when the path does not resolve to a path below the local directory
+     */
+    private Path local(String path) throws IOException {
+        Path local = localRoot;
+        for (String name : path.split("\\\\")) {
+            if (!name.isEmpty()) {
+                if (!isValidName(name)) {
+                    throw new IOException("Invalid file name '" + name + "' in " + path);
+                }
+                local = local.resolve(name);
+            }
+        }
+        if (!local.normalize().startsWith(localRoot.normalize())) {
+            throw new IOException(path + " resolves outside of " + localRoot);
+        }
+        return local;
+    }
+
+    /**
+     * @return whether the name can be used for a local file, which is not the case for names that contain a
+     * separator, or that refer to the directory itself or its parent
+     */
+    private static boolean isValidName(String name) {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..")
+            && name.indexOf('\\') < 0 && name.indexOf('/') < 0 && name.indexOf('\0') < 0;
+    }
+
+    /**
+     * The remote entries of a sync, and the directories of which all entries were listed.
+     */
+    private class Scan {
+        private final Result result;
+        private final Map<String, MirroredEntry> remote = new LinkedHashMap<>();
+        private final Set<String> listedDirectories = new TreeSet<>();
+        private final List<String> failedDirectories = new ArrayList<>();
+
+        Scan(Result result) {
+            this.result = result;
+        }
+
+        /**
+         * Walk the tree below the directory. The directories that are mirrored already are not walked into, unless
+         * changed is null or something changed in them.
+         *
+         * @return false if only changes were walked, and the directory itself no longer exists
+         */
+        boolean walk(String directory, final TreeSet<String> changed) {
+            final String root = remote(directory);
+            TreeWalk walk = new TreeWalk(share, root, Integer.MAX_VALUE, null, listingParallelism, new TreeWalk.ListingListener() {
+                @Override
+                public void listed(TreeWalk.Entry listed) {
+                    listedDirectories.add(relative(listed.getPath()));
+                }
+            });
+            try {
+                while (walk.hasNext()) {
+                    TreeWalk.Entry entry = walk.next();
+                    String path = relative(entry.getPath());
+                    if (entry.getException() != null) {
+                        if (changed != null && path.equals(directory) && !directory.isEmpty() && isNotFound(entry.getException())) {
+                            return false;
+                        }
+                        result.failures.put(path, entry.getException());
+                        failedDirectories.add(path);
+                        continue;
+                    }
+                    if (entry.isReparsePoint()) {
+                        continue;
+                    }
+                    if (!isValidName(entry.getInformation().getFileName())) {
+                        result.failures.put(path, new IOException("Invalid file name '" + entry.getInformation().getFileName() + "'"));
+                        if (entry.isDirectory()) {
+                            walk.skipSubtree();
+                        }
+                        continue;
+                    }
+                    MirroredEntry found = new MirroredEntry(path, entry.getInformation());
+                    remote.put(path, found);
+                    MirroredEntry mirrored = manifest.get(path);
+                    if (changed != null && found.directory && mirrored != null && mirrored.directory && mirrored.fileId == found.fileId
+                        && !changed.contains(path) && !hasChangedDescendant(changed, path)) {
+                        walk.skipSubtree();
+                    }
+                }
+            } finally {
+                walk.close();
+            }
+            return true;
+        }
+
+        /**
+         * @return whether the entry of the manifest was not found in the directory it was listed in
+         */
+        boolean isRemoved(String path) {
+            return listedDirectories.contains(parent(path)) && !remote.containsKey(path);
+        }
+
+        private String relative(String path) {
+            if (remotePath.isEmpty()) {
+                return path;
+            }
+            return path.length() == remotePath.length() ? "" : path.substring(remotePath.length() + 1);
+        }
+    }
+
+    /**
+     * Applies the differences between the scan and the manifest to the local directory and the manifest.
+     */
+    private class Apply {
+        private final Scan scan;
+        private final Result result;
+        private final int parallelism;
+        private final ProgressListener progressListener;
+        private final Map<Long, String> mirroredIds = new HashMap<>();
+        private final List<MirroredEntry> downloads = new ArrayList<>();
+
+        Apply(Scan scan, Result result, int parallelism, ProgressListener progressListener) {
+            this.scan = scan;
+            this.result = result;
+            this.parallelism = parallelism;
+            this.progressListener = progressListener;
+        }
+
+        void apply() {
+            for (MirroredEntry entry : manifest.values()) {
+                if (entry.fileId != 0) {
+                    mirroredIds.put(entry.fileId, entry.path);
+                }
+            }
+            // Shallow directories first, so that a moved directory takes the entries below it along.
+            List<MirroredEntry> entries = new ArrayList<>(scan.remote.values());
+            Collections.sort(entries);
+            for (MirroredEntry entry : entries) {
+                try {
+                    if (entry.directory) {
+                        directory(entry);
+                    } else {
+                        file(entry);
+                    }
+                } catch (IOException e) {
+                    result.failures.put(entry.path, e);
+                }
+            }
+            download();
+            delete();
+        }
+
+        private void directory(MirroredEntry entry) throws IOException {
+            deleteIfTypeChanged(entry);
+            MirroredEntry mirrored = manifest.get(entry.path);
+            if (mirrored == null || !mirrored.directory) {
+                String moved = movedFrom(entry);
+                if (moved != null && !Files.exists(local(entry.path)) && Files.isDirectory(local(moved))) {
+                    Files.move(local(moved), local(entry.path));
+                    NavigableMap<String, MirroredEntry> below = subtree(manifest, moved);
+                    List<MirroredEntry> movedEntries = new ArrayList<>(below.values());
+                    below.clear();
+                    manifest.remove(moved);
+                    for (MirroredEntry movedEntry : movedEntries) {
+                        MirroredEntry renamed = movedEntry.movedTo(entry.path + movedEntry.path.substring(moved.length()));
+                        manifest.put(renamed.path, renamed);
+                        mirroredIds.put(renamed.fileId, renamed.path);
+                    }
+                    result.moved++;
+                }
+            }
+            Files.createDirectories(local(entry.path));
+            put(entry);
+        }
+
+        private void file(MirroredEntry entry) throws IOException {
+            deleteIfTypeChanged(entry);
+            MirroredEntry mirrored = manifest.get(entry.path);
+            Path local = local(entry.path);
+            if (mirrored != null && mirrored.isSameFile(entry) && Files.isRegularFile(local) && Files.size(local) == entry.size) {
+                result.unchanged++;
+                return;
+            }
+            String moved = movedFrom(entry);
+            if (moved != null && manifest.get(moved).isSameFile(entry) && Files.isRegularFile(local(moved))) {
+                Files.move(local(moved), local, StandardCopyOption.REPLACE_EXISTING);
+                manifest.remove(moved);
+                put(entry);
+                result.moved++;
+                return;
+            }
+            downloads.add(entry);
+        }
+
+        /**
+         * Delete the local entry, and the entries recorded below it, when the remote entry changed from a file into a
+         * directory or the other way around, as it is in the way of the new one.
+         */
+        private void deleteIfTypeChanged(MirroredEntry entry) throws IOException {
+            MirroredEntry mirrored = manifest.get(entry.path);
+            if (mirrored != null && mirrored.directory != entry.directory) {
+                deleteLocal(local(entry.path));
+                subtree(manifest, entry.path).clear();
+                manifest.remove(entry.path);
+            }
+        }
+
+        /**
+         * @return the path of the mirrored entry with the file id of the remote entry, if it was removed from there
+         */
+        private String movedFrom(MirroredEntry entry) {
+            if (entry.fileId == 0) {
+                return null;
+            }
+            String path = mirroredIds.get(entry.fileId);
+            if (path == null || path.equals(entry.path) || !manifest.containsKey(path) || !scan.isRemoved(path)) {
+                return null;
+            }
+            return manifest.get(path).directory == entry.directory ? path : null;
+        }
+
+        private void put(MirroredEntry entry) {
+            manifest.put(entry.path, entry);
+            if (entry.fileId != 0) {
+                mirroredIds.put(entry.fileId, entry.path);
+            }
+        }
+
+        private void download() {
+            if (downloads.isEmpty()) {
+                return;
+            }
+            long total = 0;
+            for (MirroredEntry entry : downloads) {
+                total += entry.size;
+            }
+            final long totalBytes = total;
+            final AtomicLong bytes = new AtomicLong();
+            ExecutorService executor = getDownloadExecutor(Math.min(parallelism, downloads.size()));
+            Map<MirroredEntry, Future<Long>> transfers = new LinkedHashMap<>();
+            try {
+                for (final MirroredEntry entry : downloads) {
+                    try {
+                        transfers.put(entry, executor.submit(new Callable<Long>() {
+                            @Override
+                            public Long call() throws IOException {
+                                long read = download(entry);
+                                if (progressListener != null) {
+                                    progressListener.onProgressChanged(bytes.addAndGet(read), totalBytes);
+                                }
+                                return read;
+                            }
+                        }));
+                    } catch (RejectedExecutionException e) {
+                        // The mirror was closed during the sync.
+                        result.failures.put(entry.path, e);
+                    }
+                }
+                for (Map.Entry<MirroredEntry, Future<Long>> transfer : transfers.entrySet()) {
+                    MirroredEntry entry = transfer.getKey();
+                    try {
+                        result.bytesDownloaded += transfer.getValue().get();
+                        result.downloaded++;
+                        put(entry);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SMBRuntimeException(e);
+                    } catch (ExecutionException e) {
+                        result.failures.put(entry.path, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                    }
+                }
+            } finally {
+                // Only has effect when interrupted.
+                for (Future<Long> transfer : transfers.values()) {
+                    transfer.cancel(true);
+                }
+            }
+        }
+
+        private long download(MirroredEntry entry) throws IOException {
+            Path local = local(entry.path);
+            Path part = local.resolveSibling(local.getFileName() + PART_SUFFIX);
+            long read;
+            try {
+                try (File file = share.openFile(remote(entry.path), EnumSet.of(GENERIC_READ), null, ALL, FILE_OPEN, null)) {
+                    read = file.transferTo(part);
+                }
+                Files.setLastModifiedTime(part, FileTime.fromMillis(entry.lastWriteTime().toEpochMillis()));
+                try {
+                    Files.move(part, local, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(part, local, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException | SMBRuntimeException e) {
+                // Do not leave the partial file in the mirror.
+                Files.deleteIfExists(part);
+                throw e;
+            }
+            return read;
+        }
+
+        private void delete() {
+            // Deepest entries first, so that a directory is deleted after the entries below it.
+            for (String path : new ArrayList<>(manifest.descendingKeySet())) {
+                if (!manifest.containsKey(path) || !scan.isRemoved(path)) {
+                    continue;
+                }
+                try {
+                    deleteLocal(local(path));
+                    subtree(manifest, path).clear();
+                    manifest.remove(path);
+                    result.deleted++;
+                } catch (IOException e) {
+                    result.failures.put(path, e);
+                }
+            }
+        }
+    }
+
+    private static void deleteLocal(Path path) throws IOException {
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private TreeMap<String, MirroredEntry> readManifest() throws IOException {
+        TreeMap<String, MirroredEntry> entries = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!MANIFEST_HEADER.equals(line)) {
+                logger.warn("Ignoring manifest {} with unknown header {}, the tree is mirrored again", manifestFile, line);
+                return entries;
+            }
+            while ((line = reader.readLine()) != null) {
+                MirroredEntry entry = MirroredEntry.parse(line);
+                entries.put(entry.path, entry);
+            }
+        } catch (NoSuchFileException e) {
+            logger.debug("No manifest at {}, the tree is mirrored completely", manifestFile);
+        }
+        return entries;
+    }
+
+    private void writeManifest() throws IOException {
+        Path written = manifestFile.resolveSibling(manifestFile.getFileName() + PART_SUFFIX);
+        try (BufferedWriter writer = Files.newBufferedWriter(written, StandardCharsets.UTF_8)) {
+            writer.write(MANIFEST_HEADER);
+            writer.newLine();
+            for (MirroredEntry entry : manifest.values()) {
+                writer.write(entry.format());
+                writer.newLine();
+            }
+        }
+        try {
+            Files.move(written, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(written, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The metadata of an entry on the share that is compared between syncs, a line in the manifest.
+     */
+    private static class MirroredEntry implements Comparable<MirroredEntry> {
+        private final String path;
+        private final long fileId;
+        private final long size;
+        private final long lastWriteTime;
+        private final boolean directory;
+
+        MirroredEntry(String path, long fileId, long size, long lastWriteTime, boolean directory) {
+            this.path = path;
+            this.fileId = fileId;
+            this.size = size;
+            this.lastWriteTime = lastWriteTime;
+            this.directory = directory;
+        }
+
+        MirroredEntry(String path, FileIdBothDirectoryInformation information) {
+            this(path,
+                ByteBuffer.wrap(information.getFileId()).order(ByteOrder.LITTLE_ENDIAN).getLong(),
+                information.getEndOfFile(),
+                information.getLastWriteTime().getWindowsTimeStamp(),
+                isSet(information.getFileAttributes(), FILE_ATTRIBUTE_DIRECTORY));
+        }
+
+        MirroredEntry movedTo(String path) {
+            return new MirroredEntry(path, fileId, size, lastWriteTime, directory);
+        }
+
+        com.hierynomus.msdtyp.FileTime lastWriteTime() {
+            return new com.hierynomus.msdtyp.FileTime(lastWriteTime);
+        }
+
+        /**
+         * @return whether the content of the file is the same, judged by its file id, size and last write time
+         */
+        boolean isSameFile(MirroredEntry other) {
+            return fileId == other.fileId && size == other.size && lastWriteTime == other.lastWriteTime && directory == other.directory;
+        }
+
+        @Override
+        public int compareTo(MirroredEntry other) {
+            int depth = depth(path) - depth(other.path);
+            return depth != 0 ? depth : path.compareTo(other.path);
+        }
+
+        private static int depth(String path) {
+            int depth = 0;
+            for (int i = 0; i < path.length(); i++) {
+                if (path.charAt(i) == '\\') {
+                    depth++;
+                }
+            }
+            return depth;
+        }
+
+        // Tab separated, with the path last. File names cannot contain tabs.
+        String format() {
+            return Long.toString(fileId) + '\t' + size + '\t' + lastWriteTime + '\t' + (directory ? 'd' : 'f') + '\t' + path;
+        }
+
+        static MirroredEntry parse(String line) throws IOException {
+            String[] fields = line.split("\t", 5);
+            if (fields.length != 5) {
+                throw new IOException("Invalid manifest line: " + line);
+            }
+            try {
+                return new MirroredEntry(fields[4], Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), "d".equals(fields[3]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid manifest line: " + line, e);
+            }
+        }
+    }
+
+    /**
+     * What a {@link #sync(int, ProgressListener) sync} changed in the local directory.
+     */
+    public static class Result {
+        private final boolean fullScan;
+        private int listedDirectories;
+        private int downloaded;
+        private long bytesDownloaded;
+        private int moved;
+        private int deleted;
+        private int unchanged;
+        private final Map<String, Exception> failures = new LinkedHashMap<>();
+
+        Result(boolean fullScan) {
+            this.fullScan = fullScan;
+        }
+
+        /**
+         * @return whether the whole tree was walked, instead of only the directories that changed
+         */
+        public boolean isFullScan() {
+            return fullScan;
+        }
+
+        public int getListedDirectories() {
+            return listedDirectories;
+        }
+
+        public int getDownloaded() {
+            return downloaded;
+        }
+
+        public long getBytesDownloaded() {
+            return bytesDownloaded;
+        }
+
+        /**
+         * @return the number of files and directories that were renamed or moved on the share, and moved locally
+         */
+        public int getMoved() {
+            return moved;
+        }
+
+        /**
+         * @return the number of files and directories that were deleted locally, a directory counts once
+         */
+        public int getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @return the number of files that were listed and did not change
+         */
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * @return the paths, relative to the mirrored directory, of the entries that could not be listed, transferred or
+         * deleted
+         */
+        public Map<String, Exception> getFailures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                "fullScan=" + fullScan +
+                ", listedDirectories=" + listedDirectories +
+                ", downloaded=" + downloaded +
+                ", bytesDownloaded=" + bytesDownloaded +
+                ", moved=" + moved +
+                ", deleted=" + deleted +
+                ", unchanged=" + unchanged +
+                ", failures=" + failures.keySet() +
+                '}';
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.smbj.common.SMBRuntimeException;
+
+import java.nio.file.FileVisitResult;
+
+/**
+ * Visits the entries of a tree walked with {@link DiskShare#walk(String, int, TreeWalk.Filter, TreeVisitor)}. The
+ * visitor is called on the walking thread, as the listings of the directories arrive.
+ */
+public interface TreeVisitor {
+
+    /**
+     * Visit an entry of a directory in the tree.
+     *
+     * @return {@link FileVisitResult#CONTINUE} to continue the walk, {@link FileVisitResult#SKIP_SUBTREE} to not walk
+     * into the entry if it is a directory, {@link FileVisitResult#SKIP_SIBLINGS} to skip the remaining entries of its
+     * directory, or {@link FileVisitResult#TERMINATE} to stop the walk
+     */
+    FileVisitResult visit(TreeWalk.Entry entry);
+
+    /**
+     * Visit a directory that could not be listed, or could only be listed partly.
+     *
+     * @return {@link FileVisitResult#TERMINATE} to stop the walk, any other result to continue it
+     */
+    FileVisitResult visitFailed(TreeWalk.Entry directory, SMBRuntimeException exception);
+}
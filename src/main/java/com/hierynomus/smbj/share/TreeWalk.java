@@ -0,0 +1,431 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.msfscc.fileinformation.FileInformation;
+import com.hierynomus.msfscc.fileinformation.FileInformationFactory;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2OplockLevel;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse;
+import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryRequest;
+import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryResponse;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.file.FileVisitResult;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static com.hierynomus.msdtyp.AccessMask.GENERIC_READ;
+import static com.hierynomus.msfscc.FileAttributes.FILE_ATTRIBUTE_DIRECTORY;
+import static com.hierynomus.mssmb2.SMB2CreateDisposition.FILE_OPEN;
+import static com.hierynomus.mssmb2.SMB2ShareAccess.ALL;
+import static com.hierynomus.protocol.commons.EnumWithValue.EnumUtils.isSet;
+
+/**
+ * Walks the tree below a directory, returned by {@link DiskShare#walk(String, int, Filter)}. Up to parallelism
+ * directories are listed at once, as far as the credits on the connection allow, by keeping their CREATE,
+ * QUERY_DIRECTORY and CLOSE requests in flight. The directories still to be listed are shared by all listings, a
+ * listing that completes continues with the next of them. The entries are returned in the order in which their
+ * listings arrive, so the order of the entries of different directories is not defined.
+ * <p/>
+ * A directory is listed once its entry was returned, unless {@link #skipSubtree()} is called before the next entry is
+ * requested. Directories that are reparse points, such as symbolic links and junctions, are not walked into. A directory
+ * that could not be listed is returned as an entry with an exception, instead of failing the walk.
+ * <p/>
+ * The directories are listed while iterating. Close the walk when not iterating over all entries, to wait for the
+ * handles that are still open to be closed.
+ */
+public class TreeWalk implements Iterator<TreeWalk.Entry>, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TreeWalk.class);
+
+    /**
+     * Selects the entries returned by a walk. The directories that are not selected are still walked into.
+     */
+    public interface Filter {
+        boolean accept(Entry entry);
+    }
+
+    /**
+     * Notified when all entries of a directory have been returned by the walk.
+     */
+    interface ListingListener {
+        void listed(Entry directory);
+    }
+
+    private final DiskShare share;
+    private final FileInformation.Decoder<FileIdBothDirectoryInformation> decoder = FileInformationFactory.getDecoder(FileIdBothDirectoryInformation.class);
+    private final int maxDepth;
+    private final Filter filter;
+    private final int parallelism;
+    private final ListingListener listingListener;
+    private final Deque<Entry> directories = new ArrayDeque<>();
+    private final HandlePipeline<Listing> pipeline;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private Entry lastReturned;
+    private boolean skipLastReturned;
+    private boolean closed;
+
+    TreeWalk(DiskShare share, String path, int maxDepth, Filter filter, int parallelism) {
+        this(share, path, maxDepth, filter, parallelism, null);
+    }
+
+    TreeWalk(DiskShare share, String path, int maxDepth, Filter filter, int parallelism, ListingListener listingListener) {
+        if (maxDepth <= 0) {
+            throw new IllegalArgumentException("Depth must be greater than zero");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be greater than zero");
+        }
+        this.share = share;
+        this.maxDepth = maxDepth;
+        this.filter = filter;
+        this.parallelism = parallelism;
+        this.listingListener = listingListener;
+        this.pipeline = new HandlePipeline<>(share, new HandlePipeline.Listener<Listing>() {
+            @Override
+            public void opened(Listing listing, SMB2CreateResponse response) {
+                TreeWalk.this.opened(listing);
+            }
+
+            @Override
+            public void received(Listing listing, SMB2Packet response) {
+                queried(listing, (SMB2QueryDirectoryResponse) response);
+            }
+
+            @Override
+            public void failed(Listing listing, SMBRuntimeException exception) {
+                TreeWalk.this.failed(listing.directory, exception);
+            }
+
+            @Override
+            public void closed(Listing listing, SMBRuntimeException exception) {
+                if (exception != null) {
+                    logger.warn("Close failed for {}", listing.getPath(), exception);
+                }
+            }
+        });
+        directories.add(new Entry(rootPath(path), null, 0, null, null, false));
+    }
+
+    /**
+     * @return the path of the directory the walk starts in, as it is used in the paths of the entries
+     */
+    static String rootPath(String path) {
+        String root = path;
+        while (root.endsWith("\\")) {
+            root = root.substring(0, root.length() - 1);
+        }
+        return root;
+    }
+
+    @Override
+    public boolean hasNext() {
+        descend();
+        while (!closed) {
+            while (!entries.isEmpty() && (entries.peek().endOfListing || isSkipped(entries.peek()))) {
+                Entry entry = entries.poll();
+                if (entry.endOfListing) {
+                    listingListener.listed(entry);
+                }
+            }
+            if (!entries.isEmpty() || (directories.isEmpty() && pipeline.isEmpty())) {
+                break;
+            }
+            send();
+            pipeline.step();
+        }
+        return !entries.isEmpty();
+    }
+
+    @Override
+    public Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        lastReturned = entries.poll();
+        return lastReturned;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Do not walk into the directory of the entry that was returned last.
+     */
+    public void skipSubtree() {
+        if (lastReturned == null) {
+            throw new IllegalStateException("No entry to skip");
+        }
+        skipLastReturned = true;
+    }
+
+    /**
+     * Skip the remaining entries of the directory of the entry that was returned last.
+     */
+    public void skipSiblings() {
+        if (lastReturned == null) {
+            throw new IllegalStateException("No entry to skip");
+        }
+        if (lastReturned.listing != null) {
+            lastReturned.listing.skipSiblings = true;
+        }
+    }
+
+    /**
+     * Walk the tree with the visitor, and close the walk when the visitor terminates it.
+     */
+    public void walk(TreeVisitor visitor) {
+        try {
+            while (hasNext()) {
+                Entry entry = next();
+                if (entry.getException() != null) {
+                    if (visitor.visitFailed(entry, entry.getException()) == FileVisitResult.TERMINATE) {
+                        return;
+                    }
+                    continue;
+                }
+                FileVisitResult result = visitor.visit(entry);
+                if (result == FileVisitResult.TERMINATE) {
+                    return;
+                } else if (result == FileVisitResult.SKIP_SUBTREE) {
+                    skipSubtree();
+                } else if (result == FileVisitResult.SKIP_SIBLINGS) {
+                    skipSiblings();
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stop the walk, and wait for the listings in flight to complete so that their handles are closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        while (!pipeline.isEmpty()) {
+            pipeline.step();
+        }
+        directories.clear();
+        entries.clear();
+    }
+
+    private static boolean isSkipped(Entry entry) {
+        return entry.listing != null && entry.listing.skipSiblings;
+    }
+
+    private void descend() {
+        if (lastReturned != null && !skipLastReturned && lastReturned.getException() == null && isWalkable(lastReturned)) {
+            directories.add(lastReturned);
+        }
+        lastReturned = null;
+        skipLastReturned = false;
+    }
+
+    private boolean isWalkable(Entry entry) {
+        return entry.getDepth() < maxDepth && entry.isDirectory() && !entry.isReparsePoint();
+    }
+
+    private void send() {
+        while (!directories.isEmpty() && pipeline.canOpen(parallelism)) {
+            // Depth first, to keep the number of directories still to be listed low.
+            Entry directory = directories.pollLast();
+            try {
+                pipeline.open(new Listing(directory), share.createFileAsync(directory.getPath(), SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE, null, null, EnumSet.of(GENERIC_READ), EnumSet.of(FILE_ATTRIBUTE_DIRECTORY), ALL, FILE_OPEN, EnumSet.of(SMB2CreateOptions.FILE_DIRECTORY_FILE)));
+            } catch (SMBRuntimeException e) {
+                failed(directory, e);
+            }
+        }
+    }
+
+    private void opened(Listing listing) {
+        if (closed || listing.isLate()) {
+            // The walk was closed while the directory was being opened, or the directory was reported as failed when
+            // its CREATE timed out, only its handle needs to be closed.
+            pipeline.close(listing);
+        } else {
+            query(listing, EnumSet.of(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.SMB2_RESTART_SCANS));
+        }
+    }
+
+    private void queried(Listing listing, SMB2QueryDirectoryResponse response) {
+        NtStatus status = response.getHeader().getStatus();
+        byte[] buffer = response.getOutputBuffer();
+        // The macOS SMB server doesn't always send a STATUS_NO_MORE_FILES response, but repeats the last response.
+        if (status == NtStatus.STATUS_NO_MORE_FILES || (listing.lastBuffer != null && Arrays.equals(listing.lastBuffer, buffer))) {
+            if (listingListener != null && !closed) {
+                // Queued behind the entries of the directory, so that it is only notified once they were returned.
+                Entry directory = listing.directory;
+                entries.add(new Entry(directory.getPath(), directory.getInformation(), directory.getDepth(), null, directory.listing, true));
+            }
+            pipeline.close(listing);
+            return;
+        }
+        if (closed || listing.skipSiblings) {
+            pipeline.close(listing);
+            return;
+        }
+        if (status != NtStatus.STATUS_SUCCESS) {
+            failed(listing.directory, new SMBApiException(response.getHeader(), "Query directory failed for " + listing.directory.getPath()));
+            pipeline.close(listing);
+            return;
+        }
+        listing.lastBuffer = buffer;
+        try {
+            Iterator<FileIdBothDirectoryInformation> iterator = FileInformationFactory.createFileInformationIterator(buffer, decoder);
+            while (iterator.hasNext()) {
+                listed(listing, iterator.next());
+            }
+        } catch (SMBRuntimeException e) {
+            failed(listing.directory, e);
+            pipeline.close(listing);
+            return;
+        }
+        query(listing, EnumSet.noneOf(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.class));
+    }
+
+    private void listed(Listing listing, FileIdBothDirectoryInformation information) {
+        String name = information.getFileName();
+        if (".".equals(name) || "..".equals(name)) {
+            return;
+        }
+        Entry directory = listing.directory;
+        share.listed(directory.getPath(), information);
+        String path = directory.getPath().isEmpty() ? name : directory.getPath() + "\\" + name;
+        Entry entry = new Entry(path, information, directory.getDepth() + 1, null, listing, false);
+        if (filter == null || filter.accept(entry)) {
+            entries.add(entry);
+        } else if (isWalkable(entry)) {
+            directories.add(entry);
+        }
+    }
+
+    private void query(Listing listing, Set<SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags> flags) {
+        try {
+            pipeline.send(listing, share.queryDirectoryAsync(listing.getFileId(), flags, decoder.getInformationClass(), null));
+        } catch (SMBRuntimeException e) {
+            failed(listing.directory, e);
+            pipeline.close(listing);
+        }
+    }
+
+    private void failed(Entry directory, SMBRuntimeException exception) {
+        if (!closed) {
+            entries.add(new Entry(directory.getPath(), directory.getInformation(), directory.getDepth(), exception, directory.listing, false));
+        }
+    }
+
+    /**
+     * An entry of a directory in the tree, or a directory that could not be listed.
+     */
+    public static class Entry {
+        private final String path;
+        private final FileIdBothDirectoryInformation information;
+        private final int depth;
+        private final SMBRuntimeException exception;
+        private final Listing listing;
+        private final boolean endOfListing;
+
+        private Entry(String path, FileIdBothDirectoryInformation information, int depth, SMBRuntimeException exception, Listing listing, boolean endOfListing) {
+            this.path = path;
+            this.information = information;
+            this.depth = depth;
+            this.exception = exception;
+            this.listing = listing;
+            this.endOfListing = endOfListing;
+        }
+
+        /**
+         * @return the path of the entry on the share
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the information of the entry from the listing of its directory, or null for the directory the walk
+         * started in
+         */
+        public FileIdBothDirectoryInformation getInformation() {
+            return information;
+        }
+
+        /**
+         * @return the depth of the entry below the directory the walk started in, 1 for its entries
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public boolean isDirectory() {
+            return information == null || isSet(information.getFileAttributes(), FILE_ATTRIBUTE_DIRECTORY);
+        }
+
+        boolean isReparsePoint() {
+            return information != null && isSet(information.getFileAttributes(), FileAttributes.FILE_ATTRIBUTE_REPARSE_POINT);
+        }
+
+        /**
+         * @return the directory of this entry, or null for the directory the walk started in
+         */
+        Entry getParent() {
+            return listing != null ? listing.directory : null;
+        }
+
+        /**
+         * @return why this directory could not be listed, or null for an entry that was listed
+         */
+        public SMBRuntimeException getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                "path='" + path + '\'' +
+                ", depth=" + depth +
+                (exception != null ? ", exception=" + exception : "") +
+                '}';
+        }
+    }
+
+    private static class Listing extends HandlePipeline.Handle {
+        private final Entry directory;
+        private byte[] lastBuffer;
+        private boolean skipSiblings;
+
+        Listing(Entry directory) {
+            super(directory.getPath());
+            this.directory = directory;
+        }
+    }
+}
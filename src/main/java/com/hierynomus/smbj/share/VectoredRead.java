@@ -0,0 +1,178 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse;
+import com.hierynomus.protocol.commons.concurrent.Futures;
+import com.hierynomus.smbj.common.SMBApiException;
+import com.hierynomus.smbj.transport.TransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.hierynomus.mssmb2.SMB2Packet.SINGLE_CREDIT_PAYLOAD_SIZE;
+
+/**
+ * Reads a batch of ranges of a file. Ranges that are at most maxGap bytes apart are merged into a single READ of at
+ * most maxReadSize bytes, the bytes in the gaps are read and dropped. All READs are sent at once, as far as the
+ * credits on the connection allow.
+ */
+class VectoredRead {
+    private static final Logger logger = LoggerFactory.getLogger(VectoredRead.class);
+
+    private static final Comparator<FileRange> BY_OFFSET = new Comparator<FileRange>() {
+        @Override
+        public int compare(FileRange o1, FileRange o2) {
+            return Long.compare(o1.getOffset(), o2.getOffset());
+        }
+    };
+
+    private final File file;
+    private final int maxGap;
+    private final int maxReadSize;
+    private final int creditsPerRead;
+    private final long readTimeout;
+
+    VectoredRead(File file, int maxGap, int maxReadSize) {
+        if (maxGap < 0) {
+            throw new IllegalArgumentException("Gap should be either 0 (only merge adjacent ranges) or a positive value");
+        }
+        if (maxReadSize <= 0) {
+            throw new IllegalArgumentException("Read size must be greater than zero");
+        }
+        this.file = file;
+        this.maxGap = maxGap;
+        this.maxReadSize = Math.min(maxReadSize, file.share.getReadBufferSize());
+        this.creditsPerRead = (this.maxReadSize - 1) / SINGLE_CREDIT_PAYLOAD_SIZE + 1;
+        this.readTimeout = file.share.getReadTimeout();
+    }
+
+    void read(List<FileRange> ranges) throws TransportException {
+        List<FileRange> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, BY_OFFSET);
+
+        Deque<Read> reads = new ArrayDeque<>();
+        Read current = null;
+        for (FileRange range : sorted) {
+            range.setBytesRead(0);
+            if (range.getLength() == 0) {
+                continue;
+            }
+            if (current != null && range.getOffset() <= current.end + maxGap && Math.max(current.end, range.getEnd()) - current.offset <= maxReadSize) {
+                current.add(range);
+            } else {
+                // A range longer than the read size is read with several READs.
+                for (long offset = range.getOffset(); offset < range.getEnd(); offset += maxReadSize) {
+                    current = new Read(offset, Math.min(range.getEnd(), offset + maxReadSize), range);
+                    reads.add(current);
+                }
+            }
+        }
+        logger.debug("Reading {} ranges of {} with {} READs", ranges.size(), file, reads.size());
+
+        Deque<Read> inFlight = new ArrayDeque<>();
+        while (!reads.isEmpty() || !inFlight.isEmpty()) {
+            while (!reads.isEmpty() && (inFlight.isEmpty() || file.share.getAvailableCredits() > creditsPerRead)) {
+                Read read = reads.poll();
+                read.response = file.readAsync(read.offset, (int) (read.end - read.offset));
+                inFlight.add(read);
+            }
+            receive(inFlight.poll());
+        }
+
+        for (FileRange range : ranges) {
+            if (range.getLength() > 0 && range.getBytesRead() == 0) {
+                range.setBytesRead(-1);
+            } else {
+                range.getBuffer().position(range.getBuffer().position() + range.getBytesRead());
+            }
+        }
+    }
+
+    private void receive(Read read) throws TransportException {
+        long offset = read.offset;
+        Future<SMB2ReadResponse> response = read.response;
+        // Fill the whole READ, re-issuing the remainder if the server returned less than requested.
+        while (offset < read.end) {
+            byte[] data = receive(response);
+            if (data == null || data.length == 0) {
+                return;
+            }
+            for (FileRange range : read.ranges) {
+                copy(data, offset, range);
+            }
+            offset += data.length;
+            if (offset < read.end) {
+                logger.debug("Short read of {} bytes at offset {}, reading remaining {} bytes", data.length, offset - data.length, read.end - offset);
+                response = file.readAsync(offset, (int) (read.end - offset));
+            }
+        }
+    }
+
+    private static void copy(byte[] data, long dataOffset, FileRange range) {
+        long from = Math.max(dataOffset, range.getOffset());
+        long to = Math.min(dataOffset + data.length, range.getEnd());
+        if (to <= from) {
+            return;
+        }
+        ByteBuffer dst = range.getBuffer().duplicate();
+        dst.position(dst.position() + (int) (from - range.getOffset()));
+        dst.put(data, (int) (from - dataOffset), (int) (to - from));
+        range.setBytesRead(range.getBytesRead() + (int) (to - from));
+    }
+
+    /**
+     * @return the data read, or null at the end of the file.
+     */
+    private byte[] receive(Future<SMB2ReadResponse> response) throws TransportException {
+        SMB2ReadResponse res = Futures.get(response, readTimeout, TimeUnit.MILLISECONDS, TransportException.Wrapper);
+        if (res.getHeader().getStatus() == NtStatus.STATUS_END_OF_FILE) {
+            return null;
+        }
+        if (res.getHeader().getStatus() != NtStatus.STATUS_SUCCESS) {
+            throw new SMBApiException(res.getHeader(), "Read failed for " + file);
+        }
+        return res.getData();
+    }
+
+    private static class Read {
+        private final long offset;
+        private long end;
+        private final List<FileRange> ranges = new ArrayList<>();
+        private Future<SMB2ReadResponse> response;
+
+        Read(long offset, long end, FileRange range) {
+            this.offset = offset;
+            this.end = end;
+            this.ranges.add(range);
+        }
+
+        void add(FileRange range) {
+            ranges.add(range);
+            end = Math.max(end, range.getEnd());
+        }
+    }
+}
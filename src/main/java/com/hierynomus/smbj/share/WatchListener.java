@@ -0,0 +1,48 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyResponse;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+
+import java.util.List;
+
+/**
+ * Receives the changes in a directory watched with {@link DiskShare#watch(String, java.util.Set, boolean,
+ * WatchListener)}. The listener is called on the thread of the watch, one call at a time. The changes that happen
+ * while it runs are collected by the server, and are delivered in the next call.
+ */
+public interface WatchListener {
+
+    /**
+     * Called with the changes that the server reported at once, in the order in which they happened. The file names of
+     * the changes are relative to the watched directory.
+     */
+    void changed(DirectoryWatch watch, List<SMB2ChangeNotifyResponse.FileNotifyInfo> changes);
+
+    /**
+     * Called when the server dropped changes, because more happened than fit in a response. The watched directory, or
+     * the tree below it for a recursive watch, must be listed again to find out what changed.
+     */
+    void rescan(DirectoryWatch watch);
+
+    /**
+     * Called once when the watch stops.
+     *
+     * @param exception why the watch failed, or null if it was closed
+     */
+    void stopped(DirectoryWatch watch, SMBRuntimeException exception);
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share;
+
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects small writes to a file, and sends them as large WRITEs.
+ * <p/>
+ * The written ranges are kept in an interval map of non-overlapping segments, adjacent and overlapping writes are
+ * merged into a single segment, the last write winning. The segments are written when the number of buffered bytes
+ * reaches the limit, when the oldest buffered write is older than the maximum age at the next write or read, or when
+ * {@link #flush()} is called. There is no timer, an idle file keeps its buffered writes until it is flushed or closed.
+ * <p/>
+ * A read that is completely covered by a segment is served from the buffer, a read that partially overlaps a segment
+ * first flushes the buffer, so reads through the same handle always see the writes.
+ */
+class WriteCoalescer {
+    private static final Logger logger = LoggerFactory.getLogger(WriteCoalescer.class);
+
+    private final File file;
+    private final int maxBufferedBytes;
+    private final long maxAgeNanos;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private long bufferedBytes;
+    private long firstWriteNanos;
+    private boolean flushing;
+
+    WriteCoalescer(File file, int maxBufferedBytes, long maxAgeNanos) {
+        if (maxBufferedBytes <= 0) {
+            throw new IllegalArgumentException("Buffer size must be greater than zero");
+        }
+        this.file = file;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.maxAgeNanos = maxAgeNanos;
+    }
+
+    int getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    synchronized void write(byte[] buffer, int offset, int length, long fileOffset) {
+        if (segments.isEmpty()) {
+            firstWriteNanos = System.nanoTime();
+        }
+        Map.Entry<Long, Segment> floor = segments.floorEntry(fileOffset);
+        Segment segment;
+        if (floor != null && floor.getValue().end() >= fileOffset) {
+            segment = floor.getValue();
+        } else {
+            segment = new Segment(fileOffset);
+            segments.put(fileOffset, segment);
+        }
+        bufferedBytes += segment.put(fileOffset, buffer, offset, length);
+
+        // Absorb the segments that the write now overlaps or touches, the write wins where they overlap.
+        Map.Entry<Long, Segment> next;
+        while ((next = segments.higherEntry(segment.offset)) != null && next.getKey() <= segment.end()) {
+            Segment absorbed = segments.remove(next.getKey());
+            bufferedBytes -= absorbed.length;
+            if (absorbed.end() > segment.end()) {
+                int skip = (int) (segment.end() - absorbed.offset);
+                bufferedBytes += segment.put(segment.end(), absorbed.data, skip, absorbed.length - skip);
+            }
+        }
+
+        if (bufferedBytes >= maxBufferedBytes || isExpired()) {
+            flush();
+        }
+    }
+
+    /**
+     * Serve a read from the buffer if the range is completely covered by a buffered write. Otherwise, flush the buffer
+     * if the range overlaps a buffered write, so the read can be sent.
+     *
+     * @return true if the read was served from the buffer
+     */
+    synchronized boolean read(byte[] buffer, long fileOffset, int offset, int length) {
+        Map.Entry<Long, Segment> floor = segments.floorEntry(fileOffset);
+        if (floor != null && floor.getValue().end() >= fileOffset + length) {
+            Segment segment = floor.getValue();
+            System.arraycopy(segment.data, (int) (fileOffset - segment.offset), buffer, offset, length);
+            return true;
+        }
+        flushIfOverlaps(fileOffset, length);
+        return false;
+    }
+
+    /**
+     * Flush the buffer if any buffered write overlaps the range, or if the oldest buffered write is too old.
+     */
+    synchronized void flushIfOverlaps(long fileOffset, long length) {
+        if (segments.isEmpty()) {
+            return;
+        }
+        Map.Entry<Long, Segment> floor = segments.floorEntry(fileOffset);
+        Long ceiling = segments.ceilingKey(fileOffset);
+        boolean overlaps = (floor != null && floor.getValue().end() > fileOffset) || (ceiling != null && ceiling < fileOffset + length);
+        if (overlaps || isExpired()) {
+            flush();
+        }
+    }
+
+    /**
+     * Write all buffered segments, keeping up to the write pipeline depth WRITEs in flight per segment. A segment is
+     * only removed from the buffer once it is written, so a failed flush can be retried.
+     */
+    synchronized void flush() {
+        // The writes of the flush go through the file, which flushes this buffer first.
+        if (segments.isEmpty() || flushing) {
+            return;
+        }
+        logger.debug("Flushing {} bytes in {} segments to {}", bufferedBytes, segments.size(), file);
+        int depth = file.share.getWritePipelineDepth();
+        flushing = true;
+        try {
+            Iterator<Segment> iterator = segments.values().iterator();
+            while (iterator.hasNext()) {
+                Segment segment = iterator.next();
+                file.write(new ArrayByteChunkProvider(segment.data, 0, segment.length, segment.offset), depth, null);
+                iterator.remove();
+                bufferedBytes -= segment.length;
+            }
+        } finally {
+            flushing = false;
+        }
+    }
+
+    private boolean isExpired() {
+        return !segments.isEmpty() && System.nanoTime() - firstWriteNanos >= maxAgeNanos;
+    }
+
+    /**
+     * A contiguous range of buffered bytes, its array grows as writes are appended.
+     */
+    private static class Segment {
+        private final long offset;
+        private byte[] data = new byte[0];
+        private int length;
+
+        Segment(long offset) {
+            this.offset = offset;
+        }
+
+        long end() {
+            return offset + length;
+        }
+
+        /**
+         * @return the number of bytes the segment grew
+         */
+        int put(long fileOffset, byte[] buffer, int bufferOffset, int count) {
+            int position = (int) (fileOffset - offset);
+            int newLength = Math.max(length, position + count);
+            if (newLength > data.length) {
+                data = Arrays.copyOf(data, Math.max(newLength, 2 * data.length));
+            }
+            System.arraycopy(buffer, bufferOffset, data, position, count);
+            int grown = newLength - length;
+            length = newLength;
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msfscc.fsctl
+
+import com.hierynomus.smbj.common.SMBBuffer
+import spock.lang.Specification
+
+import javax.xml.bind.DatatypeConverter
+
+class FileAllocatedRangeBufferSpec extends Specification {
+  def "should write allocated range"() {
+    given:
+    def range = new FileAllocatedRangeBuffer(0x10000, 0x7FFFFFFFFFFFFFFFL)
+
+    when:
+    def buffer = new SMBBuffer()
+    range.write(buffer)
+
+    then:
+    DatatypeConverter.printHexBinary(buffer.compactData) == "0000010000000000" + "FFFFFFFFFFFFFF7F"
+  }
+
+  def "should read allocated ranges"() {
+    given:
+    def buffer = new SMBBuffer(DatatypeConverter.parseHexBinary("0000000000000000" + "0010000000000000" + "0000100000000000" + "0000010000000000"))
+
+    when:
+    def first = FileAllocatedRangeBuffer.read(buffer)
+    def second = FileAllocatedRangeBuffer.read(buffer)
+
+    then:
+    first.fileOffset == 0
+    first.length == 0x1000
+    second.fileOffset == 0x100000
+    second.length == 0x10000
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.msfscc.fsctl
+
+import com.hierynomus.smbj.common.SMBBuffer
+import spock.lang.Specification
+
+import javax.xml.bind.DatatypeConverter
+
+class SrvCopyChunkSpec extends Specification {
+  def "should write copychunk request"() {
+    given:
+    def key = new byte[24]
+    key[0] = 0x01
+    def request = new SrvCopyChunkCopyRequest(key)
+    request.addChunk(0, 0x10, 0x100000)
+
+    when:
+    def buffer = new SMBBuffer()
+    request.write(buffer)
+
+    then:
+    DatatypeConverter.printHexBinary(buffer.compactData) == "01" + "00" * 23 + "01000000" + "00000000" + "0000000000000000" + "1000000000000000" + "00001000" + "00000000"
+  }
+
+  def "should read server limits from copychunk response"() {
+    given:
+    byte[] bytes = DatatypeConverter.parseHexBinary("000100000000100000000001")
+
+    when:
+    def response = new SrvCopyChunkResponse()
+    response.read(new SMBBuffer(bytes))
+
+    then:
+    response.chunksWritten == 256
+    response.chunkBytesWritten == 1048576
+    response.totalBytesWritten == 16777216
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages
+
+import com.hierynomus.msdtyp.AccessMask
+import com.hierynomus.mssmb2.SMB2CreateDisposition
+import com.hierynomus.mssmb2.SMB2Dialect
+import com.hierynomus.mssmb2.SMB2Lease
+import com.hierynomus.mssmb2.SMB2LeaseState
+import com.hierynomus.mssmb2.SMB2OplockLevel
+import com.hierynomus.smbj.common.SMBBuffer
+import spock.lang.Specification
+
+import javax.xml.bind.DatatypeConverter
+
+class SMB2CreateRequestSpec extends Specification {
+
+  def "should write the lease create context 8-byte aligned after the name"() {
+    given:
+    def lease = new SMB2Lease((0..15) as byte[], EnumSet.of(SMB2LeaseState.SMB2_LEASE_READ_CACHING, SMB2LeaseState.SMB2_LEASE_HANDLE_CACHING))
+    def req = new SMB2CreateRequest(SMB2Dialect.SMB_2_1, 1, 1, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE, lease, null, EnumSet.of(AccessMask.GENERIC_READ), null, null, SMB2CreateDisposition.FILE_OPEN, null, "abc")
+
+    when:
+    def buffer = new SMBBuffer()
+    req.write(buffer)
+    def hex = DatatypeConverter.printHexBinary(buffer.compactData)
+
+    then:
+    hex.substring(2 * 67, 2 * 68) == "FF"
+    // NameOffset, NameLength, CreateContextsOffset and CreateContextsLength
+    hex.substring(2 * 108, 2 * 120) == "7800" + "0600" + "80000000" + "38000000"
+    hex.substring(2 * 120, 2 * 128) == "610062006300" + "0000"
+    hex.substring(2 * 128) == "00000000" + "1000" + "0400" + "0000" + "1800" + "20000000" + "52714C73" + "00000000" +
+      "000102030405060708090A0B0C0D0E0F" + "03000000" + "00000000" + "0000000000000000"
+  }
+
+  def "should not write create contexts without a lease"() {
+    given:
+    def req = new SMB2CreateRequest(SMB2Dialect.SMB_2_1, 1, 1, null, EnumSet.of(AccessMask.GENERIC_READ), null, null, SMB2CreateDisposition.FILE_OPEN, null, "abc")
+
+    when:
+    def buffer = new SMBBuffer()
+    req.write(buffer)
+    def hex = DatatypeConverter.printHexBinary(buffer.compactData)
+
+    then:
+    hex.substring(2 * 67, 2 * 68) == "00"
+    hex.substring(2 * 112, 2 * 120) == "00000000" + "00000000"
+    hex.substring(2 * 120) == "610062006300"
+  }
+}
@@ -16,6 +16,8 @@
 package com.hierynomus.mssmb2.messages
 
 import com.hierynomus.msdtyp.FileTime
+import com.hierynomus.mssmb2.SMB2LeaseState
+import com.hierynomus.mssmb2.SMB2OplockLevel
 import com.hierynomus.smbj.common.SMBBuffer
 import spock.lang.Specification
 
@@ -46,4 +48,32 @@ class SMB2CreateResponseSpec extends Specification {
     expect:
     resp instanceof SMB2CreateResponse
   }
+
+  def "should parse the lease create context after other create contexts"() {
+    given:
+    def hex = "fe534d424000000000000000050001000100000000000000040000000000000000000000010000000100000000000000000000000000000000000000000000005900ff00010000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000008000000000000000101112131415161718191a1b1c1d1e1f9800000058000000200000001000040000001800080000004d7841630000000000000000ff011f000000000010000400000018002000000052714c7300000000000102030405060708090a0b0c0d0e0f07000000000000000000000000000000"
+    def bytes = DatatypeConverter.parseHexBinary(hex)
+
+    when:
+    def resp = SMB2MessageConverter.newInstance().read(bytes)
+
+    then:
+    resp instanceof SMB2CreateResponse
+    resp.oplockLevel == SMB2OplockLevel.SMB2_OPLOCK_LEVEL_LEASE
+    resp.lease.leaseKey == (0..15) as byte[]
+    resp.lease.leaseState == EnumSet.allOf(SMB2LeaseState)
+  }
+
+  def "should parse SMB2 Create Response without create contexts as not leased"() {
+    given:
+    String hexString1 = "fe534d4240000000000000000500010001000000000000000400000000000000000000000100000009000000004000000000000000000000000000000000000059000000010000006aa787efa59dd1016aa787efa59dd1016aa787efa59dd101954ff5efa59dd101000000000000000000000000000000001000000000000000030000001000000001000000100000000000000000000000"
+    SMB2CreateResponse resp = new SMB2CreateResponse()
+
+    when:
+    resp.read(new SMBBuffer(DatatypeConverter.parseHexBinary(hexString1)))
+
+    then:
+    resp.oplockLevel == SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE
+    resp.lease == null
+  }
 }
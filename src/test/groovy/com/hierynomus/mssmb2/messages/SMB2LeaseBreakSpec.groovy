@@ -0,0 +1,40 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.mssmb2.messages
+
+import com.hierynomus.mssmb2.SMB2LeaseState
+import spock.lang.Specification
+
+import javax.xml.bind.DatatypeConverter
+
+class SMB2LeaseBreakSpec extends Specification {
+
+  def "should parse SMB2 Lease Break Notification"() {
+    given:
+    def hex = "fe534d424000000000000000120000000100000000000000ffffffffffffffff00000000000000000000000000000000000000000000000000000000000000002c00010001000000000102030405060708090a0b0c0d0e0f0700000001000000000000000000000000000000"
+    def bytes = DatatypeConverter.parseHexBinary(hex)
+
+    when:
+    def resp = SMB2MessageConverter.newInstance().read(bytes)
+
+    then:
+    resp instanceof SMB2LeaseBreak
+    resp.acknowledgmentRequired
+    resp.leaseKey == (0..15) as byte[]
+    resp.currentLeaseState == EnumSet.allOf(SMB2LeaseState)
+    resp.leaseState == EnumSet.of(SMB2LeaseState.SMB2_LEASE_READ_CACHING)
+  }
+}
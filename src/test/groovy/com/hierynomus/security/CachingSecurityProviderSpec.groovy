@@ -0,0 +1,85 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.security
+
+import com.hierynomus.security.bc.BCSecurityProvider
+import com.hierynomus.security.jce.JceSecurityProvider
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class CachingSecurityProviderSpec extends Specification {
+
+  @Unroll
+  def "should reuse pooled MessageDigest instances for #wrapped"() {
+    given:
+    def provider = new CachingSecurityProvider(wrapped)
+    def message = "password".getBytes("UTF-16LE")
+
+    when:
+    def first = provider.getDigest("MD4")
+    first.update(message)
+    def firstDigest = first.digest()
+    def second = provider.getDigest("MD4")
+    second.update(message)
+    def secondDigest = second.digest()
+    def stats = provider.statistics["MessageDigest/MD4"]
+
+    then:
+    firstDigest == secondDigest
+    stats.hits == 1
+    stats.misses == 1
+    stats.pooled == 1
+
+    where:
+    wrapped << [new JceSecurityProvider(), new BCSecurityProvider()]
+  }
+
+  def "should calculate the same Mac as the wrapped provider when reusing an instance"() {
+    given:
+    def jce = new JceSecurityProvider()
+    def provider = new CachingSecurityProvider(jce)
+    def key = [1, 2, 3, 4, 5, 6, 7, 8] as byte[]
+    def expected = jce.getMac("HmacMD5")
+    expected.init(key)
+    expected.update("message".bytes)
+    def expectedMac = expected.doFinal()
+
+    when:
+    def mac = provider.getMac("HmacMD5")
+    mac.init(key)
+    mac.update("other".bytes)
+    mac.doFinal()
+    mac.update("message".bytes)
+
+    then:
+    mac.doFinal() == expectedMac
+    provider.statistics["Mac/HmacMD5"].hits == 1
+  }
+
+  def "should not keep more instances than the maximum pool size"() {
+    given:
+    def provider = new CachingSecurityProvider(new JceSecurityProvider(), 1)
+    def first = provider.getDigest("SHA-256")
+    def second = provider.getDigest("SHA-256")
+
+    when:
+    first.digest()
+    second.digest()
+
+    then:
+    provider.statistics["MessageDigest/SHA-256"].pooled == 1
+  }
+}
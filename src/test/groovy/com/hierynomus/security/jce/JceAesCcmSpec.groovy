@@ -0,0 +1,98 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.security.jce
+
+import com.hierynomus.security.Cipher
+import com.hierynomus.security.SecurityException
+import com.hierynomus.security.bc.BCSecurityProvider
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.crypto.spec.GCMParameterSpec
+
+class JceAesCcmSpec extends Specification {
+  static byte[] hex(String s) {
+    s.decodeHex()
+  }
+
+  static def key = hex("c0c1c2c3c4c5c6c7c8c9cacbcccdcecf")
+
+  def "should encrypt RFC 3610 packet vector #1"() {
+    given:
+    def cipher = new JceAesCcm(null, null)
+    def input = hex("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e")
+
+    when:
+    cipher.init(Cipher.CryptMode.ENCRYPT, key, new GCMParameterSpec(64, hex("00000003020100a0a1a2a3a4a5")))
+    cipher.updateAAD(input, 0, 8)
+    def encrypted = cipher.doFinal(input, 8, input.length - 8)
+
+    then:
+    encrypted == hex("588c979a61c663d2f066d0c2c0f989806d5f6b61dac38417e8d12cfdf926e0")
+  }
+
+  @Unroll
+  def "should encrypt and decrypt a #length byte message like BouncyCastle"() {
+    given:
+    def cipher = new JceAesCcm(null, null)
+    def bcCipher = new BCSecurityProvider().getAEADBlockCipher("AES/CCM/NoPadding")
+    def spec = new GCMParameterSpec(128, hex("0102030405060708090a0b"))
+    def aad = new byte[32]
+    def data = new byte[length]
+    new Random(length).nextBytes(aad)
+    new Random(length + 1).nextBytes(data)
+
+    when:
+    cipher.init(Cipher.CryptMode.ENCRYPT, key, spec)
+    cipher.updateAAD(aad, 0, aad.length)
+    def encrypted = cipher.doFinal(data, 0, data.length)
+    bcCipher.init(Cipher.CryptMode.ENCRYPT, key, spec)
+    bcCipher.updateAAD(aad, 0, aad.length)
+    def bcEncrypted = bcCipher.doFinal(data, 0, data.length)
+    cipher.init(Cipher.CryptMode.DECRYPT, key, spec)
+    cipher.updateAAD(aad, 0, aad.length)
+    cipher.update(encrypted, 0, length)
+    def decrypted = cipher.doFinal(encrypted, length, 16)
+
+    then:
+    encrypted == bcEncrypted
+    decrypted == data
+
+    where:
+    length << [0, 1, 16, 17, 20000]
+  }
+
+  def "should reject a tampered message"() {
+    given:
+    def cipher = new JceAesCcm(null, null)
+    def spec = new GCMParameterSpec(128, hex("0102030405060708090a0b"))
+    cipher.init(Cipher.CryptMode.ENCRYPT, key, spec)
+    def encrypted = cipher.doFinal(new byte[100], 0, 100)
+    encrypted[50] ^= 1
+
+    when:
+    cipher.init(Cipher.CryptMode.DECRYPT, key, spec)
+    cipher.doFinal(encrypted, 0, encrypted.length)
+
+    then:
+    thrown(SecurityException)
+  }
+
+  def "should be provided by JceSecurityProvider when the JCE provider has no AES-CCM"() {
+    expect:
+    new JceSecurityProvider().getAEADBlockCipher("AES/CCM/NoPadding") instanceof JceAesCcm
+  }
+}
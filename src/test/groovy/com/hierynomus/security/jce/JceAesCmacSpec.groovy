@@ -0,0 +1,85 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.security.jce
+
+import com.hierynomus.security.bc.BCSecurityProvider
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class JceAesCmacSpec extends Specification {
+  static byte[] hex(String s) {
+    s.decodeHex()
+  }
+
+  static def key = hex("2b7e151628aed2a6abf7158809cf4f3c")
+  static def message = hex("6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e5130c81c46a35ce411e5fbc1191a0a52eff69f2445df4f9b17ad2b417be66c3710")
+
+  @Unroll
+  def "should calculate the RFC 4493 AES-CMAC of a #length byte message"() {
+    given:
+    def mac = new JceAesCmac(null, null)
+    mac.init(key)
+
+    when:
+    mac.update(message, 0, length)
+
+    then:
+    mac.doFinal() == hex(expected)
+
+    where:
+    length | expected
+    0      | "bb1d6929e95937287fa37d129b756746"
+    16     | "070a16b46b4d4144f79bdd9dd04a287c"
+    40     | "dfa66747de9ae63030ca32611497c827"
+    64     | "51f0bebf7e3b9d92fc49741779363cfe"
+  }
+
+  def "should calculate the same AES-CMAC as BouncyCastle when updated in pieces"() {
+    given:
+    def mac = new JceAesCmac(null, null)
+    mac.init(key)
+    def bcMac = new BCSecurityProvider().getMac("AESCMAC")
+    bcMac.init(key)
+    def data = new byte[20000]
+    new Random(42).nextBytes(data)
+
+    when:
+    def offset = 0
+    [1, 15, 17, 0, 4096, 10000, 5].each { length ->
+      mac.update(data, offset, length)
+      offset += length
+    }
+    mac.update(data, offset, data.length - offset)
+    bcMac.update(data, 0, data.length)
+
+    then:
+    mac.doFinal() == bcMac.doFinal()
+  }
+
+  def "should restart the calculation after a reset"() {
+    given:
+    def mac = new JceAesCmac(null, null)
+    mac.init(key)
+
+    when:
+    mac.update(message, 0, 40)
+    mac.reset()
+    mac.update(message, 0, 16)
+
+    then:
+    mac.doFinal() == hex("070a16b46b4d4144f79bdd9dd04a287c")
+  }
+}
@@ -16,12 +16,17 @@
 package com.hierynomus.smbj.connection
 
 import com.hierynomus.mserref.NtStatus
+import com.hierynomus.mssmb2.SMB2Dialect
+import com.hierynomus.mssmb2.SMB2GlobalCapability
 import com.hierynomus.mssmb2.SMB2Packet
 import com.hierynomus.mssmb2.SMB2ShareCapabilities
 import com.hierynomus.mssmb2.messages.*
 
 class BasicPacketProcessor {
   private Closure<SMB2Packet> processPacket
+  // The dialect and capabilities of the NEGOTIATE response, none by default
+  SMB2Dialect dialect
+  Set<SMB2GlobalCapability> capabilities = EnumSet.noneOf(SMB2GlobalCapability)
 
   BasicPacketProcessor(Closure<SMB2Packet> processPacket) {
     this.processPacket = processPacket
@@ -42,9 +47,11 @@ class BasicPacketProcessor {
     processPacket.call(req)
   }
 
-  private static SMB2Packet negotiateResponse() {
+  private SMB2Packet negotiateResponse() {
     def response = new SMB2NegotiateResponse()
     response.header.status = NtStatus.STATUS_SUCCESS
+    response.dialect = dialect
+    response.capabilities = capabilities.sum(0L) { it.value } as long
     response
   }
 
@@ -25,24 +25,37 @@ import com.hierynomus.smbj.transport.TransportLayerFactory
 
 class StubTransportLayerFactory implements TransportLayerFactory<SMB2Packet> {
   private Closure<SMB2Packet> processPacket
+  private Closure<Integer> responseDelay
 
   StubTransportLayerFactory(Closure<SMB2Packet> processPacket) {
+    this(processPacket, null)
+  }
+
+  /**
+   * @param responseDelay returns the number of milliseconds after which the response to a packet is received, the
+   *                      response is received before the packet is sent when it returns 0
+   */
+  StubTransportLayerFactory(Closure<SMB2Packet> processPacket, Closure<Integer> responseDelay) {
     this.processPacket = processPacket
+    this.responseDelay = responseDelay
   }
 
   @Override
   TransportLayer<SMB2Packet> createTransportLayer(PacketHandlers<SMB2Packet> handlers, SmbConfig config) {
-    return new StubTransportLayer(handlers.receiver, processPacket)
+    return new StubTransportLayer(handlers.receiver, processPacket, responseDelay)
   }
 
   private static class StubTransportLayer implements TransportLayer<SMB2Packet> {
     private boolean connected
     private PacketReceiver<SMB2Packet> receiver
     private Closure<SMB2Packet> processPacket
+    private Closure<Integer> responseDelay
+    private Timer timer = new Timer(true)
 
-    StubTransportLayer(PacketReceiver<SMB2Packet> receiver, Closure<SMB2Packet> processPacket) {
+    StubTransportLayer(PacketReceiver<SMB2Packet> receiver, Closure<SMB2Packet> processPacket, Closure<Integer> responseDelay) {
       this.receiver = receiver
       this.processPacket = processPacket
+      this.responseDelay = responseDelay
     }
 
     @Override
@@ -52,7 +65,12 @@ class StubTransportLayerFactory implements TransportLayerFactory<SMB2Packet> {
       if (response != null) {
         response.header.messageId = packet.header.messageId
         response.header.creditResponse = packet.header.creditRequest
-        receiver.handle(response)
+        def delay = responseDelay != null ? responseDelay.call(packet) : 0
+        if (delay > 0) {
+          timer.runAfter(delay) { receiver.handle(response) }
+        } else {
+          receiver.handle(response)
+        }
       } else {
         throw new TransportException("No response for " + packet)
       }
@@ -66,6 +84,7 @@ class StubTransportLayerFactory implements TransportLayerFactory<SMB2Packet> {
     @Override
     void disconnect() throws IOException {
       connected = false
+      timer.cancel()
     }
 
     @Override
@@ -67,6 +67,21 @@ class BufferByteChunkProviderSpec extends Specification {
     !provider.isAvailable()
   }
 
+  def "should only skip the requested bytes"() {
+    given:
+    buffer.putRawBytes((0..<100).collect { it as byte } as byte[])
+    provider.chunkSize = 16
+    def chunk = new byte[8]
+
+    when:
+    provider.skip(40)
+    provider.getChunk(chunk)
+
+    then:
+    provider.offset == 40
+    chunk == (40..<48).collect { it as byte } as byte[]
+  }
+
   def "should not fail if nothing to read"() {
     given:
     def chunk = new byte[8]
@@ -85,6 +85,25 @@ class FileByteChunkProviderSpec extends Specification {
 
   }
 
+  def "should close the file after the last chunk"() {
+    given:
+    def file = getFileWithRandomData(ByteChunkProvider.CHUNK_SIZE + 1)
+    def provider = new FileByteChunkProvider(file)
+
+    when:
+    provider.writeChunk(new ByteArrayOutputStream())
+
+    then:
+    provider.channel.isOpen()
+
+    when:
+    provider.writeChunk(new ByteArrayOutputStream())
+
+    then:
+    !provider.isAvailable()
+    !provider.channel.isOpen()
+  }
+
   private def getFileWithRandomData(int size) {
     def bytes = new byte[size]
     new Random().nextBytes(bytes)
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.io
+
+import com.hierynomus.smbj.common.SMBBuffer
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+class FileChannelByteChunkProviderSpec extends Specification {
+  @Rule
+  TemporaryFolder temp
+
+  def "should put region of channel directly into buffer"() {
+    given:
+    def bytes = randomBytes(ByteChunkProvider.CHUNK_SIZE * 2)
+    def channel = channelWith(bytes)
+    def provider = new FileChannelByteChunkProvider(channel, 100, ByteChunkProvider.CHUNK_SIZE + 10, 4096)
+    def buffer = new SMBBuffer()
+
+    when:
+    provider.writeChunks(buffer, 2)
+
+    then:
+    buffer.compactData == Arrays.copyOfRange(bytes, 100, 100 + ByteChunkProvider.CHUNK_SIZE + 10)
+    provider.offset == 4096 + ByteChunkProvider.CHUNK_SIZE + 10
+    !provider.isAvailable()
+    channel.position() == 0
+
+    cleanup:
+    channel.close()
+  }
+
+  def "should allow multiple providers over the same channel"() {
+    given:
+    def bytes = randomBytes(1024)
+    def channel = channelWith(bytes)
+    def first = new FileChannelByteChunkProvider(channel, 0, 512, 0)
+    def second = new FileChannelByteChunkProvider(channel, 512, 512, 512)
+    def firstBuffer = new SMBBuffer()
+    def secondBuffer = new SMBBuffer()
+
+    when:
+    second.writeChunk(secondBuffer)
+    first.writeChunk(firstBuffer)
+
+    then:
+    firstBuffer.compactData == Arrays.copyOfRange(bytes, 0, 512)
+    secondBuffer.compactData == Arrays.copyOfRange(bytes, 512, 1024)
+
+    cleanup:
+    channel.close()
+  }
+
+  def "should put direct byte buffer into buffer"() {
+    given:
+    def bytes = randomBytes(1000)
+    def direct = ByteBuffer.allocateDirect(1000)
+    direct.put(bytes).flip()
+    def provider = new ByteBufferByteChunkProvider(direct, 0)
+    def buffer = new SMBBuffer()
+
+    when:
+    provider.writeChunk(buffer)
+
+    then:
+    buffer.compactData == bytes
+    provider.offset == 1000
+    !provider.isAvailable()
+  }
+
+  private def randomBytes(int size) {
+    def bytes = new byte[size]
+    new Random().nextBytes(bytes)
+    bytes
+  }
+
+  private def channelWith(byte[] bytes) {
+    def file = temp.newFile("channel.bin")
+    file.bytes = bytes
+    FileChannel.open(file.toPath(), StandardOpenOption.READ)
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.io
+
+import spock.lang.Specification
+
+class InputStreamByteChunkProviderSpec extends Specification {
+
+  def "should only skip the requested bytes"() {
+    given:
+    def bytes = new byte[ByteChunkProvider.CHUNK_SIZE * 2]
+    new Random().nextBytes(bytes)
+    def provider = new InputStreamByteChunkProvider(new ByteArrayInputStream(bytes))
+    def baos = new ByteArrayOutputStream()
+
+    when:
+    provider.skip(ByteChunkProvider.CHUNK_SIZE + 100)
+    provider.writeChunk(baos)
+
+    then:
+    baos.toByteArray() == Arrays.copyOfRange(bytes, ByteChunkProvider.CHUNK_SIZE + 100, bytes.length)
+    provider.offset == bytes.length
+    !provider.isAvailable()
+  }
+
+  def "should read no more than the size of the chunk"() {
+    given:
+    def provider = new InputStreamByteChunkProvider(new ByteArrayInputStream((0..<100).collect { it as byte } as byte[]))
+    def chunk = new byte[10]
+
+    when:
+    def read = provider.getChunk(chunk)
+
+    then:
+    read == 10
+    chunk == (0..<10).collect { it as byte } as byte[]
+    provider.bytesLeft() == 90
+  }
+}
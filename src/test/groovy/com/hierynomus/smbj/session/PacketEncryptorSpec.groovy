@@ -0,0 +1,129 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.session
+
+import com.hierynomus.mssmb2.SMB2Dialect
+import com.hierynomus.mssmb2.SMB2EncryptionCipher
+import com.hierynomus.mssmb2.SMB2TransformHeader
+import com.hierynomus.mssmb2.messages.SMB2Echo
+import com.hierynomus.mssmb2.messages.SMB2EncryptedPacket
+import com.hierynomus.mssmb2.messages.SMB2MessageConverter
+import com.hierynomus.security.Cipher
+import com.hierynomus.security.bc.BCSecurityProvider
+import com.hierynomus.security.jce.JceSecurityProvider
+import com.hierynomus.smbj.common.SMBBuffer
+import com.hierynomus.smbj.transport.TransportException
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.crypto.spec.GCMParameterSpec
+
+class PacketEncryptorSpec extends Specification {
+  def provider = new BCSecurityProvider()
+  def sessionKey = [0x75, 0xc5, 0xcb, 0x91, 0x41, 0x9e, 0x3a, 0x45, 0xce, 0x9e, 0xf8, 0x69, 0xdf, 0xd3, 0xe2, 0xa8] as byte[]
+  def preauthIntegrityHashValue = new byte[64]
+
+  @Unroll
+  def "should encrypt #dialect packet with #cipher using #securityProvider.class.simpleName for the server"() {
+    given:
+    def encryptor = new PacketEncryptor(dialect, cipher, securityProvider, new Random())
+    encryptor.init(sessionKey, preauthIntegrityHashValue)
+    def echo = new SMB2Echo(dialect)
+    echo.header.sessionId = 42
+    def plain = new SMBBuffer()
+    echo.write(plain)
+
+    when:
+    def buffer = new SMBBuffer()
+    encryptor.encrypt(echo).write(buffer)
+    def data = buffer.compactData
+    def transformHeader = new SMB2TransformHeader().readFrom(new SMBBuffer(data))
+    def serverCipher = provider.getAEADBlockCipher(cipher.algorithmName)
+    serverCipher.init(Cipher.CryptMode.DECRYPT, serverKey(dialect, false), new GCMParameterSpec(128, Arrays.copyOf(transformHeader.nonce, cipher.nonceLength)))
+    serverCipher.updateAAD(data, SMB2TransformHeader.AAD_OFFSET, SMB2TransformHeader.AAD_SIZE)
+    def decrypted = serverCipher.update(data, SMB2TransformHeader.STRUCTURE_SIZE, data.length - SMB2TransformHeader.STRUCTURE_SIZE)
+    decrypted = (decrypted as List) + (serverCipher.doFinal(transformHeader.signature, 0, SMB2TransformHeader.SIGNATURE_SIZE) as List)
+
+    then:
+    SMB2TransformHeader.isTransformHeader(data, 0)
+    transformHeader.sessionId == 42
+    transformHeader.originalMessageSize == plain.available()
+    decrypted as byte[] == plain.compactData
+
+    where:
+    dialect               | cipher                           | securityProvider
+    SMB2Dialect.SMB_3_0   | SMB2EncryptionCipher.AES_128_CCM | new BCSecurityProvider()
+    SMB2Dialect.SMB_3_1_1 | SMB2EncryptionCipher.AES_128_CCM | new BCSecurityProvider()
+    SMB2Dialect.SMB_3_1_1 | SMB2EncryptionCipher.AES_128_GCM | new BCSecurityProvider()
+    SMB2Dialect.SMB_3_0   | SMB2EncryptionCipher.AES_128_CCM | new JceSecurityProvider()
+    SMB2Dialect.SMB_3_0_2 | SMB2EncryptionCipher.AES_128_CCM | new JceSecurityProvider()
+    SMB2Dialect.SMB_3_1_1 | SMB2EncryptionCipher.AES_128_CCM | new JceSecurityProvider()
+    SMB2Dialect.SMB_3_1_1 | SMB2EncryptionCipher.AES_128_GCM | new JceSecurityProvider()
+  }
+
+  @Unroll
+  def "should decrypt packet from the server and reject tampered packets using #securityProvider.class.simpleName"() {
+    given:
+    def encryptor = new PacketEncryptor(SMB2Dialect.SMB_3_1_1, SMB2EncryptionCipher.AES_128_GCM, securityProvider, new Random())
+    encryptor.init(sessionKey, preauthIntegrityHashValue)
+    def echo = new SMB2Echo(SMB2Dialect.SMB_3_1_1)
+    echo.header.sessionId = 42
+    def plain = new SMBBuffer()
+    echo.write(plain)
+    def data = serverEncrypt(plain.compactData, 42)
+    def tampered = Arrays.copyOf(data, data.length)
+    tampered[tampered.length - 1] = (byte) (tampered[tampered.length - 1] ^ 0x01)
+
+    when:
+    def packet = new SMB2MessageConverter().read(data)
+
+    then:
+    packet instanceof SMB2EncryptedPacket
+    encryptor.decrypt(packet as SMB2EncryptedPacket) == plain.compactData
+
+    when:
+    encryptor.decrypt(new SMB2MessageConverter().read(tampered) as SMB2EncryptedPacket)
+
+    then:
+    thrown(TransportException)
+
+    where:
+    securityProvider << [new BCSecurityProvider(), new JceSecurityProvider()]
+  }
+
+  private byte[] serverKey(SMB2Dialect dialect, boolean serverToClient) {
+    if (dialect == SMB2Dialect.SMB_3_1_1) {
+      return SMB3KeyDerivation.derive(provider, sessionKey, serverToClient ? SMB3KeyDerivation.SMB311_DECRYPTION_LABEL : SMB3KeyDerivation.SMB311_ENCRYPTION_LABEL, preauthIntegrityHashValue)
+    }
+    return SMB3KeyDerivation.derive(provider, sessionKey, SMB3KeyDerivation.SMB3_ENCRYPTION_LABEL, serverToClient ? SMB3KeyDerivation.SMB3_DECRYPTION_CONTEXT : SMB3KeyDerivation.SMB3_ENCRYPTION_CONTEXT)
+  }
+
+  private byte[] serverEncrypt(byte[] plain, long sessionId) {
+    def nonce = new byte[SMB2TransformHeader.NONCE_SIZE]
+    nonce[0] = 0x01
+    def buffer = new SMBBuffer()
+    new SMB2TransformHeader(nonce, plain.length, sessionId).writeTo(buffer)
+    def header = buffer.compactData
+    def cipher = provider.getAEADBlockCipher(SMB2EncryptionCipher.AES_128_GCM.algorithmName)
+    cipher.init(Cipher.CryptMode.ENCRYPT, serverKey(SMB2Dialect.SMB_3_1_1, true), new GCMParameterSpec(128, Arrays.copyOf(nonce, 12)))
+    cipher.updateAAD(header, SMB2TransformHeader.AAD_OFFSET, SMB2TransformHeader.AAD_SIZE)
+    def encrypted = cipher.doFinal(plain, 0, plain.length)
+    System.arraycopy(encrypted, encrypted.length - 16, header, 4, 16)
+    def message = Arrays.copyOf(header, header.length + encrypted.length - 16)
+    System.arraycopy(encrypted, 0, message, header.length, encrypted.length - 16)
+    return message
+  }
+}
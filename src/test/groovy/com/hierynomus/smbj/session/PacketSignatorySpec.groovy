@@ -16,9 +16,17 @@
 package com.hierynomus.smbj.session
 
 import com.hierynomus.mssmb2.SMB2Dialect
+import com.hierynomus.mssmb2.SMB2Header
+import com.hierynomus.mssmb2.SMB2SigningAlgorithm
+import com.hierynomus.mssmb2.messages.SMB2Echo
 import com.hierynomus.mssmb2.messages.SMB2MessageConverter
+import com.hierynomus.security.Mac
+import com.hierynomus.security.SecurityProvider
+import com.hierynomus.security.jce.JceSecurityProvider
+import com.hierynomus.smbj.common.SMBBuffer
 import com.hierynomus.security.bc.BCSecurityProvider
 import spock.lang.Specification
+import spock.lang.Unroll
 
 class PacketSignatorySpec extends Specification {
 
@@ -35,4 +43,109 @@ class PacketSignatorySpec extends Specification {
     noExceptionThrown()
     verified
   }
+
+  def "should verify signature of signed packet with pooled Mac instances"() {
+    given:
+    def signatory = new PacketSignatory(SMB2Dialect.SMB_2_1, new JceSecurityProvider())
+    signatory.init([0x75, 0xc5, 0xcb, 0x91, 0x41, 0x9e, 0x3a, 0x45, 0xce, 0x9e, 0xf8, 0x69, 0xdf, 0xd3, 0xe2, 0xa8] as byte[])
+
+    when:
+    def first = new SMBBuffer()
+    signatory.sign(new SMB2Echo(SMB2Dialect.SMB_2_1)).write(first)
+    def second = new SMBBuffer()
+    signatory.sign(new SMB2Echo(SMB2Dialect.SMB_2_1)).write(second)
+    def tampered = second.compactData
+    tampered[tampered.length - 1] = 0x01
+
+    then:
+    first.compactData == second.compactData
+    signatory.verify(new SMB2MessageConverter().read(first.compactData))
+    !signatory.verify(new SMB2MessageConverter().read(tampered))
+  }
+
+  def "should not reuse a Signer of the previous key after the key changed"() {
+    given:
+    def key = [0x75, 0xc5, 0xcb, 0x91, 0x41, 0x9e, 0x3a, 0x45, 0xce, 0x9e, 0xf8, 0x69, 0xdf, 0xd3, 0xe2, 0xa8] as byte[]
+    def newKey = new byte[16]
+    def provider = new JceSecurityProvider()
+    PacketSignatory signatory
+    def rekeying = [
+      getDigest          : { String name -> provider.getDigest(name) },
+      getMac             : { String name ->
+        def mac = provider.getMac(name)
+        // Changes the key while the first packet is being signed.
+        [
+          init   : { byte[] k -> mac.init(k) },
+          update : { byte[] data, int offset, int length ->
+            if (newKey != null) {
+              def k = newKey
+              newKey = null
+              signatory.init(k)
+            }
+            mac.update(data, offset, length)
+          },
+          doFinal: { -> mac.doFinal() },
+          reset  : { -> mac.reset() }
+        ] as Mac
+      },
+      getCipher          : { String name -> provider.getCipher(name) },
+      getAEADBlockCipher : { String name -> provider.getAEADBlockCipher(name) }
+    ] as SecurityProvider
+    signatory = new PacketSignatory(SMB2Dialect.SMB_2_1, rekeying)
+    signatory.init(key)
+    def expected = new PacketSignatory(SMB2Dialect.SMB_2_1, provider)
+    expected.init(new byte[16])
+
+    when:
+    signatory.sign(new SMB2Echo(SMB2Dialect.SMB_2_1)).write(new SMBBuffer())
+    def buffer = new SMBBuffer()
+    signatory.sign(new SMB2Echo(SMB2Dialect.SMB_2_1)).write(buffer)
+    def expectedBuffer = new SMBBuffer()
+    expected.sign(new SMB2Echo(SMB2Dialect.SMB_2_1)).write(expectedBuffer)
+
+    then:
+    buffer.compactData == expectedBuffer.compactData
+  }
+
+  @Unroll
+  def "should sign #dialect packets using #algorithm the same with JCE and BouncyCastle"() {
+    given:
+    def key = [0x75, 0xc5, 0xcb, 0x91, 0x41, 0x9e, 0x3a, 0x45, 0xce, 0x9e, 0xf8, 0x69, 0xdf, 0xd3, 0xe2, 0xa8] as byte[]
+    def preauthIntegrityHashValue = new byte[64]
+    def jce = new PacketSignatory(dialect, algorithm, new JceSecurityProvider())
+    jce.init(key, preauthIntegrityHashValue)
+    def bc = new PacketSignatory(dialect, algorithm, new BCSecurityProvider())
+    bc.init(key, preauthIntegrityHashValue)
+
+    when:
+    def jceBuffer = new SMBBuffer()
+    jce.sign(new SMB2Echo(dialect)).write(jceBuffer)
+    def bcBuffer = new SMBBuffer()
+    bc.sign(new SMB2Echo(dialect)).write(bcBuffer)
+
+    then:
+    jceBuffer.compactData == bcBuffer.compactData
+    Arrays.copyOfRange(jceBuffer.compactData, SMB2Header.SIGNATURE_OFFSET, SMB2Header.STRUCTURE_SIZE) != SMB2Header.EMPTY_SIGNATURE
+
+    where:
+    dialect                | algorithm
+    SMB2Dialect.SMB_3_0    | SMB2SigningAlgorithm.AES_CMAC
+    SMB2Dialect.SMB_3_0_2  | SMB2SigningAlgorithm.AES_CMAC
+    SMB2Dialect.SMB_3_1_1  | SMB2SigningAlgorithm.AES_CMAC
+    SMB2Dialect.SMB_3_1_1  | SMB2SigningAlgorithm.AES_GMAC
+  }
+
+  def "should verify an SMB 3.0 AES-CMAC signed packet"() {
+    given:
+    def signatory = new PacketSignatory(SMB2Dialect.SMB_3_0, new JceSecurityProvider())
+    signatory.init([0x75, 0xc5, 0xcb, 0x91, 0x41, 0x9e, 0x3a, 0x45, 0xce, 0x9e, 0xf8, 0x69, 0xdf, 0xd3, 0xe2, 0xa8] as byte[])
+
+    when:
+    def buffer = new SMBBuffer()
+    signatory.sign(new SMB2Echo(SMB2Dialect.SMB_3_0)).write(buffer)
+
+    then:
+    signatory.signingAlgorithm == SMB2SigningAlgorithm.AES_CMAC
+    signatory.verify(new SMB2MessageConverter().read(buffer.compactData))
+  }
 }
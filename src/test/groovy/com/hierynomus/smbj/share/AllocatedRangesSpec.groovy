@@ -0,0 +1,251 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msdtyp.AccessMask
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.mssmb2.SMB2CreateDisposition
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.mssmb2.SMB2Packet
+import com.hierynomus.mssmb2.SMB2ShareAccess
+import com.hierynomus.mssmb2.messages.SMB2Close
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse
+import com.hierynomus.mssmb2.messages.SMB2IoctlRequest
+import com.hierynomus.mssmb2.messages.SMB2IoctlResponse
+import com.hierynomus.mssmb2.messages.SMB2ReadRequest
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse
+import com.hierynomus.smbj.ProgressListener
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.common.SMBApiException
+import com.hierynomus.smbj.connection.BasicPacketProcessor
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.connection.StubTransportLayerFactory
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+
+class AllocatedRangesSpec extends Specification {
+  private static final int FSCTL_QUERY_ALLOCATED_RANGES = 0x000940CF
+
+  private int size = 1024 * 1024
+  private List<List<Long>> allocated = [[0L, 4096L], [512L * 1024, 8192L]]
+  private int rangesPerReply = 1
+  private NtStatus queryStatus = NtStatus.STATUS_SUCCESS
+  private List<List<Long>> queries = []
+  private List<List<Long>> reads = []
+  private byte[] fileData
+  private File file
+  private Connection connection
+
+  def setup() {
+    fileData = new byte[size]
+    Random rng = new Random(42)
+    allocated.each { range ->
+      byte[] data = new byte[range[1] as int]
+      rng.nextBytes(data)
+      System.arraycopy(data, 0, fileData, range[0] as int, data.length)
+    }
+
+    def responder = new BasicPacketProcessor({ req ->
+      if (req instanceof SMB2CreateRequest)
+        return createResponse()
+      if (req instanceof SMB2IoctlRequest)
+        return ioctlResponse(req)
+      if (req instanceof SMB2ReadRequest)
+        return readResponse(req)
+      if (req instanceof SMB2Close) {
+        def response = new SMB2Close()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        return response
+      }
+      null
+    })
+
+    def config = SmbConfig.builder().withTransportLayerFactory(new StubTransportLayerFactory(responder.&processPacket)).build()
+    connection = new SMBClient(config).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    def share = session.connectShare("share") as DiskShare
+    file = share.openFile("file", EnumSet.of(AccessMask.GENERIC_READ), null, SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null)
+  }
+
+  def cleanup() {
+    connection.close()
+  }
+
+  def "should query the remaining ranges while the output buffer overflows"() {
+    when:
+    def ranges = file.getAllocatedRanges()
+
+    then:
+    ranges.collect { [it.fileOffset, it.length] } == allocated
+    queries == [[0L, Long.MAX_VALUE], [4096L, Long.MAX_VALUE - 4096]]
+  }
+
+  def "should return all ranges from a single reply"() {
+    given:
+    rangesPerReply = 16
+
+    when:
+    def ranges = file.getAllocatedRanges(1024, 1024 * 1024)
+
+    then:
+    ranges.collect { [it.fileOffset, it.length] } == allocated
+    queries == [[1024L, 1024L * 1024]]
+  }
+
+  def "should fail when not a single range fits in the output buffer"() {
+    given:
+    rangesPerReply = 0
+
+    when:
+    file.getAllocatedRanges()
+
+    then:
+    def e = thrown(SMBApiException)
+    e.status == NtStatus.STATUS_BUFFER_OVERFLOW
+  }
+
+  def "should only read the allocated ranges and replace the local file"() {
+    given:
+    def dest = Files.createTempFile("smbj", ".bin")
+    Files.write(dest, new byte[2 * size].collect { (byte) 0x55 } as byte[])
+
+    when:
+    def bytesRead = file.transferSparseTo(dest)
+
+    then:
+    bytesRead == 4096 + 8192
+    Files.readAllBytes(dest) == fileData
+    reads.every { read -> allocated.any { read[0] >= it[0] && read[0] + read[1] <= it[0] + it[1] } || read[0] >= size }
+
+    cleanup:
+    Files.delete(dest)
+  }
+
+  def "should not leave the old content of the channel in the holes"() {
+    given:
+    def dest = Files.createTempFile("smbj", ".bin")
+    Files.write(dest, new byte[2 * size].collect { (byte) 0x55 } as byte[])
+    def channel = FileChannel.open(dest, StandardOpenOption.READ, StandardOpenOption.WRITE)
+
+    when:
+    def bytesRead = file.transferSparseTo(channel, 4, null)
+    channel.close()
+
+    then:
+    bytesRead == 4096 + 8192
+    Files.readAllBytes(dest) == fileData
+
+    cleanup:
+    Files.delete(dest)
+  }
+
+  def "should report progress up to the size of the file including the holes"() {
+    given:
+    def dest = Files.createTempFile("smbj", ".bin")
+    def channel = FileChannel.open(dest, StandardOpenOption.WRITE)
+    def progress = []
+    def listener = new ProgressListener() {
+      @Override
+      void onProgressChanged(long numBytes, long totalBytes) {
+        progress << [numBytes, totalBytes]
+      }
+    }
+
+    when:
+    file.transferSparseTo(channel, 4, listener)
+    channel.close()
+
+    then:
+    Files.readAllBytes(dest) == fileData
+    progress.last() == [size as long, size as long]
+    progress.collect { it[0] } == progress.collect { it[0] }.sort()
+
+    cleanup:
+    Files.delete(dest)
+  }
+
+  def "should read the whole file when the server cannot query allocated ranges"() {
+    given:
+    queryStatus = NtStatus.STATUS_NOT_SUPPORTED
+    def dest = Files.createTempFile("smbj", ".bin")
+
+    when:
+    def bytesRead = file.transferSparseTo(dest)
+
+    then:
+    bytesRead == size
+    Files.readAllBytes(dest) == fileData
+
+    cleanup:
+    Files.delete(dest)
+  }
+
+  SMB2Packet createResponse() {
+    def response = new SMB2CreateResponse()
+    response.header.status = NtStatus.STATUS_SUCCESS
+    response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_SPARSE_FILE)
+    response.fileId = new SMB2FileId([1] * 8 as byte[], new byte[8])
+    response.endOfFile = size
+    response
+  }
+
+  SMB2Packet ioctlResponse(SMB2IoctlRequest req) {
+    def response = new SMB2IoctlResponse()
+    if (req.controlCode != FSCTL_QUERY_ALLOCATED_RANGES || queryStatus != NtStatus.STATUS_SUCCESS) {
+      response.header.status = queryStatus
+      return response
+    }
+    def out = new ByteArrayOutputStream()
+    while (req.inputData.isAvailable()) {
+      req.inputData.writeChunk(out)
+    }
+    def input = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN)
+    long offset = input.getLong()
+    long length = input.getLong()
+    queries << [offset, length]
+    def matching = allocated.findAll { it[0] + it[1] > offset && it[0] < offset + length }
+    def reply = matching.take(rangesPerReply)
+    def result = ByteBuffer.allocate(16 * reply.size()).order(ByteOrder.LITTLE_ENDIAN)
+    reply.each { result.putLong(it[0]).putLong(it[1]) }
+    response.header.status = reply.size() < matching.size() ? NtStatus.STATUS_BUFFER_OVERFLOW : NtStatus.STATUS_SUCCESS
+    response.outputBuffer = result.array()
+    response
+  }
+
+  SMB2Packet readResponse(SMB2ReadRequest req) {
+    reads << [req.offset, req.payloadSize as long]
+    def offset = req.offset as int
+    def length = Math.min(req.payloadSize, size - offset)
+    def response = new SMB2ReadResponse()
+    if (length <= 0) {
+      response.header.status = NtStatus.STATUS_END_OF_FILE
+    } else {
+      response.header.status = NtStatus.STATUS_SUCCESS
+      response.data = Arrays.copyOfRange(fileData, offset, offset + length)
+      response.dataLength = length
+    }
+    response
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import spock.lang.Specification
+
+class BlockCacheSpec extends Specification {
+
+  def "should return cached block for same version of file"() {
+    given:
+    def cache = new BlockCache(1024, 16)
+    def file = cache.open("share\\file", 1, 100)
+    def block = bytes(16, 1)
+
+    when:
+    cache.put(file, 0, block, cache.generation(file))
+
+    then:
+    cache.get(cache.open("share\\file", 1, 100), 0) == block
+    cache.get(file, 1) == null
+    cache.hits == 1
+    cache.misses == 1
+  }
+
+  def "should drop blocks when file is opened with other change time or size"() {
+    given:
+    def cache = new BlockCache(1024, 16)
+    def file = cache.open("share\\file", 1, 100)
+    cache.put(file, 0, bytes(16, 1), cache.generation(file))
+
+    when:
+    def changed = cache.open("share\\file", 2, 100)
+
+    then:
+    cache.get(changed, 0) == null
+    cache.get(file, 0) == null
+    cache.size() == 0
+  }
+
+  def "should drop blocks when file is invalidated"() {
+    given:
+    def cache = new BlockCache(1024, 16)
+    def file = cache.open("share\\file", 1, 100)
+    cache.put(file, 0, bytes(16, 1), cache.generation(file))
+    cache.put(file, 1, bytes(16, 2), cache.generation(file))
+
+    when:
+    cache.invalidate(file)
+
+    then:
+    cache.get(file, 0) == null
+    cache.size() == 0
+  }
+
+  def "should evict least recently used block when full"() {
+    given:
+    def cache = new BlockCache(32, 16)
+    def file = cache.open("share\\file", 1, 100)
+    cache.put(file, 0, bytes(16, 1), cache.generation(file))
+    cache.put(file, 1, bytes(16, 2), cache.generation(file))
+
+    when:
+    cache.get(file, 0)
+    cache.put(file, 2, bytes(16, 3), cache.generation(file))
+
+    then:
+    cache.evictions == 1
+    cache.get(file, 1) == null
+    cache.get(file, 0) == bytes(16, 1)
+    cache.get(file, 2) == bytes(16, 3)
+  }
+
+  def "should keep length of block shorter than block size"() {
+    given:
+    def cache = new BlockCache(1024, 16)
+    def file = cache.open("share\\file", 1, 20)
+
+    when:
+    cache.put(file, 1, bytes(4, 5), cache.generation(file))
+
+    then:
+    cache.get(file, 1) == bytes(4, 5)
+  }
+
+  def "should not cache a block read before the file was invalidated"() {
+    given:
+    def cache = new BlockCache(1024, 16)
+    def file = cache.open("share\\file", 1, 100)
+    def sentBeforeWrite = cache.generation(file)
+    cache.invalidate(file)
+    def sentAfterWrite = cache.generation(file)
+    cache.invalidate(file)
+
+    when:
+    cache.put(file, 0, bytes(16, 1), sentBeforeWrite)
+    cache.put(file, 1, bytes(16, 2), sentAfterWrite)
+
+    then:
+    cache.size() == 0
+    cache.get(file, 0) == null
+  }
+
+  def "should cache again after invalidation for blocks read after it"() {
+    given:
+    def cache = new BlockCache(1024, 16)
+    def file = cache.open("share\\file", 1, 100)
+    cache.invalidate(file)
+
+    when:
+    cache.put(file, 0, bytes(16, 1), cache.generation(file))
+
+    then:
+    cache.get(file, 0) == bytes(16, 1)
+  }
+
+  def "should ignore the case of paths"() {
+    given:
+    def cache = new BlockCache(1024, 16)
+    def file = cache.open("share\\Dir\\File.txt", 1, 100)
+    cache.put(file, 0, bytes(16, 1), cache.generation(file))
+
+    expect:
+    cache.get(cache.open("SHARE\\dir\\file.TXT", 1, 100), 0) == bytes(16, 1)
+  }
+
+  byte[] bytes(int length, int value) {
+    def data = new byte[length]
+    Arrays.fill(data, (byte) value)
+    data
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation
+import com.hierynomus.msfscc.fileinformation.FileInformationFactory
+import com.hierynomus.smbj.common.SMBRuntimeException
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+
+class DirectoryListingSpec extends Specification {
+
+  def "should read every field of the entries of multiple buffers like the decoder"() {
+    given:
+    def buffers = [encode((0..<70).collect { entry(it) }), encode((70..<100).collect { entry(it) })]
+    def listing = new DirectoryListing()
+
+    when:
+    buffers.each { listing.add(it) }
+    listing.trim()
+    def expected = buffers.collectMany { decode(it) }
+    def cursor = listing.cursor()
+    def actual = []
+    while (cursor.next()) {
+      actual << [cursor.fileName, cursor.creationTime, cursor.lastAccessTime, cursor.lastWriteTime, cursor.changeTime,
+                 cursor.endOfFile, cursor.allocationSize, cursor.fileAttributes, cursor.fileId, cursor.directory]
+    }
+
+    then:
+    listing.size() == 100
+    actual.size() == 100
+    actual == expected.collect { FileIdBothDirectoryInformation info ->
+      [info.fileName, info.creationTime.windowsTimeStamp, info.lastAccessTime.windowsTimeStamp,
+       info.lastWriteTime.windowsTimeStamp, info.changeTime.windowsTimeStamp, info.endOfFile, info.allocationSize,
+       info.fileAttributes, ByteBuffer.wrap(info.fileId).order(ByteOrder.LITTLE_ENDIAN).getLong(), (info.fileAttributes & 0x10) != 0]
+    }
+    actual.collect { it[0] }.toSet().size() == 100
+    actual.collect { it[8] }.toSet().size() == 100
+    listing.@names.length == actual.sum { it[0].length() }
+  }
+
+  def "should compare file names without decoding them"() {
+    given:
+    def listing = new DirectoryListing()
+    listing.add(encode([entry(0, "."), entry(1, ".."), entry(2, "café"), entry(3, "")]))
+    def cursor = listing.cursor()
+
+    expect:
+    cursor.next()
+    cursor.fileNameEquals(".")
+    cursor.isDotEntry()
+    cursor.next()
+    cursor.fileNameEquals("..")
+    !cursor.fileNameEquals(".")
+    cursor.isDotEntry()
+    cursor.next()
+    cursor.fileNameEquals("café")
+    !cursor.fileNameEquals("cafe")
+    !cursor.fileNameEquals("caf")
+    !cursor.fileNameEquals("cafés")
+    !cursor.isDotEntry()
+    cursor.fileNameLength == 4
+    cursor.getFileNameChar(3) == 'é' as char
+    cursor.next()
+    cursor.fileNameEquals("")
+    cursor.fileName == ""
+    !cursor.next()
+  }
+
+  def "should only read the current entry of a positioned cursor"() {
+    given:
+    def listing = new DirectoryListing()
+    listing.add(encode([entry(0), entry(1)]))
+    def cursor = listing.cursor()
+
+    when:
+    cursor.fileName
+
+    then:
+    thrown(IllegalStateException)
+
+    when:
+    cursor.moveTo(1)
+
+    then:
+    cursor.fileName == entry(1).name
+
+    when:
+    cursor.moveTo(2)
+
+    then:
+    thrown(IndexOutOfBoundsException)
+
+    when:
+    cursor.getFileNameChar(cursor.fileNameLength)
+
+    then:
+    thrown(IndexOutOfBoundsException)
+  }
+
+  def "should reject a buffer #description"() {
+    given:
+    def listing = new DirectoryListing()
+
+    when:
+    listing.add(buffer)
+
+    then:
+    def e = thrown(SMBRuntimeException)
+    e.message.startsWith(message)
+
+    where:
+    description                               | buffer                                         | message
+    "shorter than an entry"                   | new byte[103]                                  | "Invalid directory entry"
+    "with a file name past its end"           | withInt(encode([entry(0)]), 60, 1000)          | "Invalid file name length"
+    "with a negative file name length"        | withInt(encode([entry(0)]), 60, -2)            | "Invalid file name length"
+    "with a next entry past its end"          | withInt(encode([entry(0)]), 0, 4096)           | "Invalid directory entry"
+    "with a next entry offset that overflows" | withInt(encode([entry(0), entry(1)]), 0, -8)   | "Invalid directory entry"
+  }
+
+  private static Map entry(int i, String name = "entry-" + i + "-é" + "x" * (i % 7)) {
+    [name          : name,
+     creationTime  : 132000000000000000L + i * 100 + 1,
+     lastAccessTime: 132000000000000000L + i * 100 + 2,
+     lastWriteTime : 132000000000000000L + i * 100 + 3,
+     changeTime    : 132000000000000000L + i * 100 + 4,
+     endOfFile     : 1000000L * i + 5,
+     allocationSize: 1000000L * i + 4096,
+     attributes    : i % 3 == 0 ? 0x10 : 0x20 | 0x80,
+     fileId        : 0x0102030405060708L * (i + 1)]
+  }
+
+  private static byte[] encode(List<Map> entries) {
+    def buffer = ByteBuffer.allocate(65536).order(ByteOrder.LITTLE_ENDIAN)
+    entries.eachWithIndex { Map e, int i ->
+      def fileName = (e.name as String).getBytes(StandardCharsets.UTF_16LE)
+      def start = buffer.position()
+      def next = i == entries.size() - 1 ? 0 : (104 + fileName.length + 7) & ~7
+      buffer.putInt(next).putInt(i)
+      buffer.putLong(e.creationTime as long).putLong(e.lastAccessTime as long).putLong(e.lastWriteTime as long).putLong(e.changeTime as long)
+      buffer.putLong(e.endOfFile as long).putLong(e.allocationSize as long)
+      buffer.putInt(e.attributes as int).putInt(fileName.length).putInt(17)
+      buffer.put(4 as byte).put(0 as byte).put("AB~1".getBytes(StandardCharsets.UTF_16LE)).put(new byte[16]).putShort(0 as short)
+      buffer.putLong(e.fileId as long).put(fileName)
+      if (next != 0) {
+        buffer.position(start + next)
+      }
+    }
+    Arrays.copyOf(buffer.array(), buffer.position())
+  }
+
+  private static List<FileIdBothDirectoryInformation> decode(byte[] buffer) {
+    def iterator = FileInformationFactory.createFileInformationIterator(buffer, FileInformationFactory.getDecoder(FileIdBothDirectoryInformation))
+    def infos = []
+    while (iterator.hasNext()) {
+      infos << iterator.next()
+    }
+    infos
+  }
+
+  private static byte[] withInt(byte[] buffer, int offset, int value) {
+    ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, value)
+    buffer
+  }
+}
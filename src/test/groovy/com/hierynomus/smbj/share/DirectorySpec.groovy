@@ -0,0 +1,198 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msdtyp.AccessMask
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation
+import com.hierynomus.mssmb2.SMB2CreateDisposition
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.mssmb2.SMB2Packet
+import com.hierynomus.mssmb2.SMB2ShareAccess
+import com.hierynomus.mssmb2.messages.SMB2Close
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse
+import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryRequest
+import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryResponse
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.BasicPacketProcessor
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.connection.StubTransportLayerFactory
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+
+class DirectorySpec extends Specification {
+  private Connection connection
+  private Directory directory
+  // A list of names for a buffer of entries, a status, or "repeat" for the previous buffer again.
+  private List<Object> responses = []
+  private List<SMB2QueryDirectoryRequest> requests = []
+  // The number of entries returned by the iterator when each request was sent.
+  private List<Integer> requestedAt = []
+  private int consumed
+  private byte[] lastBuffer
+
+  def setup() {
+    def responder = new BasicPacketProcessor({ req ->
+      if (req instanceof SMB2CreateRequest) {
+        def response = new SMB2CreateResponse()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_DIRECTORY)
+        response.fileId = new SMB2FileId(new byte[8], new byte[8])
+        return response
+      }
+      if (req instanceof SMB2QueryDirectoryRequest)
+        return queryDirectoryResponse(req)
+      if (req instanceof SMB2Close) {
+        def response = new SMB2Close()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        return response
+      }
+
+      null
+    })
+
+    def config = SmbConfig.builder().withTransportLayerFactory(new StubTransportLayerFactory(responder.&processPacket)).build()
+    def client = new SMBClient(config)
+
+    connection = client.connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    def share = session.connectShare("share") as DiskShare
+    directory = share.openDirectory("dir", EnumSet.of(AccessMask.GENERIC_READ), null, SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null)
+  }
+
+  def cleanup() {
+    connection.close()
+  }
+
+  def "should keep the next request in flight while the entries of a buffer are returned"() {
+    given:
+    responses = [["a", "b"], ["c"], NtStatus.STATUS_NO_MORE_FILES]
+
+    when:
+    def names = iterate()
+
+    then:
+    names == ["a", "b", "c"]
+    requestedAt == [0, 0, 1]
+    requests[0].flags == EnumSet.of(SMB2QueryDirectoryRequest.SMB2QueryDirectoryFlags.SMB2_RESTART_SCANS)
+    requests[1].flags.isEmpty()
+    requests[2].flags.isEmpty()
+  }
+
+  def "should end the listing on STATUS_NO_MORE_FILES without another request"() {
+    given:
+    responses = [["a"], NtStatus.STATUS_NO_MORE_FILES, ["b"]]
+
+    when:
+    def iterator = directory.iterator()
+    def names = iterate(iterator)
+
+    then:
+    names == ["a"]
+    !iterator.hasNext()
+    requests.size() == 2
+  }
+
+  def "should end the listing when the same buffer is returned again without another request"() {
+    given:
+    responses = [["a", "b"], "repeat", ["c"]]
+
+    when:
+    def iterator = directory.iterator()
+    def names = iterate(iterator)
+
+    then:
+    names == ["a", "b"]
+    !iterator.hasNext()
+    requests.size() == 2
+  }
+
+  def "should end an empty listing after the first request"() {
+    given:
+    responses = [NtStatus.STATUS_NO_MORE_FILES, ["a"]]
+
+    when:
+    def iterator = directory.iterator()
+
+    then:
+    !iterator.hasNext()
+    requests.size() == 1
+
+    when:
+    iterator.next()
+
+    then:
+    thrown(NoSuchElementException)
+    requests.size() == 1
+  }
+
+  def "should list the same entries as the iterator"() {
+    given:
+    responses = [["a", "b"], ["c"], NtStatus.STATUS_NO_MORE_FILES]
+
+    expect:
+    directory.list().collect { it.fileName } == ["a", "b", "c"]
+    requests.size() == 3
+  }
+
+  private List<String> iterate(Iterator<FileIdBothDirectoryInformation> iterator = directory.iterator()) {
+    def names = []
+    while (iterator.hasNext()) {
+      names << iterator.next().fileName
+      consumed++
+    }
+    names
+  }
+
+  SMB2Packet queryDirectoryResponse(SMB2QueryDirectoryRequest req) {
+    requests << req
+    requestedAt << consumed
+    def response = new SMB2QueryDirectoryResponse()
+    def next = requests.size() <= responses.size() ? responses[requests.size() - 1] : NtStatus.STATUS_NO_MORE_FILES
+    if (next instanceof NtStatus) {
+      response.header.status = next
+      return response
+    }
+    response.header.status = NtStatus.STATUS_SUCCESS
+    if (next != "repeat") {
+      lastBuffer = encode(next as List<String>)
+    }
+    response.outputBuffer = lastBuffer.clone()
+    response
+  }
+
+  private static byte[] encode(List<String> names) {
+    def buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN)
+    names.eachWithIndex { String name, int i ->
+      def fileName = name.getBytes(StandardCharsets.UTF_16LE)
+      def start = buffer.position()
+      def next = i == names.size() - 1 ? 0 : (104 + fileName.length + 7) & ~7
+      buffer.putInt(next).putInt(0).putLong(1).putLong(1).putLong(1).putLong(1).putLong(0).putLong(0)
+      buffer.putInt(0x80).putInt(fileName.length).putInt(0).putShort(0 as short).put(new byte[24]).putShort(0 as short).putLong(0).put(fileName)
+      if (next != 0) {
+        buffer.position(start + next)
+      }
+    }
+    Arrays.copyOf(buffer.array(), buffer.position())
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.FileNotifyAction
+import com.hierynomus.mssmb2.SMB2CompletionFilter
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.mssmb2.SMB2MessageFlag
+import com.hierynomus.mssmb2.SMB2Packet
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyRequest
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyResponse
+import com.hierynomus.mssmb2.messages.SMB2Close
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.common.SMBApiException
+import com.hierynomus.smbj.common.SMBRuntimeException
+import com.hierynomus.smbj.connection.BasicPacketProcessor
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.connection.StubTransportLayerFactory
+import spock.lang.Specification
+
+class DirectoryWatchSpec extends Specification {
+  private Connection connection
+  private DiskShare share
+  // The message ids of the CHANGE_NOTIFY requests that were answered with STATUS_PENDING.
+  private List<Long> notifies = Collections.synchronizedList([])
+  private List<Long> answered = Collections.synchronizedList([])
+  private int closes
+  private RecordingListener listener = new RecordingListener()
+
+  def setup() {
+    def responder = new BasicPacketProcessor({ req ->
+      if (req instanceof SMB2CreateRequest) {
+        def response = new SMB2CreateResponse()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_DIRECTORY)
+        response.fileId = new SMB2FileId(new byte[8], new byte[8])
+        return response
+      }
+      if (req instanceof SMB2ChangeNotifyRequest) {
+        notifies << req.header.messageId
+        def response = new SMB2ChangeNotifyResponse()
+        response.header.status = NtStatus.STATUS_PENDING
+        response.header.setFlag(SMB2MessageFlag.SMB2_FLAGS_ASYNC_COMMAND)
+        response.header.asyncId = notifies.size()
+        return response
+      }
+      if (req instanceof SMB2Close) {
+        closes++
+        // The server completes the pending CHANGE_NOTIFY when the directory is closed.
+        def pending = notifies.last()
+        if (!answered.contains(pending)) {
+          Thread.start { complete(pending, NtStatus.STATUS_NOTIFY_CLEANUP) }
+        }
+        def response = new SMB2Close()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        return response
+      }
+
+      null
+    })
+
+    def config = SmbConfig.builder().withTransportLayerFactory(new StubTransportLayerFactory(responder.&processPacket)).build()
+    def client = new SMBClient(config)
+
+    connection = client.connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    share = session.connectShare("share") as DiskShare
+  }
+
+  def cleanup() {
+    connection.close()
+  }
+
+  def "should report the changes of a response at once and re-arm before calling the listeners"() {
+    given:
+    def watch = share.watch("dir", EnumSet.of(SMB2CompletionFilter.FILE_NOTIFY_CHANGE_FILE_NAME), false, listener)
+
+    when:
+    complete(notifies[0], NtStatus.STATUS_SUCCESS, "a", "b")
+    waitFor { listener.events.size() == 1 }
+    complete(notifies[1], NtStatus.STATUS_SUCCESS, "c")
+    waitFor { listener.events.size() == 2 }
+
+    then:
+    listener.events == ["changed [a, b]", "changed [c]"]
+    listener.notifiesAtEvent == [2, 3]
+    notifies.size() == 3
+    !watch.closed
+
+    cleanup:
+    watch.close()
+  }
+
+  def "should tell the listeners to rescan on #description"() {
+    given:
+    def watch = share.watch("dir", EnumSet.of(SMB2CompletionFilter.FILE_NOTIFY_CHANGE_FILE_NAME), true, listener)
+
+    when:
+    complete(notifies[0], status)
+    waitFor { listener.events.size() == 1 }
+
+    then:
+    listener.events == ["rescan"]
+    notifies.size() == 2
+
+    cleanup:
+    watch.close()
+
+    where:
+    description                | status
+    "STATUS_NOTIFY_ENUM_DIR"   | NtStatus.STATUS_NOTIFY_ENUM_DIR
+    "a response without changes" | NtStatus.STATUS_SUCCESS
+  }
+
+  def "should stop without an exception when closed"() {
+    given:
+    def watch = share.watch("dir", EnumSet.of(SMB2CompletionFilter.FILE_NOTIFY_CHANGE_FILE_NAME), false, listener)
+
+    when:
+    watch.close()
+    waitFor { !listener.events.isEmpty() }
+
+    then:
+    watch.closed
+    closes == 1
+    answered == [notifies[0]]
+    listener.events == ["stopped null"]
+    notifies.size() == 1
+  }
+
+  def "should stop with the exception when the change notify fails"() {
+    given:
+    def watch = share.watch("dir", EnumSet.of(SMB2CompletionFilter.FILE_NOTIFY_CHANGE_FILE_NAME), false, listener)
+
+    when:
+    complete(notifies[0], NtStatus.STATUS_ACCESS_DENIED)
+    waitFor { !listener.events.isEmpty() }
+
+    then:
+    listener.events == ["stopped " + SMBApiException.name]
+    listener.exception.status == NtStatus.STATUS_ACCESS_DENIED
+    watch.closed
+    closes == 1
+    notifies.size() == 1
+  }
+
+  /**
+   * Complete the pending CHANGE_NOTIFY request with the given message id.
+   */
+  void complete(long messageId, NtStatus status, String... fileNames) {
+    answered << messageId
+    def response = new SMB2ChangeNotifyResponse()
+    response.header.messageId = messageId
+    response.header.status = status
+    response.header.setFlag(SMB2MessageFlag.SMB2_FLAGS_ASYNC_COMMAND)
+    response.fileNotifyInfoList = fileNames.collect { new SMB2ChangeNotifyResponse.FileNotifyInfo(response, FileNotifyAction.FILE_ACTION_ADDED, it) }
+    connection.handle(response)
+  }
+
+  void waitFor(Closure<Boolean> condition) {
+    long deadline = System.currentTimeMillis() + 5000
+    while (!condition.call() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10)
+    }
+  }
+
+  class RecordingListener implements WatchListener {
+    List<String> events = Collections.synchronizedList([])
+    List<Integer> notifiesAtEvent = []
+    SMBRuntimeException exception
+
+    @Override
+    void changed(DirectoryWatch watch, List<SMB2ChangeNotifyResponse.FileNotifyInfo> changes) {
+      notifiesAtEvent << notifies.size()
+      events << "changed " + changes.collect { it.fileName }
+    }
+
+    @Override
+    void rescan(DirectoryWatch watch) {
+      notifiesAtEvent << notifies.size()
+      events << "rescan"
+    }
+
+    @Override
+    void stopped(DirectoryWatch watch, SMBRuntimeException exception) {
+      this.exception = exception
+      events << "stopped " + (exception != null ? exception.class.name : null)
+    }
+  }
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation
+import com.hierynomus.mssmb2.SMB2CreateOptions
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.mssmb2.SMB2Packet
+import com.hierynomus.mssmb2.messages.SMB2Close
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse
+import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryRequest
+import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryResponse
+import com.hierynomus.mssmb2.messages.SMB2QueryInfoRequest
+import com.hierynomus.mssmb2.messages.SMB2QueryInfoResponse
+import com.hierynomus.mssmb2.messages.SMB2ReadRequest
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse
+import com.hierynomus.smbj.ProgressListener
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.common.SMBApiException
+import com.hierynomus.smbj.common.SMBRuntimeException
+import com.hierynomus.smbj.connection.BasicPacketProcessor
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.connection.StubTransportLayerFactory
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+import java.nio.file.FileVisitResult
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+class DiskShareSpec extends Specification {
+  private DiskShare share
+  private Connection connection
+  private int closes
+  private Map<String, List<String>> directories = ["": ["dir/", "file"], "dir": ["sub/", "a"], "dir\\sub": ["b"]]
+  private List<String> opened = []
+  private List<String> deleted = []
+  private Map<Integer, Boolean> listed = [:]
+  private List<Long> closedIds = Collections.synchronizedList([])
+  private List<Long> queriedIds = Collections.synchronizedList([])
+  private Set<Long> unanswered = [] as Set
+  private Map<String, NtStatus> listingFailures = [:]
+  private Set<String> unansweredListings = [] as Set
+  private Map<String, NtStatus> deleteFailures = [:]
+  private Set<String> unsentDeletes = [] as Set
+  private Set<String> closeFailures = [] as Set
+  private Set<String> kept = [] as Set
+  private Closure<Integer> responseDelay
+
+  def setup() {
+    connect(SmbConfig.builder())
+  }
+
+  void connect(SmbConfig.Builder builder) {
+    def responder = new BasicPacketProcessor({ req ->
+      if (req instanceof SMB2CreateRequest)
+        return createResponse(req)
+      if (req instanceof SMB2QueryInfoRequest)
+        return queryInfoResponse(req)
+      if (req instanceof SMB2QueryDirectoryRequest)
+        return queryDirectoryResponse(req)
+      if (req instanceof SMB2ReadRequest) {
+        // The files are empty.
+        def response = new SMB2ReadResponse()
+        response.header.status = NtStatus.STATUS_END_OF_FILE
+        return response
+      }
+      if (req instanceof SMB2Close) {
+        closes++
+        def id = ByteBuffer.wrap(req.fileId.persistentHandle).getLong()
+        closedIds << id
+        def response = new SMB2Close()
+        response.header.status = id >= 1000 && closeFailures.contains(deleted[(id - 1000) as int]) ? NtStatus.STATUS_ACCESS_DENIED : NtStatus.STATUS_SUCCESS
+        return response
+      }
+
+      null
+    })
+
+    def config = builder.withTransportLayerFactory(new StubTransportLayerFactory(responder.&processPacket, { req -> responseDelay != null ? responseDelay.call(req) : 0 })).build()
+    def client = new SMBClient(config)
+
+    connection = client.connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    share = session.connectShare("share") as DiskShare
+  }
+
+  def cleanup() {
+    connection.close()
+  }
+
+  def "should stat all paths and report missing paths"() {
+    when:
+    def results = share.statAll(["dir\\1", "missing", "dir\\2", "dir\\3"], FileStandardInformation, 2).toList()
+
+    then:
+    results*.path.toSet() == ["dir\\1", "missing", "dir\\2", "dir\\3"] as Set
+    results.findAll { it.success }.collect { [it.path, it.information.endOfFile] }.toSet() == [["dir\\1", 1L], ["dir\\2", 2L], ["dir\\3", 3L]] as Set
+    def missing = results.find { it.path == "missing" }
+    !missing.success
+    (missing.exception as SMBApiException).status == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND
+    closes == 3
+  }
+
+  def "should close the handle when the query of a path cannot be sent"() {
+    given:
+    unanswered << 2L
+
+    when:
+    def results = share.statAll(["dir\\1", "dir\\2", "dir\\3"], FileStandardInformation, 3).toList()
+
+    then:
+    results.findAll { it.success }*.path.toSet() == ["dir\\1", "dir\\3"] as Set
+    !results.find { it.path == "dir\\2" }.success
+    closedIds.sort() == [1L, 2L, 3L]
+  }
+
+  def "should close the handle when the query of a path times out"() {
+    given:
+    connection.close()
+    connect(SmbConfig.builder().withTransactTimeout(100, TimeUnit.MILLISECONDS))
+    responseDelay = { req -> req instanceof SMB2QueryInfoRequest && ByteBuffer.wrap(req.fileId.persistentHandle).getLong() == 2L ? 1000 : 0 }
+
+    when:
+    def results = share.statAll(["dir\\1", "dir\\2"], FileStandardInformation, 2).toList()
+
+    then:
+    results.find { it.path == "dir\\1" }.success
+    !results.find { it.path == "dir\\2" }.success
+    closedIds.sort() == [1L, 2L]
+  }
+
+  def "should close the handle of a path whose create succeeds after the timeout without querying it"() {
+    given:
+    connection.close()
+    connect(SmbConfig.builder().withTransactTimeout(200, TimeUnit.MILLISECONDS))
+    responseDelay = { req -> req instanceof SMB2CreateRequest && req.fileName == "dir\\2" ? 300 : 0 }
+
+    when:
+    def results = share.statAll(["dir\\1", "dir\\2"], FileStandardInformation, 2).toList()
+
+    then:
+    results*.path.sort() == ["dir\\1", "dir\\2"]
+    results.find { it.path == "dir\\1" }.success
+    !results.find { it.path == "dir\\2" }.success
+    queriedIds == [1L]
+    closedIds.sort() == [1L, 2L]
+  }
+
+  def "should close the paths still being opened without querying them when closed"() {
+    given:
+    responseDelay = { req -> req instanceof SMB2CreateRequest && req.fileName != "dir\\1" ? 200 : 0 }
+    def batch = share.statAll(["dir\\1", "dir\\2", "dir\\3"], FileStandardInformation, 3)
+
+    when:
+    def first = batch.next()
+    batch.close()
+
+    then:
+    first.path == "dir\\1"
+    queriedIds == [1L]
+    closedIds.sort() == [1L, 2L, 3L]
+    !batch.hasNext()
+  }
+
+  def "should walk tree and skip subtrees"() {
+    when:
+    def walk = share.walk("")
+    def paths = []
+    while (walk.hasNext()) {
+      def entry = walk.next()
+      paths << entry.path
+      if (entry.path == "dir\\sub" && skip) {
+        walk.skipSubtree()
+      }
+    }
+
+    then:
+    paths.toSet() == expected as Set
+    closes == opened.size()
+
+    where:
+    skip  | expected
+    false | ["dir", "file", "dir\\sub", "dir\\a", "dir\\sub\\b"]
+    true  | ["dir", "file", "dir\\sub", "dir\\a"]
+  }
+
+  def "should only return the entries the filter accepts but walk all directories"() {
+    when:
+    def paths = share.walk("", Integer.MAX_VALUE, { !it.directory } as TreeWalk.Filter).toList()*.path
+
+    then:
+    paths.toSet() == ["file", "dir\\a", "dir\\sub\\b"] as Set
+    opened.toSet() == ["", "dir", "dir\\sub"] as Set
+    closes == opened.size()
+  }
+
+  def "should not walk deeper than the maximum depth"() {
+    when:
+    def paths = share.walk("", maxDepth, null).toList()*.path
+
+    then:
+    paths.toSet() == expected as Set
+    opened.size() == listings
+    closes == opened.size()
+
+    where:
+    maxDepth | listings | expected
+    1        | 1        | ["dir", "file"]
+    2        | 2        | ["dir", "file", "dir\\sub", "dir\\a"]
+  }
+
+  def "should skip the siblings of the entry returned last"() {
+    when:
+    def walk = share.walk("")
+    def paths = []
+    while (walk.hasNext()) {
+      def entry = walk.next()
+      paths << entry.path
+      if (entry.path == "dir\\sub") {
+        walk.skipSiblings()
+      }
+    }
+
+    then:
+    paths.toSet() == ["dir", "file", "dir\\sub", "dir\\sub\\b"] as Set
+    closes == opened.size()
+  }
+
+  def "should return a directory that cannot be listed as a failure entry"() {
+    given:
+    listingFailures["dir\\sub"] = NtStatus.STATUS_ACCESS_DENIED
+
+    when:
+    def entries = share.walk("").toList()
+    def failure = entries.find { it.exception != null }
+
+    then:
+    entries*.path.toSet() == ["dir", "file", "dir\\sub", "dir\\a", "dir\\sub"] as Set
+    failure.path == "dir\\sub"
+    (failure.exception as SMBApiException).status == NtStatus.STATUS_ACCESS_DENIED
+    closes == opened.size()
+  }
+
+  def "should visit the entries and the directories that cannot be listed"() {
+    given:
+    listingFailures["dir\\sub"] = NtStatus.STATUS_ACCESS_DENIED
+    def visitor = new RecordingVisitor()
+
+    when:
+    share.walk("", Integer.MAX_VALUE, null, visitor)
+
+    then:
+    visitor.visited.toSet() == ["dir", "file", "dir\\sub", "dir\\a"] as Set
+    visitor.failed == ["dir\\sub"]
+    closes == opened.size()
+  }
+
+  def "should stop the walk when the visitor terminates"() {
+    given:
+    def visitor = new RecordingVisitor(terminateAt: "file")
+
+    when:
+    share.walk("", Integer.MAX_VALUE, null, visitor)
+
+    then:
+    visitor.visited == ["dir", "file"]
+    opened == [""]
+    closes == opened.size()
+  }
+
+  def "should close the directory when its listing cannot be requested"() {
+    given:
+    unansweredListings << "dir"
+
+    when:
+    def entries = share.walk("").toList()
+
+    then:
+    entries.find { it.path == "dir" && it.exception != null }
+    !entries*.path.contains("dir\\a")
+    opened.contains("dir")
+    closes == opened.size()
+  }
+
+  def "should close the directory when its listing times out"() {
+    given:
+    connection.close()
+    connect(SmbConfig.builder().withTransactTimeout(100, TimeUnit.MILLISECONDS))
+    responseDelay = { req -> req instanceof SMB2QueryDirectoryRequest && opened[ByteBuffer.wrap(req.fileId.persistentHandle).getLong() as int] == "dir" ? 1000 : 0 }
+
+    when:
+    def entries = share.walk("").toList()
+
+    then:
+    entries.find { it.path == "dir" && it.exception != null }
+    entries*.path.toSet() == ["dir", "file"] as Set
+    closes == opened.size()
+  }
+
+  def "should close the directory whose create succeeds after the timeout without listing it"() {
+    given:
+    connection.close()
+    connect(SmbConfig.builder().withTransactTimeout(200, TimeUnit.MILLISECONDS))
+    responseDelay = { req -> req instanceof SMB2CreateRequest && req.fileName == "dir" ? 300 : 0 }
+
+    when:
+    def entries = share.walk("").toList()
+
+    then:
+    entries.find { it.path == "dir" && it.exception != null }
+    entries*.path.toSet() == ["dir", "file"] as Set
+    closes == opened.size()
+  }
+
+  def "should list directory into columnar listing"() {
+    when:
+    def listing = share.listing("dir")
+    def cursor = listing.cursor()
+    def entries = []
+    while (cursor.next()) {
+      entries << [cursor.fileName, cursor.directory, cursor.endOfFile]
+    }
+
+    then:
+    listing.size() == 2
+    entries == [["sub", true, 0L], ["a", false, 0L]]
+    closes == 1
+  }
+
+  def "should delete tree bottom-up"() {
+    given:
+    def progress = []
+
+    when:
+    def failures = share.deleteTree("", 2, { deleted, found -> progress << [deleted, found] } as ProgressListener)
+
+    then:
+    failures.isEmpty()
+    deleted.toSet() == ["", "dir", "file", "dir\\sub", "dir\\a", "dir\\sub\\b"] as Set
+    deleted.indexOf("dir\\sub\\b") < deleted.indexOf("dir\\sub")
+    deleted.indexOf("dir\\sub") < deleted.indexOf("dir")
+    deleted.last() == ""
+    progress.last() == [6L, 6L]
+  }
+
+  def "should report the entries that cannot be deleted and keep the directories above them"() {
+    given:
+    deleteFailures["dir\\a"] = NtStatus.STATUS_ACCESS_DENIED
+
+    when:
+    def failures = share.deleteTree("", 2, null)
+
+    then:
+    failures.keySet() == ["dir\\a"] as Set
+    failures["dir\\a"] instanceof SMBApiException
+    (failures["dir\\a"] as SMBApiException).status == NtStatus.STATUS_ACCESS_DENIED
+    deleted.toSet() == ["file", "dir\\sub", "dir\\sub\\b"] as Set
+  }
+
+  def "should throw the failure from a recursive rmdir"() {
+    given:
+    deleteFailures["dir\\a"] = NtStatus.STATUS_ACCESS_DENIED
+
+    when:
+    share.rmdir("", true)
+
+    then:
+    def e = thrown(SMBApiException)
+    e.status == NtStatus.STATUS_ACCESS_DENIED
+  }
+
+  def "should wrap a failure that is not an SMBApiException from a recursive rmdir"() {
+    given:
+    unsentDeletes << "file"
+
+    when:
+    share.rmdir("", true)
+
+    then:
+    def e = thrown(SMBApiException)
+    e.status == NtStatus.UNKNOWN
+    e.cause instanceof SMBRuntimeException
+    !(e.cause instanceof SMBApiException)
+    !deleted.contains("")
+  }
+
+  def "should delete the entry and close its handle when the create succeeds after the timeout"() {
+    given:
+    connection.close()
+    connect(SmbConfig.builder().withTransactTimeout(200, TimeUnit.MILLISECONDS))
+    responseDelay = { req -> req instanceof SMB2CreateRequest && req.fileName == "file" && req.createOptions.contains(SMB2CreateOptions.FILE_DELETE_ON_CLOSE) ? 300 : 0 }
+
+    when:
+    def failures = share.deleteTree("", 2, null)
+
+    then:
+    failures.isEmpty()
+    deleted.toSet() == ["", "dir", "file", "dir\\sub", "dir\\a", "dir\\sub\\b"] as Set
+    closedIds.contains(1000L + deleted.indexOf("file"))
+  }
+
+  def "should only report a failed close when the entry still exists"() {
+    given:
+    closeFailures << "file"
+    if (!gone) {
+      kept << "file"
+    }
+
+    when:
+    def failures = share.deleteTree("", 2, null)
+
+    then:
+    failures.keySet() == (gone ? [] : ["file"]) as Set
+    deleted.last() == (gone ? "" : "dir")
+
+    where:
+    gone << [true, false]
+  }
+
+  def "should mirror tree and only transfer changes"() {
+    given:
+    def local = Files.createTempDirectory("mirror")
+    def mirror = share.mirror("", local.resolve("tree"), local.resolve("manifest"))
+
+    when:
+    def first = mirror.sync()
+    directories[""] = ["dir/"]
+    def second = share.mirror("", local.resolve("tree"), local.resolve("manifest")).sync()
+
+    then:
+    first.fullScan
+    first.downloaded == 3
+    Files.isRegularFile(local.resolve("tree/dir/sub/b"))
+    second.downloaded == 0
+    second.unchanged == 2
+    second.deleted == 1
+    !Files.exists(local.resolve("tree/file"))
+    Files.readAllLines(local.resolve("manifest")).size() == 5
+    closes == opened.size() + 3
+
+    cleanup:
+    local.toFile().deleteDir()
+  }
+
+  SMB2Packet createResponse(SMB2CreateRequest req) {
+    def response = new SMB2CreateResponse()
+    def name = req.fileName ?: ""
+    if (req.createOptions.contains(SMB2CreateOptions.FILE_DELETE_ON_CLOSE)) {
+      if (unsentDeletes.contains(name)) {
+        return null
+      }
+      if (deleteFailures.containsKey(name)) {
+        response.header.status = deleteFailures[name]
+        return response
+      }
+      deleted << name
+      response.header.status = NtStatus.STATUS_SUCCESS
+      response.fileId = new SMB2FileId(ByteBuffer.allocate(8).putLong(1000 + deleted.size() - 1).array(), new byte[8])
+      return response
+    }
+    if (deleted.contains(name) && !kept.contains(name)) {
+      response.header.status = NtStatus.STATUS_OBJECT_NAME_NOT_FOUND
+      return response
+    }
+    if (directories.containsKey(name)) {
+      opened << name
+      response.header.status = NtStatus.STATUS_SUCCESS
+      response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_DIRECTORY)
+      response.fileId = new SMB2FileId(ByteBuffer.allocate(8).putLong(opened.size() - 1).array(), new byte[8])
+      return response
+    }
+    if (name == "missing") {
+      response.header.status = NtStatus.STATUS_OBJECT_NAME_NOT_FOUND
+      return response
+    }
+    response.header.status = NtStatus.STATUS_SUCCESS
+    response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL)
+    def id = name.startsWith("dir\\") && name.substring(4).isLong() ? name.substring(4) as long : 0L
+    response.fileId = new SMB2FileId(ByteBuffer.allocate(8).putLong(id).array(), new byte[8])
+    response
+  }
+
+  SMB2Packet queryDirectoryResponse(SMB2QueryDirectoryRequest req) {
+    def response = new SMB2QueryDirectoryResponse()
+    def index = ByteBuffer.wrap(req.fileId.persistentHandle).getLong() as int
+    if (unansweredListings.contains(opened[index])) {
+      return null
+    }
+    if (listingFailures.containsKey(opened[index])) {
+      response.header.status = listingFailures[opened[index]]
+      return response
+    }
+    if (listed[index]) {
+      response.header.status = NtStatus.STATUS_NO_MORE_FILES
+      return response
+    }
+    listed[index] = true
+    response.header.status = NtStatus.STATUS_SUCCESS
+    def names = directories[opened[index]]
+    def buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN)
+    names.eachWithIndex { String name, int i ->
+      def directory = name.endsWith("/")
+      def fileName = (directory ? name[0..-2] : name).getBytes(StandardCharsets.UTF_16LE)
+      def start = buffer.position()
+      def next = i == names.size() - 1 ? 0 : (104 + fileName.length + 7) & ~7
+      buffer.putInt(next).putInt(0).putLong(1).putLong(1).putLong(1).putLong(1).putLong(0).putLong(0)
+      buffer.putInt(directory ? 0x10 : 0x80).putInt(fileName.length).putInt(0).putShort(0 as short).put(new byte[24]).putShort(0 as short).putLong(0).put(fileName)
+      if (next != 0) {
+        buffer.position(start + next)
+      }
+    }
+    response.outputBuffer = Arrays.copyOf(buffer.array(), buffer.position())
+    response
+  }
+
+  SMB2Packet queryInfoResponse(SMB2QueryInfoRequest req) {
+    def id = ByteBuffer.wrap(req.fileId.persistentHandle).getLong()
+    if (unanswered.contains(id)) {
+      return null
+    }
+    queriedIds << id
+    def response = new SMB2QueryInfoResponse()
+    response.header.status = NtStatus.STATUS_SUCCESS
+    def info = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN)
+    info.putLong(0).putLong(ByteBuffer.wrap(req.fileId.persistentHandle).getLong()).putInt(1)
+    response.outputBuffer = info.array()
+    response
+  }
+
+  static class RecordingVisitor implements TreeVisitor {
+    String terminateAt
+    List<String> visited = []
+    List<String> failed = []
+
+    @Override
+    FileVisitResult visit(TreeWalk.Entry entry) {
+      visited << entry.path
+      entry.path == terminateAt ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE
+    }
+
+    @Override
+    FileVisitResult visitFailed(TreeWalk.Entry directory, SMBRuntimeException exception) {
+      failed << directory.path
+      FileVisitResult.CONTINUE
+    }
+  }
+}
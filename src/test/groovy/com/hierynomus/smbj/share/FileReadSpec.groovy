@@ -32,6 +32,11 @@ import com.hierynomus.smbj.connection.Connection
 import com.hierynomus.smbj.connection.StubTransportLayerFactory
 import spock.lang.Specification
 
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
 import java.security.DigestOutputStream
 import java.security.MessageDigest
 
@@ -40,6 +45,7 @@ class FileReadSpec extends Specification {
   private MessageDigest digest
   private File file
   private Connection connection
+  private Closure<SMB2Packet> onRead
 
   def setup() {
     def fileData = randomData(42, 12345)
@@ -48,7 +54,7 @@ class FileReadSpec extends Specification {
       if (req instanceof SMB2CreateRequest)
         return createResponse()
       if (req instanceof SMB2ReadRequest)
-        return read(req, fileData)
+        return onRead != null ? onRead.call(req) : read(req, fileData)
 
       null
     })
@@ -146,6 +152,245 @@ class FileReadSpec extends Specification {
     ByteArrayUtils.printHex(digest.digest()) == ByteArrayUtils.printHex(expectedDigest)
   }
 
+  def "should continue reading after skipping via input stream"() {
+    given:
+    def fileData = randomData(42, 12345)
+
+    when:
+    def input = file.getInputStream(null)
+    def head = new byte[10]
+    input.read(head)
+    input.skip(5000)
+    def rest = new ByteArrayOutputStream()
+    def buffer = new byte[256]
+    def bytesRead
+    while((bytesRead = input.read(buffer)) != -1) {
+      rest.write(buffer, 0, bytesRead)
+    }
+
+    then:
+    head == Arrays.copyOfRange(fileData, 0, 10)
+    rest.toByteArray() == Arrays.copyOfRange(fileData, 5010, fileData.length)
+  }
+
+  def "should read entire file contents with pipelined reads"() {
+    when:
+    def out = new DigestOutputStream(new ByteArrayOutputStream(), digest)
+    file.read(out, null)
+
+    then:
+    ByteArrayUtils.printHex(digest.digest()) == ByteArrayUtils.printHex(expectedDigest)
+  }
+
+  def "should read entire file contents with pipelined reads of chunks not aligned to the file size"() {
+    when:
+    def out = new DigestOutputStream(new ByteArrayOutputStream(), digest)
+    def bytesRead = file.read(Channels.newChannel(out), 1000, 4, null)
+
+    then:
+    bytesRead == 12345
+    ByteArrayUtils.printHex(digest.digest()) == ByteArrayUtils.printHex(expectedDigest)
+  }
+
+  def "should receive the reads in flight at the end of the file without failing"() {
+    given:
+    def fileData = randomData(42, 12345)
+    def offsets = []
+    onRead = { SMB2ReadRequest req ->
+      offsets << req.offset
+      if (req.offset > 13000) {
+        def response = new SMB2ReadResponse()
+        response.header.status = NtStatus.STATUS_ACCESS_DENIED
+        return response
+      }
+      read(req, fileData)
+    }
+    def out = new ByteArrayOutputStream()
+
+    when:
+    def bytesRead = file.read(Channels.newChannel(out), 1000, 4, null)
+
+    then:
+    bytesRead == 12345
+    out.toByteArray() == fileData
+    offsets.findAll { it > 13000 } == [14000L, 15000L]
+  }
+
+  def "should return the number of bytes actually skipped via input stream"() {
+    given:
+    def fileData = randomData(42, 12345)
+    def input = file.getInputStream(null)
+    def head = new byte[10]
+
+    when:
+    input.read(head)
+    def skipped = input.skip(5000)
+    def next = input.read()
+    def skippedToEnd = input.skip(100000)
+
+    then:
+    skipped == 5000
+    next == (fileData[5010] & 0xFF)
+    skippedToEnd == 12345 - 5011
+    input.read() == -1
+    input.skip(10) == 0
+  }
+
+  def "should not grow the read-ahead window when the reads are ahead of the consumer"() {
+    given:
+    def fileData = randomData(42, 12345)
+    def lengths = []
+    onRead = { SMB2ReadRequest req ->
+      lengths << req.payloadSize
+      read(req, fileData)
+    }
+    def input = new FileInputStream(file, 1000, 8, 1000, null)
+
+    when:
+    def out = new ByteArrayOutputStream()
+    def buffer = new byte[100]
+    def bytesRead
+    def readsSentAt5000 = 0
+    while ((bytesRead = input.read(buffer)) != -1) {
+      out.write(buffer, 0, bytesRead)
+      if (out.size() == 5000) readsSentAt5000 = lengths.size()
+    }
+
+    then:
+    out.toByteArray() == fileData
+    readsSentAt5000 == 5
+    lengths == [1000] * 12 + [345, 1]
+  }
+
+  def "should read the blocks missing from the block cache with pipelined reads"() {
+    given:
+    def fileData = randomData(42, 12345)
+    def responseTimes = []
+    def maxReadsInFlight = 0
+    def responder = new BasicPacketProcessor({ req ->
+      if (req instanceof SMB2CreateRequest)
+        return createResponse()
+      if (req instanceof SMB2ReadRequest) {
+        def now = System.currentTimeMillis()
+        responseTimes << now + 50
+        maxReadsInFlight = Math.max(maxReadsInFlight, responseTimes.count { it > now } as int)
+        return read(req, fileData)
+      }
+      null
+    })
+    def config = SmbConfig.builder()
+      .withTransportLayerFactory(new StubTransportLayerFactory(responder.&processPacket, { req -> req instanceof SMB2ReadRequest ? 50 : 0 }))
+      .withBlockCache(1 << 20, 1000)
+      .build()
+    def cachingConnection = new SMBClient(config).connect("127.0.0.1")
+    def session = cachingConnection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    def share = session.connectShare("share") as DiskShare
+    def cachedFile = share.openFile("file", EnumSet.of(AccessMask.GENERIC_READ), null, SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null)
+    def buffer = new byte[5000]
+
+    when:
+    def bytesRead = cachedFile.read(buffer, 500, 0, 5000)
+    def readsSent = responseTimes.size()
+    def bytesReadAgain = cachedFile.read(buffer, 500, 0, 5000)
+
+    then:
+    bytesRead == 5000
+    bytesReadAgain == 5000
+    buffer == Arrays.copyOfRange(fileData, 500, 5500)
+    readsSent == 6
+    maxReadsInFlight == 4
+    responseTimes.size() == 6
+
+    cleanup:
+    cachingConnection.close()
+  }
+
+  def "should read from any position via byte channel"() {
+
+    given:
+    def fileData = randomData(42, 12345)
+    def channel = file.getByteChannel()
+    def head = ByteBuffer.allocate(100)
+    def tail = ByteBuffer.allocate(1000)
+
+    when:
+    def headRead = channel.read(head, 2000)
+    def tailRead = channel.position(12000).read(tail)
+
+    then:
+    headRead == 100
+    head.array() == Arrays.copyOfRange(fileData, 2000, 2100)
+    tailRead == 345
+    channel.position() == 12345
+    Arrays.copyOf(tail.array(), 345) == Arrays.copyOfRange(fileData, 12000, 12345)
+    channel.read(tail) == -1
+  }
+
+  def "should read via asynchronous channel"() {
+    given:
+    def fileData = randomData(42, 12345)
+    def buffer = ByteBuffer.allocate(100)
+
+    when:
+    def bytesRead = file.getAsynchronousChannel().read(buffer, 500).get()
+
+    then:
+    bytesRead == 100
+    buffer.array() == Arrays.copyOfRange(fileData, 500, 600)
+  }
+
+  def "should read scattered ranges with vectored read"() {
+    given:
+    def fileData = randomData(42, 12345)
+    def ranges = [new FileRange(5000, new byte[100]), new FileRange(10, new byte[20]), new FileRange(12300, new byte[100]), new FileRange(20000, new byte[10])]
+
+    when:
+    file.readVectored(ranges)
+
+    then:
+    ranges[0].bytesRead == 100
+    ranges[0].buffer.array() == Arrays.copyOfRange(fileData, 5000, 5100)
+    ranges[1].bytesRead == 20
+    ranges[1].buffer.array() == Arrays.copyOfRange(fileData, 10, 30)
+    ranges[2].bytesRead == 45
+    Arrays.copyOf(ranges[2].buffer.array(), 45) == Arrays.copyOfRange(fileData, 12300, 12345)
+    ranges[3].bytesRead == -1
+  }
+
+  def "should download to local file with transferTo"() {
+    given:
+    def fileData = randomData(42, 12345)
+    def dest = Files.createTempFile("smbj", ".bin")
+
+    when:
+    def bytesRead = file.transferTo(dest)
+
+    then:
+    bytesRead == 12345
+    Files.readAllBytes(dest) == fileData
+
+    cleanup:
+    Files.delete(dest)
+  }
+
+  def "should download to local file through memory mappings with transferTo"() {
+    given:
+    def fileData = randomData(42, 12345)
+    def dest = Files.createTempFile("smbj", ".bin")
+    def channel = FileChannel.open(dest, StandardOpenOption.READ, StandardOpenOption.WRITE)
+
+    when:
+    def bytesRead = file.transferTo(channel, 4, true, null)
+    channel.close()
+
+    then:
+    bytesRead == 12345
+    Files.readAllBytes(dest) == fileData
+
+    cleanup:
+    Files.delete(dest)
+  }
+
   byte[] randomData(int seed, int length) {
     Random rng = new Random(seed)
     byte[] data = new byte[length]
@@ -158,6 +403,7 @@ class FileReadSpec extends Specification {
     response.header.status = NtStatus.STATUS_SUCCESS
     response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL)
     response.fileId = new SMB2FileId(new byte[0], new byte[0])
+    response.endOfFile = 12345
     response
   }
 
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msdtyp.AccessMask
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.FileInformationClass
+import com.hierynomus.mssmb2.*
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse
+import com.hierynomus.mssmb2.messages.SMB2QueryInfoRequest
+import com.hierynomus.mssmb2.messages.SMB2QueryInfoResponse
+import com.hierynomus.mssmb2.messages.SMB2ReadRequest
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse
+import com.hierynomus.mssmb2.messages.SMB2SetInfoRequest
+import com.hierynomus.mssmb2.messages.SMB2SetInfoResponse
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest
+import com.hierynomus.mssmb2.messages.SMB2WriteResponse
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.BasicPacketProcessor
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.connection.StubTransportLayerFactory
+import com.hierynomus.smbj.common.SMBApiException
+import com.hierynomus.smbj.io.ArrayByteChunkProvider
+import com.hierynomus.smbj.io.InputStreamByteChunkProvider
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.TimeUnit
+
+class FileWriteSpec extends Specification {
+  private byte[] written = new byte[300000]
+  private int maxBytesPerWrite = Integer.MAX_VALUE
+  private long failAtOffset = -1
+  private int writeRequests = 0
+  private List<Object> providers = []
+  private int writeDelay = 0
+  private List<Long> writeResponseTimes = []
+  private int maxWritesInFlight = 0
+  private long remoteSize = 0
+  private List<Object> setInfoClasses = []
+  private List<Integer> writeRequestsAtRead = []
+  private List<Long> writeOffsets = []
+  private File file
+  private Connection connection
+
+  def setup() {
+    def responder = new BasicPacketProcessor({ req ->
+      if (req instanceof SMB2CreateRequest)
+        return createResponse()
+      if (req instanceof SMB2WriteRequest)
+        return write(req)
+      if (req instanceof SMB2ReadRequest)
+        return read(req)
+      if (req instanceof SMB2QueryInfoRequest)
+        return standardInfoResponse()
+      if (req instanceof SMB2SetInfoRequest) {
+        setInfoClasses << req.fileInfoClass
+        def response = new SMB2SetInfoResponse()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        return response
+      }
+
+      null
+    })
+
+    def config = SmbConfig.builder().withTransportLayerFactory(new StubTransportLayerFactory(responder.&processPacket, { req -> req instanceof SMB2WriteRequest ? writeDelay : 0 })).build()
+    def client = new SMBClient(config)
+
+    connection = client.connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    def share = session.connectShare("share") as DiskShare
+    file = share.openFile(
+      "file",
+      EnumSet.of(AccessMask.GENERIC_WRITE),
+      EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+      SMB2ShareAccess.ALL,
+      SMB2CreateDisposition.FILE_OVERWRITE_IF,
+      EnumSet.noneOf(SMB2CreateOptions.class)
+    )
+  }
+
+  def cleanup() {
+    connection.close()
+  }
+
+  def "should write all data with pipelined writes"() {
+    given:
+    def data = randomData(42, 200000)
+
+    when:
+    def bytesWritten = file.write(new ArrayByteChunkProvider(data, 0), 4, null)
+
+    then:
+    bytesWritten == 200000
+    Arrays.copyOf(written, data.length) == data
+  }
+
+  def "should re-send the remaining data after short writes"() {
+    given:
+    def data = randomData(42, 200000)
+    maxBytesPerWrite = 10000
+
+    when:
+    def bytesWritten = file.write(new ArrayByteChunkProvider(data, 0), 4, null)
+
+    then:
+    bytesWritten == 200000
+    Arrays.copyOf(written, data.length) == data
+  }
+
+  def "should write all data via write-behind output stream"() {
+    given:
+    def data = randomData(42, 200000)
+
+    when:
+    def out = file.getOutputStream(null, 3)
+    out.write(data, 0, 1000)
+    (1000..<2000).each { out.write(data[it]) }
+    out.write(data, 2000, data.length - 2000)
+    out.close()
+
+    then:
+    Arrays.copyOf(written, data.length) == data
+  }
+
+  def "should rethrow a failed write from every later call on the output stream"() {
+    given:
+    def data = randomData(42, 100000)
+    failAtOffset = 20000
+    def out = new FileOutputStream(file, 10000, 3, null)
+
+    when:
+    out.write(data)
+
+    then:
+    def e = thrown(SMBApiException)
+    e.status == NtStatus.STATUS_DISK_FULL
+
+    when:
+    out.close()
+
+    then:
+    def again = thrown(SMBApiException)
+    again.is(e)
+  }
+
+  def "should not use more buffers than given when writes are slower than the caller"() {
+    given:
+    def data = randomData(42, 200000)
+    writeDelay = 50
+    def out = new FileOutputStream(file, 10000, 3, null)
+
+    when:
+    out.write(data)
+    out.close()
+
+    then:
+    out.allocatedBuffers == 3
+    maxWritesInFlight == 3
+    writeRequests == 20
+    Arrays.copyOf(written, data.length) == data
+  }
+
+  def "should upload a local file with transferFrom"() {
+    given:
+    def data = randomData(42, 200000)
+    def src = Files.createTempFile("smbj", ".bin")
+    Files.write(src, data)
+
+    when:
+    def bytesWritten = file.transferFrom(src)
+
+    then:
+    bytesWritten == 200000
+    Arrays.copyOf(written, data.length) == data
+    setInfoClasses == [FileInformationClass.FileAllocationInformation]
+
+    cleanup:
+    Files.delete(src)
+  }
+
+  def "should upload a local file through memory mappings with transferFrom"() {
+    given:
+    def data = randomData(42, 200000)
+    def src = Files.createTempFile("smbj", ".bin")
+    Files.write(src, data)
+    def channel = FileChannel.open(src, StandardOpenOption.READ)
+
+    when:
+    def bytesWritten = file.transferFrom(channel, 4, true, null)
+
+    then:
+    bytesWritten == 200000
+    Arrays.copyOf(written, data.length) == data
+
+    cleanup:
+    channel.close()
+    Files.delete(src)
+  }
+
+  def "should not set the allocation of a file larger than the upload with transferFrom"() {
+    given:
+    def data = randomData(42, 200000)
+    remoteSize = 250000
+    def src = Files.createTempFile("smbj", ".bin")
+    Files.write(src, data)
+
+    when:
+    file.transferFrom(src)
+
+    then:
+    setInfoClasses == []
+    Arrays.copyOf(written, data.length) == data
+
+    cleanup:
+    Files.delete(src)
+  }
+
+  def "should coalesce small writes into a single write"() {
+    given:
+    def data = randomData(42, 10000)
+    def read = new byte[50]
+
+    when:
+    file.setWriteCoalescing(65536, 1, TimeUnit.HOURS)
+    (0..<100).reverse().each { file.write(data, it * 100, it * 100, 100) }
+    def requestsBeforeFlush = writeRequests
+    def bytesRead = file.read(read, 4000)
+    file.setWriteCoalescing(0, 0, TimeUnit.SECONDS)
+
+    then:
+    requestsBeforeFlush == 0
+    bytesRead == 50
+    read == Arrays.copyOfRange(data, 4000, 4050)
+    writeRequests == 1
+    Arrays.copyOf(written, data.length) == data
+  }
+
+  def "should let the last of overlapping coalesced writes win"() {
+    given:
+    file.setWriteCoalescing(65536, 1, TimeUnit.HOURS)
+
+    when:
+    file.write(filled('a', 100), 100)
+    file.write(filled('b', 100), 150)
+    file.write(filled('c', 10), 120)
+    file.write(filled('d', 20), 90)
+    file.setWriteCoalescing(0, 0, TimeUnit.SECONDS)
+
+    then:
+    writeRequests == 1
+    new String(Arrays.copyOfRange(written, 90, 250), "US-ASCII") == "d" * 20 + "a" * 10 + "c" * 10 + "a" * 20 + "b" * 100
+  }
+
+  def "should merge the segments that a coalesced write bridges"() {
+    given:
+    file.setWriteCoalescing(65536, 1, TimeUnit.HOURS)
+
+    when:
+    file.write(filled('a', 100), 0)
+    file.write(filled('b', 100), 200)
+    file.write(filled('c', 120), 90)
+    file.setWriteCoalescing(0, 0, TimeUnit.SECONDS)
+
+    then:
+    writeRequests == 1
+    writeOffsets == [0L]
+    new String(Arrays.copyOf(written, 300), "US-ASCII") == "a" * 90 + "c" * 120 + "b" * 90
+  }
+
+  def "should flush the coalesced writes before a read that partially overlaps them"() {
+    given:
+    def data = randomData(42, 100)
+    def read = new byte[100]
+    file.setWriteCoalescing(65536, 1, TimeUnit.HOURS)
+
+    when:
+    file.write(data, 1000)
+    def bytesRead = file.read(read, 1050)
+
+    then:
+    writeRequestsAtRead == [1]
+    bytesRead == 100
+    Arrays.copyOf(read, 50) == Arrays.copyOfRange(data, 50, 100)
+  }
+
+  def "should keep the segments that were not written when a flush fails"() {
+    given:
+    file.setWriteCoalescing(65536, 1, TimeUnit.HOURS)
+    file.write(filled('a', 100), 0)
+    file.write(filled('b', 100), 1000)
+    failAtOffset = 1000
+
+    when:
+    file.setWriteCoalescing(0, 0, TimeUnit.SECONDS)
+
+    then:
+    thrown(SMBApiException)
+    writeRequests == 2
+    new String(Arrays.copyOf(written, 100), "US-ASCII") == "a" * 100
+    written[1000] == 0 as byte
+
+    when:
+    failAtOffset = -1
+    file.setWriteCoalescing(0, 0, TimeUnit.SECONDS)
+
+    then:
+    writeRequests == 3
+    writeOffsets == [0L, 1000L, 1000L]
+    new String(Arrays.copyOfRange(written, 1000, 1100), "US-ASCII") == "b" * 100
+  }
+
+  def "should report the bytes written when a write fails"() {
+    given:
+    def data = randomData(42, 200000)
+    failAtOffset = 65536
+
+    when:
+    file.write(new ArrayByteChunkProvider(data, 0), 4, null)
+
+    then:
+    def e = thrown(SMBApiException)
+    e instanceof IncompleteWriteException
+    e.status == NtStatus.STATUS_DISK_FULL
+    e.bytesWritten == 65536
+  }
+
+  def "should write slices of the provider without copying its data"() {
+    given:
+    def data = randomData(42, 200000)
+
+    when:
+    file.write(new ArrayByteChunkProvider(data, 0), 4, null)
+
+    then:
+    providers.size() == 4
+    providers.every { it.data.is(data) }
+  }
+
+  def "should copy the data of providers that can only be read sequentially"() {
+    given:
+    def data = randomData(42, 200000)
+
+    when:
+    def bytesWritten = file.write(new InputStreamByteChunkProvider(new ByteArrayInputStream(data)), 4, null)
+
+    then:
+    bytesWritten == 200000
+    providers.size() == 4
+    providers.every { !it.data.is(data) }
+    Arrays.copyOf(written, data.length) == data
+  }
+
+  byte[] filled(String c, int length) {
+    (c * length).getBytes("US-ASCII")
+  }
+
+  byte[] randomData(int seed, int length) {
+    Random rng = new Random(seed)
+    byte[] data = new byte[length]
+    rng.nextBytes(data);
+    data
+  }
+
+  SMB2Packet createResponse() {
+    def response = new SMB2CreateResponse()
+    response.header.status = NtStatus.STATUS_SUCCESS
+    response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL)
+    response.fileId = new SMB2FileId(new byte[0], new byte[0])
+    response
+  }
+
+  SMB2Packet standardInfoResponse() {
+    def response = new SMB2QueryInfoResponse()
+    response.header.status = NtStatus.STATUS_SUCCESS
+    def info = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN)
+    info.putLong(remoteSize).putLong(remoteSize).putInt(1)
+    response.outputBuffer = info.array()
+    response
+  }
+
+  SMB2Packet read(SMB2ReadRequest req) {
+    writeRequestsAtRead << writeRequests
+    def response = new SMB2ReadResponse()
+    response.header.status = NtStatus.STATUS_SUCCESS
+    response.data = Arrays.copyOfRange(written, req.offset as int, (req.offset as int) + req.payloadSize)
+    response.dataLength = req.payloadSize
+    response
+  }
+
+  SMB2Packet write(SMB2WriteRequest req) {
+    writeRequests++
+    def now = System.currentTimeMillis()
+    writeResponseTimes << now + writeDelay
+    maxWritesInFlight = Math.max(maxWritesInFlight, writeResponseTimes.count { it > now } as int)
+    def provider = req.byteProvider
+    providers << provider
+    def offset = provider.offset
+    writeOffsets << offset
+    def response = new SMB2WriteResponse()
+    if (offset == failAtOffset) {
+      response.header.status = NtStatus.STATUS_DISK_FULL
+      return response
+    }
+    def out = new ByteArrayOutputStream()
+    while (out.size() < req.payloadSize && provider.isAvailable()) {
+      provider.writeChunk(out)
+    }
+    def count = Math.min(out.size(), maxBytesPerWrite)
+    System.arraycopy(out.toByteArray(), 0, written, offset as int, count)
+    response.header.status = NtStatus.STATUS_SUCCESS
+    response.bytesWritten = count
+    response
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msdtyp.FileTime
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class MetadataCacheSpec extends Specification {
+
+  def "should answer existence of opened and missing paths"() {
+    given:
+    def cache = new MetadataCache(16, 1, TimeUnit.MINUTES)
+
+    when:
+    cache.opened("dir\\file", false, false)
+    cache.notFound("dir\\missing")
+
+    then:
+    cache.exists("dir/file", false)
+    cache.exists("dir\\file", true) == null
+    !cache.exists("dir\\missing", false)
+    !cache.exists("dir\\missing", true)
+    cache.exists("other", false) == null
+  }
+
+  def "should drop paths below an invalidated tree"() {
+    given:
+    def cache = new MetadataCache(16, 1, TimeUnit.MINUTES)
+    cache.opened("dir", true, false)
+    cache.opened("dir\\file", false, false)
+    cache.opened("directory", true, false)
+
+    when:
+    cache.invalidateTree("dir")
+
+    then:
+    cache.exists("dir", true) == null
+    cache.exists("dir\\file", false) == null
+    cache.exists("directory", true)
+  }
+
+  def "should fold the case of paths"() {
+    given:
+    def cache = new MetadataCache(16, 1, TimeUnit.MINUTES)
+    cache.opened("Dir\\File", false, false)
+    cache.notFound("dir\\missing")
+
+    when:
+    cache.invalidate("DIR\\FILE")
+    cache.opened("dir\\other", false, false)
+    cache.invalidateTree("DIR")
+
+    then:
+    cache.exists("dir\\file", false) == null
+    cache.exists("Dir\\Missing", false) == null
+    cache.exists("DIR\\OTHER", false) == null
+  }
+
+  def "should answer differently cased paths from the same entry"() {
+    given:
+    def cache = new MetadataCache(16, 1, TimeUnit.MINUTES)
+
+    when:
+    cache.opened("Dir\\File", false, false)
+    cache.notFound("dir\\missing")
+
+    then:
+    cache.exists("DIR\\FILE", false)
+    !cache.exists("Dir\\Missing", false)
+  }
+
+  def "should forget information of a path opened with a change"() {
+    given:
+    def cache = new MetadataCache(16, 1, TimeUnit.MINUTES)
+    def time = new FileTime(1)
+    cache.put("file", new FileBasicInformation(time, time, time, time, FileAttributes.FILE_ATTRIBUTE_NORMAL.value))
+
+    when:
+    cache.opened("file", false, changed)
+
+    then:
+    (cache.get("file", FileBasicInformation) != null) == !changed
+
+    where:
+    changed << [true, false]
+  }
+
+  def "should expire paths after time to live"() {
+    given:
+    def cache = new MetadataCache(16, 10, TimeUnit.MILLISECONDS)
+    cache.notFound("file")
+
+    when:
+    Thread.sleep(50)
+
+    then:
+    cache.exists("file", false) == null
+  }
+
+  def "should evict least recently used path when full"() {
+    given:
+    def cache = new MetadataCache(2, 1, TimeUnit.MINUTES)
+    cache.notFound("a")
+    cache.notFound("b")
+
+    when:
+    cache.exists("a", false)
+    cache.notFound("c")
+
+    then:
+    cache.evictions == 1
+    cache.exists("b", false) == null
+    cache.exists("a", false) != null
+  }
+}
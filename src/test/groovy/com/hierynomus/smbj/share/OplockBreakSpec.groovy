@@ -0,0 +1,242 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.msdtyp.AccessMask
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.mssmb2.SMB2CreateDisposition
+import com.hierynomus.mssmb2.SMB2Dialect
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.mssmb2.SMB2GlobalCapability
+import com.hierynomus.mssmb2.SMB2Lease
+import com.hierynomus.mssmb2.SMB2LeaseState
+import com.hierynomus.mssmb2.SMB2OplockLevel
+import com.hierynomus.mssmb2.SMB2Packet
+import com.hierynomus.mssmb2.SMB2ShareAccess
+import com.hierynomus.mssmb2.messages.SMB2Close
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse
+import com.hierynomus.mssmb2.messages.SMB2LeaseBreak
+import com.hierynomus.mssmb2.messages.SMB2OplockBreak
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.BasicPacketProcessor
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.connection.StubTransportLayerFactory
+import spock.lang.Specification
+
+import static com.hierynomus.mssmb2.SMB2LeaseState.*
+
+class OplockBreakSpec extends Specification {
+  private static final long UNSOLICITED_MESSAGE_ID = 0xFFFFFFFFFFFFFFFFL
+
+  private List<SMB2Lease> requestedLeases = Collections.synchronizedList([])
+  private List<List<Object>> acks = Collections.synchronizedList([])
+  private Closure onCreate
+  private Closure onClose
+  private int fileIds = 0
+  private Connection connection
+  private DiskShare share
+
+  def cleanup() {
+    connection.close()
+  }
+
+  def "should share the lease key between the opens of a file"() {
+    given:
+    connect(true)
+
+    when:
+    open("dir\\file")
+    open("DIR\\FILE")
+    open("dir\\other")
+
+    then:
+    requestedLeases.size() == 3
+    requestedLeases[0].leaseKey == requestedLeases[1].leaseKey
+    requestedLeases[0].leaseKey != requestedLeases[2].leaseKey
+  }
+
+  def "should break every open of a lease and acknowledge once on a break thread"() {
+    given:
+    connect(true)
+    def first = open("file")
+    def second = open("file")
+
+    when:
+    connection.handle(leaseBreak(requestedLeases[0].leaseKey, EnumSet.of(SMB2_LEASE_READ_CACHING)))
+    waitFor { acks.size() == 1 }
+
+    then:
+    first.cachingRights == EnumSet.of(SMB2_LEASE_READ_CACHING)
+    second.cachingRights == EnumSet.of(SMB2_LEASE_READ_CACHING)
+    acks[0][0] == requestedLeases[0].leaseKey
+    acks[0][1] == EnumSet.of(SMB2_LEASE_READ_CACHING)
+    acks[0][2].startsWith("smbj-break-")
+  }
+
+  def "should acknowledge a lease break received before the open is registered"() {
+    given:
+    connect(true)
+    onCreate = { SMB2CreateRequest req ->
+      connection.handle(leaseBreak(req.requestedLease.leaseKey, EnumSet.of(SMB2_LEASE_READ_CACHING)))
+    }
+
+    when:
+    def entry = open("file")
+    waitFor { acks.size() == 1 }
+
+    then:
+    entry.cachingRights == EnumSet.of(SMB2_LEASE_READ_CACHING)
+    acks[0][1] == EnumSet.of(SMB2_LEASE_READ_CACHING)
+  }
+
+  def "should acknowledge a lease break received while the last open is closed"() {
+    given:
+    connect(true)
+    def entry = open("file")
+    onClose = {
+      connection.handle(leaseBreak(requestedLeases[0].leaseKey, EnumSet.noneOf(SMB2LeaseState)))
+    }
+
+    when:
+    entry.close()
+    waitFor { acks.size() == 1 }
+
+    then:
+    acks[0][0] == requestedLeases[0].leaseKey
+    acks[0][1] == EnumSet.noneOf(SMB2LeaseState)
+  }
+
+  def "should acknowledge an oplock break with the new level"() {
+    given:
+    connect(false)
+    def entry = open("file")
+
+    when:
+    connection.handle(oplockBreak(entry.fileId, SMB2OplockLevel.SMB2_OPLOCK_LEVEL_II))
+    waitFor { acks.size() == 1 }
+
+    then:
+    requestedLeases.isEmpty()
+    entry.cachingRights == EnumSet.of(SMB2_LEASE_READ_CACHING)
+    acks[0][0] == entry.fileId
+    acks[0][1] == SMB2OplockLevel.SMB2_OPLOCK_LEVEL_II
+  }
+
+  def "should acknowledge an oplock break received before the open is registered"() {
+    given:
+    connect(false)
+    onCreate = { SMB2CreateRequest req ->
+      connection.handle(oplockBreak(new SMB2FileId([fileIds] * 8 as byte[], new byte[8]), SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE))
+    }
+
+    when:
+    def entry = open("file")
+    waitFor { acks.size() == 1 }
+
+    then:
+    entry.cachingRights.isEmpty()
+    entry.oplockLevel == SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE
+    acks[0][0] == entry.fileId
+    acks[0][1] == SMB2OplockLevel.SMB2_OPLOCK_LEVEL_NONE
+  }
+
+  private void connect(boolean leasing) {
+    def responder = new BasicPacketProcessor({ req ->
+      if (req instanceof SMB2CreateRequest)
+        return createResponse(req)
+      if (req instanceof SMB2Close) {
+        if (onClose != null) onClose.call()
+        def response = new SMB2Close()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        return response
+      }
+      if (req instanceof SMB2LeaseBreak) {
+        acks << [req.leaseKey, req.leaseState, Thread.currentThread().name]
+        def response = new SMB2LeaseBreak()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        return response
+      }
+      if (req instanceof SMB2OplockBreak) {
+        acks << [req.fileId, req.oplockLevel, Thread.currentThread().name]
+        def response = new SMB2OplockBreak()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        return response
+      }
+      null
+    })
+    responder.dialect = SMB2Dialect.SMB_2_1
+    if (leasing) {
+      responder.capabilities = EnumSet.of(SMB2GlobalCapability.SMB2_GLOBAL_CAP_LEASING)
+    }
+
+    def config = SmbConfig.builder().withTransportLayerFactory(new StubTransportLayerFactory(responder.&processPacket)).build()
+    connection = new SMBClient(config).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    share = session.connectShare("share") as DiskShare
+  }
+
+  private DiskEntry open(String path) {
+    share.open(path, EnumSet.of(SMB2_LEASE_READ_CACHING, SMB2_LEASE_WRITE_CACHING, SMB2_LEASE_HANDLE_CACHING), EnumSet.of(AccessMask.GENERIC_READ), null, SMB2ShareAccess.ALL, SMB2CreateDisposition.FILE_OPEN, null)
+  }
+
+  SMB2Packet createResponse(SMB2CreateRequest req) {
+    fileIds++
+    if (req.requestedLease != null) {
+      requestedLeases << req.requestedLease
+    }
+    if (onCreate != null) {
+      onCreate.call(req)
+    }
+    def response = new SMB2CreateResponse()
+    response.header.status = NtStatus.STATUS_SUCCESS
+    response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL)
+    response.fileId = new SMB2FileId([fileIds] * 8 as byte[], new byte[8])
+    response.oplockLevel = req.requestedOplockLevel
+    if (req.requestedLease != null) {
+      response.lease = new SMB2Lease(req.requestedLease.leaseKey, req.requestedLease.leaseState)
+    }
+    response
+  }
+
+  SMB2Packet leaseBreak(byte[] leaseKey, Set<SMB2LeaseState> leaseState) {
+    def notification = new SMB2LeaseBreak()
+    notification.header.messageId = UNSOLICITED_MESSAGE_ID
+    notification.flags = SMB2LeaseBreak.SMB2_NOTIFY_BREAK_LEASE_FLAG_ACK_REQUIRED
+    notification.leaseKey = leaseKey
+    notification.currentLeaseState = EnumSet.allOf(SMB2LeaseState)
+    notification.leaseState = leaseState
+    notification
+  }
+
+  SMB2Packet oplockBreak(SMB2FileId fileId, SMB2OplockLevel oplockLevel) {
+    def notification = new SMB2OplockBreak()
+    notification.header.messageId = UNSOLICITED_MESSAGE_ID
+    notification.fileId = fileId
+    notification.oplockLevel = oplockLevel
+    notification
+  }
+
+  void waitFor(Closure<Boolean> condition) {
+    long deadline = System.currentTimeMillis() + 5000
+    while (!condition.call() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10)
+    }
+  }
+}
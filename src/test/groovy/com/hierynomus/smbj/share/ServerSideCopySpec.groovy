@@ -0,0 +1,213 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.fsctl.SrvRequestResumeKeyResponse
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.mssmb2.SMB2Packet
+import com.hierynomus.mssmb2.messages.SMB2Close
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse
+import com.hierynomus.mssmb2.messages.SMB2IoctlRequest
+import com.hierynomus.mssmb2.messages.SMB2IoctlResponse
+import com.hierynomus.mssmb2.messages.SMB2ReadRequest
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest
+import com.hierynomus.mssmb2.messages.SMB2WriteResponse
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.BasicPacketProcessor
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.connection.StubTransportLayerFactory
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class ServerSideCopySpec extends Specification {
+  private static final int FSCTL_SRV_REQUEST_RESUME_KEY = 0x00140078
+  private static final int FSCTL_SRV_COPYCHUNK = 0x001440F2
+
+  private byte[] source = randomData(42, 3 * 1024 * 1024 + 100)
+  private byte[] target = new byte[source.length]
+  private NtStatus resumeKeyStatus = NtStatus.STATUS_SUCCESS
+  private long serverMaxChunks = 16
+  private long serverMaxChunkSize = 1024 * 1024
+  private long serverMaxTotalSize = 16 * 1024 * 1024
+  private List<Long> resumeKeyMaxOutput = []
+  private List<List<Integer>> batches = []
+  private int reads = 0
+  private DiskShare share
+  private Connection connection
+
+  def setup() {
+    def responder = new BasicPacketProcessor({ req ->
+      if (req instanceof SMB2CreateRequest)
+        return createResponse(req)
+      if (req instanceof SMB2IoctlRequest)
+        return ioctlResponse(req)
+      if (req instanceof SMB2ReadRequest)
+        return readResponse(req)
+      if (req instanceof SMB2WriteRequest)
+        return writeResponse(req)
+      if (req instanceof SMB2Close) {
+        def response = new SMB2Close()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        return response
+      }
+      null
+    })
+
+    def config = SmbConfig.builder().withTransportLayerFactory(new StubTransportLayerFactory(responder.&processPacket)).build()
+    connection = new SMBClient(config).connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    share = session.connectShare("share") as DiskShare
+  }
+
+  def cleanup() {
+    connection.close()
+  }
+
+  def "should copy in batches of chunks on the server"() {
+    when:
+    def copied = share.copy("src", "dst")
+
+    then:
+    copied == source.length
+    target == source
+    resumeKeyMaxOutput == [SrvRequestResumeKeyResponse.STRUCTURE_SIZE as long]
+    SrvRequestResumeKeyResponse.STRUCTURE_SIZE == 32
+    batches == [[1024 * 1024, 1024 * 1024, 1024 * 1024, 100]]
+    reads == 0
+  }
+
+  def "should adopt the limits of the server when it rejects a batch"() {
+    given:
+    serverMaxChunks = 2
+    serverMaxChunkSize = 512 * 1024
+    serverMaxTotalSize = 1024 * 1024
+
+    when:
+    def copied = share.copy("src", "dst")
+
+    then:
+    copied == source.length
+    target == source
+    batches.size() == 5
+    batches[0] == [1024 * 1024, 1024 * 1024, 1024 * 1024, 100]
+    batches[1..3].every { it == [512 * 1024, 512 * 1024] }
+    batches[4] == [100]
+    reads == 0
+  }
+
+  def "should copy through the client when the server does not support server-side copy"() {
+    given:
+    resumeKeyStatus = NtStatus.STATUS_NOT_SUPPORTED
+
+    when:
+    def copied = share.copy("src", "dst")
+
+    then:
+    copied == source.length
+    target == source
+    batches.isEmpty()
+    reads > 0
+  }
+
+  byte[] randomData(int seed, int length) {
+    Random rng = new Random(seed)
+    byte[] data = new byte[length]
+    rng.nextBytes(data)
+    data
+  }
+
+  SMB2Packet createResponse(SMB2CreateRequest req) {
+    def response = new SMB2CreateResponse()
+    response.header.status = NtStatus.STATUS_SUCCESS
+    response.fileAttributes = EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL)
+    def id = req.fileName == "src" ? 1 : 2
+    response.fileId = new SMB2FileId([id] * 8 as byte[], new byte[8])
+    response.endOfFile = req.fileName == "src" ? source.length : 0
+    response
+  }
+
+  SMB2Packet ioctlResponse(SMB2IoctlRequest req) {
+    def response = new SMB2IoctlResponse()
+    if (req.controlCode == FSCTL_SRV_REQUEST_RESUME_KEY) {
+      resumeKeyMaxOutput << req.maxOutputResponse
+      response.header.status = resumeKeyStatus
+      response.outputBuffer = new byte[32]
+      return response
+    }
+    def out = new ByteArrayOutputStream()
+    while (req.inputData.isAvailable()) {
+      req.inputData.writeChunk(out)
+    }
+    def input = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN)
+    input.position(24)
+    def count = input.getInt()
+    input.getInt()
+    def chunks = (0..<count).collect {
+      def chunk = [input.getLong(), input.getLong(), input.getInt()]
+      input.getInt()
+      chunk
+    }
+    batches << chunks.collect { it[2] as int }
+    def result = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN)
+    if (count > serverMaxChunks || chunks.any { it[2] > serverMaxChunkSize } || chunks.sum { it[2] } > serverMaxTotalSize) {
+      response.header.status = NtStatus.STATUS_INVALID_PARAMETER
+      result.putInt(serverMaxChunks as int).putInt(serverMaxChunkSize as int).putInt(serverMaxTotalSize as int)
+    } else {
+      chunks.each { System.arraycopy(source, it[0] as int, target, it[1] as int, it[2] as int) }
+      response.header.status = NtStatus.STATUS_SUCCESS
+      result.putInt(count).putInt(0).putInt(chunks.sum { it[2] } as int)
+    }
+    response.outputBuffer = result.array()
+    response
+  }
+
+  SMB2Packet readResponse(SMB2ReadRequest req) {
+    reads++
+    def offset = req.offset as int
+    def length = Math.min(req.payloadSize, source.length - offset)
+    def response = new SMB2ReadResponse()
+    if (length <= 0) {
+      response.header.status = NtStatus.STATUS_END_OF_FILE
+    } else {
+      response.header.status = NtStatus.STATUS_SUCCESS
+      response.data = Arrays.copyOfRange(source, offset, offset + length)
+      response.dataLength = length
+    }
+    response
+  }
+
+  SMB2Packet writeResponse(SMB2WriteRequest req) {
+    def provider = req.byteProvider
+    def offset = provider.offset as int
+    def out = new ByteArrayOutputStream()
+    while (out.size() < req.payloadSize && provider.isAvailable()) {
+      provider.writeChunk(out)
+    }
+    System.arraycopy(out.toByteArray(), 0, target, offset, out.size())
+    def response = new SMB2WriteResponse()
+    response.header.status = NtStatus.STATUS_SUCCESS
+    response.bytesWritten = out.size()
+    response
+  }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C)2016 - SMBJ Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hierynomus.smbj.share
+
+import com.hierynomus.mserref.NtStatus
+import com.hierynomus.msfscc.FileAttributes
+import com.hierynomus.msfscc.FileNotifyAction
+import com.hierynomus.mssmb2.SMB2FileId
+import com.hierynomus.mssmb2.SMB2MessageFlag
+import com.hierynomus.mssmb2.SMB2Packet
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyRequest
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyResponse
+import com.hierynomus.mssmb2.messages.SMB2Close
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse
+import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryRequest
+import com.hierynomus.mssmb2.messages.SMB2QueryDirectoryResponse
+import com.hierynomus.mssmb2.messages.SMB2QueryInfoRequest
+import com.hierynomus.mssmb2.messages.SMB2QueryInfoResponse
+import com.hierynomus.mssmb2.messages.SMB2ReadRequest
+import com.hierynomus.mssmb2.messages.SMB2ReadResponse
+import com.hierynomus.smbj.SMBClient
+import com.hierynomus.smbj.SmbConfig
+import com.hierynomus.smbj.auth.AuthenticationContext
+import com.hierynomus.smbj.connection.BasicPacketProcessor
+import com.hierynomus.smbj.connection.Connection
+import com.hierynomus.smbj.connection.StubTransportLayerFactory
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+
+class TreeMirrorSpec extends Specification {
+  private Connection connection
+  private DiskShare share
+  private Path local
+  private TreeMirror mirror
+  // The tree on the share by path, the mirrored directory is "tree".
+  private Map<String, Node> tree = Collections.synchronizedMap(["tree": new Node(directory: true, fileId: 1)])
+  // The path of every handle, the handle is the index.
+  private List<String> handles = Collections.synchronizedList([])
+  private Set<Integer> listed = Collections.synchronizedSet([] as Set)
+  private Set<String> failingReads = [] as Set
+  // The threads on which the files were downloaded, one per download.
+  private List<String> readThreads = Collections.synchronizedList([])
+  private List<Long> notifies = Collections.synchronizedList([])
+  private List<Long> answered = Collections.synchronizedList([])
+  private volatile int watched = -1
+
+  def setup() {
+    def responder = new BasicPacketProcessor({ req ->
+      if (req instanceof SMB2CreateRequest)
+        return createResponse(req)
+      if (req instanceof SMB2QueryDirectoryRequest)
+        return queryDirectoryResponse(req)
+      if (req instanceof SMB2QueryInfoRequest)
+        return queryInfoResponse(req)
+      if (req instanceof SMB2ReadRequest)
+        return readResponse(req)
+      if (req instanceof SMB2ChangeNotifyRequest) {
+        notifies << req.header.messageId
+        watched = handle(req.fileId)
+        def response = new SMB2ChangeNotifyResponse()
+        response.header.status = NtStatus.STATUS_PENDING
+        response.header.setFlag(SMB2MessageFlag.SMB2_FLAGS_ASYNC_COMMAND)
+        response.header.asyncId = notifies.size()
+        return response
+      }
+      if (req instanceof SMB2Close) {
+        if (!notifies.isEmpty() && !answered.contains(notifies.last()) && handle(req.fileId) == watched) {
+          def pending = notifies.last()
+          Thread.start { complete(pending, NtStatus.STATUS_NOTIFY_CLEANUP) }
+        }
+        def response = new SMB2Close()
+        response.header.status = NtStatus.STATUS_SUCCESS
+        return response
+      }
+
+      null
+    })
+
+    def config = SmbConfig.builder().withTransportLayerFactory(new StubTransportLayerFactory(responder.&processPacket)).build()
+    def client = new SMBClient(config)
+
+    connection = client.connect("127.0.0.1")
+    def session = connection.authenticate(new AuthenticationContext("username", "password".toCharArray(), "domain.com"))
+    share = session.connectShare("share") as DiskShare
+    local = Files.createTempDirectory("mirror")
+    mirror = share.mirror("tree", local.resolve("tree"), local.resolve("manifest"))
+  }
+
+  def cleanup() {
+    mirror.close()
+    connection.close()
+    local.toFile().deleteDir()
+  }
+
+  def "should move a file that was renamed on the share instead of downloading it again"() {
+    given:
+    file("a", 10, "hello")
+    mirror.sync()
+
+    when:
+    move("a", "b")
+    def result = mirror.sync()
+
+    then:
+    result.moved == 1
+    result.downloaded == 0
+    result.failures.isEmpty()
+    readThreads.size() == 1
+    !Files.exists(local.resolve("tree/a"))
+    new String(Files.readAllBytes(local.resolve("tree/b")), StandardCharsets.UTF_8) == "hello"
+    manifest().collect { it.split("\t")[4] } == ["b"]
+  }
+
+  def "should move a directory that was moved on the share with the entries below it"() {
+    given:
+    dir("d", 20)
+    dir("d\\sub", 21)
+    file("d\\sub\\f", 22, "content")
+    dir("e", 23)
+    mirror.sync()
+
+    when:
+    move("d\\sub", "e\\sub")
+    def result = mirror.sync()
+
+    then:
+    result.moved == 1
+    result.unchanged == 1
+    result.downloaded == 0
+    result.deleted == 0
+    result.failures.isEmpty()
+    !Files.exists(local.resolve("tree/d/sub"))
+    new String(Files.readAllBytes(local.resolve("tree/e/sub/f")), StandardCharsets.UTF_8) == "content"
+    manifest().collect { it.split("\t")[4] }.toSet() == ["d", "e", "e\\sub", "e\\sub\\f"] as Set
+  }
+
+  def "should only list the directories that changed after watching"() {
+    given:
+    dir("d", 20)
+    file("d\\f", 21, "f")
+    dir("other", 22)
+    file("other\\g", 23, "g")
+    mirror.watch()
+    def first = mirror.sync()
+
+    when:
+    file("d\\new", 24, "new")
+    complete(notifies[0], NtStatus.STATUS_SUCCESS, "d\\new")
+    waitFor { notifies.size() == 2 }
+    // The listener is called after the next CHANGE_NOTIFY request is sent.
+    Thread.sleep(100)
+    def second = mirror.sync()
+
+    then:
+    first.fullScan
+    first.downloaded == 2
+    !second.fullScan
+    second.listedDirectories == 1
+    second.downloaded == 1
+    second.deleted == 0
+    new String(Files.readAllBytes(local.resolve("tree/d/new")), StandardCharsets.UTF_8) == "new"
+    Files.exists(local.resolve("tree/other/g"))
+
+    when:
+    mirror.close()
+    def third = mirror.sync()
+
+    then:
+    third.fullScan
+    third.downloaded == 0
+  }
+
+  def "should keep the manifest entry of a file that could not be downloaded and download it again"() {
+    given:
+    file("a", 10, "one")
+    mirror.sync()
+
+    when:
+    file("a", 10, "changed")
+    tree["tree\\a"].lastWriteTime++
+    failingReads << "tree\\a"
+    def failed = mirror.sync()
+
+    then:
+    failed.downloaded == 0
+    failed.failures.keySet() == ["a"] as Set
+    manifest().collect { it.split("\t")[1] } == ["3"]
+    new String(Files.readAllBytes(local.resolve("tree/a")), StandardCharsets.UTF_8) == "one"
+    !Files.exists(local.resolve("tree/a.smbj-part"))
+
+    when:
+    failingReads.clear()
+    def retried = mirror.sync()
+
+    then:
+    retried.downloaded == 1
+    retried.failures.isEmpty()
+    manifest().collect { it.split("\t")[1] } == ["7"]
+    new String(Files.readAllBytes(local.resolve("tree/a")), StandardCharsets.UTF_8) == "changed"
+  }
+
+  def "should replace a file that became a directory"() {
+    given:
+    file("x", 10, "file")
+    mirror.sync()
+
+    when:
+    tree.remove("tree\\x")
+    dir("x", 11)
+    file("x\\y", 12, "below")
+    def result = mirror.sync()
+
+    then:
+    result.failures.isEmpty()
+    result.downloaded == 1
+    new String(Files.readAllBytes(local.resolve("tree/x/y")), StandardCharsets.UTF_8) == "below"
+    manifest().collect { it.split("\t")[3] + " " + it.split("\t")[4] } == ["d x", "f x\\y"]
+  }
+
+  def "should replace a directory that became a file"() {
+    given:
+    dir("x", 10)
+    dir("x\\sub", 11)
+    file("x\\sub\\y", 12, "below")
+    mirror.sync()
+
+    when:
+    move("x", "gone")
+    tree.keySet().removeAll { it.startsWith("tree\\gone") }
+    file("x", 13, "file")
+    def result = mirror.sync()
+
+    then:
+    result.failures.isEmpty()
+    result.downloaded == 1
+    new String(Files.readAllBytes(local.resolve("tree/x")), StandardCharsets.UTF_8) == "file"
+    manifest().collect { it.split("\t")[3] + " " + it.split("\t")[4] } == ["f x"]
+  }
+
+  def "should delete the partial file when it cannot replace the local file"() {
+    given:
+    file("a", 10, "content")
+    Files.createDirectories(local.resolve("tree/a/in-the-way"))
+
+    when:
+    def result = mirror.sync()
+
+    then:
+    result.failures.keySet() == ["a"] as Set
+    result.failures["a"] instanceof IOException
+    !Files.exists(local.resolve("tree/a.smbj-part"))
+    manifest().isEmpty()
+  }
+
+  def "should download on the threads of the previous sync"() {
+    given:
+    file("a", 10, "one")
+    mirror.sync(1, null)
+
+    when:
+    file("a", 10, "two!")
+    mirror.sync(1, null)
+
+    then:
+    readThreads.size() == 2
+    readThreads[0] == readThreads[1]
+    readThreads[0].startsWith("smbj-mirror-")
+  }
+
+  def "should not mirror a remote entry whose name contains a separator"() {
+    given:
+    file("a/..", 10, "bad")
+    file("b", 11, "good")
+
+    when:
+    def result = mirror.sync()
+
+    then:
+    result.downloaded == 1
+    result.failures.keySet() == ["a/.."] as Set
+    result.failures["a/.."] instanceof IOException
+    Files.exists(local.resolve("tree/b"))
+    readThreads.size() == 1
+  }
+
+  def "should not delete outside of the local directory for a manifest entry that resolves there"() {
+    given:
+    file("a", 10, "a")
+    Files.createDirectories(local.resolve("tree"))
+    Files.write(local.resolve("keep"), [1] as byte[])
+    Files.write(local.resolve("manifest"), ["smbj-mirror 1", "5\t0\t0\td\t.."], StandardCharsets.UTF_8)
+
+    when:
+    def result = mirror.sync()
+
+    then:
+    result.failures.keySet() == [".."] as Set
+    result.failures[".."] instanceof IOException
+    result.deleted == 0
+    Files.exists(local.resolve("keep"))
+    Files.exists(local.resolve("tree/a"))
+  }
+
+  private void dir(String path, long fileId) {
+    tree["tree\\" + path] = new Node(directory: true, fileId: fileId)
+  }
+
+  private void file(String path, long fileId, String content) {
+    tree["tree\\" + path] = new Node(directory: false, fileId: fileId, content: content.getBytes(StandardCharsets.UTF_8))
+  }
+
+  /**
+   * Move the entry and the entries below it on the share, keeping their file ids.
+   */
+  private void move(String from, String to) {
+    def source = "tree\\" + from
+    def target = "tree\\" + to
+    new ArrayList<>(tree.keySet()).each { String path ->
+      if (path == source || path.startsWith(source + "\\")) {
+        tree[target + path.substring(source.length())] = tree.remove(path)
+      }
+    }
+  }
+
+  private List<String> manifest() {
+    def lines = Files.readAllLines(local.resolve("manifest"), StandardCharsets.UTF_8)
+    lines.subList(1, lines.size())
+  }
+
+  /**
+   * Complete the pending CHANGE_NOTIFY request with the given message id.
+   */
+  void complete(long messageId, NtStatus status, String... fileNames) {
+    answered << messageId
+    def response = new SMB2ChangeNotifyResponse()
+    response.header.messageId = messageId
+    response.header.status = status
+    response.header.setFlag(SMB2MessageFlag.SMB2_FLAGS_ASYNC_COMMAND)
+    response.fileNotifyInfoList = fileNames.collect { new SMB2ChangeNotifyResponse.FileNotifyInfo(response, FileNotifyAction.FILE_ACTION_ADDED, it) }
+    connection.handle(response)
+  }
+
+  void waitFor(Closure<Boolean> condition) {
+    long deadline = System.currentTimeMillis() + 5000
+    while (!condition.call() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10)
+    }
+  }
+
+  private static int handle(SMB2FileId fileId) {
+    ByteBuffer.wrap(fileId.persistentHandle).getLong() as int
+  }
+
+  SMB2Packet createResponse(SMB2CreateRequest req) {
+    def response = new SMB2CreateResponse()
+    def node = tree[req.fileName]
+    if (node == null) {
+      response.header.status = NtStatus.STATUS_OBJECT_NAME_NOT_FOUND
+      return response
+    }
+    handles << req.fileName
+    response.header.status = NtStatus.STATUS_SUCCESS
+    response.fileAttributes = EnumSet.of(node.directory ? FileAttributes.FILE_ATTRIBUTE_DIRECTORY : FileAttributes.FILE_ATTRIBUTE_NORMAL)
+    response.fileId = new SMB2FileId(ByteBuffer.allocate(8).putLong(handles.size() - 1).array(), new byte[8])
+    response
+  }
+
+  SMB2Packet queryDirectoryResponse(SMB2QueryDirectoryRequest req) {
+    def response = new SMB2QueryDirectoryResponse()
+    def index = handle(req.fileId)
+    def directory = handles[index]
+    def children = tree.keySet().findAll { it.startsWith(directory + "\\") && !it.substring(directory.length() + 1).contains("\\") }.sort()
+    if (!listed.add(index) || children.isEmpty()) {
+      response.header.status = NtStatus.STATUS_NO_MORE_FILES
+      return response
+    }
+    response.header.status = NtStatus.STATUS_SUCCESS
+    def buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN)
+    children.eachWithIndex { String path, int i ->
+      def node = tree[path]
+      def fileName = path.substring(directory.length() + 1).getBytes(StandardCharsets.UTF_16LE)
+      def start = buffer.position()
+      def next = i == children.size() - 1 ? 0 : (104 + fileName.length + 7) & ~7
+      buffer.putInt(next).putInt(0).putLong(node.lastWriteTime).putLong(node.lastWriteTime).putLong(node.lastWriteTime).putLong(node.lastWriteTime)
+      buffer.putLong(node.content.length).putLong(node.content.length)
+      buffer.putInt(node.directory ? 0x10 : 0x80).putInt(fileName.length).putInt(0).putShort(0 as short).put(new byte[24]).putShort(0 as short).putLong(node.fileId).put(fileName)
+      if (next != 0) {
+        buffer.position(start + next)
+      }
+    }
+    response.outputBuffer = Arrays.copyOf(buffer.array(), buffer.position())
+    response
+  }
+
+  SMB2Packet queryInfoResponse(SMB2QueryInfoRequest req) {
+    def node = tree[handles[handle(req.fileId)]]
+    def response = new SMB2QueryInfoResponse()
+    response.header.status = NtStatus.STATUS_SUCCESS
+    def info = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN)
+    info.putLong(node.content.length).putLong(node.content.length).putInt(1)
+    response.outputBuffer = info.array()
+    response
+  }
+
+  SMB2Packet readResponse(SMB2ReadRequest req) {
+    def path = handles[handle(req.fileId)]
+    if (req.offset == 0) {
+      readThreads << Thread.currentThread().name
+    }
+    def response = new SMB2ReadResponse()
+    if (failingReads.contains(path)) {
+      response.header.status = NtStatus.STATUS_ACCESS_DENIED
+      return response
+    }
+    def data = tree[path].content
+    def offset = req.offset as int
+    def length = Math.min(req.getPayloadSize(), data.length - offset)
+    if (length <= 0) {
+      response.header.status = NtStatus.STATUS_END_OF_FILE
+    } else {
+      response.header.status = NtStatus.STATUS_SUCCESS
+      response.data = Arrays.copyOfRange(data, offset, offset + length)
+      response.dataLength = length
+    }
+    response
+  }
+
+  static class Node {
+    boolean directory
+    long fileId
+    byte[] content = new byte[0]
+    long lastWriteTime = 132000000000000000L
+  }
+}